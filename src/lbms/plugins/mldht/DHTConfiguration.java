@@ -39,6 +39,16 @@ public interface DHTConfiguration {
 	 */
 	public boolean allowMultiHoming();
 	
+	/**
+	 * If positive and combined with an existing storage directory BEP44 items will be persisted in a log file and restored on startup.
+	 * The log is bounded to approximately this many bytes of live items, least recently accessed items are evicted first.
+	 * 
+	 * The default implementation only keeps items in memory.
+	 */
+	public default long getBEP44StorageBudget() {
+		return 0;
+	}
+	
 	/**
 	 * A DHT node will automatically select socket bind addresses based on internal policies from available addresses,
 	 * the predicate can be used to limit this selection to a subset.
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.indexer.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter backed by an {@link AtomicLongArray}, insert and lookup are lock-free and may be called from any thread.
+ *
+ * <p>
+ * Bit positions are derived by double hashing two seeded 64bit hashes of the data instead of iterated SHA1,
+ * which avoids allocations on the lookup path.
+ * </p>
+ */
+public class ConcurrentBloomFilter extends GenericBloomFilter {
+
+	final AtomicLongArray words;
+	final long seed1;
+	final long seed2;
+
+	public ConcurrentBloomFilter(int m, int n, byte[] secret) {
+		super(m, n, secret);
+		words = new AtomicLongArray(Math.max(1, m >>> 6));
+		long s = ByteBuffer.wrap(this.secret).getInt() & 0xFFFFFFFFL;
+		seed1 = mix(s ^ 0x9E3779B97F4A7C15L);
+		seed2 = mix(s ^ 0xC2B2AE3D27D4EB4FL);
+	}
+
+	public static ConcurrentBloomFilter withProbability(int n, float p, byte[] secret) {
+		return new ConcurrentBloomFilter(bitsForProbability(n, p), n, secret);
+	}
+
+	static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return z ^ (z >>> 33);
+	}
+
+	static long hash(ByteBuffer data, long seed) {
+		ByteBuffer buf = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		long h = seed ^ buf.remaining();
+		while(buf.remaining() >= 8)
+			h = mix(h ^ buf.getLong());
+		long tail = 0;
+		while(buf.hasRemaining())
+			tail = (tail << 8) | (buf.get() & 0xFF);
+		return mix(h ^ tail);
+	}
+
+	@Override
+	public boolean insert(ByteBuffer data) {
+		return insert(hash(data, seed1), hash(data, seed2));
+	}
+
+	boolean insert(long h1, long h2) {
+		// odd step so that all k probes are distinct
+		h2 |= 1;
+		boolean changed = false;
+		for(int i=0;i<k;i++) {
+			int idx = (int) ((h1 + i * h2) & (m - 1));
+			int word = idx >>> 6;
+			long bit = 1L << idx;
+			long old = words.get(word);
+			if((old & bit) != 0)
+				continue;
+			changed = true;
+			while((old & bit) == 0 && !words.compareAndSet(word, old, old | bit))
+				old = words.get(word);
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean probablyContains(ByteBuffer data) {
+		return probablyContains(hash(data, seed1), hash(data, seed2));
+	}
+
+	boolean probablyContains(long h1, long h2) {
+		h2 |= 1;
+		for(int i=0;i<k;i++) {
+			int idx = (int) ((h1 + i * h2) & (m - 1));
+			if((words.get(idx >>> 6) & (1L << idx)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		for(int i=0;i<words.length();i++)
+			words.set(i, 0);
+	}
+
+	@Override
+	int bitcount() {
+		int c = 0;
+		for(int i=0;i<words.length();i++)
+			c += Long.bitCount(words.get(i));
+		return c;
+	}
+
+	@Override
+	protected ConcurrentBloomFilter clone() {
+		ConcurrentBloomFilter copy = new ConcurrentBloomFilter(m, n, secret);
+		for(int i=0;i<words.length();i++)
+			copy.words.set(i, words.get(i));
+		return copy;
+	}
+
+	int wordCount() {
+		return words.length();
+	}
+
+	void writeTo(ByteBuffer buf) {
+		for(int i=0;i<words.length();i++)
+			buf.putLong(words.get(i));
+	}
+
+	void readFrom(ByteBuffer buf) {
+		for(int i=0;i<words.length();i++)
+			words.set(i, buf.getLong());
+	}
+
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.indexer.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe counterpart of {@link RotatingBloomFilter}.
+ *
+ * <p>
+ * The key space is split into shards, each consisting of a current and a previous {@link ConcurrentBloomFilter} generation.
+ * Shards rotate independently once they have seen their share of the target size, so only a fraction of the remembered
+ * entries is forgotten at a time. Inserts and lookups are lock-free, only rotation of a single shard synchronizes.
+ * </p>
+ */
+public class ConcurrentRotatingBloomFilter {
+
+	static final int MAGIC = 0x43524246; // CRBF
+	static final int VERSION = 1;
+
+	static class Shard {
+		volatile ConcurrentBloomFilter current;
+		volatile ConcurrentBloomFilter previous;
+		final AtomicInteger insertCount = new AtomicInteger();
+	}
+
+	final Shard[] shards;
+	final int shardBits;
+	final int bitsPerShard;
+	final int targetPerShard;
+	final byte[] secret;
+	final long seed1;
+	final long seed2;
+	final LongAdder rotations = new LongAdder();
+	volatile boolean autorotate;
+
+	/**
+	 * @param shards rounded up to a power of 2
+	 */
+	public ConcurrentRotatingBloomFilter(int targetSize, float falsePositiveRate, int shards) {
+		this(targetSize, falsePositiveRate, shards, null);
+	}
+
+	ConcurrentRotatingBloomFilter(int targetSize, float falsePositiveRate, int shards, byte[] secret) {
+		shardBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, shards) - 1);
+		this.shards = new Shard[1 << shardBits];
+		targetPerShard = Math.max(1, targetSize >> shardBits);
+		bitsPerShard = Math.max(64, GenericBloomFilter.bitsForProbability(targetPerShard, falsePositiveRate));
+		if(secret == null) {
+			secret = new byte[4];
+			ThreadLocalRandom.current().nextBytes(secret);
+		}
+		this.secret = secret;
+		for(int i=0;i<this.shards.length;i++) {
+			Shard s = new Shard();
+			s.current = newFilter();
+			s.previous = newFilter();
+			this.shards[i] = s;
+		}
+		seed1 = this.shards[0].current.seed1;
+		seed2 = this.shards[0].current.seed2;
+	}
+
+	ConcurrentBloomFilter newFilter() {
+		return new ConcurrentBloomFilter(bitsPerShard, targetPerShard, secret);
+	}
+
+	public void setAutoRotate(boolean val) {
+		autorotate = val;
+	}
+
+	Shard shardFor(long h1) {
+		// bit indices are derived from the low bits, shards from the high ones
+		return shards[shardBits == 0 ? 0 : (int) (h1 >>> (64 - shardBits))];
+	}
+
+	public void insert(ByteBuffer data) {
+		add(data);
+	}
+	
+	/**
+	 * inserts the data and checks whether it probably was already present, as a single operation
+	 * 
+	 * @return true if the data was not present before
+	 */
+	public boolean add(ByteBuffer data) {
+		long h1 = ConcurrentBloomFilter.hash(data, seed1);
+		long h2 = ConcurrentBloomFilter.hash(data, seed2);
+		Shard s = shardFor(h1);
+		ConcurrentBloomFilter previous = s.previous;
+		if(!s.current.insert(h1, h2))
+			return false;
+		if(s.insertCount.incrementAndGet() >= targetPerShard && autorotate)
+			rotate(s);
+		return !previous.probablyContains(h1, h2);
+	}
+
+	public boolean contains(ByteBuffer data) {
+		long h1 = ConcurrentBloomFilter.hash(data, seed1);
+		long h2 = ConcurrentBloomFilter.hash(data, seed2);
+		Shard s = shardFor(h1);
+		return s.current.probablyContains(h1, h2) || s.previous.probablyContains(h1, h2);
+	}
+
+	void rotate(Shard s) {
+		synchronized (s) {
+			if(s.insertCount.get() < targetPerShard)
+				return;
+			s.previous = s.current;
+			s.current = newFilter();
+			s.insertCount.set(0);
+		}
+		rotations.increment();
+	}
+
+	public void rotate() {
+		for(Shard s : shards) {
+			synchronized (s) {
+				s.previous = s.current;
+				s.current = newFilter();
+				s.insertCount.set(0);
+			}
+		}
+		rotations.increment();
+	}
+
+	public long rotations() {
+		return rotations.sum();
+	}
+
+	/**
+	 * Writes the filter to a temporary file and atomically moves it to the target. Concurrent inserts may or may not be included.
+	 */
+	public void snapshot(Path target) throws IOException {
+		int words = shards[0].current.wordCount();
+		ByteBuffer buf = ByteBuffer.allocate(4 * 6 + shards.length * (4 + 2 * 8 * words));
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(shards.length);
+		buf.putInt(bitsPerShard);
+		buf.putInt(targetPerShard);
+		buf.put(secret);
+		for(Shard s : shards) {
+			ConcurrentBloomFilter current;
+			ConcurrentBloomFilter previous;
+			synchronized (s) {
+				current = s.current;
+				previous = s.previous;
+				buf.putInt(s.insertCount.get());
+			}
+			current.writeTo(buf);
+			previous.writeTo(buf);
+		}
+		buf.flip();
+
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		try(FileChannel chan = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(buf.hasRemaining())
+				chan.write(buf);
+			chan.force(false);
+		}
+		Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return a filter restored from the snapshot, or a new empty filter if there is no snapshot or it was written with different parameters
+	 */
+	public static ConcurrentRotatingBloomFilter load(Path source, int targetSize, float falsePositiveRate, int shards) throws IOException {
+		if(!Files.isRegularFile(source))
+			return new ConcurrentRotatingBloomFilter(targetSize, falsePositiveRate, shards);
+
+		ByteBuffer buf;
+		try(FileChannel chan = FileChannel.open(source, StandardOpenOption.READ)) {
+			buf = ByteBuffer.allocate((int) chan.size());
+			while(buf.hasRemaining() && chan.read(buf) >= 0)
+				;
+		}
+		buf.flip();
+
+		ConcurrentRotatingBloomFilter empty = new ConcurrentRotatingBloomFilter(targetSize, falsePositiveRate, shards);
+		if(buf.remaining() < 24 || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+			return empty;
+		if(buf.getInt() != empty.shards.length || buf.getInt() != empty.bitsPerShard || buf.getInt() != empty.targetPerShard)
+			return empty;
+		byte[] secret = new byte[4];
+		buf.get(secret);
+		ConcurrentRotatingBloomFilter restored = new ConcurrentRotatingBloomFilter(targetSize, falsePositiveRate, shards, secret);
+		int words = restored.shards[0].current.wordCount();
+		if(buf.remaining() != restored.shards.length * (4 + 2 * 8 * words))
+			return empty;
+		for(Shard s : restored.shards) {
+			s.insertCount.set(buf.getInt());
+			s.current.readFrom(buf);
+			s.previous.readFrom(buf);
+		}
+		return restored;
+	}
+
+	@Override
+	public String toString() {
+		long bits = 0;
+		long total = 0;
+		double pop = 0;
+		for(Shard s : shards) {
+			bits += s.current.bitcount() + s.previous.bitcount();
+			total += 2L * bitsPerShard;
+			pop += s.current.populationEstimate() + s.previous.populationEstimate();
+		}
+		return String.format("shards: %d bits: %d/%d pop: %.0f rotations: %d", shards.length, bits, total, pop, rotations());
+	}
+
+}
@@ -20,13 +20,13 @@ import the8472.utils.MathUtils;
 public class GenericBloomFilter implements Cloneable {
 
 	// bits, must be a power of 2
-	private final int m; // = 1024 * 8;
+	final int m; // = 1024 * 8;
 	// expected entries
-	private final int n; // = 2000;
+	final int n; // = 2000;
 
 	// number of hashes (bits to set per entry)
-	private final int k;
-	private final int hashBits;
+	final int k;
+	final int hashBits;
 	
 	BitVector filter;
 	
@@ -34,25 +34,40 @@ public class GenericBloomFilter implements Cloneable {
 
 
 	static GenericBloomFilter withProbability(int n, float p) {
+		return new GenericBloomFilter(bitsForProbability(n, p), n);
+	}
+	
+	static int bitsForProbability(int n, float p) {
 		if(p <= 0.0 || p >= 1.0) {
 			throw new IllegalArgumentException("p must be in (0.0,1.0 range");
 		}
 		int m = (int) (-n*Math.log(p) / Math.pow(Math.log(2),2));
 		// next power of 2
-		m = Math.max(1, Integer.highestOneBit(m - 1) << 1);
-		return new GenericBloomFilter(m, n);
+		return Math.max(1, Integer.highestOneBit(m - 1) << 1);
 	}
 	
 	public GenericBloomFilter(int m, int n) {
+		this(m, n, null);
+		filter = new BitVector(m);
+	}
+	
+	/**
+	 * for subclasses providing their own bit storage
+	 * 
+	 * @param secret hash seed, random if null
+	 */
+	GenericBloomFilter(int m, int n, byte[] secret) {
 		if(Long.bitCount(m) != 1)
 			throw new IllegalArgumentException("Number of bits must be a power of 2");
 		this.m = m;
 		this.n = n;
 		k = (int) Math.max(1, Math.round(m * 1.0 / n * Math.log(2)));
 		hashBits = (int) (Math.log(m)/Math.log(2));
-		filter = new BitVector(m);
-		secret = new byte[4];
-		ThreadLocalRandom.current().nextBytes(secret);
+		if(secret == null) {
+			secret = new byte[4];
+			ThreadLocalRandom.current().nextBytes(secret);
+		}
+		this.secret = secret;
 	}
 	
 	
@@ -117,10 +132,14 @@ public class GenericBloomFilter implements Cloneable {
 		return newFilter;
 	}
 	
+	int bitcount() {
+		return filter.bitcount();
+	}
+	
 	public double populationEstimate() {
 		// number of expected 0 bits = m * (1 − 1/m)^(k*size)
 
-		double c = filter.bitcount();
+		double c = bitcount();
 		double size = log1p(-c/m) / (k * logB());
 		return size;
 	}
@@ -143,7 +162,7 @@ public class GenericBloomFilter implements Cloneable {
 	
 	@Override
 	public String toString() {
-		return String.format("bits: %d/%d pop: %.2f/%d k: %d", filter.bitcount(), filter.size(), populationEstimate(), n, k);
+		return String.format("bits: %d/%d pop: %.2f/%d k: %d", bitcount(), m, populationEstimate(), n, k);
 	}
 	
 	public static void main(String[] args) throws Exception {
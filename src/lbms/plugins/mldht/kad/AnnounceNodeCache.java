@@ -10,79 +10,134 @@ import lbms.plugins.mldht.kad.messages.MessageBase;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Caches nodes that responded during peer lookups, organized as keyspace-ordered buckets which only get split where recent lookups (anchors) need the resolution.
+ *
+ * <p>
+ * Readers never lock. Each bucket publishes an immutable, ID-sorted snapshot of its entries which writers replace under the bucket's monitor.
+ * Splits and merges install the replacement buckets before removing the old ones so that the buckets always tile the whole keyspace,
+ * writers that raced with such an operation notice the retired bucket and retry.
+ * Readers may briefly see an old bucket alongside its replacement and drop the duplicates.
+ * </p>
+ *
+ * <p>
+ * The total number of entries is limited by a fixed budget, once it is exhausted new entries can only displace slower ones.
+ * </p>
+ */
 public class AnnounceNodeCache {
-	
+
 	private static class CacheAnchorPoint extends Key {
 		public CacheAnchorPoint(Key k)
 		{
 			super(k);
 		}
-		
+
 		long expirationTime;
 	}
-	
-	private static class CacheBucket {
-	
-		Prefix prefix;
-		ConcurrentLinkedQueue<KBucketEntry> entries = new ConcurrentLinkedQueue<>();
-		
-		public CacheBucket(Prefix p) {
+
+	private static final KBucketEntry[] NO_ENTRIES = new KBucketEntry[0];
+
+	static class CacheBucket {
+
+		final Prefix prefix;
+		// immutable, sorted by ID
+		volatile KBucketEntry[] entries;
+		// guarded by this. set once a split or merge replaced this bucket
+		boolean retired;
+
+		public CacheBucket(Prefix p, KBucketEntry[] entries) {
 			prefix = p;
+			this.entries = entries;
 		}
 	}
-	
+
 	ConcurrentSkipListMap<Key, CacheAnchorPoint> anchors = new ConcurrentSkipListMap<>();
 	ConcurrentSkipListMap<Key, CacheBucket> cache = new ConcurrentSkipListMap<>();
-	
-	
+
+	final int maxEntries;
+	final int maxAnchors;
+	final AtomicInteger entryCount = new AtomicInteger();
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder partialHits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder inserts = new LongAdder();
+	final LongAdder refreshes = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+	final LongAdder rejections = new LongAdder();
+	final LongAdder timeoutRemovals = new LongAdder();
+	final LongAdder expirations = new LongAdder();
+	final LongAdder anchorRejections = new LongAdder();
+	final LongAdder splits = new LongAdder();
+	final LongAdder merges = new LongAdder();
+
 	public AnnounceNodeCache() {
-		CacheBucket rootBucket = new CacheBucket(new Prefix());
+		this(DHTConstants.ANNOUNCE_CACHE_MAX_ENTRIES, DHTConstants.ANNOUNCE_CACHE_MAX_ANCHORS);
+	}
+
+	public AnnounceNodeCache(int maxEntries, int maxAnchors) {
+		this.maxEntries = maxEntries;
+		this.maxAnchors = maxAnchors;
+		CacheBucket rootBucket = new CacheBucket(new Prefix(), NO_ENTRIES);
 		cache.put(rootBucket.prefix, rootBucket);
 	}
-	
+
 	public void register(Key target, boolean isFastLookup)
 	{
+		// anchors only control how finely the keyspace gets split, dropping some just reduces the resolution
+		if(anchors.size() >= maxAnchors && !anchors.containsKey(target)) {
+			anchorRejections.increment();
+			return;
+		}
 		CacheAnchorPoint anchor = new CacheAnchorPoint(target);
 		anchor.expirationTime = System.currentTimeMillis() + (isFastLookup ? DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE : DHTConstants.ANNOUNCE_CACHE_MAX_AGE);
 		anchors.put(target,anchor);
 	}
-	
+
 	private final RPCCallListener cl = new RPCCallListener() {
 		public void onTimeout(RPCCall c) {
 			Key nodeId = c.getExpectedID();
 			if(nodeId == null)
 				return;
-			
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(nodeId);
-			
-			if(targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(nodeId))
-				return;
-			
-			for(Iterator<KBucketEntry> it = targetEntry.getValue().entries.iterator();it.hasNext();)
-			{
-				KBucketEntry e = it.next();
-				// remove an entry if the id matches
-				// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
-				if(e.getID().equals(nodeId) && (e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1))
-					it.remove();
-			}
 
-			
+			while(true) {
+				CacheBucket bucket = bucketFor(nodeId);
+				synchronized (bucket) {
+					if(bucket.retired)
+						continue;
+					KBucketEntry[] current = bucket.entries;
+					int idx = indexOf(current, nodeId);
+					if(idx < 0)
+						return;
+					KBucketEntry e = current[idx];
+					// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
+					if(e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1) {
+						bucket.entries = without(current, idx);
+						entryCount.decrementAndGet();
+						timeoutRemovals.increment();
+					}
+					return;
+				}
+			}
 		}
-		
+
 		public void onStall(RPCCall c) {
 			// TODO Auto-generated method stub
 		}
-		
+
 		public void onResponse(RPCCall c, MessageBase rsp) {
 			if(!c.matchesExpectedID())
 				return;
@@ -91,230 +146,347 @@ public class AnnounceNodeCache {
 			add(kbe);
 		}
 	};
-	
+
 	public RPCCallListener getRPCListener() {
 		return cl;
 	}
 
-	/*
-	 * this insert procedure might cause minor inconsistencies (duplicate entries, too-large lists)
-	 * but those are self-healing under merge/split operations
+	/**
+	 * buckets always tile the keyspace, so this never fails. but the returned bucket may already be retired
 	 */
+	private CacheBucket bucketFor(Key k) {
+		return cache.floorEntry(k).getValue();
+	}
+
+	private static int indexOf(KBucketEntry[] entries, Key id) {
+		int low = 0;
+		int high = entries.length - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = entries[mid].getID().compareTo(id);
+			if(cmp < 0)
+				low = mid + 1;
+			else if(cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	private static KBucketEntry[] without(KBucketEntry[] entries, int idx) {
+		KBucketEntry[] result = new KBucketEntry[entries.length - 1];
+		System.arraycopy(entries, 0, result, 0, idx);
+		System.arraycopy(entries, idx + 1, result, idx, entries.length - idx - 1);
+		return result;
+	}
+
+	private static KBucketEntry[] with(KBucketEntry[] entries, int insertionPoint, KBucketEntry toInsert) {
+		KBucketEntry[] result = new KBucketEntry[entries.length + 1];
+		System.arraycopy(entries, 0, result, 0, insertionPoint);
+		result[insertionPoint] = toInsert;
+		System.arraycopy(entries, insertionPoint, result, insertionPoint + 1, entries.length - insertionPoint);
+		return result;
+	}
+
+	private boolean coversAnchor(Prefix p) {
+		Map.Entry<Key, CacheAnchorPoint> anchorEntry = anchors.ceilingEntry(p);
+		return anchorEntry != null && p.isPrefixOf(anchorEntry.getValue());
+	}
+
+	private boolean reserveBudget() {
+		int current;
+		do {
+			current = entryCount.get();
+			if(current >= maxEntries)
+				return false;
+		} while(!entryCount.compareAndSet(current, current + 1));
+		return true;
+	}
+
 	public void add(KBucketEntry entryToInsert)
 	{
 		Key target = entryToInsert.getID();
-		
-		outer: while(true)
+
+		while(true)
 		{
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(target);
-			
-			if(targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(target))
-			{ // split/merge operation ongoing, retry
-				Thread.yield();
-				continue;
-			}
-			
-			CacheBucket targetBucket = targetEntry.getValue();
-			
-			int size = 0;
-			
-			for(Iterator<KBucketEntry> it = targetBucket.entries.iterator();it.hasNext();)
+			CacheBucket bucket = bucketFor(target);
+
+			synchronized (bucket)
 			{
-				KBucketEntry e = it.next();
-				size++;
-				if(e.getID().equals(entryToInsert.getID()))
+				if(bucket.retired)
+					continue;
+
+				KBucketEntry[] current = bucket.entries;
+				int idx = indexOf(current, target);
+				if(idx >= 0)
 				{ // refresh timestamp, this is checked for removals
-					e.mergeInTimestamps(entryToInsert);
-					break outer;
+					current[idx].mergeInTimestamps(entryToInsert);
+					refreshes.increment();
+					return;
 				}
-			}
-			
-			if(size >= DHTConstants.MAX_CONCURRENT_REQUESTS)
-			{
-				// cache entry full, see if we this bucket prefix covers any anchor
-				Map.Entry<Key, CacheAnchorPoint> anchorEntry = anchors.ceilingEntry(targetBucket.prefix);
-											
-				if(anchorEntry == null || !targetBucket.prefix.isPrefixOf(anchorEntry.getValue()))
+
+				if(current.length >= DHTConstants.MAX_CONCURRENT_REQUESTS)
 				{
-					// if this bucket is full and cannot be split
-					for(Iterator<KBucketEntry> it=targetBucket.entries.iterator();it.hasNext();)
+					if(bucket.prefix.splittable() && coversAnchor(bucket.prefix))
 					{
-						KBucketEntry kbe = it.next();
-						if(entryToInsert.getRTT() < kbe.getRTT())
-						{
-							targetBucket.entries.add(entryToInsert);
-							it.remove();
-							break outer;
-						}
+						split(bucket);
+						continue;
 					}
-					break;
+
+					replaceSlowest(bucket, entryToInsert);
+					return;
 				}
-					
-				
-				synchronized (targetBucket)
+
+				if(!reserveBudget())
 				{
-					// check for concurrent split/merge
-					if(cache.get(targetBucket.prefix) != targetBucket)
-						continue;
-					// perform split operation
-					CacheBucket lowerBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(false));
-					CacheBucket upperBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(true));
-					
-					// remove old entry. this leads to a temporary gap in the cache-keyspace!
-					if(!cache.remove(targetEntry.getKey(),targetBucket))
-						continue;
+					replaceSlowest(bucket, entryToInsert);
+					return;
+				}
+
+				bucket.entries = with(current, -(idx + 1), entryToInsert);
+				inserts.increment();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * caller must hold the bucket's monitor
+	 */
+	private void replaceSlowest(CacheBucket bucket, KBucketEntry entryToInsert) {
+		KBucketEntry[] current = bucket.entries;
+		int slowest = -1;
+		for(int i=0;i<current.length;i++) {
+			if(slowest == -1 || current[i].getRTT() > current[slowest].getRTT())
+				slowest = i;
+		}
+
+		if(slowest == -1 || entryToInsert.getRTT() >= current[slowest].getRTT()) {
+			rejections.increment();
+			return;
+		}
+
+		KBucketEntry[] reduced = without(current, slowest);
+		bucket.entries = with(reduced, -(indexOf(reduced, entryToInsert.getID()) + 1), entryToInsert);
+		evictions.increment();
+	}
+
+	/**
+	 * caller must hold the bucket's monitor
+	 */
+	private void split(CacheBucket bucket) {
+		Prefix lowerPrefix = bucket.prefix.splitPrefixBranch(false);
+		Prefix upperPrefix = bucket.prefix.splitPrefixBranch(true);
+
+		KBucketEntry[] entries = bucket.entries;
+		int pos = indexOf(entries, upperPrefix.first());
+		int boundary = pos >= 0 ? pos : -(pos + 1);
+
+		CacheBucket lower = new CacheBucket(lowerPrefix, Arrays.copyOfRange(entries, 0, boundary));
+		CacheBucket upper = new CacheBucket(upperPrefix, Arrays.copyOfRange(entries, boundary, entries.length));
 
-					cache.put(upperBucket.prefix, upperBucket);
-					cache.put(lowerBucket.prefix, lowerBucket);
+		bucket.retired = true;
+		// upper half first, the lower half shares the old bucket's key and replaces it atomically, so there never is a gap
+		cache.put(upperPrefix, upper);
+		cache.put(lowerPrefix, lower);
+		splits.increment();
+	}
+
+	/**
+	 * @return the merged bucket or null if either of the siblings changed concurrently
+	 */
+	private CacheBucket merge(CacheBucket lower, CacheBucket upper) {
+		synchronized (lower)
+		{
+			synchronized (upper)
+			{
+				if(lower.retired || upper.retired)
+					return null;
+
+				KBucketEntry[] a = lower.entries;
+				KBucketEntry[] b = upper.entries;
+				// both are sorted and all of the lower bucket's IDs are smaller
+				KBucketEntry[] merged = new KBucketEntry[a.length + b.length];
+				System.arraycopy(a, 0, merged, 0, a.length);
+				System.arraycopy(b, 0, merged, a.length, b.length);
 
-					for(KBucketEntry e : targetBucket.entries)
-						add(e);
+				if(merged.length > DHTConstants.MAX_CONCURRENT_REQUESTS) {
+					int excess = merged.length - DHTConstants.MAX_CONCURRENT_REQUESTS;
+					Arrays.sort(merged, Comparator.comparingInt(KBucketEntry::getRTT));
+					merged = Arrays.copyOf(merged, DHTConstants.MAX_CONCURRENT_REQUESTS);
+					Arrays.sort(merged, KBucketEntry.KEY_ORDER);
+					entryCount.addAndGet(-excess);
+					evictions.add(excess);
 				}
 
-				continue;
+				CacheBucket parent = new CacheBucket(lower.prefix.getParentPrefix(), merged);
+
+				lower.retired = true;
+				upper.retired = true;
+				// the parent shares the lower bucket's key and replaces it atomically, lookups in the upper half still find the old bucket until it's removed
+				cache.put(parent.prefix, parent);
+				cache.remove(upper.prefix, upper);
+				merges.increment();
+				return parent;
 			}
-			
-			targetBucket.entries.add(entryToInsert);
-			break;
-			
-			
 		}
 	}
 
-	
+	/**
+	 * @return up to targetSize entries, closest to the target first
+	 */
 	public List<KBucketEntry> get(Key target, int targetSize)
 	{
-		ArrayList<KBucketEntry> closestSet = new ArrayList<>(2 * targetSize);
-		
-		Map.Entry<Key, CacheBucket> ceil = cache.ceilingEntry(target);
-		Map.Entry<Key, CacheBucket> floor = cache.floorEntry(target);
-		
-		do
+		if(targetSize <= 0)
+			return Collections.emptyList();
+
+		// the closest entries all lie within the smallest prefix of the target that covers enough of them,
+		// so widen the prefix one bit at a time and only look at the newly covered sibling subtree
+		Prefix region = bucketFor(target).prefix;
+		List<KBucketEntry> candidates = new ArrayList<>(targetSize * 2);
+		for(CacheBucket b : cache.subMap(region.first(), true, region.last(), true).values())
+			Collections.addAll(candidates, b.entries);
+
+		while(candidates.size() < targetSize && region.getDepth() >= 0)
 		{
-			if(floor != null)
-			{
-				closestSet.addAll(floor.getValue().entries);
-				floor = cache.lowerEntry(floor.getKey());
-			}
-				
-			if(ceil != null)
-			{
-				closestSet.addAll(ceil.getValue().entries);
-				ceil = cache.higherEntry(ceil.getKey());
-			}
-		} while (closestSet.size() / 2 < targetSize && (floor != null || ceil != null));
-		
-		return closestSet;
+			Prefix parent = region.getParentPrefix();
+			boolean isLowerHalf = parent.first().equals(region.first());
+			Map<Key, CacheBucket> sibling = isLowerHalf ? cache.subMap(region.last(), false, parent.last(), true) : cache.subMap(parent.first(), true, region.first(), false);
+			for(CacheBucket b : sibling.values())
+				Collections.addAll(candidates, b.entries);
+			region = parent;
+		}
+
+		if(candidates.isEmpty())
+		{
+			misses.increment();
+			return Collections.emptyList();
+		}
+
+		candidates.sort(new KBucketEntry.DistanceOrder(target));
+
+		// a split or merge running concurrently with the iteration above can expose both the retired bucket and its replacement.
+		// they share the entry instances, which end up next to each other after sorting
+		int unique = 0;
+		for(int i=0;i<candidates.size();i++) {
+			KBucketEntry e = candidates.get(i);
+			if(unique > 0 && candidates.get(unique - 1).getID().equals(e.getID()))
+				continue;
+			candidates.set(unique++, e);
+		}
+		candidates.subList(unique, candidates.size()).clear();
+
+		if(candidates.size() >= targetSize)
+			hits.increment();
+		else
+			partialHits.increment();
+
+		if(candidates.size() > targetSize)
+			return new ArrayList<>(candidates.subList(0, targetSize));
+		return candidates;
 	}
-	
+
 	public void cleanup(long now)
 	{
 		// first pass, eject old anchors
 		for(Iterator<CacheAnchorPoint> it = anchors.values().iterator();it.hasNext();)
 			if(now - it.next().expirationTime > 0)
 				it.remove();
-		
+
 		Set<Key> seenIDs = new HashSet<>();
 		Set<InetAddress> seenIPs = new HashSet<>();
-		
+
 		// 2nd pass, eject old and/or duplicate entries
-		for(Iterator<CacheBucket> it = cache.values().iterator();it.hasNext();)
+		for(CacheBucket b : cache.values())
 		{
-			CacheBucket b = it.next();
-			
-			for(Iterator<KBucketEntry> it2 = b.entries.iterator();it2.hasNext();)
+			synchronized (b)
 			{
-				KBucketEntry kbe = it2.next();
-				if(now - kbe.getLastSeen() > DHTConstants.ANNOUNCE_CACHE_MAX_AGE || seenIDs.contains(kbe.getID()) || seenIPs.contains(kbe.getAddress().getAddress()))
-					it2.remove();
-				seenIDs.add(kbe.getID());
-				seenIPs.add(kbe.getAddress().getAddress());
+				if(b.retired)
+					continue;
+
+				KBucketEntry[] current = b.entries;
+				List<KBucketEntry> kept = new ArrayList<>(current.length);
+
+				for(KBucketEntry kbe : current)
+				{
+					boolean remove = now - kbe.getLastSeen() > DHTConstants.ANNOUNCE_CACHE_MAX_AGE || seenIDs.contains(kbe.getID()) || seenIPs.contains(kbe.getAddress().getAddress());
+					seenIDs.add(kbe.getID());
+					seenIPs.add(kbe.getAddress().getAddress());
+					if(!remove)
+						kept.add(kbe);
+				}
+
+				int removed = current.length - kept.size();
+				if(removed > 0)
+				{
+					b.entries = kept.toArray(NO_ENTRIES);
+					entryCount.addAndGet(-removed);
+					expirations.add(removed);
+				}
 			}
-			
+
 			// IDs go into the appropriate buckets. no need to check across buckets
 			seenIDs.clear();
-
 		}
 
-		
+
 		// merge buckets that aren't full or don't have anchors
-		
+
 		Entry<Key,CacheBucket> entry = cache.firstEntry();
-		if(entry == null)
-			return;
-		
-		CacheBucket current = null;
-		CacheBucket next = entry.getValue();
+		CacheBucket current = entry.getValue();
 
 		while(true)
 		{
-			current = next;
-			
 			entry = cache.higherEntry(current.prefix);
 			if(entry == null)
 				return;
-			next = entry.getValue();
-			
-			
-			if(!current.prefix.isSiblingOf(next.prefix))
-				continue;
-			
-			
-			Prefix parent = current.prefix.getParentPrefix();
-			Map.Entry<Key, CacheAnchorPoint> anchor = anchors.ceilingEntry(parent);
-			if(anchor == null || !parent.isPrefixOf(anchor.getValue()) || current.entries.size()+next.entries.size() < DHTConstants.MAX_CONCURRENT_REQUESTS)
+			CacheBucket next = entry.getValue();
+
+			if(current.prefix.isSiblingOf(next.prefix))
 			{
-				synchronized (current)
+				Prefix parent = current.prefix.getParentPrefix();
+				if(!coversAnchor(parent) || current.entries.length + next.entries.length < DHTConstants.MAX_CONCURRENT_REQUESTS)
 				{
-					synchronized (next)
+					CacheBucket merged = merge(current, next);
+					if(merged != null)
 					{
-						// check for concurrent split/merge
-						if(cache.get(current.prefix) != current || cache.get(next.prefix) != next)
-							continue;
-						
-						cache.remove(current.prefix, current);
-						cache.remove(next.prefix,next);
-						
-						cache.put(parent, new CacheBucket(parent));
-						
-						for(KBucketEntry e : current.entries)
-							add(e);
-						for(KBucketEntry e : next.entries)
-							add(e);
+						// move backwards if possible to cascade merges backwards if necessary
+						entry = cache.lowerEntry(merged.prefix);
+						current = entry != null ? entry.getValue() : merged;
+						continue;
 					}
 				}
-				
-				// move backwards if possible to cascade merges backwards if necessary
-				entry = cache.lowerEntry(current.prefix);
-				if(entry == null)
-					continue;
-				next = entry.getValue();
 			}
+
+			current = next;
 		}
-					
+
 	}
-	
-	
+
+
 	public void printDiagnostics(PrintWriter b) {
-		b.append("anchors ("+anchors.size()+"):\n");
+		b.append("anchors ("+anchors.size()+"/"+maxAnchors+"):\n");
 		// no need to print out all anchors for now
 		//for(CacheAnchorPoint a : anchors.values())
 		//	b.println(a);
-		
+
 		int bucketCount = 0;
 		int entryCount = 0;
 		for(CacheBucket buck : cache.values())
 		{
 			bucketCount++;
-			entryCount+= buck.entries.size();
+			entryCount+= buck.entries.length;
 		}
-		
-		b.println("buckets ("+bucketCount+") / entries ("+entryCount+"):\n");
-		
+
+		b.println("buckets ("+bucketCount+") / entries ("+entryCount+"/"+maxEntries+"):");
+		b.format("lookups: hits:%d partial:%d misses:%d | inserts:%d refreshes:%d evictions:%d rejections:%d timeouts:%d expired:%d | splits:%d merges:%d anchor rejections:%d%n%n",
+				hits.sum(), partialHits.sum(), misses.sum(), inserts.sum(), refreshes.sum(), evictions.sum(), rejections.sum(), timeoutRemovals.sum(), expirations.sum(), splits.sum(), merges.sum(), anchorRejections.sum());
+
 		for(CacheBucket buck : cache.values())
-			b.println(buck.prefix+" entries: "+buck.entries.size());
+			b.println(buck.prefix+" entries: "+buck.entries.length);
 
 	}
- 	
-	
+
+
 }
@@ -37,10 +37,12 @@ import lbms.plugins.mldht.kad.tasks.NodeLookup;
 import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
 import lbms.plugins.mldht.kad.tasks.PingRefreshTask;
 import lbms.plugins.mldht.kad.tasks.Task;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
 import lbms.plugins.mldht.kad.tasks.TaskListener;
 import lbms.plugins.mldht.kad.tasks.TaskManager;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.PacketCapture;
 import lbms.plugins.mldht.kad.utils.PopulationEstimator;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
 
@@ -169,6 +171,7 @@ public class DHT implements DHTBase {
 	private DHTStats						stats;
 	private DHTStatus						status;
 	private PopulationEstimator				estimator;
+	private volatile PacketCapture			packetCapture;
 	private AnnounceNodeCache				cache;
 	NIOConnectionManager					connectionManager;
 	
@@ -345,7 +348,29 @@ public class DHT implements DHTBase {
 			return;
 		}
 		
-		UpdateResult result = storage.putOrUpdate(k, new StorageItem(req), req.getExpectedSequenceNumber());
+		StorageItem item = new StorageItem(req);
+		
+		if(!item.mutable()) {
+			completePut(req, k, item);
+			return;
+		}
+		
+		// curve operations are expensive, keep them off the message processing threads. putOrUpdate re-validates, which will be served from the verifier's cache
+		SignatureVerifier.shared().verifyAsync(item).whenComplete((valid, ex) -> {
+			if(ex != null) {
+				sendError(req, ErrorCode.ServerError.code, "too many pending signature verifications");
+				return;
+			}
+			if(!valid) {
+				sendError(req, ErrorCode.InvalidSignature.code, "signature validation failed");
+				return;
+			}
+			completePut(req, k, item);
+		});
+	}
+	
+	private void completePut(PutRequest req, Key k, StorageItem item) {
+		UpdateResult result = storage.putOrUpdate(k, item, req.getExpectedSequenceNumber());
 		
 		switch(result) {
 			case CAS_FAIL:
@@ -556,6 +581,7 @@ public class DHT implements DHTBase {
 		
 		// reuse the same server to make sure our tokens are still valid
 		AnnounceTask announce = new AnnounceTask(lookup.getRPC(), node, lookup.getInfoHash(), btPort, lookup.getAnnounceCanidates());
+		announce.setSchedulingClass(lookup.getSchedulingClass());
 		announce.setSeed(isSeed);
 
 		tman.addTask(announce);
@@ -587,6 +613,17 @@ public class DHT implements DHTBase {
 	public PopulationEstimator getEstimator() {
 		return estimator;
 	}
+	
+	public PacketCapture getPacketCapture() {
+		return packetCapture;
+	}
+	
+	/**
+	 * @param capture receives all datagrams that pass the basic sanity checks, null to stop capturing. the caller remains responsible for closing it
+	 */
+	public void setPacketCapture(PacketCapture capture) {
+		this.packetCapture = capture;
+	}
 
 	public DHTtype getType() {
 		return type;
@@ -707,6 +744,16 @@ public class DHT implements DHTBase {
 		node.initKey(config);
 		node.loadTable(table_file);
 		
+		if(config.getBEP44StorageBudget() > 0 && Files.isDirectory(config.getStoragePath())) {
+			Path storageLog = config.getStoragePath().resolve(type.shortName+"-bep44.log");
+			try {
+				storage = new GenericStorage(new LogStorageBackend(storageLog, config.getBEP44StorageBudget()));
+			} catch (IOException e) {
+				DHT.log("failed to open BEP44 storage log " + storageLog + ", falling back to in-memory storage", LogLevel.Error);
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+		
 
 		// these checks query the available network interfaces, which can be expensive on some platforms
 		// schedule them separately
@@ -842,7 +889,8 @@ public class DHT implements DHTBase {
 		}
 
 		logInfo("Initated DHT shutdown");
-		Stream.concat(Arrays.stream(tman.getActiveTasks()), Arrays.stream(tman.getQueuedTasks())).forEach(Task::kill);
+		// queued ones first, otherwise every killed active task would start the next queued one
+		Stream.concat(Arrays.stream(tman.getQueuedTasks()), Arrays.stream(tman.getActiveTasks())).forEach(Task::kill);
 		
 		for(ScheduledFuture<?> future : scheduledActions) {
 			future.cancel(false);
@@ -874,6 +922,8 @@ public class DHT implements DHTBase {
 			e.printStackTrace();
 		}
 		
+		storage.close();
+		
 		stopped();
 		tman = null;
 		db = null;
@@ -1079,6 +1129,7 @@ public class DHT implements DHTBase {
 		}
 
 		NodeLookup at = new NodeLookup(id, server, node, isBootstrap);
+		at.setSchedulingClass(SchedulingClass.MAINTENANCE);
 		if(configureTask != null)
 			configureTask.accept(at);
 		tman.addTask(at, isPriority);
@@ -1191,7 +1242,7 @@ public class DHT implements DHTBase {
 		
 		w.append("-----------------------\n");
 		w.append("Stats\n");
-		w.append("Reachable node estimate: "+ estimator.getEstimate()+ " ("+estimator.getStability()+")\n");
+		w.append("Reachable node estimate: "+ estimator +"\n");
 		w.append(stats.toString());
 		w.append("-----------------------\n");
 		w.append("Routing table\n");
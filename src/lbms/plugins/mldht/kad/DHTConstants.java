@@ -18,6 +18,8 @@ public class DHTConstants {
 	public static final int		MAX_ENTRIES_PER_BUCKET					= 8;
 	public static final int		MAX_ACTIVE_TASKS						= 7;
 	public static final int		MAX_ACTIVE_CALLS						= 256;
+	// queued interactive tasks may exceed MAX_ACTIVE_TASKS after waiting this long (ms)
+	public static final int		INTERACTIVE_TASK_DEADLINE				= 1000;
 	public static final int		MAX_PENDING_ENTRIES_PER_BUCKET			= 5;
 	public static final int		BUCKET_REFRESH_INTERVAL					= 15 * 60 * 1000;
 	public static final int		MAX_CONCURRENT_REQUESTS					= 10;
@@ -55,6 +57,8 @@ public class DHTConstants {
 
 	public static final int		ANNOUNCE_CACHE_MAX_AGE					= 30 * 60 * 1000;
 	public static final int		ANNOUNCE_CACHE_FAST_LOOKUP_AGE			= 8 * 60 * 1000;
+	public static final int		ANNOUNCE_CACHE_MAX_ENTRIES				= 16 * 1024;
+	public static final int		ANNOUNCE_CACHE_MAX_ANCHORS				= 4 * 1024;
 
 
 	public static final InetSocketAddress[] UNRESOLVED_BOOTSTRAP_NODES = new InetSocketAddress[] {
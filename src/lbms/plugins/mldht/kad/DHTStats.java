@@ -7,8 +7,12 @@ package lbms.plugins.mldht.kad;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
 
 import lbms.plugins.mldht.kad.tasks.Task;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+import the8472.utils.metrics.Histogram;
 
 /**
  * @author Damokles
@@ -38,6 +42,17 @@ public class DHTStats {
 	private double			avgFirstResultTime = 10000;
 	private double			avgFinishTime = 10000;
 
+	// seconds, 50ms to ~25s
+	private final Histogram	taskDuration = new Histogram(Histogram.exponentialBounds(0.05, 2, 10));
+	private final Histogram	taskFirstResult = new Histogram(Histogram.exponentialBounds(0.05, 2, 10));
+	// seconds, 1ms to ~16s
+	private final EnumMap<SchedulingClass, Histogram> taskQueueWait = new EnumMap<>(SchedulingClass.class);
+	
+	{
+		for(SchedulingClass c : SchedulingClass.values())
+			taskQueueWait.put(c, new Histogram(Histogram.exponentialBounds(0.001, 2, 15)));
+	}
+
 	/**
 	 * @return the num_peers
 	 */
@@ -113,13 +128,40 @@ public class DHTStats {
 		if(t.getFinishedTime() <= 0)
 			return;
 		avgFinishTime = (t.getFinishedTime() - t.getStartTime()) * EMA_WEIGHT + avgFinishTime * (1.0 - EMA_WEIGHT);
+		taskDuration.observe((t.getFinishedTime() - t.getStartTime()) / 1000.0);
 		//System.out.println("fin "+(t.getFinishedTime() - t.getStartTime()));
 		if(t.getFirstResultTime() <= 0)
 			return;
 		avgFirstResultTime = (t.getFirstResultTime() - t.getStartTime()) * EMA_WEIGHT + avgFirstResultTime * (1.0 - EMA_WEIGHT);
+		taskFirstResult.observe((t.getFirstResultTime() - t.getStartTime()) / 1000.0);
 		//System.out.println("1st "+(t.getFirstResultTime() - t.getStartTime()));
 	}
 
+	public void taskDequeued(Task t, long waitNanos) {
+		taskQueueWait.get(t.getSchedulingClass()).observe(waitNanos / (double)TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * @return time tasks of the given class spent queued before they were started, in seconds
+	 */
+	public Histogram getTaskQueueWait(SchedulingClass c) {
+		return taskQueueWait.get(c);
+	}
+
+	/**
+	 * @return wall-clock time from start to finish of completed tasks, in seconds
+	 */
+	public Histogram getTaskDuration() {
+		return taskDuration;
+	}
+
+	/**
+	 * @return time until completed tasks produced their first result, in seconds
+	 */
+	public Histogram getTaskFirstResult() {
+		return taskFirstResult;
+	}
+
 	/**
 	 * @param num_received_packets the num_received_packets to set
 	 */
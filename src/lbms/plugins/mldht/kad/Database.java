@@ -23,6 +23,7 @@ import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.DHTEvents;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
 /**
@@ -232,8 +233,7 @@ public class Database {
 	 */
 	public void store(Key key, PeerAddressDBItem dbi) {
 		
-		
-		PeersSeeds keyEntries = null;
+		Object ev = DHTEvents.DATABASE.begin();
 		
 		items.compute(key, (k, v) -> {
 			if(v != null) {
@@ -243,6 +243,9 @@ public class Database {
 			
 			return new PeersSeeds(dbi.seed ? new PeerAddressDBItem[] {dbi} : ItemSet.NO_ITEMS , dbi.seed ? ItemSet.NO_ITEMS : new PeerAddressDBItem[] {dbi});
 		});
+		
+		if(ev != null)
+			DHTEvents.DATABASE.commit(ev, "store", items.size());
 	}
 
 	/**
@@ -341,6 +344,8 @@ public class Database {
 	 */
 	void expire(long now) {
 		
+		Object ev = DHTEvents.DATABASE.begin();
+		
 		for (PeersSeeds dbl : items.values())
 		{
 			dbl.expire();
@@ -348,6 +353,9 @@ public class Database {
 		
 		items.entrySet().removeIf(e -> e.getValue().size() == 0);
 		
+		if(ev != null)
+			DHTEvents.DATABASE.commit(ev, "expire", items.size());
+		
 		samples = null;
 		
 	}
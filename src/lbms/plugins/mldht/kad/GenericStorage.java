@@ -27,6 +27,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
 
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSAPrivateKey;
@@ -144,32 +145,7 @@ public class GenericStorage {
 		public static final EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName("Ed25519");
 		
 		public boolean validateSig()  {
-			try {
-				Signature sig = new EdDSAEngine();
-				sig.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkey, spec)));
-				
-				// ("4:salt" length-of-salt ":" salt) "3:seqi" seq "e1:v" len ":" and the encoded value
-				
-				Map<String, Object> p = new TreeMap<>();
-				
-				if(salt != null)
-					p.put("salt", salt);
-				p.put("seq", sequenceNumber);
-				p.put("v", new BEncoder.RawData(ByteBuffer.wrap(value)));
-				
-				ByteBuffer buf = new BEncoder().encode(p, 1500);
-				
-				// trim d ... e
-				buf.position(buf.position() + 1);
-				buf.limit(buf.limit() - 1);
-				
-				sig.update(buf);
-				
-				return sig.verify(signature);
-			} catch (InvalidKeyException | SignatureException e) {
-				return false;
-			}
-
+			return SignatureVerifier.shared().verify(this);
 		}
 		
 		public long seq() {
@@ -219,7 +195,52 @@ public class GenericStorage {
 		
 	}
 	
-	ConcurrentHashMap<Key, StorageItem> items = new ConcurrentHashMap<>();
+	static class InMemoryBackend implements StorageBackend {
+		
+		ConcurrentHashMap<Key, StorageItem> items = new ConcurrentHashMap<>();
+		
+		@Override
+		public Optional<StorageItem> get(Key k) {
+			return Optional.ofNullable(items.get(k));
+		}
+		
+		@Override
+		public void compute(Key k, UnaryOperator<StorageItem> update) {
+			items.compute(k, (unused, old) -> update.apply(old));
+		}
+		
+		@Override
+		public void expire(long now) {
+			items.entrySet().removeIf(entry -> {
+				return entry.getValue().expirationDate < now;
+			});
+		}
+		
+		@Override
+		public Map<Key, StorageItem> snapshot() {
+			return Collections.unmodifiableMap(items);
+		}
+		
+		@Override
+		public int size() {
+			return items.size();
+		}
+		
+		@Override
+		public String toString() {
+			return "in-memory items:" + items.size();
+		}
+	}
+	
+	final StorageBackend backend;
+	
+	public GenericStorage() {
+		this(new InMemoryBackend());
+	}
+	
+	public GenericStorage(StorageBackend backend) {
+		this.backend = backend;
+	}
 	
 	
 	enum UpdateResult {
@@ -252,43 +273,49 @@ public class GenericStorage {
 		if(newItem.mutable() && !newItem.validateSig())
 			return UpdateResult.SIG_FAIL;
 		
-		while(true) {
-			StorageItem oldItem = items.putIfAbsent(k, newItem);
-			
-			if(oldItem == null)
-				return UpdateResult.SUCCESS;
-			
-			if(oldItem.mutable()) {
-				if(!newItem.mutable())
-					return UpdateResult.IMMUTABLE_SUBSTITUTION_FAIL;
-				if(newItem.sequenceNumber < oldItem.sequenceNumber)
-					return UpdateResult.SEQ_FAIL;
-				if(expected >= 0 && oldItem.sequenceNumber >= 0 && oldItem.sequenceNumber != expected)
-					return UpdateResult.CAS_FAIL;
-			}
-			
-			if(items.replace(k, oldItem, newItem))
-				break;
+		UpdateResult[] result = new UpdateResult[1];
+		
+		backend.compute(k, oldItem -> {
+			result[0] = checkUpdate(oldItem, newItem, expected);
+			return result[0] == UpdateResult.SUCCESS ? newItem : oldItem;
+		});
+		
+		return result[0];
+	}
+	
+	static UpdateResult checkUpdate(StorageItem oldItem, StorageItem newItem, long expected) {
+		if(oldItem != null && oldItem.mutable()) {
+			if(!newItem.mutable())
+				return UpdateResult.IMMUTABLE_SUBSTITUTION_FAIL;
+			if(newItem.sequenceNumber < oldItem.sequenceNumber)
+				return UpdateResult.SEQ_FAIL;
+			if(expected >= 0 && oldItem.sequenceNumber >= 0 && oldItem.sequenceNumber != expected)
+				return UpdateResult.CAS_FAIL;
 		}
 		
 		return UpdateResult.SUCCESS;
 	}
 	
 	public Optional<StorageItem> get(Key k) {
-		return Optional.ofNullable(items.get(k));
+		return backend.get(k);
 	}
 	
 	
 	public void cleanup() {
-		long now = System.currentTimeMillis();
-		
-		items.entrySet().removeIf(entry -> {
-			return entry.getValue().expirationDate < now;
-		});
+		backend.expire(System.currentTimeMillis());
+	}
+	
+	public void close() {
+		backend.close();
 	}
 	
 	public Map<Key, StorageItem> getItems() {
-		return Collections.unmodifiableMap(items);
+		return backend.snapshot();
+	}
+	
+	@Override
+	public String toString() {
+		return "storage backend: " + backend;
 	}
 
 }
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * Persists BEP44 items in an append-only, memory-mapped log file. An in-memory index maps keys to their latest record.
+ *
+ * <ul>
+ * <li>reads are lock-free, updates are serialized</li>
+ * <li>superseded and expired records are reclaimed by compacting the live records into a new file once they make up half of the log</li>
+ * <li>if the live records exceed the byte budget the least recently accessed items are evicted</li>
+ * <li>state is restored when the log is opened, a torn record at the tail (e.g. after a crash) truncates the log at that point</li>
+ * </ul>
+ *
+ * record layout: <code>length(4) crc32(4) type(1) key(20)</code> followed by, for items, <code>expiration(8) seq(8) flags(1) [pubkeylen(1) pubkey siglen(1) sig] [saltlen(1) salt] valuelen(2) value</code>
+ */
+public class LogStorageBackend implements StorageBackend {
+
+	static final int MAGIC = 0x6d6c3434;
+	static final int VERSION = 1;
+	static final int FILE_HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + Key.SHA1_HASH_LENGTH;
+
+	static final byte TYPE_ITEM = 1;
+	static final byte TYPE_TOMBSTONE = 2;
+
+	static final int FLAG_MUTABLE = 1;
+	static final int FLAG_SALT = 2;
+
+	static final int INITIAL_CAPACITY = 1024 * 1024;
+	// offsets are ints and the log may temporarily hold as many dead bytes as live ones
+	public static final long MAX_BUDGET = 512 * 1024 * 1024;
+	// evict down to this fraction of the budget to avoid evicting on every put once the budget has been reached
+	static final double EVICTION_TARGET = 0.9;
+
+	static class IndexEntry {
+		final ByteBuffer segment;
+		final int offset;
+		final int length;
+		final long expiration;
+		volatile long lastAccess;
+
+		IndexEntry(ByteBuffer segment, int offset, int length, long expiration) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expiration = expiration;
+			lastAccess = System.nanoTime();
+		}
+	}
+
+	final Path file;
+	final long budget;
+
+	final ConcurrentHashMap<Key, IndexEntry> index = new ConcurrentHashMap<>();
+
+	FileChannel channel;
+	MappedByteBuffer map;
+	int writePosition;
+	long liveBytes;
+	long deadBytes;
+	long evictions;
+	long compactions;
+
+	public LogStorageBackend(Path file, long byteBudget) throws IOException {
+		this.file = file;
+		this.budget = min(max(byteBudget, 0), MAX_BUDGET);
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("storage log " + file + " exceeds maximum size");
+
+		map = channel.map(MapMode.READ_WRITE, 0, max(size, INITIAL_CAPACITY));
+
+		if(size < FILE_HEADER_SIZE) {
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+		} else if(map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			throw new IOException("storage log " + file + " has an unknown format");
+		}
+
+		load();
+	}
+
+	private void load() {
+		long now = System.currentTimeMillis();
+		CRC32 crc = new CRC32();
+
+		int pos = FILE_HEADER_SIZE;
+
+		while(pos + RECORD_HEADER_SIZE <= map.capacity()) {
+			int length = map.getInt(pos);
+			// corrupt lengths can be close to Integer.MAX_VALUE, don't let pos + length overflow
+			if(length < RECORD_HEADER_SIZE || length > map.capacity() - pos)
+				break;
+
+			ByteBuffer record = slice(map, pos + 8, length - 8);
+			crc.reset();
+			crc.update(record);
+			if((int)crc.getValue() != map.getInt(pos + 4))
+				break;
+
+			byte type = map.get(pos + 8);
+			Key k = readKey(map, pos + 9);
+
+			IndexEntry old;
+
+			if(type == TYPE_ITEM) {
+				long expiration = map.getLong(pos + RECORD_HEADER_SIZE);
+				if(expiration < now) {
+					old = index.remove(k);
+					deadBytes += length;
+				} else {
+					old = index.put(k, new IndexEntry(map, pos, length, expiration));
+					liveBytes += length;
+				}
+			} else {
+				old = index.remove(k);
+				deadBytes += length;
+			}
+
+			if(old != null) {
+				liveBytes -= old.length;
+				deadBytes += old.length;
+			}
+
+			pos += length;
+		}
+
+		writePosition = pos;
+
+		// anything beyond the last valid record is the remainder of an interrupted write, clear it so it can't be mistaken for valid records later
+		for(int i = pos; i < map.capacity(); i++)
+			map.put(i, (byte) 0);
+
+		DHT.log("restored " + index.size() + " storage items from " + file + " live bytes:" + liveBytes + " dead bytes:" + deadBytes, LogLevel.Info);
+
+		if(deadBytes > liveBytes)
+			compact();
+		enforceBudget();
+	}
+
+	static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(offset + length);
+		dup.position(offset);
+		return dup.slice();
+	}
+
+	static Key readKey(ByteBuffer buf, int offset) {
+		return new Key(slice(buf, offset, Key.SHA1_HASH_LENGTH));
+	}
+
+	static byte[] readBytes(ByteBuffer buf, int length) {
+		byte[] result = new byte[length];
+		buf.get(result);
+		return result;
+	}
+
+	static StorageItem decode(IndexEntry e) {
+		ByteBuffer buf = slice(e.segment, e.offset + RECORD_HEADER_SIZE, e.length - RECORD_HEADER_SIZE);
+
+		long expiration = buf.getLong();
+		long seq = buf.getLong();
+		int flags = buf.get();
+
+		byte[] pubkey = null;
+		byte[] sig = null;
+		byte[] salt = null;
+
+		if((flags & FLAG_MUTABLE) != 0) {
+			pubkey = readBytes(buf, Byte.toUnsignedInt(buf.get()));
+			sig = readBytes(buf, Byte.toUnsignedInt(buf.get()));
+		}
+		if((flags & FLAG_SALT) != 0)
+			salt = readBytes(buf, Byte.toUnsignedInt(buf.get()));
+
+		byte[] value = readBytes(buf, Short.toUnsignedInt(buf.getShort()));
+
+		StorageItem item = pubkey != null ? new StorageItem(value, pubkey, sig, salt, seq) : new StorageItem(value);
+		item.expirationDate = expiration;
+		return item;
+	}
+
+	static ByteBuffer encode(Key k, StorageItem item) {
+		int size = RECORD_HEADER_SIZE + 8 + 8 + 1 + 2 + item.value.length;
+		if(item.mutable())
+			size += 2 + item.pubkey.length + item.signature.length;
+		if(item.salt != null)
+			size += 1 + item.salt.length;
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(size);
+		buf.putInt(0);
+		buf.put(TYPE_ITEM);
+		k.toBuffer(buf);
+		buf.putLong(item.expirationDate);
+		buf.putLong(item.sequenceNumber);
+		buf.put((byte) ((item.mutable() ? FLAG_MUTABLE : 0) | (item.salt != null ? FLAG_SALT : 0)));
+		if(item.mutable()) {
+			buf.put((byte) item.pubkey.length);
+			buf.put(item.pubkey);
+			buf.put((byte) item.signature.length);
+			buf.put(item.signature);
+		}
+		if(item.salt != null) {
+			buf.put((byte) item.salt.length);
+			buf.put(item.salt);
+		}
+		buf.putShort((short) item.value.length);
+		buf.put(item.value);
+
+		return seal(buf);
+	}
+
+	static ByteBuffer tombstone(Key k) {
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		buf.putInt(RECORD_HEADER_SIZE);
+		buf.putInt(0);
+		buf.put(TYPE_TOMBSTONE);
+		k.toBuffer(buf);
+		return seal(buf);
+	}
+
+	private static ByteBuffer seal(ByteBuffer buf) {
+		buf.flip();
+		CRC32 crc = new CRC32();
+		crc.update(slice(buf, 8, buf.limit() - 8));
+		buf.putInt(4, (int) crc.getValue());
+		return buf;
+	}
+
+	@Override
+	public Optional<StorageItem> get(Key k) {
+		IndexEntry e = index.get(k);
+		if(e == null)
+			return Optional.empty();
+		e.lastAccess = System.nanoTime();
+		return Optional.of(decode(e));
+	}
+
+	@Override
+	public void compute(Key k, UnaryOperator<StorageItem> update) {
+		synchronized (this) {
+			IndexEntry old = index.get(k);
+			StorageItem oldItem = old != null ? decode(old) : null;
+			StorageItem newItem = update.apply(oldItem);
+
+			if(newItem == oldItem)
+				return;
+
+			try {
+				if(newItem == null) {
+					append(tombstone(k));
+					index.remove(k);
+				} else {
+					ByteBuffer record = encode(k, newItem);
+					int length = record.remaining();
+					int offset = append(record);
+					index.put(k, new IndexEntry(map, offset, length, newItem.expirationDate));
+					liveBytes += length;
+				}
+
+				if(old != null) {
+					liveBytes -= old.length;
+					deadBytes += old.length;
+				}
+
+				enforceBudget();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+	/**
+	 * @return the offset at which the record was written
+	 */
+	private int append(ByteBuffer record) throws IOException {
+		int length = record.remaining();
+
+		if(length > map.capacity() - writePosition) {
+			if(deadBytes > liveBytes)
+				compact();
+			if(length > map.capacity() - writePosition)
+				grow((long) writePosition + length);
+		}
+
+		int offset = writePosition;
+
+		// write the body first and the length last so that a torn write never looks like a valid record
+		ByteBuffer dst = map.duplicate();
+		dst.position(offset + 4);
+		record.position(4);
+		dst.put(record);
+		map.putInt(offset, length);
+
+		writePosition += length;
+
+		return offset;
+	}
+
+	private void grow(long required) throws IOException {
+		// mappings are int-indexed
+		if(required > Integer.MAX_VALUE)
+			throw new IOException("storage log " + file + " exceeds maximum size");
+		long capacity = map.capacity();
+		while(capacity < required)
+			capacity *= 2;
+		capacity = Math.min(capacity, Integer.MAX_VALUE);
+
+		// the previous mapping remains valid for concurrent readers, it will be released by the GC
+		map = channel.map(MapMode.READ_WRITE, 0, capacity);
+
+		// existing entries keep pointing to the old mapping, which is fine since it covers the same file region
+	}
+
+	private void enforceBudget() {
+		if(liveBytes <= budget)
+			return;
+
+		List<Map.Entry<Key, IndexEntry>> entries = new ArrayList<>(index.entrySet());
+		Collections.sort(entries, Comparator.comparingLong(e -> e.getValue().lastAccess));
+
+		long target = (long) (budget * EVICTION_TARGET);
+
+		try {
+			for(Map.Entry<Key, IndexEntry> me : entries) {
+				if(liveBytes <= target)
+					break;
+				append(tombstone(me.getKey()));
+				index.remove(me.getKey());
+				liveBytes -= me.getValue().length;
+				deadBytes += me.getValue().length;
+				evictions++;
+			}
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+
+	/**
+	 * copies all indexed records into a new log file and atomically replaces the current one with it. expired items must be removed from the index beforehand
+	 */
+	private void compact() {
+		Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+
+		try {
+			int required = FILE_HEADER_SIZE;
+			for(IndexEntry e : index.values())
+				required += e.length;
+
+			FileChannel newChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			MappedByteBuffer newMap = newChannel.map(MapMode.READ_WRITE, 0, max(INITIAL_CAPACITY, Integer.highestOneBit(required) * 2L));
+
+			newMap.putInt(0, MAGIC);
+			newMap.putInt(4, VERSION);
+
+			ByteBuffer dst = newMap.duplicate();
+			dst.position(FILE_HEADER_SIZE);
+
+			Map<Key, IndexEntry> newEntries = new HashMap<>();
+			long newLive = 0;
+
+			for(Map.Entry<Key, IndexEntry> me : index.entrySet()) {
+				IndexEntry e = me.getValue();
+				int offset = dst.position();
+				dst.put(slice(e.segment, e.offset, e.length));
+				IndexEntry moved = new IndexEntry(newMap, offset, e.length, e.expiration);
+				moved.lastAccess = e.lastAccess;
+				newEntries.put(me.getKey(), moved);
+				newLive += e.length;
+			}
+
+			newMap.force();
+
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			channel.close();
+			channel = newChannel;
+			map = newMap;
+			writePosition = dst.position();
+
+			index.keySet().retainAll(newEntries.keySet());
+			index.putAll(newEntries);
+			liveBytes = newLive;
+			deadBytes = 0;
+			compactions++;
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e1) {
+				DHT.log(e1, LogLevel.Error);
+			}
+		}
+	}
+
+	@Override
+	public void expire(long now) {
+		synchronized (this) {
+			index.entrySet().removeIf(me -> {
+				IndexEntry e = me.getValue();
+				if(e.expiration >= now)
+					return false;
+				liveBytes -= e.length;
+				deadBytes += e.length;
+				return true;
+			});
+
+			if(deadBytes > liveBytes && deadBytes > INITIAL_CAPACITY / 2)
+				compact();
+
+			map.force();
+		}
+	}
+
+	@Override
+	public Map<Key, StorageItem> snapshot() {
+		Map<Key, StorageItem> result = new HashMap<>();
+		index.forEach((k, e) -> result.put(k, decode(e)));
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			try {
+				map.force();
+				channel.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (this) {
+			return "log:" + file + " items:" + index.size() + " live bytes:" + liveBytes + " dead bytes:" + deadBytes + " budget:" + budget + " evictions:" + evictions + " compactions:" + compactions;
+		}
+	}
+
+}
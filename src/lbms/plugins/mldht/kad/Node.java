@@ -17,6 +17,7 @@ import static the8472.utils.Functional.typedGet;
 import the8472.bencode.BEncoder;
 import the8472.utils.AnonAllocator;
 import the8472.utils.CowSet;
+import the8472.utils.FlightEvents;
 import the8472.utils.Pair;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 import the8472.utils.io.NetMask;
@@ -28,6 +29,7 @@ import lbms.plugins.mldht.kad.messages.MessageBase.Type;
 import lbms.plugins.mldht.kad.tasks.PingRefreshTask;
 import lbms.plugins.mldht.kad.tasks.Task;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
+import lbms.plugins.mldht.kad.utils.DHTEvents;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
 import java.io.File;
@@ -453,6 +455,7 @@ public class Node {
 		if(!dht.getType().canUseSocketAddress(toInsert.getAddress()))
 			throw new IllegalArgumentException("attempting to insert "+toInsert+" expected address type: "+dht.getType().PREFERRED_ADDRESS_TYPE.getSimpleName());
 		
+		Object ev = DHTEvents.ROUTING_TABLE.begin();
 		
 		Key nodeID = toInsert.getID();
 		
@@ -485,6 +488,9 @@ public class Node {
 		// add delta to the global counter. inaccurate, but will be rebuilt by the bucket checks
 		num_entries += tableEntry.bucket.getNumEntries() - oldSize;
 		
+		if(ev != null)
+			DHTEvents.ROUTING_TABLE.commit(ev, dht.getType().shortName, "insert", tableEntry.prefix.getDepth());
+		
 	}
 	
 	boolean canSplit(RoutingTableEntry entry, KBucketEntry toInsert, boolean relaxedSplitting) {
@@ -514,6 +520,7 @@ public class Node {
 	}
 	
 	private void splitEntry(RoutingTable expect, RoutingTableEntry entry) {
+		Object ev = DHTEvents.ROUTING_TABLE.begin();
 		synchronized (CoWLock)
 		{
 			RoutingTable current = routingTableCOW;
@@ -536,6 +543,9 @@ public class Node {
 		for(KBucketEntry e : entry.bucket.getReplacementEntries())
 			insertEntry(e, EnumSet.noneOf(InsertOptions.class));
 		
+		if(ev != null)
+			DHTEvents.ROUTING_TABLE.commit(ev, dht.getType().shortName, "split", entry.prefix.getDepth());
+		
 	}
 	
 	public RoutingTable table() {
@@ -776,6 +786,8 @@ public class Node {
 
 					// uplift siblings if the other one is dead
 					if (effectiveSize1 == 0 || effectiveSize2 == 0) {
+						if(FlightEvents.isEnabled())
+							DHTEvents.ROUTING_TABLE.emit(dht.getType().shortName, "uplift", e1.prefix.getDepth());
 						KBucket toLift = effectiveSize1 == 0 ? e2.getBucket() : e1.getBucket();
 
 						RoutingTable table = routingTableCOW;
@@ -787,6 +799,7 @@ public class Node {
 					// check if the buckets can be merged without losing entries
 
 					if (effectiveSize1 + effectiveSize2 <= DHTConstants.MAX_ENTRIES_PER_BUCKET) {
+						Object ev = DHTEvents.ROUTING_TABLE.begin();
 
 						RoutingTable table = routingTableCOW;
 						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), this::isLocalBucket)));
@@ -804,6 +817,9 @@ public class Node {
 						e2.bucket.replacementsStream().forEach(r -> {
 							insertEntry(r, EnumSet.of(InsertOptions.NEVER_SPLIT));
 						});
+						
+						if(ev != null)
+							DHTEvents.ROUTING_TABLE.commit(ev, dht.getType().shortName, "merge", e1.prefix.getDepth());
 
 						i -= 2;
 						continue;
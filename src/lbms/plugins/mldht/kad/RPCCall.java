@@ -9,6 +9,7 @@ import static the8472.bencode.Utils.prettyPrint;
 
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.TimeoutSource;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -35,6 +36,8 @@ public class RPCCall {
 	long					responseTime	= -1;
 	private Key						expectedID;
 	long					expectedRTT = -1;
+	private long					entryRTT = -1;
+	private TimeoutSource			timeoutSource;
 	RPCState state = RPCState.UNSENT;
 	
 	ScheduledExecutorService scheduler;
@@ -51,6 +54,27 @@ public class RPCCall {
 	
 	public void builtFromEntry(KBucketEntry e) {
 		sourceWasKnownReachable = e.verifiedReachable();
+		int rtt = e.getRTT();
+		if(sourceWasKnownReachable && rtt < DHTConstants.RPC_CALL_TIMEOUT_MAX)
+			entryRTT = rtt;
+	}
+	
+	/**
+	 * @return the average RTT of the verified routing entry this call was built from, -1 if unknown
+	 */
+	public long getEntryRTT() {
+		return entryRTT;
+	}
+	
+	public void setTimeoutSource(TimeoutSource source) {
+		timeoutSource = source;
+	}
+	
+	/**
+	 * @return which RTT model determined the stall timeout, null if the call hasn't been dispatched yet
+	 */
+	public TimeoutSource getTimeoutSource() {
+		return timeoutSource;
 	}
 	
 	public boolean knownReachableAtCreationTime() {
@@ -26,7 +26,10 @@ import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.messages.PingResponse;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.DHTEvents;
+import lbms.plugins.mldht.kad.utils.PacketCapture;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.TimeoutSource;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
@@ -58,6 +61,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -114,6 +118,11 @@ public class RPCServer {
 	
 
 	SocketHandler sel;
+	
+	// offline load tests divert outgoing packets here instead of sending them
+	volatile BiConsumer<ByteBuffer, InetSocketAddress> divertOutgoing;
+	// simulated servers never open a socket, all traffic goes through inject() and divertOutgoing
+	boolean virtual;
 
 	public RPCServer (RPCServerManager manager, InetAddress addr, int port, RPCStats stats) {
 		this.port = port;
@@ -305,6 +314,29 @@ public class RPCServer {
 				verifiedEntryLossrate.updateAverage(0.0);
 			else
 				unverifiedLossrate.updateAverage(0.0);
+			timeoutFilter.updateSubnet(c.getRequest().getDestination().getAddress(), c.getRTT());
+		}
+		
+		public void stateTransition(RPCCall c, RPCState previous, RPCState current) {
+			TimeoutSource source = c.getTimeoutSource();
+			if(source == null)
+				return;
+			switch(current) {
+				case SENT:
+					stats.addStallTimeoutCall(source);
+					break;
+				case STALLED:
+					// only count stalls caused by the timer, not injected ones
+					if(System.currentTimeMillis() - c.getSentTime() >= c.getExpectedRTT())
+						stats.addStall(source);
+					break;
+				case RESPONDED:
+					if(previous == RPCState.STALLED && c.getRTT() >= c.getExpectedRTT())
+						stats.addFalseStall(source);
+					break;
+				default:
+					break;
+			}
 		}
 	};
 	
@@ -380,8 +412,7 @@ public class RPCServer {
 		if(source.getPort() == 0)
 			return;
 
-
-
+		Object decodeEvent = DHTEvents.PACKET_DECODE.begin();
 		
 		Map<String, Object> bedata = null;
 		MessageBase msg = null;
@@ -435,6 +466,9 @@ public class RPCServer {
 		if(msg == null)
 			return;
 		
+		if(decodeEvent != null)
+			DHTEvents.PACKET_DECODE.commit(decodeEvent, dh_table.getType().shortName, msg.getMethod().name(), msg.getType().name(), rawLength);
+		
 		if(DHT.isLogLevelEnabled(LogLevel.Debug))
 			DHT.logDebug("RPC received message from "+source.getAddress().getHostAddress() + ":" + source.getPort() +" | "+msg.toString()+ " length: "+rawLength );
 		stats.addReceivedMessageToCount(msg);
@@ -524,10 +558,13 @@ public class RPCServer {
 	}
 	
 	private void handleMessage(MessageBase msg) {
+		Object ev = DHTEvents.MESSAGE_HANDLING.begin();
 		if(msg.getType() == Type.RSP_MSG && msg.getPublicIP() != null)
 			updatePublicIPConsensus(msg.getOrigin().getAddress(), msg.getPublicIP());
 		dh_table.incomingMessage(msg);
 		msg.apply(dh_table);
+		if(ev != null)
+			DHTEvents.MESSAGE_HANDLING.commit(ev, dh_table.getType().shortName, msg.getMethod().name(), msg.getType().name());
 	}
 	
 	private void updatePublicIPConsensus(InetAddress source, InetSocketAddress addr) {
@@ -628,7 +665,7 @@ public class RPCServer {
 		f.format("%s\tbind: %s consensus: %s%n", getDerivedID(), getBindAddress(), consensusExternalAddress);
 		f.format("rx: %d tx: %d active: %d baseRTT: %d loss: %f  loss (verified): %f uptime: %s%n",
 				numReceived, numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
-		f.format("RTT stats (%dsamples) %s", timeoutFilter.getSampleCount(), timeoutFilter.getCurrentStats());
+		f.format("RTT stats (%dsamples, %d subnet models) %s", timeoutFilter.getSampleCount(), timeoutFilter.getSubnetCount(), timeoutFilter.getCurrentStats());
 
 		return f.toString();
 	}
@@ -640,6 +677,50 @@ public class RPCServer {
 		return Duration.between(start, Instant.now());
 	}
 	
+	/**
+	 * @param readBuffer filled up to its position, not yet flipped
+	 */
+	void received(ByteBuffer readBuffer, InetSocketAddress soa) {
+		// * no conceivable DHT message is smaller than 10 bytes
+		// * all DHT messages start with a 'd' for dictionary
+		// * port 0 is reserved
+		// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
+		// -> immediately discard junk on the read loop, don't even allocate a buffer for it
+		if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !dh_table.getType().canUseSocketAddress(soa))
+			return;
+		
+		// capture before throttling so that replays exercise the throttle too
+		PacketCapture capture = dh_table.getPacketCapture();
+		if(capture != null)
+			capture.record(soa, readBuffer);
+		
+		if(throttle.addAndTest(soa.getAddress()))
+			return;
+		
+		// copy from the read buffer since we hand off to another thread
+		readBuffer.flip();
+		ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
+		buf.flip();
+		
+		dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
+		numReceived++;
+		stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+	}
+	
+	/**
+	 * Feeds a datagram through the same path as one read from the socket, for offline load tests.
+	 */
+	void inject(ByteBuffer data, InetSocketAddress source) {
+		throttle.decay();
+		ByteBuffer readBuffer = RPCServer.readBuffer.get();
+		// the socket would have truncated it
+		if(data.remaining() > readBuffer.capacity())
+			return;
+		readBuffer.clear();
+		readBuffer.put(data);
+		received(readBuffer, source);
+	}
+	
 	static final ThreadLocal<ByteBuffer> writeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1500));
 	static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DHTConstants.RECEIVE_BUFFER_SIZE));
 	
@@ -668,6 +749,13 @@ public class RPCServer {
 			try
 			{
 				timeoutFilter.reset();
+				
+				if(virtual) {
+					writeState.compareAndSet(INITIALIZING, WRITE_STATE_IDLE);
+					// no selector will signal writability, flush whatever got queued during startup
+					writeEvent();
+					return;
+				}
 	
 				channel = DatagramChannel.open(dh_table.getType().PROTO_FAMILY);
 				channel.configureBlocking(false);
@@ -710,8 +798,6 @@ public class RPCServer {
 			
 			ByteBuffer readBuffer = RPCServer.readBuffer.get();
 			
-			DHTtype type = dh_table.getType();
-			
 			while(true)
 			{
 				readBuffer.clear();
@@ -719,24 +805,7 @@ public class RPCServer {
 				if(soa == null)
 					break;
 				
-				// * no conceivable DHT message is smaller than 10 bytes
-				// * all DHT messages start with a 'd' for dictionary
-				// * port 0 is reserved
-				// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
-				// -> immediately discard junk on the read loop, don't even allocate a buffer for it
-				if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
-					continue;
-				if(throttle.addAndTest(soa.getAddress()))
-					continue;
-				
-				// copy from the read buffer since we hand off to another thread
-				readBuffer.flip();
-				ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
-				buf.flip();
-				
-				dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
-				numReceived++;
-				stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+				received(readBuffer, soa);
 			}
 		}
 		
@@ -763,7 +832,14 @@ public class RPCServer {
 								
 						es.encodeTo(buf);
 						
-						int bytesSent = channel.send(buf, es.toSend.getDestination());
+						BiConsumer<ByteBuffer, InetSocketAddress> divert = divertOutgoing;
+						int bytesSent;
+						if(divert != null) {
+							bytesSent = buf.remaining();
+							divert.accept(buf, es.toSend.getDestination());
+						} else {
+							bytesSent = channel.send(buf, es.toSend.getDestination());
+						}
 						
 						if(bytesSent == 0)
 						{
@@ -890,7 +966,9 @@ public class RPCServer {
 				long configuredRTT = associatedCall.getExpectedRTT();
 
 				if(configuredRTT == -1) {
-					configuredRTT = timeoutFilter.getStallTimeout();
+					configuredRTT = timeoutFilter.getStallTimeout(associatedCall);
+				} else {
+					associatedCall.setTimeoutSource(TimeoutSource.CALLER);
 				}
 
 // TODO: re-evaluate necessity
@@ -7,7 +7,10 @@ package lbms.plugins.mldht.kad;
 
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -19,6 +22,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -90,7 +94,7 @@ public class RPCServerManager {
 		Collection<InetAddress> valid = validBindAddresses;
 		getAllServers().forEach(srv -> {
 			InetAddress addr = srv.getBindAddress();
-			if(!valid.contains(addr)) {
+			if(!valid.contains(addr) && !srv.virtual) {
 				DHT.logInfo("bind address no longer valid, removing from active set: " + addr);
 				srv.stop();
 			}
@@ -193,6 +197,25 @@ public class RPCServerManager {
 	
 	void newServer(InetAddress addr) {
 		RPCServer srv = new RPCServer(this,addr,dht.config.getListeningPort(), dht.serverStats);
+		register(srv);
+	}
+	
+	/**
+	 * Adds a server for an address that does not belong to any local interface. It never opens a socket,
+	 * outgoing packets are handed to the transport and incoming ones have to be delivered via {@link RPCServer#inject(ByteBuffer, InetSocketAddress)}.
+	 * 
+	 * Used by the in-process network simulator, combine with a bind address filter that rejects everything to avoid real sockets.
+	 */
+	RPCServer newVirtualServer(InetAddress addr, BiConsumer<ByteBuffer, InetSocketAddress> transport) {
+		RPCServer srv = new RPCServer(this,addr,dht.config.getListeningPort(), dht.serverStats);
+		srv.virtual = true;
+		srv.divertOutgoing = transport;
+		register(srv);
+		return srv;
+	}
+	
+	private void register(RPCServer srv) {
+		InetAddress addr = srv.getBindAddress();
 		if(interfacesInUse.putIfAbsent(addr, srv) == null)  {
 			srv.setOutgoingThrottle(outgoingThrottle);
 			onServerRegistration.forEach(c -> c.accept(srv));
@@ -274,4 +297,8 @@ public class RPCServerManager {
 		return new ArrayList<>(interfacesInUse.values());
 	}
 	
+	public List<RPCServer> getActiveServers() {
+		return Arrays.asList(activeServers.clone());
+	}
+	
 }
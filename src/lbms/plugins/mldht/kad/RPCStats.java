@@ -10,6 +10,8 @@ import java.util.Formatter;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.TimeoutSource;
+import the8472.utils.metrics.Counter;
 
 /**
  * @author Damokles
@@ -17,8 +19,8 @@ import lbms.plugins.mldht.kad.messages.MessageBase.Type;
  */
 public class RPCStats {
 
-	private long	receivedBytes;
-	private long	sentBytes;
+	private final Counter	receivedBytes = new Counter();
+	private final Counter	sentBytes = new Counter();
 
 	private long	tmpReceivedBytes;
 	private long	tmpSentBytes;
@@ -27,14 +29,33 @@ public class RPCStats {
 	private long	tmpReceivedTimestamp;
 	private long	tmpSentTimestamp;
 
-	private long[][]	sentMessages;
-	private long[][]	receivedMessages;
-	private long[]	timeoutMessages;
+	// updated from the packet processing threads concurrently, hence striped counters
+	private Counter[][]	sentMessages;
+	private Counter[][]	receivedMessages;
+	private Counter[]	timeoutMessages;
+	
+	private Counter[]	stallTimeoutCalls;
+	private Counter[]	stalls;
+	private Counter[]	falseStalls;
 
 	protected RPCStats () {
-		sentMessages = new long[Method.values().length][Type.values().length];
-		receivedMessages = new long[Method.values().length][Type.values().length];
-		timeoutMessages = new long[Method.values().length];
+		sentMessages = new Counter[Method.values().length][];
+		receivedMessages = new Counter[Method.values().length][];
+		for(int i=0;i<sentMessages.length;i++) {
+			sentMessages[i] = counters(Type.values().length);
+			receivedMessages[i] = counters(Type.values().length);
+		}
+		timeoutMessages = counters(Method.values().length);
+		stallTimeoutCalls = counters(TimeoutSource.values().length);
+		stalls = counters(TimeoutSource.values().length);
+		falseStalls = counters(TimeoutSource.values().length);
+	}
+	
+	private static Counter[] counters(int n) {
+		Counter[] c = new Counter[n];
+		for(int i=0;i<n;i++)
+			c[i] = new Counter();
+		return c;
 	}
 	
 	@Override
@@ -48,22 +69,29 @@ public class RPCStats {
 		f.format("%18s %19s | %19s %19s %19s %n%n", "Method", "REQ", "RSP", "Error", "Timeout");
 		for(Method m : Method.values())
 		{
-			long sent = sentMessages[m.ordinal()][Type.REQ_MSG.ordinal()];
-			long received = receivedMessages[m.ordinal()][Type.RSP_MSG.ordinal()];
-			long error = receivedMessages[m.ordinal()][Type.ERR_MSG.ordinal()];
-			long timeouts = timeoutMessages[m.ordinal()];
+			long sent = getSentMessageCount(m, Type.REQ_MSG);
+			long received = getReceivedMessageCount(m, Type.RSP_MSG);
+			long error = getReceivedMessageCount(m, Type.ERR_MSG);
+			long timeouts = getTimeoutMessageCount(m);
 			f.format("%18s %19d | %19d %19d %19d %n", m, sent, received, error, timeouts);
 		}
 		f.format("%n### remote RPCs%n");
 		f.format("%18s %19s | %19s %19s %n%n", "Method","REQ", "RSP", "Errors");
 		for(Method m : Method.values())
 		{
-			long received = receivedMessages[m.ordinal()][Type.REQ_MSG.ordinal()];
-			long sent = sentMessages[m.ordinal()][Type.RSP_MSG.ordinal()];
-			long errors = sentMessages[m.ordinal()][Type.ERR_MSG.ordinal()];
+			long received = getReceivedMessageCount(m, Type.REQ_MSG);
+			long sent = getSentMessageCount(m, Type.RSP_MSG);
+			long errors = getSentMessageCount(m, Type.ERR_MSG);
 			f.format("%18s %19d | %19d %19d %n", m, received, sent, errors);
 		}
 		
+		f.format("%n### stall timeouts%n");
+		f.format("%18s %19s | %19s %19s %19s %n%n", "Source", "Calls", "Stalls", "False stalls", "False stall rate");
+		for(TimeoutSource s : TimeoutSource.values())
+		{
+			f.format("%18s %19d | %19d %19d %18.1f%% %n", s, getStallTimeoutCallCount(s), getStallCount(s), getFalseStallCount(s), getFalseStallRate(s) * 100);
+		}
+		
 		return b.toString();
 	}
 
@@ -71,14 +99,14 @@ public class RPCStats {
 	 * @return the receivedBytes
 	 */
 	public long getReceivedBytes () {
-		return receivedBytes;
+		return receivedBytes.get();
 	}
 
 	/**
 	 * @return the sentBytes
 	 */
 	public long getSentBytes () {
-		return sentBytes;
+		return sentBytes.get();
 	}
 
 	/**
@@ -117,7 +145,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getSentMessageCount (Method m, Type t) {
-		return sentMessages[m.ordinal()][t.ordinal()];
+		return sentMessages[m.ordinal()][t.ordinal()].get();
 	}
 
 	/**
@@ -128,7 +156,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getReceivedMessageCount (Method m, Type t) {
-		return receivedMessages[m.ordinal()][t.ordinal()];
+		return receivedMessages[m.ordinal()][t.ordinal()].get();
 	}
 
 	/**
@@ -138,7 +166,27 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getTimeoutMessageCount (Method m) {
-		return timeoutMessages[m.ordinal()];
+		return timeoutMessages[m.ordinal()].get();
+	}
+
+	public long getStallTimeoutCallCount (TimeoutSource s) {
+		return stallTimeoutCalls[s.ordinal()].get();
+	}
+
+	public long getStallCount (TimeoutSource s) {
+		return stalls[s.ordinal()].get();
+	}
+	
+	public long getFalseStallCount (TimeoutSource s) {
+		return falseStalls[s.ordinal()].get();
+	}
+	
+	/**
+	 * @return fraction of stalled calls which received a response after all, i.e. the timeout model was too aggressive
+	 */
+	public double getFalseStallRate (TimeoutSource s) {
+		long stalled = getStallCount(s);
+		return stalled == 0 ? 0 : getFalseStallCount(s) * 1.0 / stalled;
 	}
 
 	/**
@@ -146,7 +194,7 @@ public class RPCStats {
 	 */
 	protected void addReceivedBytes (long receivedBytes) {
 		tmpReceivedBytes += receivedBytes;
-		this.receivedBytes += receivedBytes;
+		this.receivedBytes.add(receivedBytes);
 	}
 
 	/**
@@ -154,26 +202,38 @@ public class RPCStats {
 	 */
 	protected void addSentBytes (long sentBytes) {
 		tmpSentBytes += sentBytes;
-		this.sentBytes += sentBytes;
+		this.sentBytes.add(sentBytes);
 	}
 
 	protected void addSentMessageToCount (MessageBase msg) {
-		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].inc();
 	}
 
 	protected void addSentMessageToCount (Method m, Type t) {
-		sentMessages[m.ordinal()][t.ordinal()]++;
+		sentMessages[m.ordinal()][t.ordinal()].inc();
 	}
 
 	protected void addReceivedMessageToCount (MessageBase msg) {
-		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].inc();
 	}
 
 	protected void addReceivedMessageToCount (Method m, Type t) {
-		receivedMessages[m.ordinal()][t.ordinal()]++;
+		receivedMessages[m.ordinal()][t.ordinal()].inc();
 	}
 
 	protected void addTimeoutMessageToCount (MessageBase msg) {
-		timeoutMessages[msg.getMethod().ordinal()]++;
+		timeoutMessages[msg.getMethod().ordinal()].inc();
+	}
+	
+	protected void addStallTimeoutCall (TimeoutSource s) {
+		stallTimeoutCalls[s.ordinal()].inc();
+	}
+	
+	protected void addStall (TimeoutSource s) {
+		stalls[s.ordinal()].inc();
+	}
+	
+	protected void addFalseStall (TimeoutSource s) {
+		falseStalls[s.ordinal()].inc();
 	}
 }
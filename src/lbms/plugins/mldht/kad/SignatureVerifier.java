@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.utils.ByteWrapper;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+/**
+ * Verifies BEP44 signatures.
+ *
+ * <ul>
+ * <li>decoded public keys are cached since popular keys get updated and requested repeatedly</li>
+ * <li>engines and encoding buffers are reused per thread</li>
+ * <li>a lossy, direct-mapped cache of digests over <em>(pubkey, signature, signed payload)</em> skips the expensive curve operations for byte-identical items, e.g. the same item arriving from multiple nodes during a get or being re-put</li>
+ * <li>items can be verified on a bounded worker pool to keep signature checks off the message processing threads</li>
+ * </ul>
+ */
+public class SignatureVerifier {
+
+	static final int KEY_CACHE_SIZE = 4096;
+	static final int VERIFIED_CACHE_SLOTS = 1 << 14;
+	static final int MAX_QUEUED = 4096;
+
+	private static final SignatureVerifier shared = new SignatureVerifier(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	public static SignatureVerifier shared() {
+		return shared;
+	}
+
+	private final ConcurrentHashMap<ByteWrapper, EdDSAPublicKey> keyCache = new ConcurrentHashMap<>();
+	private final AtomicReferenceArray<byte[]> verified = new AtomicReferenceArray<>(VERIFIED_CACHE_SLOTS);
+
+	private final ThreadLocal<EdDSAEngine> engines = ThreadLocal.withInitial(EdDSAEngine::new);
+	private final ThreadLocal<ByteBuffer> payloadBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1500));
+	private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("expected SHA-256 digest to be available", e);
+		}
+	});
+
+	private final int workers;
+	private volatile ThreadPoolExecutor pool;
+
+	final LongAdder verifications = new LongAdder();
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder keyCacheHits = new LongAdder();
+	final LongAdder failures = new LongAdder();
+	final LongAdder rejected = new LongAdder();
+
+	public SignatureVerifier(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * encodes the signed part of a mutable item as specified by BEP44: <code>4:salt[len]:[salt]3:seqi[seq]e1:v[bencoded value]</code>
+	 */
+	static ByteBuffer signedPayload(ByteBuffer buf, byte[] salt, long seq, byte[] value) {
+		int required = 50 + value.length + (salt != null ? salt.length : 0);
+		if(buf.capacity() < required)
+			buf = ByteBuffer.allocate(required);
+
+		buf.clear();
+
+		if(salt != null) {
+			buf.put("4:salt".getBytes(ISO_8859_1));
+			buf.put(Integer.toString(salt.length).getBytes(ISO_8859_1));
+			buf.put((byte) ':');
+			buf.put(salt);
+		}
+		buf.put("3:seqi".getBytes(ISO_8859_1));
+		buf.put(Long.toString(seq).getBytes(ISO_8859_1));
+		buf.put("e1:v".getBytes(ISO_8859_1));
+		buf.put(value);
+
+		buf.flip();
+		return buf;
+	}
+
+	EdDSAPublicKey decodeKey(byte[] pubkey) {
+		ByteWrapper wrapped = new ByteWrapper(pubkey);
+		EdDSAPublicKey key = keyCache.get(wrapped);
+		if(key != null) {
+			keyCacheHits.increment();
+			return key;
+		}
+
+		key = new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkey, StorageItem.spec));
+
+		if(keyCache.size() >= KEY_CACHE_SIZE) {
+			// random eviction, cheaper than maintaining LRU order on every hit
+			Iterator<ByteWrapper> it = keyCache.keySet().iterator();
+			if(it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		keyCache.put(wrapped, key);
+
+		return key;
+	}
+
+	public boolean verify(StorageItem item) {
+		if(!item.mutable() || item.signature == null)
+			return false;
+
+		verifications.increment();
+
+		ByteBuffer payload = signedPayload(payloadBuffers.get(), item.salt, item.sequenceNumber, item.value);
+		payloadBuffers.set(payload);
+
+		MessageDigest dig = digests.get();
+		dig.reset();
+		dig.update(item.pubkey);
+		dig.update(item.signature);
+		dig.update(payload.duplicate());
+		byte[] digest = dig.digest();
+
+		int slot = ((digest[0] & 0xff) << 16 | (digest[1] & 0xff) << 8 | (digest[2] & 0xff)) & (VERIFIED_CACHE_SLOTS - 1);
+
+		if(Arrays.equals(verified.get(slot), digest)) {
+			cacheHits.increment();
+			return true;
+		}
+
+		boolean valid;
+
+		try {
+			EdDSAEngine engine = engines.get();
+			engine.initVerify(decodeKey(item.pubkey));
+			engine.update(payload);
+			valid = engine.verify(item.signature);
+		} catch (InvalidKeyException | SignatureException | IllegalArgumentException e) {
+			valid = false;
+		}
+
+		if(valid)
+			verified.set(slot, digest);
+		else
+			failures.increment();
+
+		return valid;
+	}
+
+	private ThreadPoolExecutor pool() {
+		ThreadPoolExecutor p = pool;
+		if(p == null) {
+			synchronized (this) {
+				p = pool;
+				if(p == null) {
+					p = new ThreadPoolExecutor(workers, workers, 20, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+						Thread t = new Thread(r, "mlDHT signature verifier");
+						t.setDaemon(true);
+						t.setUncaughtExceptionHandler((t1, e) -> DHT.log(e, LogLevel.Error));
+						return t;
+					});
+					p.allowCoreThreadTimeOut(true);
+					pool = p;
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Verifies the item on the worker pool.
+	 *
+	 * @return a future that completes exceptionally with a {@link RejectedExecutionException} if too many verifications are already queued
+	 */
+	public CompletableFuture<Boolean> verifyAsync(StorageItem item) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		try {
+			pool().execute(() -> result.complete(verify(item)));
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Verifies a batch of items in parallel, split into one chunk per worker.
+	 *
+	 * @return the verification results in the order of the input list
+	 */
+	public CompletableFuture<boolean[]> verifyAll(List<StorageItem> items) {
+		boolean[] results = new boolean[items.size()];
+
+		int chunkSize = Math.max(1, (items.size() + workers - 1) / workers);
+
+		List<CompletableFuture<Void>> chunks = new ArrayList<>();
+
+		for(int start = 0; start < items.size(); start += chunkSize) {
+			int from = start;
+			int to = Math.min(items.size(), start + chunkSize);
+			try {
+				chunks.add(CompletableFuture.runAsync(() -> {
+					for(int i = from; i < to; i++)
+						results[i] = verify(items.get(i));
+				}, pool()));
+			} catch (RejectedExecutionException e) {
+				rejected.increment();
+				CompletableFuture<boolean[]> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+
+		return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).thenApply(unused -> results);
+	}
+
+	@Override
+	public String toString() {
+		ThreadPoolExecutor p = pool;
+		return "verifications:" + verifications.sum() + " cached:" + cacheHits.sum() + " keyCacheHits:" + keyCacheHits.sum() + " failed:" + failures.sum() + " rejected:" + rejected.sum() + " queued:" + (p != null ? p.getQueue().size() : 0);
+	}
+
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the items of a {@link GenericStorage}. Validation and update semantics are handled by the storage itself, backends only have to provide atomic per-key updates.
+ */
+public interface StorageBackend {
+
+	Optional<StorageItem> get(Key k);
+
+	/**
+	 * Atomically replaces the item stored under a key with the result of the function.
+	 * The function receives <code>null</code> if no item is present, returning the passed item leaves the storage unmodified, returning <code>null</code> removes it.
+	 */
+	void compute(Key k, UnaryOperator<StorageItem> update);
+
+	/**
+	 * removes all items whose expiration date lies before <code>now</code>
+	 */
+	void expire(long now);
+
+	/**
+	 * @return a read-only view or copy of all items, intended for diagnostics
+	 */
+	Map<Key, StorageItem> snapshot();
+
+	int size();
+
+	default void close() {}
+
+}
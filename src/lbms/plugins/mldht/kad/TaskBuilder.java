@@ -5,21 +5,19 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static java.lang.Math.min;
-
-import lbms.plugins.mldht.kad.tasks.KeyspaceSampler;
-import lbms.plugins.mldht.kad.tasks.NodeLookup;
+import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
+import lbms.plugins.mldht.kad.tasks.SamplingEngine;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 public class TaskBuilder {
 	
@@ -36,70 +34,72 @@ public class TaskBuilder {
 		void onResult(Key infohash, InetSocketAddress source, Key sourceNodeId);
 	}
 	
+	static final int DEFAULT_EXPECTED_INFOHASHES = 4 * 1024 * 1024;
+	
 	/**
 	 * This is an expensive, long-running operation causing considerable amounts of traffic, it should not be performed more frequently than once every 6 hours.
 	 * 
-	 * @param maxTasksPerDht use a power of 2 for optimal keyspace partitioning
+	 * @param maxTasksPerDht number of concurrent sampling workers per DHT
 	 */
 	public CompletionStage<Void> sampleInfoHashes(int maxTasksPerDht, String taskName, SamplingCallback onResult) {
-		CompletableFuture<Void> finished = new CompletableFuture<>();
+		return samplingEngine(maxTasksPerDht, taskName, onResult).start();
+	}
+	
+	/**
+	 * Like {@link #sampleInfoHashes(int, String, SamplingCallback)} but returns the unstarted engine, which allows progress reporting and cancellation.
+	 * Infohashes are only reported once per traversal.
+	 */
+	public SamplingEngine samplingEngine(int maxTasksPerDht, String taskName, SamplingCallback onResult) {
+		return new SamplingEngine(dhts, maxTasksPerDht, taskName, DEFAULT_EXPECTED_INFOHASHES, onResult);
+	}
+	
+	/**
+	 * Performs one logical peer lookup per DHT instance which is spread over all of its active servers, see {@link PeerLookupTask#joinLookup(PeerLookupTask)}.
+	 * Include the sibling instances (see {@link DHT#getSiblings()}) to also cover other address families.
+	 * 
+	 * @param configure invoked on each task before it is queued, e.g. to set result or scrape handlers
+	 * @return completes with the peers found by all tasks once all of them have terminated
+	 */
+	public CompletionStage<Set<PeerAddressDBItem>> multiHomedPeerLookup(Key target, Consumer<PeerLookupTask> configure) {
+		CompletableFuture<Set<PeerAddressDBItem>> finished = new CompletableFuture<>();
 		
-		AtomicInteger counter = new AtomicInteger();
+		Set<PeerAddressDBItem> results = ConcurrentHashMap.newKeySet();
+		List<PeerLookupTask> tasks = new ArrayList<>();
 		
 		dhts.stream().filter(DHT::isRunning).forEach(dht -> {
-			List<RPCServer> srvs =  dht.getServerManager().getAllServers().stream().filter(RPCServer::isReachable).collect(Collectors.toList());
-			
-			Collections.shuffle(srvs);
+			List<RPCServer> srvs = dht.getServerManager().getActiveServers();
+			if(srvs.isEmpty())
+				return;
 			
-			srvs = srvs.subList(0, min(srvs.size(), maxTasksPerDht));
+			PeerLookupTask leader = new PeerLookupTask(srvs.get(0), dht.getNode(), target);
+			tasks.add(leader);
 			
-			List<Prefix> pref = new ArrayList<>();
-			pref.add(new Prefix());
-			
-			// partition the keyspace among tasks
-			while(pref.size() < srvs.size()) {
-				Prefix widest = pref.stream().min(Comparator.comparingInt(Prefix::getDepth)).get();
-				pref.remove(widest);
-				pref.add(widest.splitPrefixBranch(false));
-				pref.add(widest.splitPrefixBranch(true));
-			}
-			
-			srvs.forEach(srv -> {
-				Prefix p = pref.remove(pref.size()-1);
-				
-				NodeLookup nl = new NodeLookup(p.first(), srv, dht.getNode(), false);
-				nl.setInfo("seed lookup for " + taskName);
-				
-				counter.incrementAndGet();
-
-				
-				nl.addListener(unused -> {
-					KeyspaceSampler t = new KeyspaceSampler(srv, dht.getNode(), p, nl, (c, k) -> {
-						onResult.onResult(k, c.getRequest().getDestination(), c.getResponse().getID());
-					});
-					
-					t.setInfo(taskName);
-
-					t.addListener(unused2 -> {
-						if(counter.decrementAndGet() == 0)
-							finished.complete(null);
-					});
-
-					dht.getTaskManager().addTask(t);
-				});
-				
-				dht.getTaskManager().addTask(nl);
-				
+			srvs.subList(1, srvs.size()).forEach(srv -> {
+				PeerLookupTask member = new PeerLookupTask(srv, dht.getNode(), target);
+				member.joinLookup(leader);
+				tasks.add(member);
 			});
-			
-			
 		});
 		
-		if(counter.get() == 0)
+		if(tasks.isEmpty()) {
 			finished.completeExceptionally(new DHTException("failed to start any tasks (no active servers?)"));
+			return finished;
+		}
 		
-		return finished;
+		// count all tasks before queuing them, otherwise an early finisher could complete the future
+		AtomicInteger counter = new AtomicInteger(tasks.size());
+		
+		tasks.forEach(t -> {
+			configure.accept(t);
+			t.addListener(unused -> {
+				results.addAll(t.getReturnedItems());
+				if(counter.decrementAndGet() == 0)
+					finished.complete(results);
+			});
+			t.getRPC().getDHT().getTaskManager().addTask(t);
+		});
 		
+		return finished;
 	}
 
 }
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import the8472.utils.Functional.ThrowingConsumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary format for persisting the progress of keyspace traversals.
+ *
+ * <p>
+ * File layout: <code>magic:int version:int kind:byte body crc32:int</code>, the checksum covers everything before it.
+ * Keys are stored as 20 raw bytes, prefixes as their depth followed by only the significant bytes,
+ * addresses as length-prefixed raw bytes plus port.
+ * </p>
+ */
+public class CrawlCheckpoint {
+
+	static final int MAGIC = 0x4B534350; // KSCP
+	static final int VERSION = 1;
+
+	// identifies the writer so that one kind of traversal never resumes from another's file
+	public static final byte KIND_SAMPLING = 2;
+
+	/**
+	 * writes to a temporary file and atomically replaces the target
+	 */
+	public static void write(Path target, byte kind, ThrowingConsumer<DataOutput, IOException> body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeByte(kind);
+		body.accept(out);
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		byte[] raw = bytes.toByteArray();
+		crc.update(raw);
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.write(tmp, bytes.toByteArray());
+		Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return the body of the checkpoint, or empty if it does not exist, is corrupt or of a different kind or version
+	 */
+	public static Optional<DataInput> read(Path source, byte kind) throws IOException {
+		if(!Files.isRegularFile(source))
+			return Optional.empty();
+		byte[] raw = Files.readAllBytes(source);
+		if(raw.length < 13)
+			return Optional.empty();
+
+		CRC32 crc = new CRC32();
+		crc.update(raw, 0, raw.length - 4);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+		in.skipBytes(raw.length - 4);
+		if(in.readInt() != (int) crc.getValue())
+			return Optional.empty();
+
+		in = new DataInputStream(new ByteArrayInputStream(raw, 0, raw.length - 4));
+		if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readByte() != kind)
+			return Optional.empty();
+		return Optional.of(in);
+	}
+
+	public static void writeKey(DataOutput out, Key k) throws IOException {
+		out.write(k.getHash());
+	}
+
+	public static Key readKey(DataInput in) throws IOException {
+		byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+		in.readFully(raw);
+		return new Key(raw);
+	}
+
+	public static void writePrefix(DataOutput out, Prefix p) throws IOException {
+		int depth = p.getDepth();
+		out.writeShort(depth);
+		byte[] raw = p.first().getHash();
+		out.write(raw, 0, significantBytes(depth));
+	}
+
+	public static Prefix readPrefix(DataInput in) throws IOException {
+		int depth = in.readShort();
+		if(depth < -1 || depth >= Key.KEY_BITS)
+			throw new IOException("invalid prefix depth " + depth);
+		byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+		in.readFully(raw, 0, significantBytes(depth));
+		return new Prefix(new Key(raw), depth);
+	}
+
+	static int significantBytes(int depth) {
+		return (depth + 1 + 7) / 8;
+	}
+
+	public static void writeAddress(DataOutput out, InetSocketAddress addr) throws IOException {
+		byte[] raw = addr.getAddress().getAddress();
+		out.writeByte(raw.length);
+		out.write(raw);
+		out.writeShort(addr.getPort());
+	}
+
+	public static InetSocketAddress readAddress(DataInput in) throws IOException {
+		int len = in.readUnsignedByte();
+		if(len != 4 && len != 16)
+			throw new IOException("invalid address length " + len);
+		byte[] raw = new byte[len];
+		in.readFully(raw);
+		return new InetSocketAddress(InetAddress.getByAddress(raw), in.readUnsignedShort());
+	}
+
+	public static void writeEntry(DataOutput out, KBucketEntry e) throws IOException {
+		writeKey(out, e.getID());
+		writeAddress(out, e.getAddress());
+	}
+
+	public static KBucketEntry readEntry(DataInput in) throws IOException {
+		Key id = readKey(in);
+		return new KBucketEntry(readAddress(in), id);
+	}
+
+	/**
+	 * @param items should be a private snapshot, the size is written up front
+	 */
+	public static <T> void writeAll(DataOutput out, Collection<T> items, ThrowingConsumer<T, IOException> writer) throws IOException {
+		out.writeInt(items.size());
+		for(T t : items)
+			writer.accept(t);
+	}
+
+	public static void readAll(DataInput in, ThrowingConsumer<DataInput, IOException> reader) throws IOException {
+		int count = in.readInt();
+		if(count < 0)
+			throw new IOException("negative count");
+		for(int i=0;i<count;i++)
+			reader.accept(in);
+	}
+
+}
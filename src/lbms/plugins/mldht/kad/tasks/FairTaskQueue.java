@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+
+/**
+ * Queued tasks of one server, one FIFO per {@link SchedulingClass}.
+ *
+ * <p>
+ * Classes are served by stride scheduling: each one advances its pass by a step inversely proportional to its weight whenever
+ * one of its tasks is taken and the non-empty class with the lowest pass goes next. A class that was empty resumes at the current
+ * virtual time, so it can't bank credit while idle and then monopolize the slots.
+ * </p>
+ * <p>
+ * Classes with a deadline preempt that order once their longest waiting task has exceeded it.
+ * </p>
+ *
+ * Not thread-safe, the {@link TaskManager} synchronizes on the instance.
+ */
+class FairTaskQueue {
+
+	static final long STRIDE = 1 << 16;
+
+	/**
+	 * Priority tasks always go in front of everything else of their class and are taken newest first, the rest are taken in
+	 * arrival order. Keeping both runs separately means the longest waiting task is at one of two known ends.
+	 */
+	private static final class ClassQueue {
+		final Deque<Task> priority = new ArrayDeque<>();
+		final Deque<Task> fifo = new ArrayDeque<>();
+
+		boolean isEmpty() {
+			return priority.isEmpty() && fifo.isEmpty();
+		}
+
+		int size() {
+			return priority.size() + fifo.size();
+		}
+
+		Task peek() {
+			Task t = priority.peekFirst();
+			return t != null ? t : fifo.peekFirst();
+		}
+
+		Task poll() {
+			Task t = priority.pollFirst();
+			return t != null ? t : fifo.pollFirst();
+		}
+
+		long oldestQueuedNanos(long nowNanos) {
+			long oldest = nowNanos;
+			Task t;
+			if((t = priority.peekLast()) != null && t.queuedNanos - oldest < 0)
+				oldest = t.queuedNanos;
+			if((t = fifo.peekFirst()) != null && t.queuedNanos - oldest < 0)
+				oldest = t.queuedNanos;
+			return oldest;
+		}
+
+		void addTo(List<Task> all) {
+			all.addAll(priority);
+			all.addAll(fifo);
+		}
+
+		void clear() {
+			priority.clear();
+			fifo.clear();
+		}
+	}
+
+	private final EnumMap<SchedulingClass, ClassQueue> queues = new EnumMap<>(SchedulingClass.class);
+	private final long[] pass = new long[SchedulingClass.values().length];
+	private long virtualTime;
+
+	FairTaskQueue() {
+		for(SchedulingClass c : SchedulingClass.values())
+			queues.put(c, new ClassQueue());
+	}
+
+	void add(Task t, boolean first) {
+		SchedulingClass c = t.getSchedulingClass();
+		ClassQueue q = queues.get(c);
+		if(q.isEmpty())
+			pass[c.ordinal()] = Math.max(pass[c.ordinal()], virtualTime);
+		if(first)
+			q.priority.addFirst(t);
+		else
+			q.fifo.addLast(t);
+	}
+
+	/**
+	 * @return the class whose head task should be started next, null if nothing is queued
+	 */
+	SchedulingClass next(long nowNanos) {
+		SchedulingClass best = null;
+
+		for(SchedulingClass c : SchedulingClass.values()) {
+			if(queues.get(c).isEmpty())
+				continue;
+			if(overdue(c, nowNanos))
+				return c;
+			if(best == null || pass[c.ordinal()] < pass[best.ordinal()])
+				best = c;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Constant time, tasks are assumed to be added in the order they were queued.
+	 */
+	boolean overdue(SchedulingClass c, long nowNanos) {
+		if(!c.hasDeadline())
+			return false;
+		return nowNanos - queues.get(c).oldestQueuedNanos(nowNanos) > TimeUnit.MILLISECONDS.toNanos(c.deadlineMillis);
+	}
+
+	Task peek(SchedulingClass c) {
+		return queues.get(c).peek();
+	}
+
+	Task poll(SchedulingClass c) {
+		Task t = queues.get(c).poll();
+		if(t != null) {
+			int i = c.ordinal();
+			virtualTime = Math.max(virtualTime, pass[i]);
+			pass[i] += STRIDE / c.weight;
+		}
+		return t;
+	}
+
+	int size() {
+		return queues.values().stream().mapToInt(ClassQueue::size).sum();
+	}
+
+	int size(SchedulingClass c) {
+		return queues.get(c).size();
+	}
+
+	/**
+	 * @return all queued tasks, grouped by class
+	 */
+	List<Task> snapshot() {
+		List<Task> all = new ArrayList<>();
+		queues.values().forEach(q -> q.addTo(all));
+		return all;
+	}
+
+	Collection<Task> drain() {
+		List<Task> all = snapshot();
+		queues.values().forEach(ClassQueue::clear);
+		return all;
+	}
+
+}
@@ -94,9 +94,6 @@ public class GetLookupTask extends IteratingTask {
 			if(!rpcCall(r, e.getID(), c -> {
 				c.builtFromEntry(e);
 				todo.addCall(c, e);
-				int rtt = e.getRTT() * 2;
-				if(rtt < DHTConstants.RPC_CALL_TIMEOUT_MAX && rtt < rpc.getTimeoutFilter().getStallTimeout())
-					c.setExpectedRTT(rtt);
 			})) {
 				break;
 			}
@@ -7,6 +7,7 @@ package lbms.plugins.mldht.kad.tasks;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.RPCServer;
@@ -15,6 +16,7 @@ import lbms.plugins.mldht.kad.tasks.IterativeLookupCandidates.LookupGraphNode;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
 
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 public abstract class IteratingTask extends TargetedTask {
@@ -35,6 +37,17 @@ public abstract class IteratingTask extends TargetedTask {
 		return (int) todo.allCand().filter(todo.lookupFilter).count();
 	}
 	
+	public Optional<KBucketEntry> getClosestEntry() {
+		return closest.entries().findFirst();
+	}
+	
+	/**
+	 * @return number of referral steps it took to discover the closest node found so far, -1 if nothing was found
+	 */
+	public int getClosestHops() {
+		return getClosestEntry().map(todo::hops).orElse(-1);
+	}
+	
 	public String closestDebug() {
 		return this.closest.entries().<String>map(kbe -> {
 			Key k = kbe.getID();
@@ -343,6 +343,33 @@ public class IterativeLookupCandidates {
 		
 	}
 	
+	/**
+	 * @return length of the shortest referral chain from the local routing table to the entry, 1 for entries we started with. -1 if unknown
+	 */
+	int hops(KBucketEntry e) {
+		LookupGraphNode start = candidates.get(e);
+		if(start == null)
+			return -1;
+		
+		// walk the sources breadth-first towards the roots, the graph may contain cycles
+		Set<LookupGraphNode> visited = new HashSet<>();
+		List<LookupGraphNode> current = new ArrayList<>();
+		current.add(start);
+		visited.add(start);
+		for(int depth = 1;!current.isEmpty();depth++) {
+			List<LookupGraphNode> next = new ArrayList<>();
+			for(LookupGraphNode n : current) {
+				if(n.root)
+					return depth;
+				for(LookupGraphNode src : n.sources)
+					if(visited.add(src))
+						next.add(src);
+			}
+			current = next;
+		}
+		return -1;
+	}
+	
 	int numCalls(KBucketEntry kbe) {
 		return (int) calls.entrySet().stream().filter(me -> me.getValue().equals(kbe)).count();
 	}
@@ -35,6 +35,7 @@ public class KeyspaceCrawler extends Task {
 	
 	KeyspaceCrawler (RPCServer rpc, Node node) {
 		super(rpc, node);
+		setSchedulingClass(SchedulingClass.BULK);
 		setInfo("Exhaustive Keyspace Crawl");
 		addListener(t -> done());
 	}
@@ -57,8 +58,10 @@ public class KeyspaceCrawler extends Task {
 				if(e == null)
 					break;
 				
-				if (visited.contains(e.getAddress()))
+				if (visited.contains(e.getAddress())) {
+					todo.remove(e);
 					continue;
+				}
 				
 				// send a findNode to the node
 				FindNodeRequest fnr;
@@ -95,7 +98,7 @@ public class KeyspaceCrawler extends Task {
 		
 		synchronized (todo)
 		{
-			nodes.entries().filter(e -> !node.isLocalId(e.getID()) && !todo.contains(e) && visited.contains(e.getAddress())).forEach(todo::add);
+			nodes.entries().filter(e -> !node.isLocalId(e.getID()) && !todo.contains(e) && !visited.contains(e.getAddress())).forEach(todo::add);
 		}
 
 
@@ -22,6 +22,9 @@ import lbms.plugins.mldht.kad.messages.SampleRequest;
 import lbms.plugins.mldht.kad.messages.SampleResponse;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -41,6 +44,9 @@ public class KeyspaceSampler extends Task {
 	volatile Key cursor;
 	int compatibleReplies = 0;
 	
+	SamplingEngine.SampleIntervals intervals;
+	boolean resumed;
+	
 	
 	static class Bucket {
 		Prefix p;
@@ -54,6 +60,7 @@ public class KeyspaceSampler extends Task {
 	
 	public KeyspaceSampler(RPCServer rpc, Node node, Prefix range, NodeLookup seed, BiConsumer<RPCCall,Key> callback) {
 		super(rpc, node);
+		setSchedulingClass(SchedulingClass.BULK);
 		
 		this.range = range;
 	
@@ -73,7 +80,68 @@ public class KeyspaceSampler extends Task {
 		
 		this.ihcallback = callback;
 	}
+	
+	/**
+	 * resumes a traversal from the state written by {@link #writeState(DataOutput)}
+	 */
+	public KeyspaceSampler(RPCServer rpc, Node node, DataInput state, BiConsumer<RPCCall,Key> callback) throws IOException {
+		super(rpc, node);
+		setSchedulingClass(SchedulingClass.BULK);
+		
+		range = CrawlCheckpoint.readPrefix(state);
+		cursor = CrawlCheckpoint.readKey(state);
+		resumed = true;
+		
+		CrawlCheckpoint.readAll(state, in -> {
+			Bucket b = new Bucket();
+			b.p = CrawlCheckpoint.readPrefix(in);
+			CrawlCheckpoint.readAll(in, in2 -> b.replied.add(CrawlCheckpoint.readEntry(in2)));
+			CrawlCheckpoint.readAll(in, in2 -> b.visited.add(CrawlCheckpoint.readEntry(in2)));
+			CrawlCheckpoint.readAll(in, in2 -> b.candidates.add(CrawlCheckpoint.readEntry(in2)));
+			rt.put(b.p, b);
+		});
+		
+		if(rt.isEmpty() || !rt.firstKey().equals(Key.MIN_KEY))
+			throw new IOException("incomplete bucket list");
+		
+		this.ihcallback = callback;
+	}
+	
+	/**
+	 * Persists range, cursor and the per-bucket node sets. Nodes that already have been visited will not be queried again after resuming.
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		List<Bucket> buckets = new ArrayList<>();
+		Key currentCursor;
+		synchronized (rt) {
+			currentCursor = cursor;
+			for(Bucket b : rt.values()) {
+				Bucket copy = new Bucket();
+				copy.p = b.p;
+				copy.replied.addAll(b.replied);
+				copy.visited.addAll(b.visited);
+				copy.candidates.addAll(b.candidates);
+				buckets.add(copy);
+			}
+		}
+		
+		CrawlCheckpoint.writePrefix(out, range);
+		CrawlCheckpoint.writeKey(out, currentCursor);
+		CrawlCheckpoint.writeAll(out, buckets, b -> {
+			CrawlCheckpoint.writePrefix(out, b.p);
+			CrawlCheckpoint.writeAll(out, b.replied, e -> CrawlCheckpoint.writeEntry(out, e));
+			CrawlCheckpoint.writeAll(out, b.visited, e -> CrawlCheckpoint.writeEntry(out, e));
+			CrawlCheckpoint.writeAll(out, b.candidates, e -> CrawlCheckpoint.writeEntry(out, e));
+		});
+	}
 
+	/**
+	 * skip nodes whose advertised sample refresh interval has not elapsed yet, they would return the same samples again
+	 */
+	public void setSampleIntervals(SamplingEngine.SampleIntervals intervals) {
+		this.intervals = intervals;
+	}
+	
 	public void insertCandidate(KBucketEntry kbe) {
 		synchronized (rt) {
 			Bucket b = rt.floorEntry(kbe.getID()).getValue();
@@ -164,6 +232,12 @@ public class KeyspaceSampler extends Task {
 					continue;
 				}
 				
+				if(intervals != null && !intervals.maySample(kbe.getAddress(), System.currentTimeMillis())) {
+					intervals.skipped.increment();
+					b.candidates.remove(kbe);
+					continue;
+				}
+				
 				Key target = b.p.createRandomKeyFromPrefix();
 				
 				if(b.p.first().compareTo(range.first()) < 0 || b.p.last().compareTo(range.last()) > 0)
@@ -247,15 +321,18 @@ public class KeyspaceSampler extends Task {
 		
 		SampleResponse sam = (SampleResponse) rsp;
 		
-		if(sam.remoteSupportsSampling())
+		if(sam.remoteSupportsSampling()) {
 			compatibleReplies++;
+			if(intervals != null)
+				intervals.sampled(rsp.getOrigin(), sam.interval(), System.currentTimeMillis());
+		}
 		
 		
 		for(KBucketEntry kbe :  (Iterable<KBucketEntry>) sam.getNodes(node.getDHT().getType()).entries()::iterator) {
 			if(AddressUtils.isBogon(kbe.getAddress()))
-				return;
+				continue;
 			if(kbe.getID().compareTo(cursor) < 0)
-				return;
+				continue;
 			insertCandidate(kbe);
 			
 		};
@@ -278,6 +355,21 @@ public class KeyspaceSampler extends Task {
 		}
 	}
 
+	/**
+	 * @return fraction of the range the cursor has passed, in [0, 1]
+	 */
+	public double progress() {
+		if(isDone())
+			return 1.0;
+		double first = SamplingEngine.position(range.first());
+		double last = SamplingEngine.position(range.last());
+		return Math.max(0.0, Math.min(1.0, (SamplingEngine.position(cursor) - first) / Math.max(Double.MIN_VALUE, last - first)));
+	}
+	
+	public Prefix getRange() {
+		return range;
+	}
+	
 	@Override
 	protected boolean isDone() {
 		return cursor.compareTo(range.last()) >= 0;
@@ -295,11 +387,11 @@ public class KeyspaceSampler extends Task {
 	@Override
 	public void start() {
 		
-		populate(range.first());
+		populate(resumed ? cursor : range.first());
 		
 		
 		this.addListener(t -> {
-			DHT.log("SamplingCrawl done ", LogLevel.Info);
+			DHT.log("SamplingCrawl done " + range, LogLevel.Debug);
 		});
 		
 		super.start();
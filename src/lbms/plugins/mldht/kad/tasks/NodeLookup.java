@@ -68,10 +68,7 @@ public class NodeLookup extends IteratingTask {
 			fnr.setDestination(e.getAddress());
 			
 			if(!rpcCall(fnr,e.getID(), (call) -> {
-				long rtt = e.getRTT();
-				rtt = rtt + rtt / 2; // *1.5 since this is the average and not the 90th percentile like the timeout filter
-				if(rtt < DHTConstants.RPC_CALL_TIMEOUT_MAX && rtt < rpc.getTimeoutFilter().getStallTimeout())
-					call.setExpectedRTT(rtt); // only set a node-specific timeout if it's better than what the server would apply anyway
+				// the timeout filter derives a node-specific stall timeout from the entry
 				call.builtFromEntry(e);
 				todo.addCall(call, e);
 				
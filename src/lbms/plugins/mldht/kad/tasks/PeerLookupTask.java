@@ -13,11 +13,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
-import static java.lang.Math.min;
-
 import lbms.plugins.mldht.kad.AnnounceNodeCache;
 import lbms.plugins.mldht.kad.DBItem;
 import lbms.plugins.mldht.kad.DHT;
@@ -31,7 +30,9 @@ import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.NodeList;
 import lbms.plugins.mldht.kad.PeerAddressDBItem;
 import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCCallListener;
 import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.RPCState;
 import lbms.plugins.mldht.kad.ScrapeResponseHandler;
 import lbms.plugins.mldht.kad.messages.GetPeersRequest;
 import lbms.plugins.mldht.kad.messages.GetPeersResponse;
@@ -58,6 +59,9 @@ public class PeerLookupTask extends IteratingTask {
 	
 	AnnounceNodeCache						cache;
 	boolean									useCache = true;
+	
+	// tasks on other servers sharing candidates, closest set and results with this one. the first element is the leader
+	Collection<PeerLookupTask>				group = Collections.singletonList(this);
 
 
 
@@ -110,6 +114,54 @@ public class PeerLookupTask extends IteratingTask {
 			todo.setNonReachableCache(null);
 	}
 
+	/**
+	 * Cooperatively performs the lookup of another task from this task's server. Both tasks will share their candidates, closest set and results,
+	 * each one contributes its own request concurrency and they only terminate once no member of the group is waiting for responses.
+	 * 
+	 * Since tokens are only valid for the socket address they were issued to a joint lookup can't be used for announces, this implies noAnnounce for all members.
+	 * 
+	 * Must be called before either task is started.
+	 */
+	public void joinLookup(PeerLookupTask leader) {
+		if(!state.get().preStart() || !leader.state.get().preStart())
+			throw new IllegalStateException("cannot join lookups after startup");
+		if(!targetKey.equals(leader.targetKey) || node != leader.node)
+			throw new IllegalArgumentException("can only join lookups for the same target on the same DHT instance");
+		if(leader.rpc == rpc)
+			throw new IllegalArgumentException("joint lookups must be performed on separate servers");
+		
+		synchronized (leader) {
+			if(leader.group.size() == 1)
+				leader.group = new CopyOnWriteArrayList<>(leader.group);
+			todo = leader.todo;
+			closest = leader.closest;
+			returnedItems = leader.returnedItems;
+			group = leader.group;
+			group.add(this);
+		}
+		
+		leader.setNoAnnounce(true);
+		setNoAnnounce(true);
+	}
+	
+	final RPCCallListener groupWakeup = new RPCCallListener() {
+		public void stateTransition(RPCCall c, RPCState previous, RPCState current) {
+			switch(current) {
+				case RESPONDED:
+				case TIMEOUT:
+				case STALLED:
+				case ERROR:
+					// other members may be idle while waiting for new candidates or for the group's outstanding requests to finish
+					for(PeerLookupTask t : group)
+						if(t != PeerLookupTask.this)
+							t.wakeup();
+					break;
+				default:
+					break;
+			}
+		}
+	};
+
 	public void setNoAnnounce(boolean noAnnounce) {
 		this.noAnnounce = noAnnounce;
 	}
@@ -201,7 +253,8 @@ public class PeerLookupTask extends IteratingTask {
 		}
 
 		for(;;) {
-			synchronized (this) {
+			// lock the candidates instead of the task so that members of a joint lookup don't pick the same entry
+			synchronized (todo) {
 				RequestPermit p = checkFreeSlot();
 				
 				if(p == RequestPermit.NONE_ALLOWED)
@@ -226,18 +279,10 @@ public class PeerLookupTask extends IteratingTask {
 				if(!rpcCall(gpr, e.getID(), call -> {
 					if(useCache)
 						call.addListener(cache.getRPCListener());
+					if(group.size() > 1)
+						call.addListener(groupWakeup);
+					// the timeout filter derives a node-specific stall timeout from the entry
 					call.builtFromEntry(e);
-
-					long rtt = e.getRTT();
-					long defaultTimeout = rpc.getTimeoutFilter().getStallTimeout();
-					
-					if(rtt < DHTConstants.RPC_CALL_TIMEOUT_MAX) {
-						// the measured RTT is a mean and not the 90th percentile unlike the RPCServer's timeout filter
-						// -> add some safety margin to account for variance
-						rtt = (long) (rtt * (rtt < defaultTimeout ? 2 : 1.5));
-						
-						call.setExpectedRTT(min(rtt, DHTConstants.RPC_CALL_TIMEOUT_MAX));
-					}
 					
 					if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
 						List<InetSocketAddress> sources = todo.getSources(e).stream().map(KBucketEntry::getAddress).collect(Collectors.toList());
@@ -257,7 +302,9 @@ public class PeerLookupTask extends IteratingTask {
 	
 	@Override
 	protected boolean isDone() {
-		int waitingFor = fastTerminate ? getNumOutstandingRequestsExcludingStalled() : getNumOutstandingRequests();
+		int waitingFor = 0;
+		for(PeerLookupTask t : group)
+			waitingFor += fastTerminate ? t.getNumOutstandingRequestsExcludingStalled() : t.getNumOutstandingRequests();
 		
 		if(waitingFor > 0)
 			return false;
@@ -279,7 +326,8 @@ public class PeerLookupTask extends IteratingTask {
 		synchronized (this)
 		{
 			// feed the estimator if we're sure that we haven't skipped anything in the closest-set
-			if(!todo.next().isPresent() && noAnnounce && !fastTerminate && closest.reachedTargetCapacity())
+			// members of a joint lookup share one closest set, only let the leader report it
+			if(group.iterator().next() == this && !todo.next().isPresent() && noAnnounce && !fastTerminate && closest.reachedTargetCapacity())
 			{
 				Set<Key> toEstimate = closest.ids().collect(Collectors.toCollection(HashSet::new));
 				rpc.getDHT().getEstimator().update(toEstimate,targetKey);
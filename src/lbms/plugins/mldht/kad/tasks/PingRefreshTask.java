@@ -43,6 +43,7 @@ public class PingRefreshTask extends Task {
 	 */
 	public PingRefreshTask (RPCServer rpc, Node node, KBucket bucket, boolean cleanOnTimeout) {
 		super(rpc, node);
+		setSchedulingClass(SchedulingClass.MAINTENANCE);
 		this.cleanOnTimeout = cleanOnTimeout;
 		todo = new ArrayDeque<>();
 		visited = new HashSet<>();
@@ -0,0 +1,537 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static java.lang.Math.min;
+
+import lbms.plugins.mldht.indexer.utils.ConcurrentRotatingBloomFilter;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTException;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.TaskBuilder.SamplingCallback;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+import lbms.plugins.mldht.kad.tasks.Task.TaskState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Traverses the keyspace of each DHT with BEP51 <code>sample_infohashes</code> requests.
+ *
+ * <p>
+ * The keyspace is partitioned into many more {@link Prefix} ranges than there are workers. Each worker runs one {@link KeyspaceSampler}
+ * at a time and picks up the next pending range when it finishes, so slow ranges don't hold up the remaining ones.
+ * Workers share the record of remote sample refresh intervals and a compact set of already reported infohashes.
+ * </p>
+ */
+public class SamplingEngine {
+
+	static final int RANGES_PER_WORKER = 8;
+	static final int SEEN_SHARDS = 64;
+	static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Tracks when remote nodes will refresh their sample set, as advertised by the <code>interval</code> field of their responses
+	 */
+	public static class SampleIntervals {
+
+		final ConcurrentHashMap<InetSocketAddress, Long> nextRefresh = new ConcurrentHashMap<>();
+		final AtomicInteger updates = new AtomicInteger();
+		final LongAdder skipped = new LongAdder();
+
+		public boolean maySample(InetSocketAddress addr, long now) {
+			Long next = nextRefresh.get(addr);
+			return next == null || next <= now;
+		}
+
+		public void sampled(InetSocketAddress addr, int intervalSeconds, long now) {
+			if(intervalSeconds <= 0)
+				return;
+			nextRefresh.put(addr, now + intervalSeconds * 1000L);
+			if((updates.incrementAndGet() & 0xFFF) == 0)
+				nextRefresh.values().removeIf(t -> t <= now);
+		}
+
+		public long skipped() {
+			return skipped.sum();
+		}
+
+		public int size() {
+			return nextRefresh.size();
+		}
+	}
+
+	class Traversal {
+		final DHT dht;
+		final List<RPCServer> servers;
+		final ConcurrentLinkedQueue<Prefix> pending = new ConcurrentLinkedQueue<>();
+		// keyed by range, a task's hashCode changes when the task manager assigns its ID
+		final Map<Prefix, KeyspaceSampler> active = new ConcurrentHashMap<>();
+		// ranges whose seed lookup is still running
+		final Map<Prefix, NodeLookup> seeding = new ConcurrentHashMap<>();
+		final AtomicInteger workers = new AtomicInteger();
+		final DoubleAdder covered = new DoubleAdder();
+		final AtomicInteger rangesDone = new AtomicInteger();
+		// serialized sampler states of ranges that were in progress when the checkpoint was written
+		final Map<Prefix, byte[]> resumeStates = new ConcurrentHashMap<>();
+		int ranges;
+
+		Traversal(DHT dht, List<RPCServer> servers) {
+			this.dht = dht;
+			this.servers = servers;
+		}
+
+		double coverage() {
+			double c = covered.sum();
+			for(KeyspaceSampler s : active.values())
+				c += fraction(s.getRange()) * s.progress();
+			return min(1.0, c);
+		}
+	}
+
+	final Collection<DHT> dhts;
+	final int maxWorkersPerDht;
+	final String name;
+	final SamplingCallback onResult;
+
+	final List<Traversal> traversals = new ArrayList<>();
+	final SampleIntervals intervals = new SampleIntervals();
+	ConcurrentRotatingBloomFilter seen;
+	final int expectedInfohashes;
+	Path checkpoint;
+	ScheduledFuture<?> checkpointTask;
+	final CompletableFuture<Void> finished = new CompletableFuture<>();
+	final AtomicInteger remainingTraversals = new AtomicInteger();
+
+	final LongAdder samples = new LongAdder();
+	final LongAdder unique = new LongAdder();
+	volatile long startTime;
+	volatile boolean stopped;
+
+	/**
+	 * @param expectedInfohashes sizes the deduplication set, infohashes beyond that may be reported more than once
+	 */
+	public SamplingEngine(Collection<DHT> dhts, int maxWorkersPerDht, String name, int expectedInfohashes, SamplingCallback onResult) {
+		this.dhts = dhts;
+		this.maxWorkersPerDht = maxWorkersPerDht;
+		this.name = name;
+		this.onResult = onResult;
+		this.expectedInfohashes = expectedInfohashes;
+		seen = new ConcurrentRotatingBloomFilter(expectedInfohashes, 0.001f, SEEN_SHARDS);
+		seen.setAutoRotate(true);
+	}
+	
+	/**
+	 * Periodically persist progress to this file and resume from it on {@link #start()}. The file is deleted once the traversal completes.
+	 * Must be called before starting.
+	 */
+	public void setCheckpoint(Path file) {
+		checkpoint = file;
+	}
+
+	static double fraction(Prefix p) {
+		return Math.scalb(1.0, -(p.getDepth() + 1));
+	}
+
+	/**
+	 * @return position of the key in the keyspace as fraction in [0, 1), based on the leading 64 bits
+	 */
+	static double position(Key k) {
+		long high = Integer.toUnsignedLong(k.getInt(0));
+		long low = Integer.toUnsignedLong(k.getInt(4));
+		return (high * 0x1p32 + low) * 0x1p-64;
+	}
+
+	static List<Prefix> partition(int count) {
+		int depth = 32 - Integer.numberOfLeadingZeros(Math.max(1, count) - 1);
+		List<Prefix> ranges = new ArrayList<>();
+		ranges.add(new Prefix());
+		for(int i=0;i<depth;i++) {
+			List<Prefix> next = new ArrayList<>(ranges.size() * 2);
+			for(Prefix p : ranges) {
+				next.add(p.splitPrefixBranch(false));
+				next.add(p.splitPrefixBranch(true));
+			}
+			ranges = next;
+		}
+		return ranges;
+	}
+
+	public CompletionStage<Void> start() {
+		startTime = System.currentTimeMillis();
+		
+		Map<DHTtype, Consumer<Traversal>> restored = restore();
+
+		dhts.stream().filter(DHT::isRunning).forEach(dht -> {
+			List<RPCServer> srvs = dht.getServerManager().getAllServers().stream().filter(RPCServer::isReachable).collect(Collectors.toList());
+			if(srvs.isEmpty())
+				return;
+			Collections.shuffle(srvs);
+
+			Traversal t = new Traversal(dht, srvs);
+			int workers = min(srvs.size(), maxWorkersPerDht);
+			if(!restored.containsKey(dht.getType())) {
+				// randomize order so that repeated runs don't always start at the same end of the keyspace
+				List<Prefix> ranges = partition(workers * RANGES_PER_WORKER);
+				Collections.shuffle(ranges);
+				t.pending.addAll(ranges);
+				t.ranges = ranges.size();
+			} else {
+				restored.get(dht.getType()).accept(t);
+			}
+			t.workers.set(workers);
+			traversals.add(t);
+		});
+
+		if(traversals.isEmpty()) {
+			finished.completeExceptionally(new DHTException("failed to start any tasks (no active servers?)"));
+			return finished;
+		}
+
+		remainingTraversals.set(traversals.size());
+		
+		if(checkpoint != null) {
+			checkpointTask = traversals.get(0).dht.getScheduler().scheduleWithFixedDelay(() -> {
+				try {
+					writeCheckpoint();
+				} catch (Exception e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		for(Traversal t : traversals) {
+			int workers = t.workers.get();
+			for(int i=0;i<workers;i++)
+				next(t, t.servers.get(i % t.servers.size()));
+		}
+
+		return finished;
+	}
+
+	void next(Traversal t, RPCServer srv) {
+		Prefix p = stopped ? null : t.pending.poll();
+
+		if(p != null && !srv.isReachable()) {
+			srv = t.dht.getServerManager().getRandomActiveServer(false);
+			if(srv == null) {
+				t.pending.add(p);
+				p = null;
+			}
+		}
+
+		if(p == null) {
+			workerDone(t);
+			return;
+		}
+
+		RPCServer server = srv;
+		Prefix range = p;
+		
+		byte[] state = t.resumeStates.remove(range);
+		if(state != null) {
+			try {
+				launch(t, server, new KeyspaceSampler(server, t.dht.getNode(), new DataInputStream(new ByteArrayInputStream(state)), this::result));
+				return;
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+				// fall through to a fresh start of the range
+			}
+		}
+
+		NodeLookup nl = new NodeLookup(range.first(), server, t.dht.getNode(), false);
+		nl.setInfo("seed lookup for " + name);
+		nl.setSchedulingClass(SchedulingClass.BULK);
+		t.seeding.put(range, nl);
+
+		nl.addListener(unused -> {
+			if(stopped) {
+				synchronized (this) {
+					t.seeding.remove(range);
+					t.pending.add(range);
+				}
+				workerDone(t);
+				return;
+			}
+			KeyspaceSampler sampler = new KeyspaceSampler(server, t.dht.getNode(), range, nl, this::result);
+			// atomically move the range from seeding to active, checkpoints must see it in either
+			synchronized (this) {
+				t.active.put(range, sampler);
+				t.seeding.remove(range);
+			}
+			launch(t, server, sampler);
+		});
+
+		t.dht.getTaskManager().addTask(nl);
+		// stop() may have missed it
+		if(stopped)
+			nl.kill();
+	}
+	
+	void launch(Traversal t, RPCServer server, KeyspaceSampler s) {
+		s.setInfo(name);
+		s.setSampleIntervals(intervals);
+		t.active.put(s.getRange(), s);
+
+		s.addListener(unused -> {
+			if(s.state.get() == TaskState.KILLED && stopped) {
+				suspend(t, s);
+				workerDone(t);
+				return;
+			}
+			t.active.remove(s.getRange(), s);
+			t.covered.add(fraction(s.getRange()));
+			t.rangesDone.incrementAndGet();
+			next(t, server);
+		});
+
+		t.dht.getTaskManager().addTask(s);
+		if(stopped)
+			s.kill();
+	}
+	
+	/**
+	 * moves a killed sampler back into the pending ranges, under the same lock as {@link #writeCheckpoint()} so that it is never
+	 * missing from a checkpoint
+	 */
+	synchronized void suspend(Traversal t, KeyspaceSampler s) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			s.writeState(new DataOutputStream(buf));
+			t.resumeStates.put(s.getRange(), buf.toByteArray());
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+		t.pending.add(s.getRange());
+		t.active.remove(s.getRange(), s);
+	}
+	
+	void workerDone(Traversal t) {
+		if(t.workers.decrementAndGet() == 0 && remainingTraversals.decrementAndGet() == 0)
+			finish();
+	}
+	
+	void finish() {
+		DHT.log("sampling " + name + (stopped ? " stopped: " : " finished: ") + this, LogLevel.Info);
+		if(checkpointTask != null)
+			checkpointTask.cancel(false);
+		if(checkpoint != null) {
+			try {
+				if(stopped) {
+					// all samplers have been suspended by now
+					writeCheckpoint();
+				} else {
+					Files.deleteIfExists(checkpoint);
+					Files.deleteIfExists(seenFile());
+				}
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+		finished.complete(null);
+	}
+	
+	Path seenFile() {
+		return checkpoint.resolveSibling(checkpoint.getFileName() + ".seen");
+	}
+	
+	/*
+	 * body layout:
+	 * 
+	 * samples:long unique:long
+	 * intervals: count, [address, next refresh (epoch millis):long]*
+	 * traversals: count, [dht type:byte ranges:int rangesDone:int covered:double pending prefixes: count, [prefix]* in-progress: count, [state length:int, sampler state]*]*
+	 */
+	synchronized void writeCheckpoint() throws IOException {
+		if(checkpoint == null)
+			return;
+		
+		List<Map.Entry<InetSocketAddress, Long>> refreshTimes = new ArrayList<>(intervals.nextRefresh.entrySet());
+		
+		CrawlCheckpoint.write(checkpoint, CrawlCheckpoint.KIND_SAMPLING, out -> {
+			out.writeLong(samples.sum());
+			out.writeLong(unique.sum());
+			CrawlCheckpoint.writeAll(out, refreshTimes, e -> {
+				CrawlCheckpoint.writeAddress(out, e.getKey());
+				out.writeLong(e.getValue());
+			});
+			CrawlCheckpoint.writeAll(out, traversals, t -> {
+				List<byte[]> inProgress = new ArrayList<>(t.resumeStates.values());
+				// seeding ranges have no sampler state yet, they restart from scratch
+				List<Prefix> pending = new ArrayList<>(t.seeding.keySet());
+				pending.addAll(t.pending);
+				pending.removeAll(t.resumeStates.keySet());
+				for(KeyspaceSampler s : new ArrayList<>(t.active.values())) {
+					ByteArrayOutputStream buf = new ByteArrayOutputStream();
+					s.writeState(new DataOutputStream(buf));
+					inProgress.add(buf.toByteArray());
+				}
+				
+				out.writeByte(t.dht.getType().ordinal());
+				out.writeInt(t.ranges);
+				out.writeInt(t.rangesDone.get());
+				out.writeDouble(t.covered.sum());
+				CrawlCheckpoint.writeAll(out, pending, p -> CrawlCheckpoint.writePrefix(out, p));
+				CrawlCheckpoint.writeAll(out, inProgress, state -> {
+					out.writeInt(state.length);
+					out.write(state);
+				});
+			});
+		});
+		
+		seen.snapshot(seenFile());
+	}
+	
+	/**
+	 * @return per-DHT initializers for restored traversals, empty if there is no usable checkpoint
+	 */
+	Map<DHTtype, Consumer<Traversal>> restore() {
+		Map<DHTtype, Consumer<Traversal>> result = new EnumMap<>(DHTtype.class);
+		if(checkpoint == null)
+			return result;
+		
+		try {
+			Optional<DataInput> body = CrawlCheckpoint.read(checkpoint, CrawlCheckpoint.KIND_SAMPLING);
+			if(!body.isPresent())
+				return result;
+			DataInput in = body.get();
+			
+			long restoredSamples = in.readLong();
+			long restoredUnique = in.readLong();
+			Map<InetSocketAddress, Long> refreshTimes = new HashMap<>();
+			CrawlCheckpoint.readAll(in, in2 -> {
+				InetSocketAddress addr = CrawlCheckpoint.readAddress(in2);
+				refreshTimes.put(addr, in2.readLong());
+			});
+			
+			Map<DHTtype, Consumer<Traversal>> traversalStates = new EnumMap<>(DHTtype.class);
+			CrawlCheckpoint.readAll(in, in2 -> {
+				DHTtype type = DHTtype.values()[in2.readUnsignedByte()];
+				int ranges = in2.readInt();
+				int rangesDone = in2.readInt();
+				double covered = in2.readDouble();
+				List<Prefix> pending = new ArrayList<>();
+				CrawlCheckpoint.readAll(in2, in3 -> pending.add(CrawlCheckpoint.readPrefix(in3)));
+				Map<Prefix, byte[]> inProgress = new HashMap<>();
+				CrawlCheckpoint.readAll(in2, in3 -> {
+					byte[] state = new byte[in3.readInt()];
+					in3.readFully(state);
+					inProgress.put(CrawlCheckpoint.readPrefix(new DataInputStream(new ByteArrayInputStream(state))), state);
+				});
+				
+				// a range may have moved from seeding to active while the checkpoint was written
+				pending.removeAll(inProgress.keySet());
+				
+				traversalStates.put(type, t -> {
+					t.ranges = ranges;
+					t.rangesDone.set(rangesDone);
+					t.covered.add(covered);
+					// resume interrupted ranges first
+					t.pending.addAll(inProgress.keySet());
+					t.resumeStates.putAll(inProgress);
+					t.pending.addAll(pending);
+				});
+			});
+			
+			seen = ConcurrentRotatingBloomFilter.load(seenFile(), expectedInfohashes, 0.001f, SEEN_SHARDS);
+			seen.setAutoRotate(true);
+			samples.add(restoredSamples);
+			unique.add(restoredUnique);
+			intervals.nextRefresh.putAll(refreshTimes);
+			result.putAll(traversalStates);
+			
+			DHT.log("sampling " + name + " resuming from " + checkpoint, LogLevel.Info);
+		} catch (IOException | RuntimeException e) {
+			DHT.log("sampling " + name + " could not resume from " + checkpoint + ", starting over: " + e, LogLevel.Info);
+		}
+		
+		return result;
+	}
+
+	void result(RPCCall c, Key k) {
+		samples.increment();
+		if(!seen.add(k.asBuffer()))
+			return;
+		unique.increment();
+		onResult.onResult(k, c.getRequest().getDestination(), c.getResponse().getID());
+	}
+
+	/**
+	 * Stops handing out new ranges and kills running seed lookups and samplers. Their ranges are put back into the pending set
+	 * and {@link #completion()} completes once all workers have drained, after writing a final checkpoint.
+	 * Further calls have no effect.
+	 */
+	public void stop() {
+		synchronized (this) {
+			if(stopped)
+				return;
+			stopped = true;
+		}
+		if(checkpointTask != null)
+			checkpointTask.cancel(false);
+		for(Traversal t : traversals) {
+			new ArrayList<>(t.seeding.values()).forEach(Task::kill);
+			new ArrayList<>(t.active.values()).forEach(Task::kill);
+		}
+	}
+
+	public CompletionStage<Void> completion() {
+		return finished;
+	}
+
+	/**
+	 * @return average fraction of the keyspaces traversed so far
+	 */
+	public double coverage() {
+		return traversals.stream().mapToDouble(Traversal::coverage).average().orElse(0.0);
+	}
+
+	public double infohashesPerSecond() {
+		double seconds = Math.max(1.0, (System.currentTimeMillis() - startTime) / 1000.0);
+		return unique.sum() / seconds;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("coverage: %.2f%% unique: %d samples: %d rate: %.1f/s interval-skipped: %d", coverage() * 100, unique.sum(), samples.sum(), infohashesPerSecond(), intervals.skipped()));
+		for(Traversal t : traversals)
+			b.append(String.format("%n %s: ranges %d/%d workers: %d coverage: %.2f%%", t.dht.getType(), t.rangesDone.get(), t.ranges, t.workers.get(), t.coverage() * 100));
+		return b.toString();
+	}
+
+}
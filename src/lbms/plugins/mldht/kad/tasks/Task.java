@@ -11,6 +11,7 @@ import static lbms.plugins.mldht.kad.tasks.CountedStat.SENT;
 import static lbms.plugins.mldht.kad.tasks.CountedStat.SENT_SINCE_RECEIVE;
 import static lbms.plugins.mldht.kad.tasks.CountedStat.STALLED;
 
+import the8472.utils.FlightEvents;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 
 import lbms.plugins.mldht.kad.DHT;
@@ -24,6 +25,7 @@ import lbms.plugins.mldht.kad.RPCCallListener;
 import lbms.plugins.mldht.kad.RPCServer;
 import lbms.plugins.mldht.kad.RPCState;
 import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.utils.DHTEvents;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -67,6 +69,31 @@ public abstract class Task implements Comparable<Task> {
 		
 	}
 	
+	/**
+	 * Who a task is working for. The {@link TaskManager} shares task slots between the classes in proportion to their weight,
+	 * interactive tasks that have been queued for longer than their deadline are started ahead of everything else.
+	 */
+	public enum SchedulingClass {
+		/** lookups a user or an embedding application is waiting for */
+		INTERACTIVE(8, DHTConstants.INTERACTIVE_TASK_DEADLINE),
+		/** bootstrap, bucket refreshes and other routing table upkeep */
+		MAINTENANCE(4, -1),
+		/** crawls, sampling, indexing and load generation */
+		BULK(1, -1);
+		
+		final int weight;
+		final long deadlineMillis;
+		
+		private SchedulingClass(int weight, long deadlineMillis) {
+			this.weight = weight;
+			this.deadlineMillis = deadlineMillis;
+		}
+		
+		public boolean hasDeadline() {
+			return deadlineMillis >= 0;
+		}
+	}
+	
 	AtomicReference<TaskState>			state = new AtomicReference<>(TaskState.INITIAL);
 	long 								startTime;
 	long								firstResultTime;
@@ -74,6 +101,8 @@ public abstract class Task implements Comparable<Task> {
 	private int							taskID;
 	private List<TaskListener>			listeners;
 	private boolean						lowPriority;
+	private SchedulingClass				schedulingClass = SchedulingClass.INTERACTIVE;
+	long								queuedNanos;
 	protected final AtomicReference<TaskStats>				counts = new AtomicReference<>(new TaskStats());
 	
 	/**
@@ -105,6 +134,9 @@ public abstract class Task implements Comparable<Task> {
 			
 		} while(!state.weakCompareAndSet(current, newState));
 		
+		if(FlightEvents.isEnabled())
+			DHTEvents.TASK_STATE.emit(getClass().getSimpleName(), taskID, current.name(), newState.name());
+		
 		return true;
 		
 	}
@@ -222,6 +254,14 @@ public abstract class Task implements Comparable<Task> {
 	}
 	
 	private final Runnable serializedUpdate = SerializedTaskExecutor.onceMore(this::runStuff);
+	
+	/**
+	 * Schedules a re-evaluation of a running task, e.g. when state shared with other tasks has been modified from the outside.
+	 */
+	void wakeup() {
+		if(state.get() == TaskState.RUNNING)
+			rpc.getDHT().getScheduler().execute(serializedUpdate);
+	}
 
 	/**
 	 * Will continue the task, this will be called every time we have
@@ -279,6 +319,18 @@ public abstract class Task implements Comparable<Task> {
 		this.lowPriority = lowPriority;
 	}
 	
+	/**
+	 * Only affects the order in which queued tasks get started, see {@link #setLowPriority(boolean)} for the request rate of running tasks.
+	 * Defaults to {@link SchedulingClass#INTERACTIVE}, must be set before the task is added to the {@link TaskManager}.
+	 */
+	public void setSchedulingClass(SchedulingClass schedulingClass) {
+		this.schedulingClass = schedulingClass;
+	}
+	
+	public SchedulingClass getSchedulingClass() {
+		return schedulingClass;
+	}
+	
 	public int requestConcurrency() {
 		return lowPriority ? DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO : DHTConstants.MAX_CONCURRENT_REQUESTS;
 	}
@@ -425,26 +477,38 @@ public abstract class Task implements Comparable<Task> {
 		
 		DHT.logDebug("Task "+getTaskID()+" finished: " + toString());
 
-		if (listeners != null) {
-			for (TaskListener tl : listeners) {
-				tl.finished(this);
-			}
+		List<TaskListener> toNotify;
+		synchronized (this) {
+			if (listeners == null)
+				return;
+			toNotify = new ArrayList<>(listeners);
+		}
+		for (TaskListener tl : toNotify) {
+			tl.finished(this);
 		}
 	}
 	
 	protected abstract boolean isDone();
 
+	/**
+	 * Listeners may be added from any thread, also while the task is running or being killed. Each one is invoked exactly once.
+	 */
 	public void addListener (TaskListener listener) {
-		if (listeners == null) {
-			listeners = new ArrayList<>(1);
+		synchronized (this) {
+			// the state is set before listeners are notified, so anything added before that will be picked up by the notification
+			if(!state.get().isTerminal()) {
+				if (listeners == null) {
+					listeners = new ArrayList<>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
 		}
 		// listener is added after the task already terminated, thus it won't get the event, trigger it manually
-		if(state.get().isTerminal())
-			listener.finished(this);
-		listeners.add(listener);
+		listener.finished(this);
 	}
 
-	public void removeListener (TaskListener listener) {
+	public synchronized void removeListener (TaskListener listener) {
 		if (listeners != null) {
 			listeners.remove(listener);
 		}
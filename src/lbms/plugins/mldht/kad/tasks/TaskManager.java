@@ -5,23 +5,25 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.tasks;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHTConstants;
 import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
 import lbms.plugins.mldht.kad.tasks.Task.TaskState;
 
 /**
  * Manages all dht tasks.
+ * 
+ * Queued tasks are started per server as slots become available, the order between {@link SchedulingClass}es is decided by a {@link FairTaskQueue}.
  *
  * @author Damokles
  */
@@ -54,38 +56,54 @@ public class TaskManager {
 	
 	class ServerSet {
 		RPCServer server;
-		Deque<Task> queued = new ArrayDeque<>();
+		FairTaskQueue queued = new FairTaskQueue();
 		List<Task> active = new ArrayList<>();
 
 		void dequeue() {
 			while (true) {
 				Task t;
+				long now = System.nanoTime();
 				synchronized (queued) {
-					t = queued.peekFirst();
-					if (t == null)
+					SchedulingClass c = queued.next(now);
+					if (c == null)
 						break;
-					if (!canStartTask(t.getRPC()))
+					t = queued.peek(c);
+					// killed tasks don't need a slot
+					if (!t.isFinished() && !canStartTask(t.getRPC()) && !(queued.overdue(c, now) && hasCallHeadroom(t.getRPC())))
 						break;
-					queued.removeFirst();
+					queued.poll(c);
 				}
 				if (t.isFinished())
 					continue;
 				
+				dht.getStats().taskDequeued(t, now - t.queuedNanos);
+				
 				synchronized(active) {
 					active.add(t);
 				}
-				dht.getScheduler().execute(t::start);
+				try {
+					dht.getScheduler().execute(t::start);
+				} catch (RejectedExecutionException e) {
+					// scheduler shut down while the DHT is stopping, it would never run
+					t.kill();
+				}
 			}
 		}
 		
+		boolean hasCallHeadroom(RPCServer srv) {
+			return srv.getNumActiveRPCCalls() + 16 < DHTConstants.MAX_ACTIVE_CALLS;
+		}
+		
 		boolean canStartTask(RPCServer srv) {
 			// we can start a task if we have less then  7 runnning per server and
 			// there are at least 16 RPC slots available
+			// overdue interactive tasks only need the latter, see dequeue()
 
-			int activeCalls = srv.getNumActiveRPCCalls();
-			if(activeCalls + 16 >= DHTConstants.MAX_ACTIVE_CALLS)
+			if(!hasCallHeadroom(srv))
 				return false;
 			
+			int activeCalls = srv.getNumActiveRPCCalls();
+			
 			int perServer = active.size();
 			
 			if(perServer < DHTConstants.MAX_ACTIVE_TASKS)
@@ -107,7 +125,7 @@ public class TaskManager {
 		
 		Collection<Task> snapshotQueued() {
 			synchronized (queued) {
-				return new ArrayList<>(queued);
+				return queued.snapshot();
 			}
 		}
 		
@@ -137,6 +155,7 @@ public class TaskManager {
 	/**
 	 * Add a task to manage.
 	 * @param task
+	 * @param isPriority queue ahead of other tasks of the same {@link SchedulingClass}
 	 */
 	public void addTask (Task task, boolean isPriority) {
 		int id = next_id.incrementAndGet();
@@ -158,12 +177,21 @@ public class TaskManager {
 		if(!task.setState(TaskState.INITIAL, TaskState.QUEUED))
 			return;
 		
+		task.queuedNanos = System.nanoTime();
 		synchronized (s.get().queued)
 		{
-			if (isPriority)
-				s.get().queued.addFirst(task);
-			else
-				s.get().queued.addLast(task);
+			s.get().queued.add(task, isPriority);
+		}
+		
+		// don't make users wait for the next periodic dequeue. but don't start tasks on the caller's thread either, that often is
+		// a completion listener or the RPC handler
+		if(task.getSchedulingClass() == SchedulingClass.INTERACTIVE) {
+			ServerSet set = s.get();
+			try {
+				dht.getScheduler().execute(set::dequeue);
+			} catch (RejectedExecutionException e) {
+				// DHT is stopping, queued tasks get killed
+			}
 		}
 	}
 	
@@ -177,9 +205,11 @@ public class TaskManager {
 			set.active.forEach(Task::kill);
 		}
 		
+		Collection<Task> queued;
 		synchronized (set.queued) {
-			set.queued.forEach(Task::kill);
+			queued = set.queued.drain();
 		}
+		queued.forEach(Task::kill);
 	}
 
 	/// Get the number of running tasks
@@ -189,7 +219,19 @@ public class TaskManager {
 
 	/// Get the number of queued tasks
 	public int getNumQueuedTasks () {
-		return taskSets.values().stream().mapToInt(s -> s.queued.size()).sum();
+		return taskSets.values().stream().mapToInt(s -> {
+			synchronized (s.queued) {
+				return s.queued.size();
+			}
+		}).sum();
+	}
+	
+	public int getNumQueuedTasks(SchedulingClass c) {
+		return taskSets.values().stream().mapToInt(s -> {
+			synchronized (s.queued) {
+				return s.queued.size(c);
+			}
+		}).sum();
 	}
 
 	public Task[] getActiveTasks () {
@@ -217,7 +259,7 @@ public class TaskManager {
 		Optional<ServerSet> set = setFor(srv);
 		if(!set.isPresent())
 			return 0;
-		Collection<Task> q = set.get().queued;
+		FairTaskQueue q = set.get().queued;
 		synchronized (q) {
 			return q.size();
 		}
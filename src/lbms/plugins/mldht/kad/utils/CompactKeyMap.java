@@ -0,0 +1,458 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import lbms.plugins.mldht.kad.Key;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Concurrent hash map specialized for 160bit {@link Key}s.
+ *
+ * <p>
+ * Keys are stored inline in direct (off-heap) buffers, 24 bytes per slot, instead of as {@link Key} objects plus map nodes.
+ * Only the values live on the java heap, in a parallel array. The table is split into independently locked segments selected
+ * by the top bits of a hash of the key, each segment uses linear probing. Keys are infohashes and node IDs received from remote
+ * peers and thus attacker-controlled, so all 160 bits are mixed together with a random per-instance seed. Keys that only differ
+ * in a few bits still spread over all segments and home slots.
+ * </p>
+ *
+ * <p>
+ * Lookups use optimistic reads and normally do not block. Iteration is weakly consistent, it copies one segment at a time
+ * and invokes the callback outside the lock, so the callback may modify the map.
+ * </p>
+ *
+ * <p>
+ * Null values are not permitted.
+ * </p>
+ */
+public class CompactKeyMap<V> {
+
+	static final int SLOT_BYTES = 24;
+	static final int STATE_OFFSET = 20;
+
+	static final int EMPTY = 0;
+	static final int OCCUPIED = 1;
+	static final int DELETED = 2;
+
+	static final int MIN_CAPACITY = 16;
+	static final float LOAD_FACTOR = 0.75f;
+	static final int DEFAULT_SEGMENTS = 64;
+
+	static final Object PRESENT = new Object();
+
+	static final class Segment {
+		final StampedLock lock = new StampedLock();
+		// capacity is derived from the buffer so that optimistic readers always see a consistent pair
+		ByteBuffer table;
+		Object[] values;
+		int size;
+		// occupied + deleted
+		int used;
+
+		Segment(int capacity, boolean storeValues) {
+			table = allocate(capacity);
+			values = storeValues ? new Object[capacity] : null;
+		}
+
+		int capacity() {
+			return table.capacity() / SLOT_BYTES;
+		}
+	}
+
+	final Segment[] segments;
+	final int segmentBits;
+	final long seed;
+	final boolean storeValues;
+
+	public CompactKeyMap(int expectedSize) {
+		this(expectedSize, true);
+	}
+
+	CompactKeyMap(int expectedSize, boolean storeValues) {
+		this.storeValues = storeValues;
+		segmentBits = Integer.numberOfTrailingZeros(DEFAULT_SEGMENTS);
+		segments = new Segment[DEFAULT_SEGMENTS];
+		seed = ThreadLocalRandom.current().nextLong();
+		int perSegment = initialCapacity(expectedSize / DEFAULT_SEGMENTS);
+		for(int i=0;i<segments.length;i++)
+			segments[i] = new Segment(perSegment, storeValues);
+	}
+
+	static int initialCapacity(int expected) {
+		int slots = (int) Math.min(1 << 30, (long) Math.ceil(expected / LOAD_FACTOR));
+		return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+	}
+
+	static ByteBuffer allocate(int slots) {
+		return ByteBuffer.allocateDirect(slots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+	}
+
+	static long k0(Key k) {
+		return ((long) k.getInt(0) << 32) | (k.getInt(4) & 0xFFFF_FFFFL);
+	}
+
+	static long k1(Key k) {
+		return ((long) k.getInt(8) << 32) | (k.getInt(12) & 0xFFFF_FFFFL);
+	}
+
+	static int k2(Key k) {
+		return k.getInt(16);
+	}
+
+	static Key toKey(long k0, long k1, int k2) {
+		byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+		ByteBuffer.wrap(raw).putLong(k0).putLong(k1).putInt(k2);
+		return new Key(raw);
+	}
+
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	long hash(long k0, long k1, int k2) {
+		long h = mix(seed ^ k0);
+		h = mix(h ^ k1 + seed);
+		return mix(h ^ (k2 & 0xFFFF_FFFFL));
+	}
+
+	Segment segmentFor(long hash) {
+		return segments[(int) (hash >>> (64 - segmentBits))];
+	}
+
+	/**
+	 * low bits, the segment index is taken from the high ones
+	 */
+	static int home(long hash, int mask) {
+		return (int) hash & mask;
+	}
+
+	/**
+	 * probes at most capacity slots so that optimistic readers terminate even on a concurrently modified table
+	 *
+	 * @return the slot of the key, (-1 - insertion point) if absent or {@link Integer#MIN_VALUE} if the table has no free slot,
+	 * which can only be observed by optimistic readers since writers keep the load below 1
+	 */
+	static int find(ByteBuffer table, long hash, long k0, long k1, int k2) {
+		int capacity = table.capacity() / SLOT_BYTES;
+		int mask = capacity - 1;
+		int firstDeleted = -1;
+		int idx = home(hash, mask);
+		for(int i=0;i<capacity;i++) {
+			int off = idx * SLOT_BYTES;
+			int state = table.getInt(off + STATE_OFFSET);
+			if(state == EMPTY)
+				return -1 - (firstDeleted >= 0 ? firstDeleted : idx);
+			if(state == DELETED) {
+				if(firstDeleted < 0)
+					firstDeleted = idx;
+			} else if(table.getLong(off) == k0 && table.getLong(off + 8) == k1 && table.getInt(off + 16) == k2) {
+				return idx;
+			}
+			idx = (idx + 1) & mask;
+		}
+		return firstDeleted >= 0 ? -1 - firstDeleted : Integer.MIN_VALUE;
+	}
+
+	static void write(ByteBuffer table, int slot, long k0, long k1, int k2) {
+		int off = slot * SLOT_BYTES;
+		table.putLong(off, k0);
+		table.putLong(off + 8, k1);
+		table.putInt(off + 16, k2);
+		table.putInt(off + STATE_OFFSET, OCCUPIED);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Key k) {
+		long k0 = k0(k), k1 = k1(k);
+		int k2 = k2(k);
+		long h = hash(k0, k1, k2);
+		Segment s = segmentFor(h);
+
+		long stamp = s.lock.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				Object result = lookup(s, h, k0, k1, k2);
+				if(s.lock.validate(stamp))
+					return (V) result;
+			} catch (IndexOutOfBoundsException e) {
+				// torn read during a resize, retry under the lock
+			}
+		}
+
+		stamp = s.lock.readLock();
+		try {
+			return (V) lookup(s, h, k0, k1, k2);
+		} finally {
+			s.lock.unlockRead(stamp);
+		}
+	}
+
+	Object lookup(Segment s, long hash, long k0, long k1, int k2) {
+		ByteBuffer table = s.table;
+		Object[] values = s.values;
+		int slot = find(table, hash, k0, k1, k2);
+		if(slot < 0)
+			return null;
+		return storeValues ? values[slot] : PRESENT;
+	}
+
+	public boolean containsKey(Key k) {
+		return get(k) != null;
+	}
+
+	/**
+	 * @return the previous value or null if there was none
+	 */
+	public V put(Key k, V value) {
+		return insert(k, value, false);
+	}
+
+	/**
+	 * @return the existing value or null if the value was inserted
+	 */
+	public V putIfAbsent(Key k, V value) {
+		return insert(k, value, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	V insert(Key k, V value, boolean onlyIfAbsent) {
+		Objects.requireNonNull(value);
+		long k0 = k0(k), k1 = k1(k);
+		int k2 = k2(k);
+		long h = hash(k0, k1, k2);
+		Segment s = segmentFor(h);
+
+		long stamp = s.lock.writeLock();
+		try {
+			if(s.used + 1 > s.capacity() * LOAD_FACTOR)
+				rehash(s);
+
+			int slot = find(s.table, h, k0, k1, k2);
+			if(slot >= 0) {
+				if(!storeValues)
+					return (V) PRESENT;
+				V old = (V) s.values[slot];
+				if(!onlyIfAbsent)
+					s.values[slot] = value;
+				return old;
+			}
+
+			slot = -1 - slot;
+			if(s.table.getInt(slot * SLOT_BYTES + STATE_OFFSET) == EMPTY)
+				s.used++;
+			write(s.table, slot, k0, k1, k2);
+			if(storeValues)
+				s.values[slot] = value;
+			s.size++;
+			return null;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * grows the segment if it is actually full, otherwise rebuilds it at the same size to purge tombstones
+	 */
+	void rehash(Segment s) {
+		int oldCapacity = s.capacity();
+		int newCapacity = s.size + 1 > oldCapacity * LOAD_FACTOR / 2 ? oldCapacity * 2 : oldCapacity;
+		ByteBuffer oldTable = s.table;
+		Object[] oldValues = s.values;
+
+		ByteBuffer newTable = allocate(newCapacity);
+		Object[] newValues = storeValues ? new Object[newCapacity] : null;
+
+		for(int i=0;i<oldCapacity;i++) {
+			int off = i * SLOT_BYTES;
+			if(oldTable.getInt(off + STATE_OFFSET) != OCCUPIED)
+				continue;
+			long k0 = oldTable.getLong(off);
+			long k1 = oldTable.getLong(off + 8);
+			int k2 = oldTable.getInt(off + 16);
+			int slot = -1 - find(newTable, hash(k0, k1, k2), k0, k1, k2);
+			write(newTable, slot, k0, k1, k2);
+			if(storeValues)
+				newValues[slot] = oldValues[i];
+		}
+
+		s.values = newValues;
+		s.table = newTable;
+		s.used = s.size;
+	}
+
+	public V remove(Key k) {
+		return removeMatching(k, null);
+	}
+
+	/**
+	 * @param expected if not null only remove the mapping if the current value is equal to it
+	 * @return the removed value, null if nothing was removed
+	 */
+	@SuppressWarnings("unchecked")
+	V removeMatching(Key k, Object expected) {
+		long k0 = k0(k), k1 = k1(k);
+		int k2 = k2(k);
+		long h = hash(k0, k1, k2);
+		Segment s = segmentFor(h);
+
+		long stamp = s.lock.writeLock();
+		try {
+			int slot = find(s.table, h, k0, k1, k2);
+			if(slot < 0)
+				return null;
+			V old = storeValues ? (V) s.values[slot] : (V) PRESENT;
+			if(expected != null && !expected.equals(old))
+				return null;
+
+			if(storeValues)
+				s.values[slot] = null;
+			s.size--;
+
+			ByteBuffer table = s.table;
+			int mask = s.capacity() - 1;
+			table.putInt(slot * SLOT_BYTES + STATE_OFFSET, DELETED);
+			// if the probe sequence ends here the trailing tombstones are unnecessary
+			if(table.getInt(((slot + 1) & mask) * SLOT_BYTES + STATE_OFFSET) == EMPTY) {
+				while(table.getInt(slot * SLOT_BYTES + STATE_OFFSET) == DELETED) {
+					table.putInt(slot * SLOT_BYTES + STATE_OFFSET, EMPTY);
+					s.used--;
+					slot = (slot - 1) & mask;
+				}
+			}
+
+			return old;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return number of slots inspected to find the key, -1 if it is absent
+	 */
+	int probeLength(Key k) {
+		long k0 = k0(k), k1 = k1(k);
+		int k2 = k2(k);
+		long h = hash(k0, k1, k2);
+		Segment s = segmentFor(h);
+
+		long stamp = s.lock.readLock();
+		try {
+			int slot = find(s.table, h, k0, k1, k2);
+			if(slot < 0)
+				return -1;
+			int mask = s.capacity() - 1;
+			return ((slot - home(h, mask)) & mask) + 1;
+		} finally {
+			s.lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean remove(Key k, V expected) {
+		return removeMatching(k, Objects.requireNonNull(expected)) != null;
+	}
+
+	/**
+	 * approximate when called concurrently with modifications
+	 */
+	public int size() {
+		int size = 0;
+		for(Segment s : segments)
+			size += s.size;
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * bytes allocated outside the java heap for the key tables
+	 */
+	public long offHeapBytes() {
+		long bytes = 0;
+		for(Segment s : segments)
+			bytes += s.table.capacity();
+		return bytes;
+	}
+
+	public void clear() {
+		for(Segment s : segments) {
+			long stamp = s.lock.writeLock();
+			try {
+				s.table = allocate(MIN_CAPACITY);
+				s.values = storeValues ? new Object[MIN_CAPACITY] : null;
+				s.size = 0;
+				s.used = 0;
+			} finally {
+				s.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	public void forEach(BiConsumer<Key, V> action) {
+		forEachFrom(null, (k, v) -> {
+			action.accept(k, v);
+			return true;
+		});
+	}
+
+	/**
+	 * Visits the mappings starting at the segment of the given key and wrapping around, this can be used to process a random
+	 * subset of the map.
+	 *
+	 * @param start null to start at the first segment
+	 * @param action returns false to stop the iteration
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachFrom(Key start, BiPredicate<Key, V> action) {
+		int first = start == null ? 0 : (int) (hash(k0(start), k1(start), k2(start)) >>> (64 - segmentBits));
+		for(int i=0;i<segments.length;i++) {
+			Segment s = segments[(first + i) & (segments.length - 1)];
+
+			long[] keys;
+			Object[] values;
+			int count = 0;
+			long stamp = s.lock.readLock();
+			try {
+				keys = new long[s.size * 3];
+				values = storeValues ? new Object[s.size] : null;
+				ByteBuffer table = s.table;
+				for(int slot=0, capacity = s.capacity();slot<capacity;slot++) {
+					int off = slot * SLOT_BYTES;
+					if(table.getInt(off + STATE_OFFSET) != OCCUPIED)
+						continue;
+					keys[count * 3] = table.getLong(off);
+					keys[count * 3 + 1] = table.getLong(off + 8);
+					keys[count * 3 + 2] = table.getInt(off + 16);
+					if(storeValues)
+						values[count] = s.values[slot];
+					count++;
+				}
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+
+			for(int j=0;j<count;j++) {
+				Key k = toKey(keys[j * 3], keys[j * 3 + 1], (int) keys[j * 3 + 2]);
+				if(!action.test(k, storeValues ? (V) values[j] : (V) PRESENT))
+					return;
+			}
+		}
+	}
+
+}
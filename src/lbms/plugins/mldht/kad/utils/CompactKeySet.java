@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import lbms.plugins.mldht.kad.Key;
+
+import java.util.function.Consumer;
+
+/**
+ * Concurrent set of {@link Key}s with the same storage layout as {@link CompactKeyMap} minus the value array,
+ * i.e. 24 off-heap bytes per slot and no per-entry heap objects.
+ */
+public class CompactKeySet {
+
+	final CompactKeyMap<Object> map;
+
+	public CompactKeySet(int expectedSize) {
+		map = new CompactKeyMap<>(expectedSize, false);
+	}
+
+	/**
+	 * @return true if the key was not already present
+	 */
+	public boolean add(Key k) {
+		return map.putIfAbsent(k, CompactKeyMap.PRESENT) == null;
+	}
+
+	public boolean contains(Key k) {
+		return map.containsKey(k);
+	}
+
+	public boolean remove(Key k) {
+		return map.remove(k) != null;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public long offHeapBytes() {
+		return map.offHeapBytes();
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	public void forEach(Consumer<Key> action) {
+		map.forEach((k, v) -> action.accept(k));
+	}
+
+}
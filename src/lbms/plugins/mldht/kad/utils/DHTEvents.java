@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import the8472.utils.FlightEvents;
+import the8472.utils.FlightEvents.Type;
+
+/**
+ * Flight recorder events on the packet, task, routing table and storage paths. See {@link FlightEvents} for the emission pattern.
+ */
+public final class DHTEvents {
+
+	private DHTEvents() {}
+
+	public static final Type PACKET_DECODE = FlightEvents.define("mldht.PacketDecode", "Packet Decode", "mldht/Network",
+			"bdecoding and parsing of a received packet",
+			"dht", String.class, "method", String.class, "type", String.class, "size", int.class);
+
+	public static final Type MESSAGE_HANDLING = FlightEvents.define("mldht.MessageHandling", "Message Handling", "mldht/Network",
+			"processing of a decoded message, e.g. answering get_peers, find_node, announce_peer or put",
+			"dht", String.class, "method", String.class, "type", String.class);
+
+	public static final Type TASK_STATE = FlightEvents.define("mldht.TaskState", "Task State Change", "mldht/Tasks",
+			"lifecycle transition of a lookup or other task",
+			"task", String.class, "id", int.class, "from", String.class, "to", String.class);
+
+	public static final Type ROUTING_TABLE = FlightEvents.define("mldht.RoutingTable", "Routing Table Modification", "mldht/Routing Table",
+			"insertion into a bucket, bucket split or merge",
+			"dht", String.class, "operation", String.class, "prefixDepth", int.class);
+
+	public static final Type DATABASE = FlightEvents.define("mldht.Database", "Peer Database", "mldht/Storage",
+			"storing an announced peer or expiring stale ones, keys is the number of infohashes afterwards",
+			"operation", String.class, "keys", int.class);
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import the8472.utils.concurrent.BlockingThreads;
+
+/**
+ * Records received datagrams into a compact binary file for later replay.
+ *
+ * <p>
+ * File format, big endian:
+ * </p>
+ * <pre>
+ * header:  "MLPC", int32 version (1), int64 capture start in ms since epoch
+ * records: int64 ns since capture start, uint8 address length (4 or 16), address, uint16 source port, uint16 payload length, payload
+ * </pre>
+ * <p>
+ * {@link #record(InetSocketAddress, ByteBuffer)} is called on the selector thread and only encodes into a queue. A separate thread does the file I/O.
+ * When that thread can't keep up or the size limit is reached records get dropped, which is reported by {@link #toString()}.
+ * </p>
+ */
+public class PacketCapture implements AutoCloseable {
+
+	static final int MAGIC = 'M' << 24 | 'L' << 16 | 'P' << 8 | 'C';
+	static final int VERSION = 1;
+
+	static final byte[] CLOSED = new byte[0];
+
+	final Path file;
+	final long maxBytes;
+	final long startNanos = System.nanoTime();
+	final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(16 * 1024);
+	final Thread writer;
+	final OutputStream out;
+
+	final AtomicLong captured = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	volatile long written;
+	volatile boolean closed;
+
+	public PacketCapture(Path file, long maxBytes) throws IOException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeLong(System.currentTimeMillis());
+		written = 16;
+		writer = BlockingThreads.newThread("packet capture writer", this::writeLoop);
+		writer.start();
+	}
+
+	/**
+	 * @param data the datagram, from position 0 up to the current position, i.e. a buffer filled by a receive call but not yet flipped
+	 */
+	public void record(InetSocketAddress source, ByteBuffer data) {
+		if(closed)
+			return;
+		int length = data.position();
+		byte[] addr = source.getAddress().getAddress();
+		ByteBuffer rec = ByteBuffer.allocate(8 + 1 + addr.length + 2 + 2 + length);
+		rec.putLong(System.nanoTime() - startNanos);
+		rec.put((byte) addr.length);
+		rec.put(addr);
+		rec.putShort((short) source.getPort());
+		rec.putShort((short) length);
+		ByteBuffer payload = data.duplicate();
+		payload.flip();
+		rec.put(payload);
+
+		if(queue.offer(rec.array()))
+			captured.incrementAndGet();
+		else
+			dropped.incrementAndGet();
+	}
+
+	void writeLoop() {
+		try {
+			while(true) {
+				byte[] rec = queue.take();
+				if(rec == CLOSED)
+					break;
+				if(written + rec.length > maxBytes) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				out.write(rec);
+				written += rec.length;
+			}
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		} catch (InterruptedException e) {
+			// close() was interrupted, drop what's still queued
+		} finally {
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+	/**
+	 * stops capturing, flushes queued records and waits for the file to be closed.
+	 * if interrupted it returns early with the interrupt flag set, the file then gets closed in the background
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		// the queue may still be full, retry until the writer has drained enough to take the marker
+		boolean marked = false;
+		try {
+			while(!marked && writer.isAlive())
+				marked = queue.offer(CLOSED, 100, TimeUnit.MILLISECONDS);
+			writer.join();
+		} catch (InterruptedException e) {
+			// without the marker the writer would wait forever
+			if(!marked)
+				writer.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return "capture " + file + (closed ? " (closed)" : "") + " records:" + captured.get() + " dropped:" + dropped.get() + " bytes:" + written;
+	}
+
+	public static class Record {
+		public final long offsetNanos;
+		public final InetSocketAddress source;
+		public final byte[] data;
+
+		Record(long offsetNanos, InetSocketAddress source, byte[] data) {
+			this.offsetNanos = offsetNanos;
+			this.source = source;
+			this.data = data;
+		}
+	}
+
+	public static class Reader implements AutoCloseable {
+
+		final DataInputStream in;
+		final long startMillis;
+
+		public Reader(Path file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not a packet capture");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException("unsupported capture version " + version);
+			startMillis = in.readLong();
+		}
+
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * @return the next record or null at the end of the file. a truncated last record is treated as end of file
+		 */
+		public Record next() throws IOException {
+			try {
+				long offset = in.readLong();
+				byte[] addr = new byte[in.readUnsignedByte()];
+				in.readFully(addr);
+				int port = in.readUnsignedShort();
+				byte[] data = new byte[in.readUnsignedShort()];
+				in.readFully(data);
+				return new Record(offset, new InetSocketAddress(InetAddress.getByAddress(addr), port), data);
+			} catch (EOFException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+}
@@ -6,21 +6,21 @@
 package lbms.plugins.mldht.kad.utils;
 
 import java.text.NumberFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.Key;
-import lbms.plugins.mldht.kad.Prefix;
-import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
+import lbms.plugins.mldht.utils.StreamingQuantileSketch;
 
 /**
  * @author The_8472, Damokles
@@ -34,54 +34,73 @@ public class PopulationEstimator {
 	
 	static final double					DISTANCE_WEIGHT_INITIAL			= 0.3;
 	static final double					DISTANCE_WEIGHT					= 0.003;
-	private int							updateCount						= 0;
 	static final int					INITIAL_UPDATE_COUNT			= 25;
 	
+	static final double					ERROR_WEIGHT					= 0.03;
 	
-	static final int					MAX_RAW_HISTORY					= 40;
-	LinkedList<Double> 					rawDistances					= new LinkedList<>();
-
+	/*
+	 * raw estimates and errors are doubles stored as their long bits so concurrent lookups can update them with CAS instead of locking.
+	 * an update racing with another may see a slightly stale error and weight, which the moving averages absorb
+	 */
+	private final AtomicLong			errorEstimate					= new AtomicLong(Double.doubleToLongBits(0.5));
+	private final AtomicLong			averageNodeDistanceExp2			= new AtomicLong(Double.doubleToLongBits(1));
+	private final List<PopulationListener>	listeners					= new CopyOnWriteArrayList<>();
+	
+	/*
+	 * recently seen neighbor groups, direct-mapped by their leading bits. each slot holds up to 56 leading prefix bits and the prefix length in the lowest byte
+	 */
+	private static final int			RECENT_PREFIX_SLOTS				= 64;
+	private static final int			MAX_TRACKED_PREFIX_BITS			= 56;
+	private final AtomicLongArray		recentlySeenPrefixes			= new AtomicLongArray(RECENT_PREFIX_SLOTS);
+	
+	// per-lookup raw estimates, for diagnostics
+	private final StreamingQuantileSketch	rawSamples					= new StreamingQuantileSketch(0, 64, 2048, 1000);
+	private final LongAdder				updates							= new LongAdder();
+	private final LongAdder				duplicateGroups					= new LongAdder();
 	
-	private ExponentialWeightendMovingAverage						errorEstimate = new ExponentialWeightendMovingAverage().setWeight(0.03).setValue(0.5);
-	private ExponentialWeightendMovingAverage						averageNodeDistanceExp2 = new ExponentialWeightendMovingAverage().setValue(1);
-	private List<PopulationListener>	listeners						= new ArrayList<>(1);
-	private static final int			MAX_RECENT_LOOKUP_CACHE_SIZE	= 40;
-	private Deque<Prefix>				recentlySeenPrefixes			= new LinkedList<>();
+	private static final ThreadLocal<double[]> scratch				= ThreadLocal.withInitial(() -> new double[32]);
 
 	public long getEstimate () {
-		return (long) (Math.pow(2, averageNodeDistanceExp2.getAverage()));
+		return (long) (Math.pow(2, getRawDistanceEstimate()));
 	}
 	
 	public double getStability() {
-		return 1.0 - Math.abs(errorEstimate.getAverage());
+		return 1.0 - Math.abs(Double.longBitsToDouble(errorEstimate.get()));
 	}
 	
 	public double getRawDistanceEstimate() {
-		return averageNodeDistanceExp2.getAverage();
+		return Double.longBitsToDouble(averageNodeDistanceExp2.get());
 	}
 
 	public void setInitialRawDistanceEstimate(double initialValue) {
 		if(initialValue > KEYSPACE_BITS)
-			averageNodeDistanceExp2.setValue(1);
+			averageNodeDistanceExp2.set(Double.doubleToLongBits(1));
 		else
-			averageNodeDistanceExp2.setValue(initialValue);
+			averageNodeDistanceExp2.set(Double.doubleToLongBits(initialValue));
+	}
+	
+	/**
+	 * @return the population estimate at quantile q of recent individual lookups, or 0 if there are none
+	 */
+	public long getQuantileEstimate(double q) {
+		double raw = rawSamples.quantile(q);
+		return Double.isNaN(raw) ? 0 : (long) Math.pow(2, raw);
 	}
 	
 	public static double distanceToDouble(Key a, Key b) {
-		byte[] rawDistance = a.distance(b).getHash();
 		double distance = 0;
 		
 		int nonZeroBytes = 0;
 		for (int j = 0; j < Key.SHA1_HASH_LENGTH; j++) {
-			if (rawDistance[j] == 0) {
+			int xor = (a.getByte(j) ^ b.getByte(j)) & 0xFF;
+			if (xor == 0) {
 				continue;
 			}
 			if (nonZeroBytes == 8) {
 				break;
 			}
 			nonZeroBytes++;
-			distance += (rawDistance[j] & 0xFF)
-					* Math.pow(2, KEYSPACE_BITS - (j + 1) * 8);
+			distance += xor * Math.pow(2, KEYSPACE_BITS - (j + 1) * 8);
 		}
 		
 		return distance;
@@ -96,30 +115,76 @@ public class PopulationEstimator {
 		return (long) (Math.pow(2, avg ));
 	}
 	
+	static long leadingBits(Key k) {
+		return Integer.toUnsignedLong(k.getInt(0)) << 32 | Integer.toUnsignedLong(k.getInt(4));
+	}
 	
-	private double median(List<Double> distances)
+	
+	/**
+	 * sorts the first n values in place and returns their weighted 2-element median
+	 */
+	static double median(double[] values, int n)
 	{
-		if(distances.size() == 1)
-			return distances.get(0);
-		double values[] = new double[distances.size()];
-		int i=0;
-		for(Double d : distances)
-			values[i++] = d;
-		Arrays.sort(values);
+		// groups are small (~8-20 entries), insertion sort beats anything fancier
+		for(int i=1;i<n;i++) {
+			double v = values[i];
+			int j = i - 1;
+			while(j >= 0 && values[j] > v) {
+				values[j+1] = values[j];
+				j--;
+			}
+			values[j+1] = v;
+		}
 		// use a weighted 2-element median for max. accuracy
-		double middle = (values.length - 1.0) / 2.0 ;
+		double middle = (n - 1.0) / 2.0 ;
 		int idx1 = (int) Math.floor(middle);
 		int idx2 = (int) Math.ceil(middle);
 		double middleWeight = middle - idx1;
 		return values[idx1] * (1.0 - middleWeight) + values[idx2] * middleWeight;
 	}
 	
-	private double mean(double[] values)
-	{
-		double result = 0.0;
-		for(int i=0;i<values.length;i++)
-			result += values[i];
-		return result / values.length;
+	/**
+	 * @return true if the group overlaps with a recently seen one and should be ignored
+	 */
+	boolean isRecentlySeen(Set<Key> neighbors) {
+		Iterator<Key> it = neighbors.iterator();
+		long first = leadingBits(it.next());
+		int commonBits = MAX_TRACKED_PREFIX_BITS;
+		while(it.hasNext())
+			commonBits = Math.min(commonBits, Long.numberOfLeadingZeros(first ^ leadingBits(it.next())));
+		
+		long prefixBits = commonBits == 0 ? 0 : first & (-1L << (64 - commonBits));
+		long entry = prefixBits | commonBits;
+		
+		// neighbor groups share roughly log2(population) - 4 leading bits, anything overlapping a recent group has to agree on a few bits less than that
+		int slotBits = Math.max(0, Math.min(MAX_TRACKED_PREFIX_BITS, (int) getRawDistanceEstimate() - 10) & ~3);
+		
+		long slotKey = slotBits == 0 ? 0 : prefixBits >>> (64 - slotBits);
+		int slot = (int) ((slotKey * 0x9E3779B97F4A7C15L) >>> 58) & (RECENT_PREFIX_SLOTS - 1);
+		
+		long old = recentlySeenPrefixes.get(slot);
+		int oldBits = (int) (old & 0xFF);
+		long oldPrefix = old & ~0xFFL;
+		
+		if(old != 0) {
+			int shared = Math.min(oldBits, commonBits);
+			long mask = shared == 0 ? 0 : -1L << (64 - shared);
+			if((oldPrefix & mask) == (prefixBits & mask)) {
+				/*
+				 * displace old entry, narrower entries will also replace
+				 * wider ones, to clean out accidents like prefixes covering
+				 * huge fractions of the keyspace.
+				 * if the new prefix is wider than the old one do not displace
+				 */
+				if(commonBits >= oldBits)
+					recentlySeenPrefixes.compareAndSet(slot, old, entry);
+				return true;
+			}
+		}
+		
+		// no match found => add, evicting whatever collided
+		recentlySeenPrefixes.compareAndSet(slot, old, entry);
+		return false;
 	}
 	
 	public void update (Set<Key> neighbors, Key target) {
@@ -128,93 +193,73 @@ public class PopulationEstimator {
 			return;
 		
 		DHT.log("Estimator: new node group of "+neighbors.size(), LogLevel.Debug);
-		Prefix prefix = Prefix.getCommonPrefix(neighbors);
 		
-		synchronized (recentlySeenPrefixes)
-		{
-			for(Prefix oldPrefix : recentlySeenPrefixes)
-			{
-				if(oldPrefix.isPrefixOf(prefix))
-				{
-					/*
-					 * displace old entry, narrower entries will also replace
-					 * wider ones, to clean out accidents like prefixes covering
-					 * huge fractions of the keyspace
-					 */
-					recentlySeenPrefixes.remove(oldPrefix);
-					recentlySeenPrefixes.addLast(prefix);
-					return;
-				}
-				// new prefix is wider than the old one, return but do not displace
-				if(prefix.isPrefixOf(oldPrefix))
-					return;
-			}
-
-			// no match found => add
-			recentlySeenPrefixes.addLast(prefix);
-			if(recentlySeenPrefixes.size() > MAX_RECENT_LOOKUP_CACHE_SIZE)
-				recentlySeenPrefixes.removeFirst();
+		if(isRecentlySeen(neighbors)) {
+			duplicateGroups.increment();
+			return;
 		}
 		
+		int n = neighbors.size();
+		double[] values = scratch.get();
+		if(values.length < n) {
+			values = new double[Math.max(n, values.length * 2)];
+			scratch.set(values);
+		}
 		
-		ArrayList<Key> found = new ArrayList<>(neighbors);
-		//found.add(target);
-		Collections.sort(found,new Key.DistanceOrder(target));
-
-		synchronized (PopulationEstimator.class)
-		{
-			
-			List<Double> distances = new LinkedList<>();
-
-			for(int i=1;i<found.size();i++)
-			{
-				distances.add(distanceToDouble(target, found.get(i)) - distanceToDouble(target, found.get(i-1)));
-				//distances.add(distanceToDouble(found.get(i-1), found.get(i)));
-				//distances.add(distanceToDouble(target, found.get(i))/(i+1.0));
-				//distances.add(target.naturalDistance(found.get(i)));
-			}
-			
-			//System.out.println(distances);
-
-			// distances are exponentially distributed. since we're taking the median we need to compensate here
-			double median = median(distances) / Math.log(2);
-
-			// work in log2 space for better averaging
-			median = toLog2(median);
-			//143.39035952556318
-			//143.255
-			//0.135
-
-			DHT.log("Estimator: distance value: " + median + " avg:" + averageNodeDistanceExp2, LogLevel.Debug);
-			
-			double absArror = Math.abs(errorEstimate.getAverage());
-			double amplifiedError = Math.pow(absArror, 1.5);
-			double clampedError = Math.max(0, Math.min(1, amplifiedError));
+		int i = 0;
+		for(Key k : neighbors)
+			values[i++] = distanceToDouble(target, k);
+		
+		// sorting the distances to the target is equivalent to sorting the keys in XOR order
+		Arrays.sort(values, 0, n);
+		
+		// gaps between consecutive neighbors
+		for(i=0;i<n-1;i++)
+			values[i] = values[i+1] - values[i];
+		
+		// distances are exponentially distributed. since we're taking the median we need to compensate here
+		double median = median(values, n - 1) / Math.log(2);
 
+		// work in log2 space for better averaging
+		median = toLog2(median);
+		
+		rawSamples.add(median);
+		updates.increment();
 
-			double weight = 0.0001 + clampedError * 0.3 ;   //updateCount++ < INITIAL_UPDATE_COUNT ? DISTANCE_WEIGHT_INITIAL : DISTANCE_WEIGHT;
-			//double weight = 0.001;
-			
-			double oldAverage = averageNodeDistanceExp2.getAverage();
+		double absArror = Math.abs(Double.longBitsToDouble(errorEstimate.get()));
+		double amplifiedError = Math.pow(absArror, 1.5);
+		double clampedError = Math.max(0, Math.min(1, amplifiedError));
 
-			// exponential average of the mean value
-			averageNodeDistanceExp2.setWeight(weight).updateAverage(median);
-			
-			double newAverage = averageNodeDistanceExp2.getAverage();
-			
-			//System.out.print("update: "+ Math.pow(2, KEYSPACE_BITS - median)+" ");
-			
-			errorEstimate.updateAverage((median - newAverage) / Math.min(median, newAverage));
-			
-			
-			while(rawDistances.size() > MAX_RAW_HISTORY)
-				rawDistances.remove();
-		}
-		DHT.log("Estimator: new estimate:"+getEstimate()+" raw:"+averageNodeDistanceExp2.getAverage()+" error:"+errorEstimate.getAverage(), LogLevel.Info);
+		double weight = 0.0001 + clampedError * 0.3 ;   //updateCount++ < INITIAL_UPDATE_COUNT ? DISTANCE_WEIGHT_INITIAL : DISTANCE_WEIGHT;
+		
+		// exponential average of the mean value
+		long oldBits, newBits;
+		double newAverage;
+		do {
+			oldBits = averageNodeDistanceExp2.get();
+			double oldAverage = Double.longBitsToDouble(oldBits);
+			newAverage = Double.isNaN(oldAverage) ? median : median * weight + oldAverage * (1.0 - weight);
+			newBits = Double.doubleToLongBits(newAverage);
+		} while(!averageNodeDistanceExp2.compareAndSet(oldBits, newBits));
+		
+		double error = (median - newAverage) / Math.min(median, newAverage);
+		do {
+			oldBits = errorEstimate.get();
+			newBits = Double.doubleToLongBits(error * ERROR_WEIGHT + Double.longBitsToDouble(oldBits) * (1.0 - ERROR_WEIGHT));
+		} while(!errorEstimate.compareAndSet(oldBits, newBits));
+		
+		if(DHT.isLogLevelEnabled(LogLevel.Info))
+			DHT.log("Estimator: distance value: " + median + " new estimate:"+getEstimate()+" raw:"+newAverage+" error:"+Double.longBitsToDouble(errorEstimate.get()), LogLevel.Info);
 		
 		fireUpdateEvent();
 
 	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d (%.3f) recent lookups p10/p50/p90: %d/%d/%d, updates:%d ignored groups:%d",
+				getEstimate(), getStability(), getQuantileEstimate(0.1), getQuantileEstimate(0.5), getQuantileEstimate(0.9), updates.sum(), duplicateGroups.sum());
+	}
 
 	
 
@@ -227,9 +272,11 @@ public class PopulationEstimator {
 	}
 
 	private void fireUpdateEvent () {
+		if(listeners.isEmpty())
+			return;
 		long estimated = getEstimate();
-		for (int i = 0; i < listeners.size(); i++) {
-			listeners.get(i).populationUpdated(estimated);
+		for (PopulationListener l : listeners) {
+			l.populationUpdated(estimated);
 		}
 	}
 	
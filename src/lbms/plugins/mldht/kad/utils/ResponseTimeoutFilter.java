@@ -7,17 +7,39 @@ package lbms.plugins.mldht.kad.utils;
 
 import static the8472.utils.Functional.tap;
 
+import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import lbms.plugins.mldht.kad.DHTConstants;
 import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCCallListener;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 
+/**
+ * Estimates when an RPC call should be considered stalled.
+ * 
+ * <p>
+ * Layered from most to least specific:
+ * <ol>
+ * <li>the call's own node, if it was built from a verified routing entry with a known RTT</li>
+ * <li>the destination's subnet (/16 for IPv4, /48 for IPv6), once it has a few samples</li>
+ * <li>the global RTT distribution of unverified nodes</li>
+ * </ol>
+ * The node and subnet layers use TCP-style smoothed RTT plus 4 * mean deviation, the global layer uses quantiles of the decaying histogram.
+ * </p>
+ */
 public class ResponseTimeoutFilter {
 	
+	public enum TimeoutSource {
+		/** expected RTT set explicitly before sending */
+		CALLER,
+		NODE,
+		SUBNET,
+		GLOBAL
+	}
 	
 	public static final int		NUM_SAMPLES			= 256;
 	public static final int		HIGH_QUANTILE_INDEX		= (int) (NUM_SAMPLES * 0.9f);
@@ -38,6 +60,15 @@ public class ResponseTimeoutFilter {
 	long timeoutBaseline;
 	
 	
+	/*
+	 * direct-mapped per-subnet RTT estimators, colliding subnets evict each other. each slot is packed as
+	 * [tag:24][samples:8][smoothed RTT ms:16][mean deviation ms:16]
+	 */
+	static final int SUBNET_SLOTS = 4096;
+	static final int SUBNET_MIN_SAMPLES = 4;
+	final AtomicLongArray subnets = new AtomicLongArray(SUBNET_SLOTS);
+	
+	
 	public ResponseTimeoutFilter() {
 		reset();
 	}
@@ -64,6 +95,8 @@ public class ResponseTimeoutFilter {
 		updateCount = 0;
 		timeoutBaseline = timeoutCeiling = DHTConstants.RPC_CALL_TIMEOUT_MAX;
 		Arrays.fill(bins, 1.0f/bins.length);
+		for(int i=0;i<SUBNET_SLOTS;i++)
+			subnets.set(i, 0);
 	}
 	
 	private final RPCCallListener listener = new RPCCallListener() {
@@ -200,6 +233,110 @@ public class ResponseTimeoutFilter {
 	}
 	
 	
+	static long subnetHash(InetAddress addr) {
+		byte[] raw = addr.getAddress();
+		int prefixBytes = raw.length == 4 ? 2 : 6;
+		long h = raw.length;
+		for(int i=0;i<prefixBytes;i++)
+			h = h << 8 | (raw[i] & 0xFF);
+		return h * 0x9E3779B97F4A7C15L;
+	}
+	
+	static int slot(long hash) {
+		return (int) (hash >>> 52) & (SUBNET_SLOTS - 1);
+	}
+	
+	static long tag(long hash) {
+		return (hash >>> 16) & 0xFFFFFF;
+	}
+	
+	static int samples(long packed) {
+		return (int) (packed >>> 32) & 0xFF;
+	}
+	
+	static int smoothedRTT(long packed) {
+		return (int) (packed >>> 16) & 0xFFFF;
+	}
+	
+	static int deviation(long packed) {
+		return (int) packed & 0xFFFF;
+	}
+	
+	public void updateSubnet(InetAddress addr, long rtt) {
+		if(rtt < 0)
+			return;
+		int sample = (int) Math.min(rtt, DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		long hash = subnetHash(addr);
+		int slot = slot(hash);
+		long tag = tag(hash);
+		
+		long old, updated;
+		do {
+			old = subnets.get(slot);
+			int count, srtt, dev;
+			if(old >>> 40 != tag || samples(old) == 0) {
+				count = 1;
+				srtt = sample;
+				dev = sample / 2;
+			} else {
+				srtt = smoothedRTT(old);
+				dev = deviation(old);
+				int err = sample - srtt;
+				srtt += err / 8;
+				dev += (Math.abs(err) - dev) / 4;
+				count = Math.min(255, samples(old) + 1);
+			}
+			updated = tag << 40 | (long) count << 32 | (long) srtt << 16 | dev;
+		} while(!subnets.compareAndSet(slot, old, updated));
+	}
+	
+	/**
+	 * @return the packed estimator state for the subnet or 0 if it doesn't have enough samples
+	 */
+	long subnetEstimate(InetAddress addr) {
+		long hash = subnetHash(addr);
+		long packed = subnets.get(slot(hash));
+		if(packed >>> 40 != tag(hash) || samples(packed) < SUBNET_MIN_SAMPLES)
+			return 0;
+		return packed;
+	}
+	
+	public int getSubnetCount() {
+		int count = 0;
+		for(int i=0;i<SUBNET_SLOTS;i++)
+			if(samples(subnets.get(i)) >= SUBNET_MIN_SAMPLES)
+				count++;
+		return count;
+	}
+	
+	/**
+	 * picks the most specific model available for the call and records which one was used
+	 */
+	public long getStallTimeout(RPCCall call) {
+		InetAddress dest = call.getRequest().getDestination().getAddress();
+		long subnet = subnetEstimate(dest);
+		long nodeRTT = call.getEntryRTT();
+		
+		long timeout;
+		TimeoutSource source;
+		
+		if(nodeRTT > 0) {
+			// the entry only tracks a mean, borrow the variance from its subnet if we know it
+			long margin = subnet != 0 ? 4L * deviation(subnet) : nodeRTT;
+			timeout = nodeRTT + Math.max(nodeRTT / 2, margin);
+			source = TimeoutSource.NODE;
+		} else if(subnet != 0) {
+			timeout = smoothedRTT(subnet) + 4L * deviation(subnet);
+			source = TimeoutSource.SUBNET;
+		} else {
+			timeout = getStallTimeout();
+			source = TimeoutSource.GLOBAL;
+		}
+		
+		call.setTimeoutSource(source);
+		return Math.max(DHTConstants.RPC_CALL_TIMEOUT_BASELINE_MIN, Math.min(timeout, DHTConstants.RPC_CALL_TIMEOUT_MAX));
+	}
+	
 	public long getStallTimeout() {
 		// either the 90th percentile or the 10th percentile + 100ms baseline, whichever is HIGHER (to prevent descent to zero and missing more than 10% of the packets in the worst case).
 		// but At most RPC_CALL_TIMEOUT_MAX
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, allocation-free quantile estimates over a fixed value range, backed by a fixed-width histogram.
+ *
+ * Samples are counted in two generations, once the current one has seen {@code window} samples the older one is cleared and becomes current.
+ * Quantiles cover both generations, i.e. between {@code window} and {@code 2 * window} of the most recent samples.
+ * Samples racing with a rotation may get lost, which is irrelevant for statistics.
+ */
+public class StreamingQuantileSketch {
+
+	private final double min;
+	private final double binWidth;
+	private final int bins;
+	private final long window;
+
+	private final AtomicLongArray[] generations;
+	private final AtomicLong samples = new AtomicLong();
+	private volatile int current;
+
+	public StreamingQuantileSketch(double min, double max, int bins, long window) {
+		if(!(max > min) || bins < 1 || window < 1)
+			throw new IllegalArgumentException("invalid sketch parameters");
+		this.min = min;
+		this.bins = bins;
+		this.binWidth = (max - min) / bins;
+		this.window = window;
+		generations = new AtomicLongArray[] {new AtomicLongArray(bins), new AtomicLongArray(bins)};
+	}
+
+	/**
+	 * values outside the range are clamped to the first or last bin, NaN is ignored
+	 */
+	public void add(double value) {
+		if(Double.isNaN(value))
+			return;
+		int bin = (int) Math.floor((value - min) / binWidth);
+		bin = Math.max(0, Math.min(bins - 1, bin));
+
+		int gen = current;
+		generations[gen].incrementAndGet(bin);
+
+		if(samples.incrementAndGet() % window == 0) {
+			int older = gen ^ 1;
+			AtomicLongArray stale = generations[older];
+			for(int i=0;i<bins;i++)
+				stale.set(i, 0);
+			current = older;
+		}
+	}
+
+	public long count() {
+		long total = 0;
+		for(AtomicLongArray gen : generations)
+			for(int i=0;i<bins;i++)
+				total += gen.get(i);
+		return total;
+	}
+
+	/**
+	 * @param q in [0, 1]
+	 * @return the interpolated value at the quantile or NaN if there are no samples
+	 */
+	public double quantile(double q) {
+		AtomicLongArray a = generations[0];
+		AtomicLongArray b = generations[1];
+
+		long total = 0;
+		for(int i=0;i<bins;i++)
+			total += a.get(i) + b.get(i);
+		if(total == 0)
+			return Double.NaN;
+
+		double rank = Math.max(0, Math.min(1, q)) * total;
+		long seen = 0;
+		for(int i=0;i<bins;i++) {
+			long inBin = a.get(i) + b.get(i);
+			if(inBin == 0)
+				continue;
+			if(seen + inBin >= rank) {
+				// assume samples are spread evenly within the bin
+				double fraction = (rank - seen) / inBin;
+				return min + (i + fraction) * binWidth;
+			}
+			seen += inBin;
+		}
+
+		return min + bins * binWidth;
+	}
+
+}
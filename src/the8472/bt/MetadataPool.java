@@ -7,9 +7,11 @@ package the8472.bt;
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
 
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
@@ -22,50 +24,133 @@ public class MetadataPool {
 		FAILED;
 	}
 	
-	Completion state = Completion.PROGRESS;
+	static final int PIECE_SIZE = 16*1024;
+	// endgame: at most this many connections may wait for the same piece
+	static final int MAX_REQUESTEES_PER_PIECE = 3;
+	
+	static class Piece {
+		ByteBuffer data;
+		List<PullMetaDataConnection> requestees = new ArrayList<>(1);
+		long lastRequested;
+	}
 	
 	int length;
-	ByteBuffer[] buffers;
-	PullMetaDataConnection[]	requestees;
+	Piece[] pieces;
 	Completion status = Completion.PROGRESS;
 	
+	int duplicateRequests;
+	int redundantPieces;
+	long firstPieceTime;
+	
 	public MetadataPool(int length ) {
 		this.length = length;
-		int numChunks = (int) Math.ceil(length * 1.0 / (16*1024));
-		requestees = new PullMetaDataConnection[numChunks];
-		buffers = new ByteBuffer[numChunks];
+		int numChunks = (int) Math.ceil(length * 1.0 / PIECE_SIZE);
+		pieces = new Piece[numChunks];
+		for(int i=0;i<numChunks;i++)
+			pieces[i] = new Piece();
 	}
 	
+	/**
+	 * Hands out unrequested pieces first. Once all pieces are in flight the ones that have been outstanding the longest get requested from additional connections,
+	 * so a single stalling peer does not hold up the whole fetch.
+	 * 
+	 * @return the piece index or -1 if nothing is left to request from this connection
+	 */
 	int reservePiece(PullMetaDataConnection req) {
-		for(int i=0;i<requestees.length;i++) {
-			if(requestees[i] != null)
+		long now = System.currentTimeMillis();
+		
+		for(int i=0;i<pieces.length;i++) {
+			Piece p = pieces[i];
+			if(p.data != null || !p.requestees.isEmpty())
 				continue;
-			requestees[i] = req;
+			p.requestees.add(req);
+			p.lastRequested = now;
 			return i;
 		}
+		
+		int oldest = -1;
+		
+		for(int i=0;i<pieces.length;i++) {
+			Piece p = pieces[i];
+			if(p.data != null || p.requestees.size() >= MAX_REQUESTEES_PER_PIECE || p.requestees.contains(req))
+				continue;
+			if(oldest == -1 || p.lastRequested < pieces[oldest].lastRequested)
+				oldest = i;
+		}
+		
+		if(oldest >= 0) {
+			Piece p = pieces[oldest];
+			p.requestees.add(req);
+			p.lastRequested = now;
+			duplicateRequests++;
+		}
 
-		return -1;
+		return oldest;
 	}
 	
-	void releasePiece(int idx) {
-		requestees[idx] = null;
+	void releasePiece(int idx, PullMetaDataConnection req) {
+		if(idx < 0 || idx >= pieces.length)
+			return;
+		pieces[idx].requestees.remove(req);
 	}
 	
-	void addBuffer(int idx, ByteBuffer buf) {
-		buffers[idx] = buf;
+	/**
+	 * @return false if the index was invalid
+	 */
+	boolean addBuffer(int idx, ByteBuffer buf) {
+		if(idx < 0 || idx >= pieces.length)
+			return false;
+		Piece p = pieces[idx];
+		if(p.data != null) {
+			// lost the endgame race
+			redundantPieces++;
+			return true;
+		}
+		p.data = buf;
+		p.requestees.clear();
+		if(firstPieceTime == 0)
+			firstPieceTime = System.currentTimeMillis();
+		return true;
 	}
 	
 	void deRegister(PullMetaDataConnection req) {
-		for(int i=0;i<requestees.length;i++) {
-			if(requestees[i] == req && buffers[i] == null)
-				requestees[i] = null;
+		for(Piece p : pieces) {
+			if(p.data == null)
+				p.requestees.remove(req);
 		}
 	}
 	
+	public int piecesReceived() {
+		int count = 0;
+		for(Piece p : pieces)
+			if(p.data != null)
+				count++;
+		return count;
+	}
+	
+	public int pieceCount() {
+		return pieces.length;
+	}
+	
+	public int duplicateRequests() {
+		return duplicateRequests;
+	}
+	
+	public int redundantPieces() {
+		return redundantPieces;
+	}
+	
+	/**
+	 * @return wall clock time in milliseconds at which the first piece arrived, 0 if none did
+	 */
+	public long firstPieceTime() {
+		return firstPieceTime;
+	}
+	
 	void checkComletion(byte[] hash) {
 		if(status != Completion.PROGRESS)
 			return;
-		List<ByteBuffer> bufs = Arrays.asList(buffers);
+		List<ByteBuffer> bufs = Arrays.stream(pieces).map(p -> p.data).collect(Collectors.toList());
 		if(bufs.stream().anyMatch(Objects::isNull)) {
 			return;
 		}
@@ -101,7 +186,7 @@ public class MetadataPool {
 		
 		ByteBuffer buf = ByteBuffer.allocate(length);
 		
-		Arrays.asList(buffers).forEach(b -> {
+		Arrays.stream(pieces).map(p -> p.data).forEach(b -> {
 			b.rewind();
 			buf.put(b);
 		});
@@ -93,6 +93,7 @@ public class PullMetaDataConnection implements Selectable {
 
 	
 	private static final int RCV_TIMEOUT = 25*1000;
+	private static final int MAX_PIPELINE_DEPTH = 16;
 	
 	private static final int LTEP_HEADER_ID = 20;
 	private static final int LTEP_HANDSHAKE_ID = 0;
@@ -128,8 +129,13 @@ public class PullMetaDataConnection implements Selectable {
 	byte[]						infoHash;
 
 	int							outstandingRequests;
-	int							maxRequests = 1;
+	int							maxRequests = 2;
+	int							remoteMaxRequests = MAX_PIPELINE_DEPTH;
 	int							chunksReceived = 0;
+	Deque<Long>					requestTimes			= new ArrayDeque<>();
+	long						lastPieceTime;
+	double						avgPieceLatency;
+	double						avgPieceInterval;
 	
 	long						connectionOpenTime;
 	long						connectTime;
@@ -202,6 +208,10 @@ public class PullMetaDataConnection implements Selectable {
 		return chunksReceived;
 	}
 	
+	public int pipelineDepth() {
+		return maxRequests;
+	}
+	
 	// incoming
 	public PullMetaDataConnection(SocketChannel chan)
 	{
@@ -503,8 +513,8 @@ public class PullMetaDataConnection implements Selectable {
 				Long metaLength = (Long) remoteHandshake.get("metadata_size");
 				Long maxR = (Long) remoteHandshake.get("reqq");
 				byte[] ver = (byte[]) remoteHandshake.get("v");
-				//if(maxR != null)
-					//maxRequests = maxR.intValue();
+				if(maxR != null)
+					remoteMaxRequests = (int) Math.max(1, Math.min(maxR, MAX_PIPELINE_DEPTH));
 				if(ver != null)
 					remoteClient = new String(ver,StandardCharsets.UTF_8);
 				if(pexMsgID != null)
@@ -568,20 +578,25 @@ public class PullMetaDataConnection implements Selectable {
 				
 				if(type == 1)
 				{ // piece
+					long now = System.currentTimeMillis();
+					updatePipelineDepth(now);
 					outstandingRequests--;
 					chunksReceived++;
 					
 					ByteBuffer chunk = AnonAllocator.allocate(inputBuffer.remaining());
 					chunk.put(inputBuffer);
-					pool.addBuffer(idx.intValue(), chunk);
+					if(!pool.addBuffer(idx.intValue(), chunk)) {
+						terminate("invalid piece index " + idx);
+						return;
+					}
 					
-					lastUsefulMessage = System.currentTimeMillis();
+					lastUsefulMessage = now;
 					
 					doMetaRequests();
 					checkMetaRequests();
 				} else if(type == 2)
 				{ // reject
-					pool.releasePiece(idx.intValue());
+					pool.releasePiece(idx.intValue(), this);
 					terminate("request was rejected");
 					return;
 				} else if(type == 0) {
@@ -641,13 +656,35 @@ public class PullMetaDataConnection implements Selectable {
 
 		
 		
+	}
+	
+	/**
+	 * Sizes the request pipeline to the bandwidth-delay product: request latency divided by the interval between pieces while the pipeline is busy
+	 * is the number of requests that have to be in flight to keep the connection saturated.
+	 */
+	void updatePipelineDepth(long now) {
+		Long sent = requestTimes.poll();
+		if(sent != null) {
+			long latency = now - sent;
+			avgPieceLatency = avgPieceLatency == 0 ? latency : avgPieceLatency * 0.75 + latency * 0.25;
+		}
+		
+		if(lastPieceTime > 0 && outstandingRequests > 1) {
+			long interval = Math.max(1, now - lastPieceTime);
+			avgPieceInterval = avgPieceInterval == 0 ? interval : avgPieceInterval * 0.75 + interval * 0.25;
+		}
+		
+		lastPieceTime = now;
+		
+		if(avgPieceInterval > 0)
+			maxRequests = (int) Math.max(1, Math.min(remoteMaxRequests, Math.ceil(avgPieceLatency / avgPieceInterval) + 1));
 	}
 	
 	void doMetaRequests() throws IOException {
 		if(!isState(STATE_GETTING_METADATA))
 			return;
 		
-		while(outstandingRequests <= maxRequests)
+		while(outstandingRequests < maxRequests)
 		{
 			int idx = pool.reservePiece(this);
 			
@@ -668,6 +705,7 @@ public class PullMetaDataConnection implements Selectable {
 			header.flip();
 			
 			outstandingRequests++;
+			requestTimes.add(System.currentTimeMillis());
 			
 			outputBuffers.addLast(header);
 			outputBuffers.addLast(body);
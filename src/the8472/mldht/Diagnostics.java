@@ -35,8 +35,10 @@ import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.Node.RoutingTable;
 import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.SignatureVerifier;
 import the8472.bencode.Utils;
 import the8472.utils.Arrays;
+import the8472.utils.concurrent.BlockingThreads;
 import the8472.utils.io.FileIO;
 import the8472.utils.io.NetMask;
 
@@ -78,6 +80,9 @@ public class Diagnostics {
 	public void formatStorage(Appendable writer, GenericStorage storage) {
 		Formatter f = new Formatter(writer);
 		
+		f.format("%s%n", storage);
+		f.format("signatures: %s%n%n", SignatureVerifier.shared());
+		
 		storage.getItems().forEach((k, v) -> {
 			f.format("%s mutable:%b seq:%d %n",
 				k,
@@ -267,7 +272,11 @@ java.lang.IllegalArgumentException: Comparison method violates its general contr
 	void printMain() throws Exception {
 		Path diagnostics = logDir.resolve("diagnostics.log");
 		
-		FileIO.writeAndAtomicMove(diagnostics, w -> dhts.stream().filter(DHT::isRunning).forEach(d -> d.printDiagnostics(w)));
+		FileIO.writeAndAtomicMove(diagnostics, w -> {
+			dhts.stream().findAny().ifPresent(d -> w.format("Scheduler: %s%n", d.getScheduler()));
+			w.format("%s%n%n", BlockingThreads.stats());
+			dhts.stream().filter(DHT::isRunning).forEach(d -> d.printDiagnostics(w));
+		});
 	}
 	
 	
@@ -5,9 +5,10 @@
  ******************************************************************************/
 package the8472.mldht;
 
-import static the8472.bencode.Utils.str2buf;
+import static the8472.utils.Functional.tap;
 
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -16,31 +17,81 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import lbms.plugins.mldht.kad.DHT;
-import lbms.plugins.mldht.kad.Key;
-import lbms.plugins.mldht.kad.messages.GetPeersRequest;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.messages.AbstractLookupRequest;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
 import lbms.plugins.mldht.utils.Selectable;
 import the8472.utils.ConfigReader;
+import the8472.utils.XMLUtils;
 
+/**
+ * Streams incoming lookup requests to TCP subscribers on port 35465.
+ *
+ * <p>
+ * Wire format: an 8 byte stream header (<code>"FH01"</code>, record size as int32) followed by fixed-size big-endian records:
+ * </p>
+ * <pre>
+ *  0  int64  timestamp, ms since epoch
+ *  8  uint8  type: 0 get_peers, 1 announce_peer, 2 sample_infohashes, 255 dropped records
+ *  9  uint8  address family: 4 or 6
+ * 10  uint16 source port
+ * 12  16     source address, IPv4 addresses occupy the first 4 bytes
+ * 28  20     infohash / target
+ * </pre>
+ * <p>
+ * A record of type 255 reports how many records have been dropped for this subscriber since the previous report, as int64 at offset 12.
+ * </p>
+ * <p>
+ * Records are batched into large buffers per subscriber. When a subscriber falls behind by more than the configured number of bytes
+ * new records are either dropped (default) or the subscriber gets disconnected, depending on the <code>slowConsumerPolicy</code>.
+ * </p>
+ */
 public class Firehose implements Component {
-	
+
+	static final int RECORD_SIZE = 48;
+	static final int BATCH_SIZE = (64 * 1024 / RECORD_SIZE) * RECORD_SIZE;
+	static final long DEFAULT_MAX_BUFFERED = 4 * 1024 * 1024;
+
+	static final byte TYPE_GET_PEERS = 0;
+	static final byte TYPE_ANNOUNCE = 1;
+	static final byte TYPE_SAMPLE = 2;
+	static final byte TYPE_DROPPED = (byte) 255;
+
+	enum SlowConsumerPolicy {
+		DROP,
+		DISCONNECT
+	}
+
 	List<Connection> connections = new CopyOnWriteArrayList<>();
-	
+
+	SlowConsumerPolicy policy = SlowConsumerPolicy.DROP;
+	int maxQueuedBatches = (int) (DEFAULT_MAX_BUFFERED / BATCH_SIZE);
+
+	static private final Map<String,String> namespaces = tap(new HashMap<>(), m -> m.put("xsi","http://www.w3.org/2001/XMLSchema-instance"));
+
 	@Override
 	public void start(Collection<DHT> dhts, ConfigReader config) {
+		config.get(XMLUtils.buildXPath("//components/component[@xsi:type='mldht:firehoseType']/slowConsumerPolicy", namespaces)).ifPresent(str -> {
+			policy = SlowConsumerPolicy.valueOf(str.toUpperCase());
+		});
+		config.get(XMLUtils.buildXPath("//components/component[@xsi:type='mldht:firehoseType']/maxBufferedBytes", namespaces)).ifPresent(str -> {
+			maxQueuedBatches = (int) Math.max(1, Long.parseLong(str) / BATCH_SIZE);
+		});
+
 		selector = new NIOConnectionManager("firehose");
 		dhts.forEach(d -> {
 			d.addIncomingMessageListener(this::incomingMessage);
 		});
-		
+
 		try {
 			selector.register(new Server());
 		} catch (IOException e) {
@@ -48,18 +99,18 @@ public class Firehose implements Component {
 			e.printStackTrace();
 		}
 	}
-	
+
 	NIOConnectionManager selector;
-	
+
 	class Server implements Selectable {
-		
+
 		public Server() throws IOException {
 			chan = ServerSocketChannel.open();
 			chan.configureBlocking(false);
 			// listen on [::0]:35465
 			chan.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[16]), 35465));
 		}
-		
+
 		ServerSocketChannel chan ;
 
 		@Override
@@ -74,7 +125,9 @@ public class Firehose implements Component {
 		public void selectionEvent(SelectionKey key) throws IOException {
 			SocketChannel connection;
 			while((connection = chan.accept()) != null) {
-				new Connection(connection);
+				Connection c = new Connection(connection);
+				selector.register(c);
+				connections.add(c);
 			}
 		}
 
@@ -85,47 +138,115 @@ public class Firehose implements Component {
 		public int calcInterestOps() {
 			return SelectionKey.OP_ACCEPT;
 		}
-		
+
 	};
-	
+
 	class Connection implements Selectable {
-		
+
 		final SocketChannel chan;
-		
-		AtomicInteger writePointer = new AtomicInteger();
-		AtomicInteger readPointer = new AtomicInteger();
-		// length must be power of 2
-		AtomicReferenceArray<ByteBuffer> toWrite = new AtomicReferenceArray<>(1024);
-		volatile boolean empty = true;
-		
-		
-		void add(ByteBuffer buf) {
-			int current = writePointer.getAndIncrement();
-			toWrite.set(current & (toWrite.length() - 1), buf);
-			if(empty) {
-				readPointer.set(current);
-				empty = false;
+
+		// guarded by this
+		ByteBuffer filling;
+		ArrayDeque<ByteBuffer> sealed = new ArrayDeque<>();
+		ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+		long droppedUnreported;
+		boolean closing;
+
+		volatile boolean writable;
+		volatile long dropped;
+		volatile long sent;
+
+		// selector thread only
+		ByteBuffer writing;
+
+		public Connection(SocketChannel chan) throws IOException {
+			this.chan = chan;
+			chan.configureBlocking(false);
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.put(new byte[] {'F', 'H', '0', '1'});
+			header.putInt(RECORD_SIZE);
+			header.flip();
+			sealed.add(header);
+			writable = true;
+		}
+
+		ByteBuffer takeBuffer() {
+			ByteBuffer buf = spare.poll();
+			if(buf == null)
+				buf = ByteBuffer.allocateDirect(BATCH_SIZE);
+			buf.clear();
+			return buf;
+		}
+
+		void seal() {
+			if(filling == null || filling.position() == 0)
+				return;
+			filling.flip();
+			sealed.add(filling);
+			filling = null;
+			if(!writable) {
+				writable = true;
+				selector.interestOpsChanged(this);
+			}
+		}
+
+		void add(ByteBuffer record) {
+			synchronized (this) {
+				if(closing)
+					return;
+
+				if(filling != null && !filling.hasRemaining()) {
+					if(sealed.size() >= maxQueuedBatches) {
+						overflow();
+						return;
+					}
+					seal();
+				}
+
+				if(filling == null)
+					filling = takeBuffer();
+
+				// batch size is a multiple of the record size, so there always is room for the record itself after the marker
+				if(droppedUnreported > 0 && filling.remaining() >= 2 * RECORD_SIZE) {
+					filling.putLong(System.currentTimeMillis());
+					filling.put(TYPE_DROPPED);
+					filling.put((byte) 0);
+					filling.putShort((short) 0);
+					filling.putLong(droppedUnreported);
+					// batch buffers get reused, don't leak stale records through the padding
+					for(int i=20;i<RECORD_SIZE;i++)
+						filling.put((byte) 0);
+					droppedUnreported = 0;
+				}
+
+				filling.put(record.duplicate());
+			}
+		}
+
+		void overflow() {
+			if(policy == SlowConsumerPolicy.DISCONNECT) {
+				closing = true;
+				DHT.log("firehose: disconnecting slow consumer " + this, LogLevel.Info);
 				selector.interestOpsChanged(this);
+				return;
 			}
+			droppedUnreported++;
+			dropped++;
 		}
-		
-		ByteBuffer poll() {
-			if(currentBuf != null && currentBuf.remaining() > 0)
-				return currentBuf;
-			int current = readPointer.getAndIncrement();
-			currentBuf = toWrite.getAndSet(current & (toWrite.length() - 1), null);
-			if(currentBuf == null) {
-				empty = true;
+
+		synchronized ByteBuffer poll() {
+			ByteBuffer buf = sealed.poll();
+			if(buf == null) {
+				writable = false;
 				selector.interestOpsChanged(this);
 			}
-			return currentBuf;
+			return buf;
 		}
-		
-		public Connection(SocketChannel chan) throws IOException {
-			this.chan = chan;
-			chan.configureBlocking(false);
-			selector.register(this);
-			connections.add(this);
+
+		synchronized void recycle(ByteBuffer buf) {
+			sent += buf.limit();
+			if(buf.capacity() == BATCH_SIZE && spare.size() < 2)
+				spare.add(buf);
 		}
 
 		@Override
@@ -143,80 +264,140 @@ public class Firehose implements Component {
 			if(key.isValid() && key.isWritable())
 				write();
 		}
-		
+
 		ByteBuffer readBuf = ByteBuffer.allocateDirect(4096);
-		
+
 		void read() throws IOException {
 			try {
 				while(true) {
 					int read = chan.read(readBuf);
 					readBuf.rewind();
 					if(read < 0)
-						chan.close();
+						close();
 					if(read == 0)
 						break;
 				}
 			} catch(ClosedChannelException ex) {
-				chan.close();
+				close();
 			}
 		}
-		
-		ByteBuffer currentBuf;
-		
+
 		void write() throws IOException {
-			while(true) {
-				ByteBuffer buf = poll();
-				if(buf == null)
-					break;
-				if(chan.write(buf) == 0)
-					break;
+			try {
+				while(true) {
+					if(writing == null || !writing.hasRemaining()) {
+						if(writing != null)
+							recycle(writing);
+						writing = poll();
+					}
+					if(writing == null)
+						break;
+					if(chan.write(writing) == 0)
+						break;
+				}
+			} catch(IOException ex) {
+				close();
+			}
+		}
+
+		void close() throws IOException {
+			synchronized (this) {
+				closing = true;
+				sealed.clear();
+				spare.clear();
+				filling = null;
 			}
+			chan.close();
+			connections.remove(this);
+			if(dropped > 0)
+				DHT.log("firehose: subscriber " + this + " disconnected", LogLevel.Info);
 		}
 
 		@Override
 		public void doStateChecks(long now) throws IOException {
-			if(!chan.isOpen())
-				connections.remove(this);
+			boolean shouldClose;
+			synchronized (this) {
+				shouldClose = closing;
+				// flush partial batches so low-traffic streams don't stall
+				if(!closing && sealed.isEmpty())
+					seal();
+			}
+			if(shouldClose || !chan.isOpen())
+				close();
 		}
 
 		@Override
 		public int calcInterestOps() {
 			int ops = SelectionKey.OP_READ;
-			if(!empty)
+			if(writable)
 				ops |= SelectionKey.OP_WRITE;
 			return ops;
 		}
-		
+
+		@Override
+		public String toString() {
+			return chan.socket().getRemoteSocketAddress() + " sent:" + sent + " dropped:" + dropped + " queued batches:" + sealed.size();
+		}
+
+	}
+
+	final ThreadLocal<ByteBuffer> recordBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(RECORD_SIZE));
+
+	static byte typeOf(MessageBase.Method m) {
+		switch(m) {
+			case GET_PEERS:
+				return TYPE_GET_PEERS;
+			case ANNOUNCE_PEER:
+				return TYPE_ANNOUNCE;
+			case SAMPLE_INFOHASHES:
+				return TYPE_SAMPLE;
+			default:
+				return -1;
+		}
 	}
-	
+
+	static void encode(ByteBuffer record, long now, byte type, InetSocketAddress source, AbstractLookupRequest req) {
+		record.clear();
+		record.putLong(now);
+		record.put(type);
+		InetAddress addr = source.getAddress();
+		record.put((byte) (addr instanceof Inet4Address ? 4 : 6));
+		record.putShort((short) source.getPort());
+		byte[] raw = addr.getAddress();
+		record.put(raw);
+		record.position(record.position() + 16 - raw.length);
+		req.getTarget().toBuffer(record);
+		record.flip();
+	}
+
 	void incomingMessage(DHT dht, MessageBase msg) {
-		if(msg.getType() != MessageBase.Type.REQ_MSG || msg.getMethod() != MessageBase.Method.GET_PEERS)
+		if(msg.getType() != MessageBase.Type.REQ_MSG || connections.isEmpty())
 			return;
-		if(connections.isEmpty())
+
+		byte type = typeOf(msg.getMethod());
+		if(type < 0)
 			return;
-		
-		GetPeersRequest req = (GetPeersRequest) msg;
-		
-		StringBuilder b = new StringBuilder();
-		Key k = req.getInfoHash();
-		String addr = req.getOrigin().getAddress().getHostAddress();
-		long now = System.currentTimeMillis();
-		
-		b.append(now).append('\t').append(k.toString(false)).append('\t').append(addr).append('\n');
-		
-		ByteBuffer buf = str2buf(b.toString());
-		
+
+		ByteBuffer record = recordBuffers.get();
+		encode(record, System.currentTimeMillis(), type, msg.getOrigin(), (AbstractLookupRequest) msg);
+
 		connections.forEach(c -> {
-			c.add(buf.duplicate());
+			c.add(record);
 		});
 	}
-	
-	
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("firehose policy:" + policy + " subscribers:\n");
+		connections.forEach(c -> b.append(' ').append(c).append('\n'));
+		return b.toString();
+	}
+
 	@Override
 	public void stop() {
 		connections.forEach(c -> {
 			try {
-				c.chan.close();
+				c.close();
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
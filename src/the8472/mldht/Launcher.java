@@ -35,8 +35,11 @@ import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.DHTLogger;
 import the8472.utils.ConfigReader;
 import the8472.utils.FilesystemNotifications;
+import the8472.utils.FlightEvents;
 import the8472.utils.XMLUtils;
+import the8472.utils.concurrent.BlockingThreads;
 import the8472.utils.concurrent.NonblockingScheduledExecutor;
+import the8472.utils.concurrent.WorkStealingScheduledExecutor;
 import the8472.utils.io.NetMask;
 
 public class Launcher {
@@ -84,6 +87,11 @@ public class Launcher {
 		public boolean allowMultiHoming() {
 			return multihoming;
 		}
+		
+		@Override
+		public long getBEP44StorageBudget() {
+			return configReader.getLong("//core/bep44StorageBudget").orElse(0L);
+		}
 	}
 	
 	XmlConfig config = new XmlConfig();
@@ -96,14 +104,32 @@ public class Launcher {
 	
 	ScheduledExecutorService scheduler;
 	DHTLogger logger;
+	// logging is only set up in start()
+	boolean virtualThreadFallback;
+	boolean flightEventsUnavailable;
 	
 	public Launcher() {
 		configReader = new ConfigReader(Paths.get(".", "config.xml"), configDefaults, configSchema);
 		configReader.read();
 		
-		scheduler = new NonblockingScheduledExecutor("mlDHT", Math.max(Runtime.getRuntime().availableProcessors(), 4), (t, ex) ->  {
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+		Thread.UncaughtExceptionHandler handler = (t, ex) ->  {
 			logger.log(ex, LogLevel.Fatal);
-		});
+		};
+		
+		// only read once, switching executors at runtime is not supported
+		if(configReader.get(XMLUtils.buildXPath("//core/executorMode")).filter("workStealing"::equals).isPresent())
+			scheduler = new WorkStealingScheduledExecutor("mlDHT", threads, handler);
+		else
+			scheduler = new NonblockingScheduledExecutor("mlDHT", threads, handler);
+		
+		boolean virtualThreads = configReader.getBoolean("//core/virtualThreads").orElse(false);
+		BlockingThreads.setUseVirtualThreads(virtualThreads);
+		virtualThreadFallback = virtualThreads && !BlockingThreads.virtualThreadsSupported();
+		
+		boolean flightEvents = configReader.getBoolean("//core/flightRecorderEvents").orElse(false);
+		FlightEvents.setEnabled(flightEvents);
+		flightEventsUnavailable = flightEvents && !FlightEvents.isSupported();
 	}
 
 	private void onVmShutdown() {
@@ -155,7 +181,7 @@ public class Launcher {
 
 			TransferQueue<String> toLog = new LinkedTransferQueue<>();
 
-			Thread writer = new Thread() {
+			Thread writer = BlockingThreads.newThread("LogWriter", new Runnable() {
 				@Override
 				public void run() {
 					try {
@@ -183,11 +209,9 @@ public class Launcher {
 						e.printStackTrace();
 					}
 				}
-			};
+			});
 
 			{
-				writer.setDaemon(true);
-				writer.setName("LogWriter");
 				writer.start();
 			}
 
@@ -211,6 +235,10 @@ public class Launcher {
 		new Diagnostics().init(dhts, logDir);
 
 		setLogLevel();
+		if(virtualThreadFallback)
+			DHT.log("virtual threads requested but not supported by this JVM, falling back to platform threads", LogLevel.Info);
+		if(flightEventsUnavailable)
+			DHT.log("flight recorder events requested but JFR is not available in this JVM", LogLevel.Info);
 		configReader.registerFsNotifications(notifications);
 		configReader.addChangeCallback(this::setLogLevel);
 
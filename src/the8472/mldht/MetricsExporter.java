@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht;
+
+import static the8472.utils.Functional.tap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTStats;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.RPCStats;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.TimeoutSource;
+import lbms.plugins.mldht.utils.NIOConnectionManager;
+import lbms.plugins.mldht.utils.Selectable;
+import the8472.utils.ConfigReader;
+import the8472.utils.XMLUtils;
+import the8472.utils.concurrent.BlockingThreads;
+import the8472.utils.concurrent.NonblockingScheduledExecutor;
+import the8472.utils.concurrent.WorkStealingScheduledExecutor;
+import the8472.utils.metrics.MetricsRegistry;
+import the8472.utils.metrics.MetricsRegistry.Sink;
+
+/**
+ * Serves DHT statistics in the prometheus text format on <code>GET /metrics</code>, port 35466 unless configured otherwise.
+ * Only listens on the loopback interface unless a <code>bindAddress</code> is configured.
+ *
+ * <p>
+ * Nothing is sampled in the background, every scrape reads the current counters, so the scrape interval determines the resolution.
+ * Each connection gets exactly one response and is closed afterwards.
+ * </p>
+ */
+public class MetricsExporter implements Component {
+
+	static final int DEFAULT_PORT = 35466;
+	static final int MAX_REQUEST_HEADER = 8192;
+
+	static private final Map<String,String> namespaces = tap(new HashMap<>(), m -> m.put("xsi","http://www.w3.org/2001/XMLSchema-instance"));
+
+	final MetricsRegistry registry = new MetricsRegistry();
+
+	NIOConnectionManager selector;
+	Server server;
+	final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	volatile boolean stopped;
+
+	@Override
+	public void start(Collection<DHT> dhts, ConfigReader config) {
+		int port = config.get(XMLUtils.buildXPath("//components/component[@xsi:type='mldht:metricsExporterType']/port", namespaces)).map(Integer::valueOf).orElse(DEFAULT_PORT);
+		String bind = config.get(XMLUtils.buildXPath("//components/component[@xsi:type='mldht:metricsExporterType']/bindAddress", namespaces)).orElse(InetAddress.getLoopbackAddress().getHostAddress());
+
+		dhts.forEach(d -> {
+			String type = d.getType().shortName;
+			registry.register("mldht_task_duration_seconds", "time from start to completion of lookups and other tasks", d.getStats().getTaskDuration(), "dht", type);
+			registry.register("mldht_task_first_result_seconds", "time until a task produced its first result", d.getStats().getTaskFirstResult(), "dht", type);
+			for(SchedulingClass c : SchedulingClass.values())
+				registry.register("mldht_task_queue_wait_seconds", "time tasks spent queued before a slot became available", d.getStats().getTaskQueueWait(c), "dht", type, "class", c.name().toLowerCase());
+			registry.register(sink -> collect(d, sink));
+		});
+		dhts.stream().findAny().ifPresent(d -> registry.register(sink -> collectProcess(d.getScheduler(), sink)));
+
+		start(port, bind);
+	}
+
+	void start(int port, String bindAddress) {
+		selector = new NIOConnectionManager("metrics exporter");
+		try {
+			server = new Server(new InetSocketAddress(InetAddress.getByName(bindAddress), port));
+			selector.register(server);
+		} catch (IOException e) {
+			DHT.log("metrics exporter: could not listen on " + bindAddress + " port " + port, LogLevel.Error);
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+
+	static void collect(DHT dht, Sink sink) {
+		if(!dht.isRunning())
+			return;
+		String type = dht.getType().shortName;
+		DHTStats stats = dht.getStats();
+		RPCStats rpc = stats.getRpcStats();
+
+		sink.counter("mldht_packets_received_total", "UDP packets received", stats.getNumReceivedPackets(), "dht", type);
+		sink.counter("mldht_packets_sent_total", "UDP packets sent", stats.getNumSentPackets(), "dht", type);
+		sink.counter("mldht_received_bytes_total", "UDP payload bytes received", rpc.getReceivedBytes(), "dht", type);
+		sink.counter("mldht_sent_bytes_total", "UDP payload bytes sent", rpc.getSentBytes(), "dht", type);
+
+		for(Method m : Method.values()) {
+			String method = m.name().toLowerCase();
+			for(Type t : Type.values()) {
+				String msgType = t.name().toLowerCase();
+				sink.counter("mldht_messages_received_total", "messages received by method and type", rpc.getReceivedMessageCount(m, t), "dht", type, "method", method, "type", msgType);
+				sink.counter("mldht_messages_sent_total", "messages sent by method and type", rpc.getSentMessageCount(m, t), "dht", type, "method", method, "type", msgType);
+			}
+			sink.counter("mldht_rpc_timeouts_total", "outgoing requests that timed out", rpc.getTimeoutMessageCount(m), "dht", type, "method", method);
+		}
+
+		for(TimeoutSource s : TimeoutSource.values()) {
+			String source = s.name().toLowerCase();
+			sink.counter("mldht_rpc_stall_timeout_calls_total", "calls by the model their stall timeout was derived from", rpc.getStallTimeoutCallCount(s), "dht", type, "source", source);
+			sink.counter("mldht_rpc_stalls_total", "calls that hit their stall timeout", rpc.getStallCount(s), "dht", type, "source", source);
+			sink.counter("mldht_rpc_false_stalls_total", "stalled calls that received a response after all", rpc.getFalseStallCount(s), "dht", type, "source", source);
+		}
+
+		sink.gauge("mldht_rpc_active_calls", "outstanding requests", stats.getNumRpcCalls(), "dht", type);
+		sink.gauge("mldht_routing_table_entries", "entries in the routing table", stats.getNumPeers(), "dht", type);
+		sink.gauge("mldht_tasks_active", "running tasks", dht.getTaskManager().getNumTasks(), "dht", type);
+		for(SchedulingClass c : SchedulingClass.values())
+			sink.gauge("mldht_tasks_queued", "tasks waiting for a free slot", dht.getTaskManager().getNumQueuedTasks(c), "dht", type, "class", c.name().toLowerCase());
+		sink.gauge("mldht_db_keys", "infohashes with stored peers", stats.getDbStats().getKeyCount(), "dht", type);
+		sink.gauge("mldht_db_items", "stored peers", stats.getDbStats().getItemCount(), "dht", type);
+		sink.gauge("mldht_population_estimate", "estimated number of nodes in the DHT", dht.getEstimator().getEstimate(), "dht", type);
+
+		for(RPCServer srv : dht.getServerManager().getAllServers()) {
+			String addr = srv.getBindAddress().getHostAddress();
+			ResponseTimeoutFilter filter = srv.getTimeoutFilter();
+			ResponseTimeoutFilter.Snapshot rtt = filter.getCurrentStats();
+			sink.gauge("mldht_server_active_calls", "outstanding requests per socket", srv.getNumActiveRPCCalls(), "dht", type, "server", addr);
+			sink.gauge("mldht_server_stall_timeout_seconds", "global stall timeout of the socket", filter.getStallTimeout() / 1000.0, "dht", type, "server", addr);
+			sink.gauge("mldht_server_subnet_models", "subnets with their own RTT model", filter.getSubnetCount(), "dht", type, "server", addr);
+			for(float q : new float[] {0.1f, 0.5f, 0.9f})
+				sink.gauge("mldht_server_rtt_seconds", "response time quantiles", rtt.getQuantile(q) / 1000.0, "dht", type, "server", addr, "quantile", Float.toString(q));
+		}
+	}
+
+	static void collectProcess(ScheduledExecutorService scheduler, Sink sink) {
+		long depth = -1;
+		if(scheduler instanceof WorkStealingScheduledExecutor)
+			depth = ((WorkStealingScheduledExecutor) scheduler).queueDepth();
+		if(scheduler instanceof NonblockingScheduledExecutor)
+			depth = ((NonblockingScheduledExecutor) scheduler).queueDepth();
+		if(depth >= 0)
+			sink.gauge("mldht_scheduler_queue_depth", "tasks queued on the shared executor", depth);
+		sink.gauge("mldht_blocking_threads_live", "threads currently running blocking work", BlockingThreads.liveThreads());
+
+		Runtime rt = Runtime.getRuntime();
+		sink.gauge("mldht_jvm_heap_used_bytes", "heap in use", rt.totalMemory() - rt.freeMemory());
+		sink.gauge("mldht_jvm_heap_max_bytes", "maximum heap size", rt.maxMemory());
+	}
+
+	class Server implements Selectable {
+
+		final ServerSocketChannel chan;
+
+		Server(InetSocketAddress addr) throws IOException {
+			chan = ServerSocketChannel.open();
+			chan.configureBlocking(false);
+			chan.bind(addr);
+		}
+
+		int getPort() {
+			return chan.socket().getLocalPort();
+		}
+
+		@Override
+		public SelectableChannel getChannel() {
+			return chan;
+		}
+
+		@Override
+		public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {}
+
+		@Override
+		public void selectionEvent(SelectionKey key) throws IOException {
+			SocketChannel connection;
+			while((connection = chan.accept()) != null) {
+				Connection c = new Connection(connection);
+				connections.add(c);
+				// stop() may have run between accept and add
+				if(stopped) {
+					c.close();
+					continue;
+				}
+				selector.register(c);
+			}
+		}
+
+		@Override
+		public void doStateChecks(long now) throws IOException {}
+
+		@Override
+		public int calcInterestOps() {
+			return SelectionKey.OP_ACCEPT;
+		}
+	}
+
+	class Connection implements Selectable {
+
+		static final long IDLE_TIMEOUT = 10_000;
+
+		final SocketChannel chan;
+		final long created = System.currentTimeMillis();
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+		ByteBuffer response;
+
+		Connection(SocketChannel chan) throws IOException {
+			this.chan = chan;
+			chan.configureBlocking(false);
+		}
+
+		@Override
+		public SelectableChannel getChannel() {
+			return chan;
+		}
+
+		@Override
+		public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {}
+
+		@Override
+		public void selectionEvent(SelectionKey key) throws IOException {
+			try {
+				if(key.isValid() && key.isReadable())
+					read();
+				if(key.isValid() && key.isWritable())
+					write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() throws IOException {
+			connections.remove(this);
+			chan.close();
+		}
+
+		void read() throws IOException {
+			int read = chan.read(request);
+			if(read < 0) {
+				close();
+				return;
+			}
+
+			String header = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+			if(header.contains("\r\n\r\n") || header.contains("\n\n")) {
+				response = respond(header);
+			} else if(!request.hasRemaining()) {
+				response = response("431 Request Header Fields Too Large", "");
+			} else {
+				return;
+			}
+
+			selector.interestOpsChanged(this);
+		}
+
+		void write() throws IOException {
+			chan.write(response);
+			if(!response.hasRemaining())
+				close();
+		}
+
+		@Override
+		public void doStateChecks(long now) throws IOException {
+			if(now - created > IDLE_TIMEOUT)
+				close();
+		}
+
+		@Override
+		public int calcInterestOps() {
+			return response == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+		}
+	}
+
+	ByteBuffer respond(String header) {
+		String[] requestLine = header.substring(0, header.indexOf('\n')).trim().split(" ");
+		if(requestLine.length < 2)
+			return response("400 Bad Request", "");
+		if(!requestLine[0].equals("GET"))
+			return response("405 Method Not Allowed", "");
+		String path = requestLine[1];
+		int query = path.indexOf('?');
+		if(query >= 0)
+			path = path.substring(0, query);
+		if(!path.equals("/metrics"))
+			return response("404 Not Found", "");
+		return response("200 OK", registry.scrape());
+	}
+
+	static ByteBuffer response(String status, String body) {
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		String head = "HTTP/1.1 " + status + "\r\n" +
+				"Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+				"Content-Length: " + content.length + "\r\n" +
+				"Connection: close\r\n\r\n";
+		byte[] h = head.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buf = ByteBuffer.allocate(h.length + content.length);
+		buf.put(h).put(content);
+		buf.flip();
+		return buf;
+	}
+
+	@Override
+	public void stop() {
+		stopped = true;
+		try {
+			if(server != null)
+				server.chan.close();
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Info);
+		}
+		for(Connection c : connections) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Info);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,525 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.utils.NIOConnectionManager;
+import lbms.plugins.mldht.utils.Selectable;
+
+/**
+ * Aggregates sorted set updates per key and writes them to redis as pipelined <code>ZADD key score member [score member ...]</code>
+ * followed by a single <code>EXPIRE</code> per key.
+ *
+ * <p>
+ * Commands are RESP-encoded directly into pooled direct buffers. Replies are counted to keep the number of unacknowledged commands
+ * bounded, when redis falls behind or the connection is down updates accumulate in the aggregation window until {@link #maxPendingMembers}
+ * is reached, after which they get dropped.
+ * </p>
+ */
+class RedisBatchWriter {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final int MAX_MEMBERS_PER_ZADD = 128;
+	static final long FLUSH_INTERVAL = 100;
+	static final long RECONNECT_INTERVAL = 5000;
+
+	static final byte[] ZADD = "ZADD".getBytes(StandardCharsets.ISO_8859_1);
+	static final byte[] EXPIRE = "EXPIRE".getBytes(StandardCharsets.ISO_8859_1);
+
+	final NIOConnectionManager conMan;
+	final InetSocketAddress address;
+	final long ttl;
+
+	int maxPendingMembers = 200_000;
+	int maxUnacknowledged = 20_000;
+	long maxQueuedBytes = 16 * 1024 * 1024;
+	int flushThreshold = 4096;
+
+	// guarded by this
+	LinkedHashMap<Key, Map<String, Long>> pending = new LinkedHashMap<>();
+	int pendingMembers;
+	long lastFlush;
+	long lastConnectAttempt = Long.MIN_VALUE / 2;
+	ByteBuffer filling;
+	int fillingMembers;
+	ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+	// members encoded into each queued buffer, so that discarded buffers can be accounted for
+	ArrayDeque<Integer> queuedMembers = new ArrayDeque<>();
+	ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+	long queuedBytes;
+	long unacknowledged;
+
+	// stats, guarded by this
+	long commandsSent;
+	long repliesReceived;
+	long errorReplies;
+	long membersWritten;
+	long dropped;
+
+	final AtomicReference<Connection> ref = new AtomicReference<>();
+
+	RedisBatchWriter(NIOConnectionManager conMan, InetSocketAddress address, long ttlSeconds) {
+		this.conMan = conMan;
+		this.address = address;
+		this.ttl = ttlSeconds;
+	}
+
+	/**
+	 * Merges a member into the pending update for key, keeping the highest score if the member already is pending.
+	 */
+	void add(Key key, String member, long score) {
+		long now = System.currentTimeMillis();
+		boolean flushed;
+		synchronized (this) {
+			Map<String, Long> members = pending.get(key);
+			if(members == null || !members.containsKey(member)) {
+				if(pendingMembers >= maxPendingMembers) {
+					dropped++;
+					return;
+				}
+				if(members == null) {
+					members = new HashMap<>(4);
+					pending.put(key, members);
+				}
+				pendingMembers++;
+			}
+			members.merge(member, score, Math::max);
+
+			flushed = (pendingMembers >= flushThreshold || now - lastFlush >= FLUSH_INTERVAL) && flush(now);
+		}
+
+		if(flushed)
+			notifyOutput();
+		else
+			ensureOpen(now);
+	}
+
+	Connection ensureOpen(long now) {
+		Connection c = ref.get();
+		if(c != null)
+			return c;
+		synchronized (this) {
+			if(now - lastConnectAttempt < RECONNECT_INTERVAL)
+				return null;
+			lastConnectAttempt = now;
+		}
+		c = new Connection();
+		if(ref.compareAndSet(null, c))
+			c.open();
+		return ref.get();
+	}
+
+	/**
+	 * encodes as many pending updates as flow control permits
+	 *
+	 * @return true if new output became available
+	 */
+	synchronized boolean flush(long now) {
+		lastFlush = now;
+		Connection c = ref.get();
+		if(c == null || !c.connected)
+			return false;
+
+		long sentBefore = commandsSent;
+
+		Iterator<Map.Entry<Key, Map<String, Long>>> it = pending.entrySet().iterator();
+		while(it.hasNext() && unacknowledged < maxUnacknowledged && queuedBytes < maxQueuedBytes) {
+			Map.Entry<Key, Map<String, Long>> e = it.next();
+			it.remove();
+			pendingMembers -= e.getValue().size();
+			encode(e.getKey(), e.getValue());
+		}
+
+		seal();
+
+		return commandsSent != sentBefore;
+	}
+
+	void encode(Key key, Map<String, Long> members) {
+		byte[] keyBytes = key.toString(false).getBytes(StandardCharsets.ISO_8859_1);
+
+		int chunk = Math.min(members.size(), MAX_MEMBERS_PER_ZADD);
+		byte[][] names = new byte[chunk][];
+		long[] scores = new long[chunk];
+		int n = 0;
+
+		Iterator<Map.Entry<String, Long>> it = members.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Long> m = it.next();
+			names[n] = m.getKey().getBytes(StandardCharsets.ISO_8859_1);
+			scores[n] = m.getValue();
+			n++;
+			if(n == chunk || !it.hasNext()) {
+				putZadd(reserve(zaddSize(keyBytes, names, scores, n)), keyBytes, names, scores, n);
+				commandsSent++;
+				unacknowledged++;
+				membersWritten += n;
+				fillingMembers += n;
+				n = 0;
+			}
+		}
+
+		putExpire(reserve(expireSize(keyBytes, ttl)), keyBytes, ttl);
+		commandsSent++;
+		unacknowledged++;
+	}
+
+	ByteBuffer reserve(int size) {
+		if(filling != null && filling.remaining() < size)
+			seal();
+		if(filling == null) {
+			ByteBuffer buf = spare.poll();
+			if(buf == null)
+				buf = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, size));
+			buf.clear();
+			filling = buf;
+		}
+		return filling;
+	}
+
+	void seal() {
+		if(filling == null || filling.position() == 0)
+			return;
+		filling.flip();
+		queuedBytes += filling.remaining();
+		queued.add(filling);
+		queuedMembers.add(fillingMembers);
+		filling = null;
+		fillingMembers = 0;
+	}
+
+	synchronized ByteBuffer poll() {
+		ByteBuffer buf = queued.poll();
+		if(buf != null) {
+			queuedBytes -= buf.remaining();
+			queuedMembers.poll();
+		}
+		return buf;
+	}
+
+	synchronized void recycle(ByteBuffer buf) {
+		if(buf.capacity() == BUFFER_SIZE && spare.size() < 4)
+			spare.add(buf);
+	}
+
+	synchronized boolean hasOutput() {
+		return !queued.isEmpty();
+	}
+
+	synchronized void acknowledged(int replies, int errors) {
+		repliesReceived += replies;
+		errorReplies += errors;
+		unacknowledged = Math.max(0, unacknowledged - replies);
+	}
+
+	synchronized void connectionLost(Connection c) {
+		if(!ref.compareAndSet(c, null))
+			return;
+		// buffered commands went to a dead connection, pending updates are retained for the next one
+		long discarded = fillingMembers;
+		for(int n : queuedMembers)
+			discarded += n;
+		dropped += discarded;
+		membersWritten -= discarded;
+		queued.clear();
+		queuedMembers.clear();
+		queuedBytes = 0;
+		filling = null;
+		fillingMembers = 0;
+		unacknowledged = 0;
+	}
+
+	void notifyOutput() {
+		Connection c = ref.get();
+		if(c != null)
+			c.outputAvailable();
+	}
+
+	/**
+	 * including the sign. Works on the negative range since Long.MIN_VALUE has no positive counterpart.
+	 */
+	static int digits(long v) {
+		int d = v < 0 ? 2 : 1;
+		if(v > 0)
+			v = -v;
+		while(v <= -10) {
+			v /= 10;
+			d++;
+		}
+		return d;
+	}
+
+	static int bulkSize(int len) {
+		return 1 + digits(len) + 2 + len + 2;
+	}
+
+	static int zaddSize(byte[] key, byte[][] names, long[] scores, int n) {
+		int size = 1 + digits(2 + 2 * n) + 2 + bulkSize(ZADD.length) + bulkSize(key.length);
+		for(int i=0;i<n;i++)
+			size += bulkSize(digits(scores[i])) + bulkSize(names[i].length);
+		return size;
+	}
+
+	static int expireSize(byte[] key, long ttl) {
+		return 1 + 1 + 2 + bulkSize(EXPIRE.length) + bulkSize(key.length) + bulkSize(digits(ttl));
+	}
+
+	static void putDecimal(ByteBuffer buf, long v) {
+		int end = buf.position() + digits(v);
+		// negative range, see digits()
+		if(v < 0)
+			buf.put((byte) '-');
+		else
+			v = -v;
+		int pos = end;
+		do {
+			buf.put(--pos, (byte) ('0' - v % 10));
+			v /= 10;
+		} while(v < 0);
+		buf.position(end);
+	}
+
+	static void putCRLF(ByteBuffer buf) {
+		buf.put((byte) '\r');
+		buf.put((byte) '\n');
+	}
+
+	static void putArrayHeader(ByteBuffer buf, int elements) {
+		buf.put((byte) '*');
+		putDecimal(buf, elements);
+		putCRLF(buf);
+	}
+
+	static void putBulk(ByteBuffer buf, byte[] data) {
+		buf.put((byte) '$');
+		putDecimal(buf, data.length);
+		putCRLF(buf);
+		buf.put(data);
+		putCRLF(buf);
+	}
+
+	static void putBulk(ByteBuffer buf, long value) {
+		buf.put((byte) '$');
+		putDecimal(buf, digits(value));
+		putCRLF(buf);
+		putDecimal(buf, value);
+		putCRLF(buf);
+	}
+
+	static void putZadd(ByteBuffer buf, byte[] key, byte[][] names, long[] scores, int n) {
+		putArrayHeader(buf, 2 + 2 * n);
+		putBulk(buf, ZADD);
+		putBulk(buf, key);
+		for(int i=0;i<n;i++) {
+			putBulk(buf, scores[i]);
+			putBulk(buf, names[i]);
+		}
+	}
+
+	static void putExpire(ByteBuffer buf, byte[] key, long ttl) {
+		putArrayHeader(buf, 3);
+		putBulk(buf, EXPIRE);
+		putBulk(buf, key);
+		putBulk(buf, ttl);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "redis writer " + address + " connected:" + (ref.get() != null && ref.get().connected) + " pending keys:" + pending.size() + " pending members:" + pendingMembers +
+				" queued bytes:" + queuedBytes + " unacknowledged:" + unacknowledged + " commands:" + commandsSent + " replies:" + repliesReceived +
+				" errors:" + errorReplies + " members written:" + membersWritten + " dropped:" + dropped;
+	}
+
+	class Connection implements Selectable {
+
+		SocketChannel chan;
+		volatile boolean connected;
+		volatile boolean writable;
+
+		// selector thread only
+		ByteBuffer writing;
+		ByteBuffer readBuf = ByteBuffer.allocateDirect(4 * 1024);
+		boolean lineStart = true;
+		boolean errorLine;
+
+		void open() {
+			try {
+				chan = SocketChannel.open();
+				chan.configureBlocking(false);
+				chan.connect(address);
+			} catch (IOException e) {
+				DHT.log("redis: connecting to " + address + " failed " + e, LogLevel.Info);
+				close();
+				return;
+			}
+
+			conMan.register(this);
+		}
+
+		void close() {
+			connected = false;
+			connectionLost(this);
+			try {
+				if(chan != null)
+					chan.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+
+		void outputAvailable() {
+			if(!writable) {
+				writable = true;
+				conMan.interestOpsChanged(this);
+			}
+		}
+
+		@Override
+		public SocketChannel getChannel() {
+			return chan;
+		}
+
+		@Override
+		public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {}
+
+		@Override
+		public void selectionEvent(SelectionKey key) throws IOException {
+			if(key.isValid() && key.isConnectable()) {
+				try {
+					connected = chan.finishConnect();
+				} catch (IOException e) {
+					DHT.log("redis: connecting to " + address + " failed " + e, LogLevel.Info);
+					close();
+					return;
+				}
+				conMan.interestOpsChanged(this);
+				if(connected && flush(System.currentTimeMillis()))
+					outputAvailable();
+			}
+
+			if(key.isValid() && key.isReadable())
+				read();
+			if(key.isValid() && key.isWritable())
+				write();
+		}
+
+		void write() {
+			try {
+				while(true) {
+					if(writing == null || !writing.hasRemaining()) {
+						if(writing != null)
+							recycle(writing);
+						writing = poll();
+					}
+					if(writing == null) {
+						writable = false;
+						conMan.interestOpsChanged(this);
+						// a flush may have raced with clearing the flag
+						if(hasOutput())
+							outputAvailable();
+						break;
+					}
+					if(chan.write(writing) == 0)
+						break;
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void read() {
+			try {
+				while(true) {
+					readBuf.clear();
+					int read = chan.read(readBuf);
+					if(read < 0) {
+						close();
+						break;
+					}
+					if(read == 0)
+						break;
+					readBuf.flip();
+					countReplies(readBuf);
+				}
+			} catch (IOException e) {
+				close();
+			}
+
+			// acknowledged commands may free up room for pending updates
+			if(connected && flush(System.currentTimeMillis()))
+				outputAvailable();
+		}
+
+		/**
+		 * ZADD and EXPIRE only produce single-line replies (integers or errors), so counting line terminators is sufficient
+		 */
+		void countReplies(ByteBuffer buf) {
+			int replies = 0;
+			int errors = 0;
+			while(buf.hasRemaining()) {
+				byte b = buf.get();
+				if(lineStart) {
+					if(b == '*' || b == '$') {
+						DHT.log("redis: unexpected multi-line reply, closing connection", LogLevel.Error);
+						close();
+						return;
+					}
+					errorLine = b == '-';
+					lineStart = false;
+				}
+				if(b == '\n') {
+					replies++;
+					if(errorLine)
+						errors++;
+					lineStart = true;
+				}
+			}
+
+			if(errors > 0)
+				DHT.log("redis: " + errors + " error replies", LogLevel.Error);
+
+			acknowledged(replies, errors);
+		}
+
+		@Override
+		public void doStateChecks(long now) throws IOException {
+			if(!chan.isOpen()) {
+				close();
+				return;
+			}
+			if(connected && flush(now))
+				outputAvailable();
+		}
+
+		@Override
+		public int calcInterestOps() {
+			int ops = SelectionKey.OP_READ;
+
+			if(chan.isConnectionPending())
+				ops |= SelectionKey.OP_CONNECT;
+			else if(writable)
+				ops |= SelectionKey.OP_WRITE;
+
+			return ops;
+		}
+	}
+
+}
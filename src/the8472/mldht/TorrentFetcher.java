@@ -13,25 +13,32 @@ import java.nio.channels.SocketChannel;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -66,10 +73,24 @@ public class TorrentFetcher {
 	AtomicInteger socketsIncludingHalfOpen = new AtomicInteger();
 	AtomicInteger incomingConnections = new AtomicInteger();
 	AtomicInteger openConnections = new AtomicInteger();
-	Map<RPCServer, Set<Key>> activeLookups = new HashMap<>();
 	ResponseTimeoutFilter tf = new ResponseTimeoutFilter();
 	
-	List<FetchTask> tasks = new ArrayList<>();
+	Set<FetchTask> tasks = ConcurrentHashMap.newKeySet();
+	Map<Key, FetchTask> tasksByHash = new ConcurrentHashMap<>();
+	AtomicLong taskSequence = new AtomicLong();
+	
+	// tasks waiting for their DHT lookups, indexed by target key for gap searches and by insertion order for fairness
+	NavigableMap<PendingSlot, FetchTask> pendingByKey = new ConcurrentSkipListMap<>();
+	NavigableMap<Long, FetchTask> pendingByAge = new ConcurrentSkipListMap<>();
+	// targets of running lookups (with multiplicity) across all servers
+	NavigableMap<Key, Integer> activeLookups = new ConcurrentSkipListMap<>();
+	// tasks which have connection candidates and may be able to open sockets
+	Queue<FetchTask> connectQueue = new ConcurrentLinkedQueue<>();
+	AtomicBoolean wakeupPending = new AtomicBoolean();
+	
+	// log2 buckets of milliseconds from task start to verified metadata
+	AtomicLongArray completionLatencies = new AtomicLongArray(24);
+	LongAdder failedFetches = new LongAdder();
 	
 	int maxOpen = 10;
 	int maxSockets = 1000;
@@ -112,20 +133,14 @@ public class TorrentFetcher {
 				if(newState == CONNECTION_STATE.STATE_IH_RECEIVED) {
 					Key ih = con.getInfohash();
 					try {
-						Optional<FetchTask> ft;
-						
-						synchronized (TorrentFetcher.this) {
-							ft = tasks.stream()
-									.filter((t -> t.hash.equals(ih)))
-									.findAny();
-						}
+						FetchTask ft = tasksByHash.get(ih);
 						
-						if (!ft.isPresent()) {
+						if (ft == null) {
 							con.terminate("currently not servicing infohash " + ih.toString(false), CloseReason.OTHER);
 							return;
 						}
 
-						ft.get().registerIncomingConnection(con);
+						ft.registerIncomingConnection(con);
 					} catch (IOException e) {
 						DHT.log(e, LogLevel.Error);
 					}
@@ -162,6 +177,43 @@ public class TorrentFetcher {
 		return socketsIncludingHalfOpen.get();
 	}
 	
+	public int pendingLookups() {
+		return pendingByAge.size();
+	}
+	
+	public int activeLookups() {
+		return activeLookups.values().stream().mapToInt(Integer::intValue).sum();
+	}
+	
+	void recordCompletion(FetchTask t) {
+		if(t.state != FetchState.SUCCESS) {
+			failedFetches.increment();
+			return;
+		}
+		long millis = Math.max(1, t.completionLatency().get().toMillis());
+		int bucket = Math.min(completionLatencies.length() - 1, 63 - Long.numberOfLeadingZeros(millis));
+		completionLatencies.incrementAndGet(bucket);
+	}
+	
+	public String completionLatencyHistogram() {
+		StringBuilder b = new StringBuilder();
+		long total = 0;
+		for(int i=0;i<completionLatencies.length();i++)
+			total += completionLatencies.get(i);
+		b.append("successful: ").append(total).append(" failed: ").append(failedFetches.sum()).append('\n');
+		if(total == 0)
+			return b.toString();
+		long cumulative = 0;
+		for(int i=0;i<completionLatencies.length();i++) {
+			long count = completionLatencies.get(i);
+			if(count == 0)
+				continue;
+			cumulative += count;
+			b.append(String.format(" <%7dms %8d %5.1f%%%n", 1L << (i + 1), count, cumulative * 100.0 / total));
+		}
+		return b.toString();
+	}
+	
 	boolean socketLimitsReached() {
 		return openConnections.get() > maxOpen || socketsIncludingHalfOpen.get() > maxSockets;
 	}
@@ -174,36 +226,129 @@ public class TorrentFetcher {
 	
 	ScheduledFuture<?> f = null;
 	
+	/**
+	 * Scheduling is event-driven, lookups are started when other lookups finish and connections are opened when candidates arrive or sockets get freed.
+	 * The periodic run only serves as fallback for state changes we don't get notified about, e.g. other users of the task managers draining their queues.
+	 */
 	void ensureRunning() {
 		synchronized (this) {
 			if(f == null && tasks.size() > 0) {
-				f = timer.scheduleWithFixedDelay(this::schedule, 0, 1, TimeUnit.SECONDS);
+				f = timer.scheduleWithFixedDelay(this::schedule, 5, 5, TimeUnit.SECONDS);
 			}
 				
 		}
 	}
 	
+	/**
+	 * coalesces scheduling requests from network and task threads into a single run on the timer thread
+	 */
+	void wakeup() {
+		if(wakeupPending.compareAndSet(false, true))
+			timer.execute(() -> {
+				wakeupPending.set(false);
+				schedule();
+			});
+	}
+	
 	void schedule() {
 		synchronized (this) {
-			if(tasks.size() == 0 && f != null) {
-				f.cancel(false);
-				f = null;
+			if(tasks.size() == 0) {
+				if(f != null) {
+					f.cancel(false);
+					f = null;
+				}
 				return;
 			}
-			
-			startDHTTasks();
-			startConnections();
-			
 		}
+		
+		ensureRunning();
+		startDHTTasks();
+		startConnections();
 	}
 	
+	static final class PendingSlot implements Comparable<PendingSlot> {
+		final Key hash;
+		final long seq;
+		
+		PendingSlot(Key hash, long seq) {
+			this.hash = hash;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(PendingSlot o) {
+			int c = hash.compareTo(o.hash);
+			if(c != 0)
+				return c;
+			return Long.compare(seq, o.seq);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof PendingSlot && compareTo((PendingSlot) obj) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash.hashCode() ^ Long.hashCode(seq);
+		}
+	}
+	
+	static long prefix64(Key k) {
+		return ((long)k.getInt(0) << 32) | (k.getInt(4) & 0xffffffffL);
+	}
+	
+	static Key fromPrefix64(long prefix) {
+		byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+		ByteBuffer.wrap(raw).putLong(prefix);
+		return new Key(raw);
+	}
+	
+	/**
+	 * Picks the pending task that lies in the largest gap between currently running lookups, i.e. approximately maximizes the distance to all of them.
+	 * Gaps are measured on the leading 64 bits of the keys, which is sufficient to separate lookups that would share routing table buckets.
+	 * 
+	 * This costs O(a log a + a log n) for a active lookups and n pending tasks instead of scanning all pending tasks.
+	 */
+	FetchTask pickFarthestFromActive() {
+		List<Key> active = new ArrayList<>(activeLookups.keySet());
+		
+		int gapCount = active.size() + 1;
+		long[] lower = new long[gapCount];
+		long[] upper = new long[gapCount];
+		Integer[] order = new Integer[gapCount];
+		
+		for(int i=0;i<gapCount;i++) {
+			lower[i] = i == 0 ? 0 : prefix64(active.get(i - 1));
+			upper[i] = i == active.size() ? -1L : prefix64(active.get(i));
+			order[i] = i;
+		}
+		
+		// largest gap first
+		Arrays.sort(order, (a, b) -> Long.compareUnsigned(upper[b] - lower[b], upper[a] - lower[a]));
+		
+		for(int gap : order) {
+			Key low = gap == 0 ? Key.MIN_KEY : active.get(gap - 1);
+			Key high = gap == active.size() ? Key.MAX_KEY : active.get(gap);
+			Key mid = fromPrefix64(lower[gap] + ((upper[gap] - lower[gap]) >>> 1));
+			
+			Map.Entry<PendingSlot, FetchTask> e = pendingByKey.ceilingEntry(new PendingSlot(mid, Long.MIN_VALUE));
+			if(e != null && e.getKey().hash.compareTo(high) < 0 && e.getKey().hash.compareTo(low) > 0)
+				return e.getValue();
+			e = pendingByKey.floorEntry(new PendingSlot(mid, Long.MAX_VALUE));
+			if(e != null && e.getKey().hash.compareTo(low) > 0 && e.getKey().hash.compareTo(high) < 0)
+				return e.getValue();
+		}
+		
+		return null;
+	}
 	
 	void startDHTTasks() {
-		// choose servers, then pick the task which maximizes the target key distance to all currently running tasks on that server
+		// choose servers, then pick the task which maximizes the target key distance to all currently running tasks
 		// this should avoid running adjacent keys at the same time
 		// conversely that means adjacent tasks are scheduled only after the previous one finished, which will make the caches more effective
 
-		while(true) {
+		while(!pendingByAge.isEmpty()) {
 			FetchTask best = null;
 			List<RPCServer> servers = dhts.stream().filter(DHT::isRunning).map(d -> d.getServerManager().getRandomActiveServer(false)).filter(Objects::nonNull).collect(Collectors.toList());
 
@@ -213,50 +358,45 @@ public class TorrentFetcher {
 			if(!servers.stream().allMatch(s -> s.getDHT().getTaskManager().queuedCount(s) == 0))
 				break;
 
+			if(ThreadLocalRandom.current().nextFloat() >= 0.05)
+				best = pickFarthestFromActive();
 			
-			synchronized (this) {
-				Key bestDistance = Key.MIN_KEY;
-				
-				if(ThreadLocalRandom.current().nextFloat() < 0.05) {
-					best = tasks.stream().filter(t -> !t.dhtStarted).findFirst().orElse(null);
-				} else {
-					for(FetchTask t : tasks) {
-						if(t.dhtStarted)
-							continue;
-						
-						Key dist = servers.stream().flatMap(s -> activeLookups.getOrDefault(s, Collections.emptySet()).stream()).map(k -> t.hash.distance(k)).min(Comparator.naturalOrder()).orElse(Key.MAX_KEY);
-						
-						if(bestDistance.compareTo(dist) <= 0) {
-							best = t;
-							bestDistance = dist;
-						}
-						
-					}
-					
-				}
-
-			}
+			// occasionally take the oldest one to avoid starvation in crowded key ranges
+			if(best == null)
+				best = Optional.ofNullable(pendingByAge.firstEntry()).map(Map.Entry::getValue).orElse(null);
 			
 			if(best == null)
 				break;
+			
+			removePending(best);
 			best.lookups(servers.stream());
 			// since we only schedule new tasks when the queues are empty we want the manager to start them immediately instead of waiting for timers
 			servers.stream().forEach(s -> s.getDHT().getTaskManager().dequeue(s));
 		}
 	}
+	
+	void enqueueConnect(FetchTask t) {
+		if(t.running.get() && t.connectQueued.compareAndSet(false, true)) {
+			connectQueue.add(t);
+			wakeup();
+		}
+	}
 
+	/**
+	 * round-robin over the tasks which have candidates, as long as socket limits allow
+	 */
 	void startConnections() {
-		int offset = ThreadLocalRandom.current().nextInt(tasks.size());
+		int budget = connectQueue.size();
 		
-		for(int i= 0;i<tasks.size();i++) {
-			int idx = Math.floorMod(i+offset, tasks.size());
-			
-			if(socketLimitsReached())
+		while(budget-- > 0 && !socketLimitsReached()) {
+			FetchTask t = connectQueue.poll();
+			if(t == null)
 				break;
+			t.connectQueued.set(false);
 			
-			tasks.get(idx).connections();
+			if(t.connections())
+				enqueueConnect(t);
 		}
-		
 	}
 	
 	
@@ -275,13 +415,17 @@ public class TorrentFetcher {
 		Map<InetSocketAddress, PullMetaDataConnection.CONNECTION_STATE> closed = new ConcurrentHashMap<>();
 		ConcurrentHashMap<InetSocketAddress, Set<InetAddress>> candidates = new ConcurrentHashMap<>();
 		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicBoolean connectQueued = new AtomicBoolean();
+		long seq;
 		MetadataPool result;
 		AtomicInteger thingsBlockingCompletion = new AtomicInteger(1);
 		
 		Map<InetAddress, PullMetaDataConnection> connections = new ConcurrentHashMap<>();
 		Map<Integer, MetadataPool> pools = new ConcurrentHashMap<>();
 		
-		boolean dhtStarted;
+		volatile boolean dhtStarted;
+		volatile Instant firstConnect;
+		volatile Instant completed;
 		
 		FetchState state = FetchState.PENDING;
 		
@@ -293,6 +437,28 @@ public class TorrentFetcher {
 			return hash;
 		}
 		
+		public Optional<Duration> timeToFirstConnect() {
+			return Optional.ofNullable(firstConnect).map(t -> Duration.between(startTime, t));
+		}
+		
+		public Optional<Duration> timeToFirstPiece() {
+			return pools.values().stream().map(MetadataPool::firstPieceTime).filter(t -> t > 0).min(Comparator.naturalOrder()).map(t -> Duration.between(startTime, Instant.ofEpochMilli(t)));
+		}
+		
+		/**
+		 * @return time from task start until the metadata was received and verified, empty unless the task succeeded
+		 */
+		public Optional<Duration> completionLatency() {
+			if(state != FetchState.SUCCESS)
+				return Optional.empty();
+			return Optional.ofNullable(completed).map(t -> Duration.between(startTime, t));
+		}
+		
+		void connected() {
+			if(firstConnect == null)
+				firstConnect = Instant.now();
+		}
+		
 		@Override
 		public String toString() {
 			String[] str = {
@@ -304,7 +470,13 @@ public class TorrentFetcher {
 					"con active:",
 					connections.values().stream().collect(Collectors.groupingBy(PullMetaDataConnection::getState, Collectors.counting())).toString(),
 					"con closed:",
-					closeCounts().toString()
+					closeCounts().toString(),
+					"first con:",
+					timeToFirstConnect().map(Duration::toString).orElse("-"),
+					"first piece:",
+					timeToFirstPiece().map(Duration::toString).orElse("-"),
+					"pieces:",
+					pools.values().stream().map(p -> p.piecesReceived() + "/" + p.pieceCount() + " dup:" + p.duplicateRequests() + " redundant:" + p.redundantPieces()).collect(Collectors.joining(","))
 			};
 			
 			return String.join(" ", str);
@@ -332,6 +504,7 @@ public class TorrentFetcher {
 				}
 			});
 			remove(this);
+			recordCompletion(this);
 			future.complete(this);
 		}
 		
@@ -364,6 +537,8 @@ public class TorrentFetcher {
 					newSources.addAll(sources);
 				return newSources;
 			});
+			
+			enqueueConnect(this);
 		}
 		
 		MetadataPool getPool(int length) {
@@ -386,22 +561,18 @@ public class TorrentFetcher {
 				PeerLookupTask task = new PeerLookupTask(srv, d.getNode(), hash);
 				
 				
-				synchronized (TorrentFetcher.this) {
-					activeLookups.computeIfAbsent(srv, unused -> new HashSet<>()).add(task.getTargetKey());
-				}
+				activeLookups.merge(task.getTargetKey(), 1, Integer::sum);
 
 				task.setNoAnnounce(true);
 				if(conf != null)
 					conf.accept(task);
 				task.setResultHandler(this::addCandidate);
 				task.addListener(t -> {
-					synchronized (TorrentFetcher.this) {
-						activeLookups.get(srv).remove(task.getTargetKey());
-					}
+					activeLookups.computeIfPresent(task.getTargetKey(), (k, count) -> count > 1 ? count - 1 : null);
 					
 					thingsBlockingCompletion.decrementAndGet();
 					checkCompletion();
-					timer.execute(TorrentFetcher.this::startDHTTasks);
+					wakeup();
 				});
 
 				thingsBlockingCompletion.incrementAndGet();
@@ -443,6 +614,7 @@ public class TorrentFetcher {
 			}
 			
 			decorate(con);
+			connected();
 			openConnections.incrementAndGet();
 			thingsBlockingCompletion.incrementAndGet();
 			
@@ -461,6 +633,10 @@ public class TorrentFetcher {
 						thingsBlockingCompletion.decrementAndGet();
 						connections.remove(con.remoteAddress().getAddress(), con);
 						closed.put(con.remoteAddress(), oldState);
+						checkCompletion();
+						// may unblock candidates with the same address
+						enqueueConnect(FetchTask.this);
+						wakeup();
 					}
 
 				}
@@ -479,6 +655,7 @@ public class TorrentFetcher {
 				return;
 			if (pool.status() == Completion.SUCCESS) {
 				result = pool;
+				completed = Instant.now();
 				state = FetchState.SUCCESS;
 				stop();
 			}
@@ -498,11 +675,14 @@ public class TorrentFetcher {
 			
 		}
 		
-		void connections() {
+		/**
+		 * @return true if there are more candidates that could be connected once socket limits permit
+		 */
+		boolean connections() {
 			checkCompletion();
 			
 			if(!running.get()) {
-				return;
+				return false;
 			}
 			
 			// workaround for JDK-8163353
@@ -517,16 +697,17 @@ public class TorrentFetcher {
 			InetSocketAddress[] cands = candidates.entrySet().stream().sorted(comp).map(Map.Entry::getKey).toArray(InetSocketAddress[]::new);
 			
 			int i = 0;
+			boolean more = false;
 			
 			for(InetSocketAddress addr : cands) {
 				
 				if(connections.containsKey(addr.getAddress()))
 					continue;
 				
-				if(socketLimitsReached())
-					break;
-				if(i++ > 5)
+				if(socketLimitsReached() || i++ > 5) {
+					more = true;
 					break;
+				}
 				
 				
 				PullMetaDataConnection con;
@@ -535,6 +716,7 @@ public class TorrentFetcher {
 					con = new PullMetaDataConnection(hash.getHash(), addr);
 				} catch (IOException e) {
 					DHT.log(e, LogLevel.Error);
+					more = true;
 					break;
 				}
 
@@ -578,15 +760,21 @@ public class TorrentFetcher {
 						thingsBlockingCompletion.decrementAndGet();
 						if(pf != null)
 							pf.insert(con);
+						
+						checkCompletion();
+						enqueueConnect(FetchTask.this);
 					}
 					
 					public void onStateChange(CONNECTION_STATE oldState, CONNECTION_STATE newState) {
 						if(newState == CONNECTION_STATE.STATE_CLOSED) {
 							closed.put(addr, oldState);
 							socketsIncludingHalfOpen.decrementAndGet();
+							// a socket got freed, other tasks may proceed
+							wakeup();
 						}
 							
 						if(oldState == CONNECTION_STATE.STATE_CONNECTING && newState != CONNECTION_STATE.STATE_CLOSED) {
+							connected();
 							openConnections.incrementAndGet();
 						}
 							
@@ -603,21 +791,33 @@ public class TorrentFetcher {
 				socketsIncludingHalfOpen.incrementAndGet();
 				conMan.register(con);
 			}
+			
+			checkCompletion();
+			
+			return more;
 		}
 		
 	}
 	
+	void removePending(FetchTask t) {
+		pendingByKey.remove(new PendingSlot(t.hash, t.seq), t);
+		pendingByAge.remove(t.seq, t);
+	}
+	
 	void remove(FetchTask t) {
-		synchronized (this) {
-			tasks.remove(t);
-		}
+		tasks.remove(t);
+		tasksByHash.remove(t.hash, t);
+		removePending(t);
 	}
 	
 	void add(FetchTask t) {
-		synchronized (this) {
-			tasks.add(t);
-		}
+		t.seq = taskSequence.incrementAndGet();
+		tasks.add(t);
+		tasksByHash.putIfAbsent(t.hash, t);
+		pendingByKey.put(new PendingSlot(t.hash, t.seq), t);
+		pendingByAge.put(t.seq, t);
 		ensureRunning();
+		wakeup();
 	}
 	
 	public FetchTask fetch(Key infohash) {
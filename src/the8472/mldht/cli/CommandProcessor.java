@@ -10,10 +10,12 @@ import static the8472.utils.Functional.unchecked;
 
 import the8472.bencode.BEncoder;
 import the8472.mldht.cli.commands.Burst;
+import the8472.mldht.cli.commands.Capture;
 import the8472.mldht.cli.commands.Get;
 import the8472.mldht.cli.commands.GetPeers;
 import the8472.mldht.cli.commands.GetTorrent;
 import the8472.mldht.cli.commands.Help;
+import the8472.mldht.cli.commands.Jfr;
 import the8472.mldht.cli.commands.Ping;
 import the8472.mldht.cli.commands.Put;
 import the8472.mldht.cli.commands.Sampling;
@@ -56,6 +58,8 @@ public abstract class CommandProcessor {
 		m.put("GET", Get.class);
 		m.put("PUT", Put.class);
 		m.put("SAMPLE", Sampling.class);
+		m.put("JFR", Jfr.class);
+		m.put("CAPTURE", Capture.class);
 	});
 	
 	public static CommandProcessor from(List<byte[]> rawArgs, Consumer<ByteBuffer> writer, Collection<DHT> dhts) {
@@ -10,6 +10,7 @@ import static the8472.utils.Functional.typedGet;
 import the8472.bencode.PrettyPrinter;
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bt.TorrentUtils;
+import the8472.mldht.indexing.TorrentPack;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 
 import lbms.plugins.mldht.kad.Key;
@@ -33,6 +34,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -41,6 +43,7 @@ import java.util.stream.Stream;
 public class TorrentInfo {
 	
 	Path source;
+	String label;
 	ByteBuffer raw;
 	Map<String, Object> root;
 	Map<String, Object> info;
@@ -50,6 +53,12 @@ public class TorrentInfo {
 	
 	public TorrentInfo(Path source) {
 		this.source = source;
+		this.label = source.toString();
+	}
+	
+	public TorrentInfo(String label, ByteBuffer torrent) {
+		this.label = label;
+		this.raw = torrent;
 	}
 	
 	void readRaw() {
@@ -118,17 +127,38 @@ public class TorrentInfo {
 		boolean noTrunc = ParseArgs.extractBool(args, "-notrunc");
 		boolean recursive = ParseArgs.extractBool(args, "-r");
 		boolean printLargest = ParseArgs.extractBool(args, "-largest");
+		Optional<Path> packDir = ParseArgs.extractString(args, "-pack").map(Paths::get);
 		
+		Stream<TorrentInfo> torrents;
 		
-		Stream<Path> torrents = args.parallelStream().unordered().map(Paths::get).filter(Files::exists).flatMap(p -> {
-			try {
-				return Files.find(p, recursive ? Integer.MAX_VALUE :  1 , (f, attr) -> {
-					return attr.isRegularFile() && attr.size() > 0;
-				},  FileVisitOption.FOLLOW_LINKS);
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
-			}
-		}); //.collect(Collectors.toSet()).parallelStream().unordered();
+		if(packDir.isPresent()) {
+			// remaining args are infohashes, print the whole pack if there are none
+			TorrentPack pack = TorrentPack.openReadOnly(packDir.get());
+			Stream<Key> keys = args.isEmpty() ? pack.keys() : args.stream().filter(Key.STRING_PATTERN.asPredicate()).map(Key::new);
+			torrents = keys.parallel().unordered().map(k -> {
+				try {
+					return pack.get(k).map(dict -> new TorrentInfo("pack:" + k.toString(false), TorrentUtils.wrapBareInfoDictionary(dict))).orElse(null);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).filter(Objects::nonNull).onClose(() -> {
+				try {
+					pack.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} else {
+			torrents = args.parallelStream().unordered().map(Paths::get).filter(Files::exists).flatMap(p -> {
+				try {
+					return Files.find(p, recursive ? Integer.MAX_VALUE :  1 , (f, attr) -> {
+						return attr.isRegularFile() && attr.size() > 0;
+					},  FileVisitOption.FOLLOW_LINKS);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).map(TorrentInfo::new); //.collect(Collectors.toSet()).parallelStream().unordered();
+		}
 
 		
 		Consumer<String> printer = SerializedTaskExecutor.runSerialized((String s) -> {
@@ -137,81 +167,82 @@ public class TorrentInfo {
 		
 		String newline = "\\u000a|\\u000b|\\u000c|\\u000d|\\u0085|\\u2028|\\u2029";
 		
-		torrents.map(p -> {
-			TorrentInfo ti = new TorrentInfo(p);
-			try {
-				ti.decode();
-			} catch(BDecodingException ex) {
-				return p.toString() + " does not appear to be a bencoded file: " + ex.getMessage();
-			}
+		try(Stream<TorrentInfo> st = torrents) {
+			st.map(ti -> {
+				try {
+					ti.decode();
+				} catch(BDecodingException ex) {
+					return ti.label + " does not appear to be a bencoded file: " + ex.getMessage();
+				}
 
-			if(printRaw) {
-				ti.truncate = !noTrunc;
-				return p.toString() + "\n" + ti.raw() + '\n';
-			}
+				if(printRaw) {
+					ti.truncate = !noTrunc;
+					return ti.label + "\n" + ti.raw() + '\n';
+				}
+					
 				
-			
-			if(ti.info == null)
-				return p.toString() + " does not contain an info dictionary";
-			
-			long length = typedGet(ti.info, "length", Long.class).orElse(0L);
-			long largestSize = length;
-			int numFiles = 1;
-			
-			StringBuilder result = new StringBuilder();
-			Optional<String> name = ti.name();
-			
-			if(!name.isPresent()) {
-				return p.toString() + " does not contain a name field";
-			}
-			
-			String largestFile = "";
-			
-			List<Map<String, Object>> files = ti.files();
-			
-			if(!files.isEmpty()) {
-				length = files.stream().mapToLong(e -> typedGet(e, "length", Long.class).orElse(0L)).sum();
-				numFiles = files.size();
-				Map<String, Object> largest = files.stream().max(Comparator.comparing(e -> typedGet(e, "length", Long.class).orElse(0L))).get();
-				largestSize = typedGet(largest, "length", Long.class).orElse(0L);
+				if(ti.info == null)
+					return ti.label + " does not contain an info dictionary";
 				
-				List<?> path = typedGet(largest, "path.utf-8", List.class).orElse(null);
-				if(path == null)
-					path = typedGet(largest, "path", List.class).orElse(null);
+				long length = typedGet(ti.info, "length", Long.class).orElse(0L);
+				long largestSize = length;
+				int numFiles = 1;
 				
-				largestFile = path.stream().filter(byte[].class::isInstance).map(b -> new String((byte[]) b, StandardCharsets.UTF_8)).collect(Collectors.joining("/"));
-				largestFile = largestFile.replaceAll(newline, " ");
-			}
-			
-			
-			result.append(p.toString());
-			result.append(" ");
-			ti.name().map(s -> s.replaceAll(newline, " ")).ifPresent(result::append);
-			
-			if(printLargest) {
-				if(numFiles > 1) {
-					result.append('/');
-					result.append(largestFile);
+				StringBuilder result = new StringBuilder();
+				Optional<String> name = ti.name();
+				
+				if(!name.isPresent()) {
+					return ti.label + " does not contain a name field";
+				}
+				
+				String largestFile = "";
+				
+				List<Map<String, Object>> files = ti.files();
+				
+				if(!files.isEmpty()) {
+					length = files.stream().mapToLong(e -> typedGet(e, "length", Long.class).orElse(0L)).sum();
+					numFiles = files.size();
+					Map<String, Object> largest = files.stream().max(Comparator.comparing(e -> typedGet(e, "length", Long.class).orElse(0L))).get();
+					largestSize = typedGet(largest, "length", Long.class).orElse(0L);
+					
+					List<?> path = typedGet(largest, "path.utf-8", List.class).orElse(null);
+					if(path == null)
+						path = typedGet(largest, "path", List.class).orElse(null);
+					
+					largestFile = path.stream().filter(byte[].class::isInstance).map(b -> new String((byte[]) b, StandardCharsets.UTF_8)).collect(Collectors.joining("/"));
+					largestFile = largestFile.replaceAll(newline, " ");
 				}
+				
+				
+				result.append(ti.label);
+				result.append(" ");
+				ti.name().map(s -> s.replaceAll(newline, " ")).ifPresent(result::append);
+				
+				if(printLargest) {
+					if(numFiles > 1) {
+						result.append('/');
+						result.append(largestFile);
+					}
 
-				result.append(" size:");
-				result.append(largestSize);
-				result.append('/');
-				result.append(length);
-				result.append(" files:");
-				result.append(numFiles);
-			} else {
-				result.append(" size:");
-				result.append(length);
-				result.append(" files:");
-				result.append(numFiles);
-			}
-			
-			result.append(" ih:");
-			result.append(ti.infoHash().toString(false));
-			
-			return result.toString();
-		}).forEach(printer::accept);
+					result.append(" size:");
+					result.append(largestSize);
+					result.append('/');
+					result.append(length);
+					result.append(" files:");
+					result.append(numFiles);
+				} else {
+					result.append(" size:");
+					result.append(length);
+					result.append(" files:");
+					result.append(numFiles);
+				}
+				
+				result.append(" ih:");
+				result.append(ti.infoHash().toString(false));
+				
+				return result.toString();
+			}).forEach(printer::accept);
+		}
 		
 
 	}
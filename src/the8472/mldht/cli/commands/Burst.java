@@ -6,11 +6,13 @@
 package the8472.mldht.cli.commands;
 
 import the8472.mldht.cli.CommandProcessor;
+import the8472.utils.concurrent.BlockingThreads;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.tasks.NodeLookup;
 import lbms.plugins.mldht.kad.tasks.Task;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -22,7 +24,7 @@ public class Burst extends CommandProcessor {
 	
 	@Override
 	protected void process() {
-		Thread t = new Thread(() -> {
+		Thread t = BlockingThreads.newThread("burst command", () -> {
 			int count = 50;
 			
 			if(arguments.size() > 0)
@@ -39,6 +41,8 @@ public class Burst extends CommandProcessor {
 				DHT dht = dhts.get(ThreadLocalRandom.current().nextInt(dhts.size()));
 				Optional.ofNullable(dht.getServerManager().getRandomActiveServer(false)).ifPresent(rpc -> {
 					NodeLookup task = new NodeLookup(Key.createRandomKey(), rpc, dht.getNode(), false);
+					// load generation, must not crowd out lookups issued by other commands
+					task.setSchedulingClass(SchedulingClass.BULK);
 					tasks.add(task);
 					task.addListener((finishedTask) -> {
 						if(!isRunning()) {
@@ -61,9 +65,6 @@ public class Burst extends CommandProcessor {
 			exit(0);
 		});
 		
-		t.setDaemon(true);
-		t.setName("burst command");
-		
 		t.start();
 	}
 
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.cli.commands;
+
+import the8472.mldht.cli.CommandProcessor;
+
+import lbms.plugins.mldht.kad.utils.PacketCapture;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+public class Capture extends CommandProcessor {
+
+	// one capture shared by all DHT instances, spans cli sessions
+	static PacketCapture active;
+
+	@Override
+	protected void process() {
+		String action = arguments.isEmpty() ? "STATUS" : arguments.get(0).toUpperCase();
+
+		try {
+			synchronized (Capture.class) {
+				switch(action) {
+					case "START":
+						if(active != null) {
+							printErr("already capturing: " + active);
+							exit(1);
+							return;
+						}
+						Path file = currentWorkDir.resolve(arguments.size() > 1 ? arguments.get(1) : "mldht-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".mlpc");
+						long maxBytes = (arguments.size() > 2 ? Long.parseLong(arguments.get(2)) : 1024) * 1024 * 1024;
+						active = new PacketCapture(file, maxBytes);
+						dhts.forEach(d -> d.setPacketCapture(active));
+						println("capturing to " + file.toAbsolutePath());
+						break;
+					case "STOP":
+						if(active == null) {
+							printErr("not capturing");
+							exit(1);
+							return;
+						}
+						dhts.forEach(d -> d.setPacketCapture(null));
+						active.close();
+						println(active.toString());
+						active = null;
+						break;
+					case "STATUS":
+						println(active == null ? "not capturing" : active.toString());
+						break;
+					default:
+						printErr("unknown action " + action + ", expected START, STOP or STATUS");
+						exit(1);
+						return;
+				}
+			}
+		} catch (Exception e) {
+			handleException(e);
+			return;
+		}
+		exit(0);
+	}
+
+}
@@ -9,8 +9,11 @@ import the8472.mldht.cli.CommandProcessor;
 import the8472.mldht.cli.ParseArgs;
 
 import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
 import lbms.plugins.mldht.kad.ScrapeResponseHandler;
+import lbms.plugins.mldht.kad.TaskBuilder;
 import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
@@ -37,6 +40,7 @@ public class GetPeers extends CommandProcessor {
 		boolean fast = ParseArgs.extractBool(arguments, "-fast");
 		boolean nocache = ParseArgs.extractBool(arguments, "-nocache");
 		boolean scrape = ParseArgs.extractBool(arguments, "-scrape");
+		boolean multihomed = ParseArgs.extractBool(arguments, "-multihomed");
 		
 		List<Key> hashes = arguments.stream()
 				.filter(Key.STRING_PATTERN.asPredicate())
@@ -51,6 +55,30 @@ public class GetPeers extends CommandProcessor {
 		
 		
 		
+		if(multihomed) {
+			hashes.forEach(h -> {
+				ScrapeResponseHandler scrapeHandler = new ScrapeResponseHandler();
+				
+				taskCounter.incrementAndGet();
+				
+				TaskBuilder.fromInstances(dhts).multiHomedPeerLookup(h, t -> {
+					t.setFastTerminate(fast);
+					t.useCache(!nocache);
+					if(scrape)
+						t.setScrapeHandler(scrapeHandler);
+					t.setResultHandler((source, item) -> printResult(start, h, source, item));
+				}).whenComplete((peers, ex) -> {
+					if(ex != null)
+						printErr(ex.getMessage());
+					else if(scrape)
+						printScrape(h, scrapeHandler);
+					if(taskCounter.decrementAndGet() == 0)
+						exit(ex != null ? 1 : 0);
+				});
+			});
+			return;
+		}
+		
 		hashes.forEach(h -> {
 			ScrapeResponseHandler scrapeHandler = new ScrapeResponseHandler();
 			
@@ -82,15 +110,7 @@ public class GetPeers extends CommandProcessor {
 					}
 				});
 				
-				t.setResultHandler((source, item) -> {
-					Formatter f = new Formatter();
-					
-					Duration elapsed = Duration.between(start, Instant.now());
-					
-					f.format("%-5dms %s %s from: %s", elapsed.toMillis(), h.toString(), AddressUtils.toString(item.toSocketAddress()), source);
-					
-					println(f.toString());
-				});
+				t.setResultHandler((source, item) -> printResult(start, h, source, item));
 				
 				dht.getTaskManager().addTask(t);
 			});
@@ -102,6 +122,16 @@ public class GetPeers extends CommandProcessor {
 		}
 	}
 	
+	private void printResult(Instant start, Key h, KBucketEntry source, PeerAddressDBItem item) {
+		Formatter f = new Formatter();
+		
+		Duration elapsed = Duration.between(start, Instant.now());
+		
+		f.format("%-5dms %s %s from: %s", elapsed.toMillis(), h.toString(), AddressUtils.toString(item.toSocketAddress()), source);
+		
+		println(f.toString());
+	}
+	
 	private void printScrape(Key ih, ScrapeResponseHandler handler) {
 		handler.process();
 		println(String.format("Scrape Result for %s: seeds[scrape]:%d peers[scrape]:%d direct results:%d ; %d/%d of nodes returning values supported scrape",
@@ -20,6 +20,11 @@ public class Help extends CommandProcessor {
 		println("GETPEERS [infohash...] [-fast] [-nocache] [-scrape]  - peer lookup for <infohash(es)>, print ip address/port tuples");
 		println("BURST [count]                                        - run a batch of find_node lookups to random target IDs. intended test the attainable throughput for active lookups, subject to internal throttling");
 		println("SAMPLE                                        			");
+		println("JFR START [settings] [maxAgeMinutes]                 - start a continuous flight recording with the JDK's 'default' or 'profile' settings plus the DHT hot-path events");
+		println("JFR DUMP|STOP [file]                                 - write the recording to <file> in the current working directory, STOP also ends it");
+		println("JFR STATUS                                           - show whether a recording is running");
+		println("CAPTURE START [file] [maxMB]                         - record received datagrams into <file> in the current working directory for offline replay, 1GB limit by default");
+		println("CAPTURE STOP|STATUS                                  - end the capture or show its progress");
 		exit(0);
 	}
 
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.cli.commands;
+
+import the8472.mldht.cli.CommandProcessor;
+import the8472.utils.FlightEvents;
+import the8472.utils.concurrent.BlockingThreads;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+public class Jfr extends CommandProcessor {
+
+	@Override
+	protected void process() {
+		String action = arguments.isEmpty() ? "STATUS" : arguments.get(0).toUpperCase();
+
+		// dumps can be large, keep them off the cli server thread
+		BlockingThreads.newThread("jfr command", () -> {
+			try {
+				switch(action) {
+					case "START":
+						String settings = arguments.size() > 1 ? arguments.get(1) : "default";
+						Duration maxAge = Duration.ofMinutes(arguments.size() > 2 ? Long.parseLong(arguments.get(2)) : 30);
+						FlightEvents.startRecording(settings, maxAge);
+						println("recording started, settings: " + settings + " max age: " + maxAge);
+						break;
+					case "DUMP":
+						Path dump = target();
+						FlightEvents.dumpRecording(dump);
+						println("dumped to " + dump.toAbsolutePath());
+						break;
+					case "STOP":
+						Path last = target();
+						FlightEvents.stopRecording(last);
+						println("recording stopped, dumped to " + last.toAbsolutePath());
+						break;
+					case "STATUS":
+						println(FlightEvents.status());
+						break;
+					default:
+						printErr("unknown action " + action + ", expected START, DUMP, STOP or STATUS");
+						exit(1);
+						return;
+				}
+			} catch (Exception e) {
+				handleException(e);
+				return;
+			}
+			exit(0);
+		}).start();
+	}
+
+	Path target() {
+		if(arguments.size() > 1)
+			return currentWorkDir.resolve(arguments.get(1));
+		return currentWorkDir.resolve("mldht-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".jfr");
+	}
+
+}
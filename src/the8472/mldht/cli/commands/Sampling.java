@@ -7,7 +7,12 @@ package the8472.mldht.cli.commands;
 
 import the8472.mldht.cli.CommandProcessor;
 import lbms.plugins.mldht.kad.TaskBuilder;
+import lbms.plugins.mldht.kad.tasks.SamplingEngine;
+
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Sampling extends CommandProcessor {
 	
@@ -15,11 +20,23 @@ public class Sampling extends CommandProcessor {
 	protected void process() {
 		
 		TaskBuilder b = TaskBuilder.fromInstances(dhts);
-		CompletionStage<Void> cf = b.sampleInfoHashes(Integer.MAX_VALUE, "CLI-sampling", (k, srcaddr, srcID) -> {
+		SamplingEngine engine = b.samplingEngine(Integer.MAX_VALUE, "CLI-sampling", (k, srcaddr, srcID) -> {
 			println(k.toString() + " src:" + srcaddr);
 		});
+		// resume an interrupted run, e.g. after a daemon restart
+		dhts.stream().findAny().map(d -> d.getConfig().getStoragePath()).ifPresent(dir -> engine.setCheckpoint(dir.resolve("sampling-cli.checkpoint")));
+		CompletionStage<Void> cf = engine.start();
+		
+		Optional<ScheduledFuture<?>> progress = dhts.stream().findAny().map(d -> d.getScheduler().scheduleWithFixedDelay(() -> {
+			if(!isRunning()) {
+				engine.stop();
+				return;
+			}
+			printErr(engine.toString() + "\n");
+		}, 10, 10, TimeUnit.SECONDS));
 		
 		cf.whenComplete((v, ex) -> {
+			progress.ifPresent(f -> f.cancel(false));
 			if(ex != null) {
 				printErr(ex.getMessage());
 				exit(1);
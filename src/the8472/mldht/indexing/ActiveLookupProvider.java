@@ -17,15 +17,25 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
 import lbms.plugins.mldht.kad.ScrapeResponseHandler;
 import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
@@ -33,66 +43,355 @@ import lbms.plugins.mldht.utils.Selectable;
 import the8472.mldht.Component;
 import the8472.utils.ConfigReader;
 
+/**
+ * Line-based TCP lookup service on port 36578.
+ *
+ * <p>
+ * Requests are <code>&lt;id&gt; TAB &lt;40 hex infohash&gt; LF</code>, where id is a client-chosen token of up to 64 characters without whitespace.
+ * Requests can be pipelined, responses for different ids may interleave:
+ * </p>
+ * <pre>
+ * queued   TAB id TAB infohash                       request accepted, waiting for lookup capacity
+ * starting TAB id TAB infohash                       lookup started (or joined an already running lookup)
+ * peer     TAB id TAB address:port TAB seed|leech    streamed as peers are discovered
+ * done     TAB id TAB infohash TAB scrapeSeeds:n TAB scrapePeers:n TAB direct:n
+ * error    TAB id TAB reason
+ * </pre>
+ * <p>
+ * A bare infohash line is still accepted for compatibility. Such requests only receive the <code>starting</code> and <code>done</code> lines without id.
+ * </p>
+ * <p>
+ * Requests for the same infohash are coalesced into a single lookup. Queued lookups are started round-robin across connections
+ * so a client pipelining many requests can't starve others.
+ * </p>
+ */
 public class ActiveLookupProvider implements Component {
 	
+	static final int PORT = 36578;
+	static final int MAX_ACTIVE_LOOKUPS = 32;
+	static final int MAX_QUEUED_PER_CONNECTION = 1024;
+	static final int MAX_QUEUED = 8192;
+	static final int MAX_OUTPUT_BYTES = 4 * 1024 * 1024;
+	static final int MAX_LINE_LENGTH = 1024;
+	
+	static final Pattern ID = Pattern.compile("[\\x21-\\x7E]{1,64}");
+	static final Pattern INFOHASH = Pattern.compile("[0-9a-fA-F]{40}");
+	
 	Collection<DHT> dhts;
 	NIOConnectionManager manager;
+	Server server;
+	final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	volatile boolean stopped;
+	
+	int maxActive = MAX_ACTIVE_LOOKUPS;
+	
+	// guarded by this
+	Map<Key, Lookup> lookups = new HashMap<>();
+	ArrayDeque<Connection> roundRobin = new ArrayDeque<>();
+	int queued;
+	int active;
+	
+	final AtomicLong coalesced = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong completed = new AtomicLong();
 	
 	@Override
 	public void start(Collection<DHT> dhts, ConfigReader config) {
 		this.dhts = dhts;
 		manager = new NIOConnectionManager("active-lookups");
 		try {
-			manager.register(new Server());
+			server = new Server();
+			manager.register(server);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			DHT.log(e, LogLevel.Error);
 		}
 		
 	}
 	
-	
+	/**
+	 * closes all client connections, drops queued lookups and kills the running ones
+	 */
 	@Override
 	public void stop() {
-		// TODO Auto-generated method stub
+		stopped = true;
+		
+		if(server != null) {
+			try {
+				server.chan.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
 		
+		// unsubscribes all clients, which also discards the queued lookups
+		connections.forEach(Connection::close);
+		
+		List<Lookup> running;
+		synchronized (this) {
+			running = new ArrayList<>(lookups.values());
+			lookups.clear();
+		}
+		running.forEach(l -> l.tasks.forEach(PeerLookupTask::kill));
+	}
+	
+	static class Subscriber {
+		final Connection connection;
+		final String id;
+		
+		Subscriber(Connection c, String id) {
+			this.connection = c;
+			this.id = id;
+		}
+		
+		boolean legacy() {
+			return id == null;
+		}
+	}
+	
+	class Lookup {
+		final Key key;
+		// guarded by ActiveLookupProvider.this
+		final List<Subscriber> subscribers = new ArrayList<>(1);
+		boolean started;
+		
+		final Set<PeerAddressDBItem> peers = ConcurrentHashMap.newKeySet();
+		final ScrapeResponseHandler scrape = new ScrapeResponseHandler();
+		final AtomicInteger pendingTasks = new AtomicInteger();
+		volatile List<PeerLookupTask> tasks = Collections.emptyList();
+		
+		Lookup(Key key) {
+			this.key = key;
+		}
+		
+		void peerFound(PeerAddressDBItem item) {
+			if(!peers.add(item))
+				return;
+			List<Subscriber> subs;
+			synchronized (ActiveLookupProvider.this) {
+				subs = new ArrayList<>(subscribers);
+			}
+			subs.forEach(s -> sendPeer(s, item));
+		}
 	}
 	
-	void lookupRequested(Connection c, byte[] infoHash) {
-		List<PeerLookupTask> tasks = new ArrayList<PeerLookupTask>();
+	/**
+	 * called on the selector thread for each complete request line
+	 */
+	void requestReceived(Connection c, String id, Key k) {
+		Lookup toReplay = null;
+		Subscriber sub = new Subscriber(c, id);
 		
-		Key k = new Key(infoHash);
+		synchronized (this) {
+			if(stopped || c.closed)
+				return;
+			Lookup existing = lookups.get(k);
+			if(existing != null) {
+				coalesced.incrementAndGet();
+				existing.subscribers.add(sub);
+				c.subscriptions.add(existing);
+				if(existing.started)
+					toReplay = existing;
+			} else {
+				if(c.queue.size() >= MAX_QUEUED_PER_CONNECTION || queued >= MAX_QUEUED) {
+					rejected.incrementAndGet();
+					if(!sub.legacy())
+						c.send("error\t" + id + "\tqueue full\n");
+					return;
+				}
+				Lookup l = new Lookup(k);
+				l.subscribers.add(sub);
+				lookups.put(k, l);
+				c.subscriptions.add(l);
+				c.queue.add(l);
+				queued++;
+				if(c.queue.size() == 1)
+					roundRobin.add(c);
+			}
+		}
 		
-		AtomicInteger counter = new AtomicInteger();
+		if(toReplay != null) {
+			started(sub, k);
+			for(PeerAddressDBItem item : toReplay.peers)
+				sendPeer(sub, item);
+		} else if(!sub.legacy()) {
+			c.send("queued\t" + id + "\t" + k.toString(false) + '\n');
+		}
 		
-		ScrapeResponseHandler scrape = new ScrapeResponseHandler();
+		dispatch();
+	}
+	
+	/**
+	 * starts queued lookups, taking one from each connection in turn
+	 */
+	void dispatch() {
+		while(true) {
+			Lookup l;
+			Connection c;
+			synchronized (this) {
+				if(stopped || active >= maxActive || roundRobin.isEmpty())
+					return;
+				c = roundRobin.poll();
+				l = c.queue.poll();
+				if(l == null)
+					continue;
+				queued--;
+				if(!c.queue.isEmpty())
+					roundRobin.add(c);
+				l.started = true;
+				active++;
+			}
+			
+			if(!launch(l)) {
+				synchronized (this) {
+					// no capacity in the DHTs' task managers, retry on the next state check
+					l.started = false;
+					active--;
+					if(lookups.get(l.key) == l) {
+						// the requesting connection may have closed in the meantime
+						Connection owner = liveSubscriber(l);
+						if(owner == null) {
+							lookups.remove(l.key);
+						} else {
+							owner.queue.addFirst(l);
+							queued++;
+							if(owner.queue.size() == 1)
+								roundRobin.addFirst(owner);
+						}
+					}
+				}
+				return;
+			}
+			
+			List<Subscriber> subs;
+			synchronized (this) {
+				subs = new ArrayList<>(l.subscribers);
+			}
+			subs.forEach(s -> started(s, l.key));
+		}
+	}
+	
+	/**
+	 * creates and schedules peer lookups on all DHTs with spare task capacity
+	 * 
+	 * @return false if no DHT could take the lookup
+	 */
+	boolean launch(Lookup l) {
+		List<PeerLookupTask> tasks = new ArrayList<>();
 		
 		for(DHT d : dhts) {
 			if(!d.isRunning())
 				continue;
-			PeerLookupTask t = d.createPeerLookup(infoHash);
-			if(!d.getTaskManager().canStartTask(t))
-				return;
-			counter.incrementAndGet();
+			PeerLookupTask t = d.createPeerLookup(l.key.getHash());
+			if(t == null || !d.getTaskManager().canStartTask(t))
+				continue;
 			t.setFastTerminate(false);
 			t.setLowPriority(true);
-			t.setScrapeHandler(scrape);
+			t.setScrapeHandler(l.scrape);
+			t.setResultHandler((source, item) -> l.peerFound(item));
 			t.addListener(x -> {
-				if(counter.decrementAndGet() <= 0) {
-					lookupDone(c, k, scrape);
-				};
+				if(l.pendingTasks.decrementAndGet() == 0)
+					lookupDone(l);
 			});
 			tasks.add(t);
 		}
 		
-		c.send(str2buf("starting\t"+k.toString(false)+'\n'));
+		if(tasks.isEmpty())
+			return false;
 		
+		l.pendingTasks.set(tasks.size());
+		l.tasks = tasks;
 		tasks.forEach(t -> t.getRPC().getDHT().getTaskManager().addTask(t));
+		// stop() may have missed the tasks
+		if(stopped)
+			tasks.forEach(PeerLookupTask::kill);
+		return true;
+	}
+	
+	void lookupDone(Lookup l) {
+		List<Subscriber> subs;
+		synchronized (this) {
+			lookups.remove(l.key, l);
+			active--;
+			subs = new ArrayList<>(l.subscribers);
+			subs.forEach(s -> s.connection.subscriptions.remove(l));
+		}
+		
+		completed.incrementAndGet();
+		
+		synchronized (l.scrape) {
+			l.scrape.process();
+		}
+		String stats = "\tscrapeSeeds:"+l.scrape.getScrapedSeeds()+"\tscrapePeers:"+l.scrape.getScrapedPeers()+"\tdirect:"+l.scrape.getDirectResultCount()+'\n';
+		String hash = l.key.toString(false);
+		
+		subs.forEach(s -> {
+			s.connection.send(s.legacy() ? "done\t" + hash + stats : "done\t" + s.id + '\t' + hash + stats);
+		});
+		
+		dispatch();
+	}
+	
+	void started(Subscriber s, Key k) {
+		s.connection.send(s.legacy() ? "starting\t" + k.toString(false) + '\n' : "starting\t" + s.id + '\t' + k.toString(false) + '\n');
+	}
+	
+	void sendPeer(Subscriber s, PeerAddressDBItem item) {
+		if(s.legacy())
+			return;
+		s.connection.send("peer\t" + s.id + '\t' + item.toSocketAddress() + '\t' + (item.isSeed() ? "seed" : "leech") + '\n');
 	}
 	
-	void lookupDone(Connection c, Key k, ScrapeResponseHandler h) {
-		h.process();
-		c.send(str2buf("done\t"+k.toString(false)+"\tscrapeSeeds:"+h.getScrapedSeeds()+"\tscrapePeers:"+h.getScrapedPeers()+"\tdirect:"+h.getDirectResultCount()+'\n'));
+	/**
+	 * @return the connection of the first subscriber that is still open, null if there is none
+	 */
+	Connection liveSubscriber(Lookup l) {
+		for(Subscriber s : l.subscribers)
+			if(!s.connection.closed && s.connection.chan.isOpen())
+				return s.connection;
+		return null;
+	}
+	
+	/**
+	 * drops the connection's subscriptions, queued lookups that other connections also asked for are handed over to them
+	 */
+	void connectionClosed(Connection c) {
+		connections.remove(c);
+		synchronized (this) {
+			// reached both from close() and the state checks
+			if(c.closed)
+				return;
+			c.closed = true;
+			roundRobin.remove(c);
+			for(Lookup l : c.subscriptions)
+				l.subscribers.removeIf(s -> s.connection == c);
+			c.subscriptions.clear();
+			
+			Lookup l;
+			while((l = c.queue.poll()) != null) {
+				queued--;
+				Connection heir = liveSubscriber(l);
+				if(heir == null) {
+					lookups.remove(l.key, l);
+					continue;
+				}
+				Lookup replacement = new Lookup(l.key);
+				replacement.subscribers.addAll(l.subscribers);
+				lookups.put(l.key, replacement);
+				for(Subscriber s : replacement.subscribers) {
+					s.connection.subscriptions.remove(l);
+					s.connection.subscriptions.add(replacement);
+				}
+				heir.queue.add(replacement);
+				queued++;
+				if(heir.queue.size() == 1)
+					roundRobin.add(heir);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "active lookups: " + active + " queued: " + queued + " coalesced: " + coalesced + " rejected: " + rejected + " completed: " + completed;
 	}
 	
 	class Connection implements Selectable {
@@ -102,21 +401,32 @@ public class ActiveLookupProvider implements Component {
 		volatile boolean writePending = false;
 		
 		Queue<ByteBuffer> toWrite = new ConcurrentLinkedQueue<>();
+		final AtomicInteger bufferedBytes = new AtomicInteger();
 		
-		public void send(ByteBuffer b) {
-			//if(toWrite.isEmpty()) {
-				writePending = true;
-				manager.interestOpsChanged(this);
-			//}
-				
+		// guarded by ActiveLookupProvider.this
+		ArrayDeque<Lookup> queue = new ArrayDeque<>();
+		List<Lookup> subscriptions = new ArrayList<>();
+		boolean closed;
+		
+		public void send(String line) {
+			ByteBuffer b = str2buf(line);
+			if(bufferedBytes.addAndGet(b.remaining()) > MAX_OUTPUT_BYTES) {
+				DHT.log("active lookups: closing connection " + chan + ", client is not reading results", LogLevel.Info);
+				close();
+				return;
+			}
 			
 			toWrite.add(b);
+			
+			if(!writePending) {
+				writePending = true;
+				manager.interestOpsChanged(this);
+			}
 		}
 		
 		public Connection(SocketChannel chan) throws IOException {
 			this.chan = chan;
 			chan.configureBlocking(false);
-			manager.register(this);
 		}
 
 		@Override
@@ -138,13 +448,18 @@ public class ActiveLookupProvider implements Component {
 				read();
 		}
 		
-		ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+		ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
 		
 		void read() throws IOException {
 			while(true) {
-				int bytes = chan.read(readBuffer);
+				int bytes;
+				try {
+					bytes = chan.read(readBuffer);
+				} catch (IOException e) {
+					bytes = -1;
+				}
 				if(bytes < 0) {
-					chan.close();
+					close();
 					return;
 				}
 				if(bytes == 0)
@@ -153,38 +468,45 @@ public class ActiveLookupProvider implements Component {
 				readBuffer.flip();
 				processBuffer(readBuffer);
 				readBuffer.compact();
-
+				
+				if(!readBuffer.hasRemaining()) {
+					// line too long
+					close();
+					return;
+				}
 			}
 		}
 		
 		void processBuffer(ByteBuffer buf) {
-			// scan for newline
-			ByteBuffer line = buf.slice();
-			int i = 0;
-			buf.mark();
-			
-			while(buf.remaining() > 0) {
-				i++;
-				if(buf.get() == '\n') {
-					buf.mark();
-					line.limit(i-1);
-					line(line);
-					i = 0;
-					line = buf.slice();
-				}
+			int start = buf.position();
+			for(int i=start;i<buf.limit();i++) {
+				if(buf.get(i) != '\n')
+					continue;
+				ByteBuffer line = buf.duplicate();
+				line.position(start);
+				line.limit(i > start && buf.get(i-1) == '\r' ? i - 1 : i);
+				line(buf2str(line));
+				start = i + 1;
 			}
-			
-			buf.reset();
-
-			
+			buf.position(start);
 		}
 		
-		void line(ByteBuffer buf) {
-			if(buf.remaining() != 40)
+		void line(String line) {
+			int tab = line.indexOf('\t');
+			String id = tab >= 0 ? line.substring(0, tab) : null;
+			String hex = tab >= 0 ? line.substring(tab + 1) : line;
+			
+			if(id != null && !ID.matcher(id).matches()) {
+				send("error\t-\tmalformed id\n");
 				return;
-			String hex = buf2str(buf);
-			lookupRequested(this, hex2ary(hex));
-			//Key key = new Key(hex2ary(hex));
+			}
+			if(!INFOHASH.matcher(hex).matches()) {
+				if(id != null)
+					send("error\t" + id + "\tmalformed infohash\n");
+				return;
+			}
+			
+			requestReceived(this, id, new Key(hex2ary(hex)));
 		}
 		
 		ByteBuffer writeBuffer;
@@ -198,25 +520,42 @@ public class ActiveLookupProvider implements Component {
 					if(writeBuffer == null) {
 						writePending = false;
 						manager.interestOpsChanged(this);
+						// a send may have raced with clearing the flag
+						if(!toWrite.isEmpty()) {
+							writePending = true;
+							continue;
+						}
 						return;
 					}
 					
-					if(chan.write(writeBuffer) == 0)
+					int written = chan.write(writeBuffer);
+					bufferedBytes.addAndGet(-written);
+					if(written == 0)
 						break;
 					
 					
 				}
 			} catch (IOException e) {
-				chan.close();;
+				close();
 			}
 			
 			
 		}
+		
+		void close() {
+			try {
+				chan.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+			toWrite.clear();
+			connectionClosed(this);
+		}
 
 		@Override
 		public void doStateChecks(long now) throws IOException {
-			// TODO Auto-generated method stub
-			
+			if(!chan.isOpen())
+				connectionClosed(this);
 		}
 
 		@Override
@@ -237,7 +576,7 @@ public class ActiveLookupProvider implements Component {
 		public Server() throws IOException {
 			chan = ServerSocketChannel.open();
 			chan.configureBlocking(false);
-			chan.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[16]), 36578));
+			chan.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[16]), PORT));
 		}
 
 		@Override
@@ -256,7 +595,14 @@ public class ActiveLookupProvider implements Component {
 			if(key.isValid() && key.isAcceptable()) {
 				SocketChannel c;
 				while((c = chan.accept()) != null) {
-					new Connection(c);
+					Connection conn = new Connection(c);
+					connections.add(conn);
+					// stop() may have run between accept and add
+					if(stopped) {
+						conn.close();
+						continue;
+					}
+					manager.register(conn);
 				}
 			}
 				
@@ -264,8 +610,8 @@ public class ActiveLookupProvider implements Component {
 
 		@Override
 		public void doStateChecks(long now) throws IOException {
-			// TODO Auto-generated method stub
-			
+			// retry lookups that were deferred due to lack of task capacity
+			dispatch();
 		}
 
 		@Override
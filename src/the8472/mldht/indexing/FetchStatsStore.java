@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.indexing;
+
+import the8472.bencode.BEncoder;
+import the8472.mldht.indexing.TorrentDumper.FetchStats;
+import the8472.mldht.indexing.TorrentDumper.FetchStats.State;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment store for {@link FetchStats}. All records live in a handful of large segment files, an in-memory index per state
+ * maps keys to record locations and holds the fields needed for purging, so the common operations only touch the index and do sequential appends.
+ *
+ * <p>
+ * Record layout: <code>length:int crc32:int type:byte key:20 [bencoded stats]</code>, where the crc covers everything after the header.
+ * Deletes append tombstones. Segments whose live data drops below half their size get compacted by copying their live records to the active segment.
+ * </p>
+ */
+class FetchStatsStore implements AutoCloseable {
+
+	static final int RECORD_HEADER_SIZE = 8;
+	static final int MAX_RECORD_SIZE = 8*1024;
+	static final long SEGMENT_SIZE = 64*1024*1024;
+
+	static final byte TYPE_PUT = 1;
+	static final byte TYPE_DELETE = 2;
+
+	static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+	static class Segment {
+		final int id;
+		final Path file;
+		final FileChannel channel;
+		long size;
+		long liveBytes;
+
+		Segment(int id, Path file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+	}
+
+	static class IndexEntry {
+		final Segment segment;
+		final long offset;
+		final int length;
+		final long creationTime;
+		final long lastFetchTime;
+		final int insertCount;
+
+		IndexEntry(Segment segment, long offset, int length, FetchStats st) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.creationTime = st.creationTime;
+			this.lastFetchTime = st.lastFetchTime;
+			this.insertCount = st.insertCount;
+		}
+
+		FetchStats summary(Key k, State state) {
+			return new FetchStats(k, fs -> {
+				fs.recentSources = new ArrayList<>();
+				fs.creationTime = creationTime;
+				fs.lastFetchTime = lastFetchTime;
+				fs.insertCount = insertCount;
+				fs.state = state;
+			});
+		}
+	}
+
+	final Path dir;
+	final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	final Map<State, ConcurrentSkipListMap<Key, IndexEntry>> index = new EnumMap<>(State.class);
+
+	final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE + MAX_RECORD_SIZE);
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE + MAX_RECORD_SIZE);
+	final CRC32 crc = new CRC32();
+
+	long compactions;
+
+	FetchStatsStore(Path dir) throws IOException {
+		this.dir = dir;
+		for(State st : State.values())
+			index.put(st, new ConcurrentSkipListMap<>());
+
+		Files.createDirectories(dir);
+
+		List<Path> files;
+		try(Stream<Path> st = Files.list(dir)) {
+			files = st.filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches()).collect(Collectors.toList());
+		}
+
+		for(Path p : files) {
+			Matcher m = SEGMENT_NAME.matcher(p.getFileName().toString());
+			m.matches();
+			int id = Integer.parseInt(m.group(1));
+			segments.put(id, new Segment(id, p));
+		}
+
+		for(Segment s : segments.values())
+			replay(s, s == segments.lastEntry().getValue());
+
+		if(segments.isEmpty())
+			newSegment();
+	}
+
+	Segment newSegment() throws IOException {
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment s = new Segment(id, dir.resolve("segment-" + id + ".log"));
+		segments.put(id, s);
+		return s;
+	}
+
+	Segment active() {
+		return segments.lastEntry().getValue();
+	}
+
+	/**
+	 * @return the number of bytes of valid records
+	 */
+	long scan(Segment s, RecordVisitor visitor) throws IOException {
+		if(s.size == 0)
+			return 0;
+
+		MappedByteBuffer map = s.channel.map(MapMode.READ_ONLY, 0, s.size);
+
+		CRC32 check = new CRC32();
+
+		while(map.remaining() >= RECORD_HEADER_SIZE) {
+			int offset = map.position();
+			int length = map.getInt();
+			int expectedCrc = map.getInt();
+
+			if(length < 1 + Key.SHA1_HASH_LENGTH || length > MAX_RECORD_SIZE || length > map.remaining())
+				return offset;
+
+			ByteBuffer payload = map.slice();
+			payload.limit(length);
+			check.reset();
+			check.update(payload.duplicate());
+			if((int)check.getValue() != expectedCrc)
+				return offset;
+
+			map.position(map.position() + length);
+
+			byte type = payload.get();
+			byte[] rawKey = new byte[Key.SHA1_HASH_LENGTH];
+			payload.get(rawKey);
+
+			visitor.visit(offset, RECORD_HEADER_SIZE + length, type, new Key(rawKey), payload);
+		}
+
+		return map.position();
+	}
+
+	interface RecordVisitor {
+		void visit(long offset, int length, byte type, Key k, ByteBuffer body) throws IOException;
+	}
+
+	void replay(Segment s, boolean last) throws IOException {
+		long valid = scan(s, (offset, length, type, k, body) -> {
+			removeFromIndex(k);
+			if(type == TYPE_PUT) {
+				FetchStats st = FetchStats.fromBencoded(ThreadLocalUtils.getDecoder().decode(body));
+				index.get(st.state).put(k, new IndexEntry(s, offset, length, st));
+				s.liveBytes += length;
+			}
+		});
+
+		if(valid < s.size) {
+			DHT.log("fetch stats segment " + s.file + " has " + (s.size - valid) + " bytes of invalid data at its end" + (last ? ", truncating" : ""), LogLevel.Error);
+			if(last) {
+				s.channel.truncate(valid);
+				s.size = valid;
+			}
+		}
+	}
+
+	Optional<IndexEntry> removeFromIndex(Key k) {
+		for(ConcurrentSkipListMap<Key, IndexEntry> m : index.values()) {
+			IndexEntry e = m.remove(k);
+			if(e != null) {
+				e.segment.liveBytes -= e.length;
+				return Optional.of(e);
+			}
+		}
+		return Optional.empty();
+	}
+
+	Optional<State> stateOf(Key k) {
+		for(Map.Entry<State, ConcurrentSkipListMap<Key, IndexEntry>> e : index.entrySet()) {
+			if(e.getValue().containsKey(k))
+				return Optional.of(e.getKey());
+		}
+		return Optional.empty();
+	}
+
+	public boolean contains(Key k) {
+		return stateOf(k).isPresent();
+	}
+
+	public synchronized Optional<FetchStats> get(Key k) throws IOException {
+		for(ConcurrentSkipListMap<Key, IndexEntry> m : index.values()) {
+			IndexEntry e = m.get(k);
+			if(e != null)
+				return Optional.of(read(e));
+		}
+		return Optional.empty();
+	}
+
+	FetchStats read(IndexEntry e) throws IOException {
+		ByteBuffer buf = readBuffer;
+		buf.clear();
+		buf.limit(e.length);
+		while(buf.hasRemaining()) {
+			if(e.segment.channel.read(buf, e.offset + buf.position()) == -1)
+				throw new IOException("unexpected end of segment " + e.segment.file);
+		}
+		buf.flip();
+		buf.position(RECORD_HEADER_SIZE + 1 + Key.SHA1_HASH_LENGTH);
+		return FetchStats.fromBencoded(ThreadLocalUtils.getDecoder().decode(buf));
+	}
+
+	long append(byte type, Key k, FetchStats st) throws IOException {
+		ByteBuffer buf = writeBuffer;
+		buf.clear();
+		buf.position(RECORD_HEADER_SIZE);
+		buf.put(type);
+		k.toBuffer(buf);
+		if(st != null)
+			encodeInto(st, buf); // flips
+		else
+			buf.flip();
+
+		int length = buf.limit() - RECORD_HEADER_SIZE;
+		buf.position(RECORD_HEADER_SIZE);
+		crc.reset();
+		crc.update(buf);
+		buf.putInt(0, length);
+		buf.putInt(4, (int) crc.getValue());
+		buf.position(0);
+
+		Segment s = active();
+		if(s.size + buf.limit() > SEGMENT_SIZE)
+			s = newSegment();
+
+		long offset = s.size;
+		while(buf.hasRemaining())
+			s.channel.write(buf, offset + buf.position());
+		s.size += buf.limit();
+
+		return offset;
+	}
+
+	/**
+	 * sources are the only part of the stats without a size limit, the least recently seen ones are dropped until the record fits
+	 */
+	static void encodeInto(FetchStats st, ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		Map<String, Object> map = st.forBencoding();
+		List<KBucketEntry> sources = new ArrayList<>(st.recentSources);
+		sources.sort(KBucketEntry.LAST_SEEN_ORDER);
+
+		while(true) {
+			try {
+				new BEncoder().encodeInto(map, buf);
+				return;
+			} catch (BufferOverflowException e) {
+				if(sources.isEmpty())
+					throw new IOException("fetch stats for " + st.k + " exceed the maximum record size");
+				sources.subList(0, (sources.size() + 1) / 2).clear();
+				map.put("sources", sources.stream().map(KBucketEntry::toBencoded).collect(Collectors.toCollection(ArrayList::new)));
+				buf.clear();
+				buf.position(start);
+			}
+		}
+	}
+
+	/**
+	 * inserts or replaces the stats, the state determines the index it ends up in
+	 */
+	public synchronized void put(FetchStats st) throws IOException {
+		long offset = append(TYPE_PUT, st.k, st);
+		int length = writeBuffer.limit();
+		Segment s = active();
+		removeFromIndex(st.k);
+		index.get(st.state).put(st.k, new IndexEntry(s, offset, length, st));
+		s.liveBytes += length;
+	}
+
+	public synchronized void remove(Key k) throws IOException {
+		if(!removeFromIndex(k).isPresent())
+			return;
+		append(TYPE_DELETE, k, null);
+	}
+
+	/**
+	 * Iterates over the keys of a state, starting at a random point of the keyspace and wrapping around, which yields a fairly random sample without a full traversal.
+	 */
+	public Stream<FetchStats> sample(State st, Predicate<Key> skip) {
+		ConcurrentSkipListMap<Key, IndexEntry> m = index.get(st);
+		Key start = Key.createRandomKey();
+		Stream<Key> keys = Stream.concat(m.tailMap(start, true).keySet().stream(), m.headMap(start, false).keySet().stream());
+
+		return keys.filter(skip.negate()).map(k -> {
+			synchronized (this) {
+				IndexEntry e = m.get(k);
+				if(e == null)
+					return null;
+				try {
+					return read(e);
+				} catch (IOException ex) {
+					DHT.log(ex, LogLevel.Error);
+					return null;
+				}
+			}
+		}).filter(x -> x != null);
+	}
+
+	/**
+	 * removes entries from a state based on their creation time, last fetch time and insert count, sources are not available to the predicate.
+	 *
+	 * @return number of removed entries
+	 */
+	public int purge(State st, Predicate<FetchStats> shouldDelete) throws IOException {
+		int removed = 0;
+		for(Iterator<Map.Entry<Key, IndexEntry>> it = index.get(st).entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Key, IndexEntry> e = it.next();
+			if(!shouldDelete.test(e.getValue().summary(e.getKey(), st)))
+				continue;
+			synchronized (this) {
+				// may have been replaced concurrently
+				if(index.get(st).get(e.getKey()) != e.getValue())
+					continue;
+				remove(e.getKey());
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * copies live records of sparse sealed segments to the active one and deletes them
+	 */
+	public synchronized void compact() throws IOException {
+		List<Segment> candidates = segments.values().stream().filter(s -> s != active() && s.liveBytes < s.size / 2).collect(Collectors.toList());
+
+		for(Segment s : candidates) {
+			boolean oldest = s == segments.firstEntry().getValue();
+
+			scan(s, (offset, length, type, k, body) -> {
+				if(type == TYPE_PUT) {
+					Optional<State> state = stateOf(k);
+					if(!state.isPresent())
+						return;
+					IndexEntry e = index.get(state.get()).get(k);
+					if(e.segment != s || e.offset != offset)
+						return;
+					put(read(e));
+				}
+				// older segments may still contain puts that the tombstone has to shadow
+				if(type == TYPE_DELETE && !oldest && !contains(k))
+					append(TYPE_DELETE, k, null);
+			});
+
+			segments.remove(s.id);
+			s.channel.close();
+			Files.deleteIfExists(s.file);
+			compactions++;
+		}
+	}
+
+	public int size(State st) {
+		return index.get(st).size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for(Segment s : segments.values()) {
+			s.channel.force(true);
+			s.channel.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("entries:");
+		index.forEach((st, m) -> b.append(' ').append(st.name().toLowerCase()).append(':').append(m.size()));
+		b.append(" segments:").append(segments.size());
+		b.append(" bytes:").append(segments.values().stream().mapToLong(s -> s.size).sum());
+		b.append(" live:").append(segments.values().stream().mapToLong(s -> s.liveBytes).sum());
+		b.append(" compactions:").append(compactions);
+		return b.toString();
+	}
+
+}
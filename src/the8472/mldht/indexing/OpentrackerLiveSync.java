@@ -14,30 +14,64 @@ import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.Collection;
-import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.messages.GetPeersRequest;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
 import the8472.mldht.Component;
 import the8472.utils.ConfigReader;
+import the8472.utils.concurrent.BlockingThreads;
+import the8472.utils.concurrent.RecordRing;
 
 public class OpentrackerLiveSync implements Component {
 	
-	TransferQueue<ByteBuffer> toSend = new LinkedTransferQueue<>();
 	DatagramChannel channel;
 	
 	byte[] id = new byte[4];
-	Thread t = new Thread(this::send);
+	Thread t;
 	volatile boolean running = true;
 	
 	private static final int HEADER_LENGTH = 0x08;
 	private static final int PEER_LENGTH = 0x1C;
 	private static final int PEERS_PER_PACKET = 50;
 	
+	static final int QUEUE_CAPACITY = 16 * 1024;
+	// partial packets are sent once their oldest record has waited this long
+	static final long FLUSH_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+	static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+	static final long STATS_INTERVAL = TimeUnit.MINUTES.toNanos(10);
+	
+	// (infohash, ip) pairs seen within this many seconds are only sent once
+	static final int DEDUP_WINDOW = 60;
+	static final int DEDUP_SLOTS = 1 << 14;
+	static final long DEDUP_TIME_MASK = 0xFFFFFF;
+	
+	final RecordRing queue = new RecordRing(PEER_LENGTH, QUEUE_CAPACITY);
+	final ThreadLocal<ByteBuffer> records = ThreadLocal.withInitial(() -> ByteBuffer.allocate(PEER_LENGTH));
+	
+	/*
+	 * direct-mapped table of recently seen pairs, each entry holds the upper bits of the pair's fingerprint and the lower 24 bits of the time in seconds.
+	 * races between producers at worst let a duplicate through
+	 */
+	final AtomicLongArray recentPairs = new AtomicLongArray(DEDUP_SLOTS);
+	
+	final LongAdder offered = new LongAdder();
+	final LongAdder deduplicated = new LongAdder();
+	final LongAdder dropped = new LongAdder();
+	volatile long packetsSent;
+	volatile long partialPackets;
+	volatile long recordsSent;
+	volatile long sendErrors;
+	
+	final long startTime = System.nanoTime();
+	
 	public OpentrackerLiveSync() {
 		ThreadLocalRandom.current().nextBytes(id);
 	}
@@ -56,8 +90,8 @@ public class OpentrackerLiveSync implements Component {
 			return;
 		}
 		
-		t.setDaemon(true);
-		t.setName("opentracker-sync");
+		// mostly parked or blocked in channel writes
+		t = BlockingThreads.newThread("opentracker-sync", this::send);
 		t.start();
 		
 		// OT-sync only supports ipv4 atm
@@ -75,45 +109,109 @@ public class OpentrackerLiveSync implements Component {
 		
 		GetPeersRequest req = (GetPeersRequest) msg;
 		
-		ByteBuffer buf = ByteBuffer.allocate(PEER_LENGTH);
-		
+		ByteBuffer buf = records.get();
+		buf.clear();
 		buf.put(req.getTarget().getHash());
 		buf.put(req.getOrigin().getAddress().getAddress());
 		buf.putShort((short) req.getOrigin().getPort());
 		buf.putShort((short) 0);
 		buf.flip();
-		toSend.add(buf);
+		
+		enqueue(buf, System.nanoTime());
 	}
 	
+	void enqueue(ByteBuffer record, long now) {
+		offered.increment();
+		
+		if(isRecentDuplicate(record, now)) {
+			deduplicated.increment();
+			return;
+		}
+		
+		if(!queue.offer(record))
+			dropped.increment();
+	}
+	
+	/**
+	 * checks and updates the dedup table with the record's infohash and ip
+	 */
+	boolean isRecentDuplicate(ByteBuffer record, long now) {
+		long fp = 0x9E3779B97F4A7C15L;
+		int pos = record.position();
+		// infohash + ipv4 address = 24 bytes
+		for(int i=0;i<24;i+=8) {
+			fp ^= record.getLong(pos + i);
+			fp *= 0xBF58476D1CE4E5B9L;
+			fp ^= fp >>> 31;
+		}
+		
+		long seconds = TimeUnit.NANOSECONDS.toSeconds(now) & DEDUP_TIME_MASK;
+		int slot = (int) (fp >>> 40) & (DEDUP_SLOTS - 1);
+		long tag = fp & ~DEDUP_TIME_MASK;
+		
+		long existing = recentPairs.get(slot);
+		if((existing & ~DEDUP_TIME_MASK) == tag && ((seconds - existing) & DEDUP_TIME_MASK) < DEDUP_WINDOW)
+			return true;
+		recentPairs.set(slot, tag | seconds);
+		return false;
+	}
 	
 	
 	void send() {
-		ByteBuffer sendBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+		ByteBuffer sendBuffer = ByteBuffer.allocateDirect(HEADER_LENGTH + PEERS_PER_PACKET * PEER_LENGTH);
 		sendBuffer.put(id);
 		sendBuffer.put(new byte[4]);
-		sendBuffer.flip();
 		
-		ByteBuffer[] buffers = new ByteBuffer[1 + PEERS_PER_PACKET];
-		buffers[0] = sendBuffer;
-
-		try {
-			while(running) {
-				for(int i = 1;i<buffers.length;i++) {
-					buffers[i] = toSend.take();
+		long oldestQueued = 0;
+		long lastStats = System.nanoTime();
+		
+		while(running) {
+			boolean polled = false;
+			while(sendBuffer.hasRemaining() && queue.poll(sendBuffer)) {
+				if(sendBuffer.position() == HEADER_LENGTH + PEER_LENGTH)
+					oldestQueued = System.nanoTime();
+				polled = true;
+			}
+			
+			long now = System.nanoTime();
+			int records = (sendBuffer.position() - HEADER_LENGTH) / PEER_LENGTH;
+			
+			if(records == PEERS_PER_PACKET || (records > 0 && now - oldestQueued >= FLUSH_TIMEOUT)) {
+				sendBuffer.flip();
+				try {
+					channel.write(sendBuffer);
+					packetsSent++;
+					recordsSent += records;
+					if(records < PEERS_PER_PACKET)
+						partialPackets++;
+				} catch (IOException e) {
+					sendErrors++;
+					if(!channel.isOpen()) {
+						running = false;
+						break;
+					}
+					DHT.log(e, LogLevel.Error);
 				}
-				
-				channel.write(buffers);
-				
-				buffers[0].rewind();
-				
+				sendBuffer.clear();
+				sendBuffer.position(HEADER_LENGTH);
+				continue;
 			}
-
-		} catch (IOException | InterruptedException e) {
-			running = false;
-			e.printStackTrace();
+			
+			if(now - lastStats > STATS_INTERVAL) {
+				lastStats = now;
+				DHT.log(toString(), LogLevel.Info);
+			}
+			
+			if(!polled)
+				LockSupport.parkNanos(IDLE_PARK);
 		}
-		
-				
+	}
+	
+	@Override
+	public String toString() {
+		double seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+		return String.format("opentracker sync: queued:%d offered:%d deduplicated:%d dropped:%d packets:%d (partial:%d) records:%d send errors:%d rate:%.1f packets/s %.1f records/s",
+				queue.size(), offered.sum(), deduplicated.sum(), dropped.sum(), packetsSent, partialPackets, recordsSent, sendErrors, packetsSent / seconds, recordsSent / seconds);
 	}
 
 	@Override
@@ -129,7 +227,6 @@ public class OpentrackerLiveSync implements Component {
 
 }
 
-
 // === OT format
 // [mcast address seems to be outdated]
 
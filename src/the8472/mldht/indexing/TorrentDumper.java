@@ -7,13 +7,10 @@ package the8472.mldht.indexing;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
-import static the8472.utils.Functional.autoclose;
-import static the8472.utils.Functional.shortCircuitingflatMap;
+import static the8472.utils.Functional.tap;
 import static the8472.utils.Functional.typedGet;
 import static the8472.utils.Functional.unchecked;
 
-import the8472.bencode.BDecoder;
-import the8472.bencode.BEncoder;
 import the8472.bt.TorrentUtils;
 import the8472.bt.UselessPeerFilter;
 import the8472.mldht.Component;
@@ -22,11 +19,13 @@ import the8472.mldht.TorrentFetcher.FetchTask;
 import the8472.mldht.indexing.TorrentDumper.FetchStats.State;
 import the8472.utils.ConfigReader;
 import the8472.utils.ShufflingBag;
+import the8472.utils.XMLUtils;
+import the8472.utils.concurrent.BlockingThreads;
 import the8472.utils.concurrent.LoggingScheduledThreadPoolExecutor;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 import the8472.utils.io.FileIO;
 
-import lbms.plugins.mldht.indexer.utils.RotatingBloomFilter;
+import lbms.plugins.mldht.indexer.utils.ConcurrentRotatingBloomFilter;
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Key;
@@ -36,6 +35,10 @@ import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.messages.AnnounceRequest;
 import lbms.plugins.mldht.kad.messages.GetPeersRequest;
 import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.tasks.SamplingEngine;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+import lbms.plugins.mldht.kad.utils.CompactKeyMap;
+import lbms.plugins.mldht.kad.utils.CompactKeySet;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
 import java.io.IOException;
@@ -46,36 +49,30 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
-import java.util.Set;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -84,22 +81,36 @@ public class TorrentDumper implements Component {
 	
 	Collection<DHT> dhts;
 	Path storageDir = Paths.get(".", "dump-storage");
+	// legacy per-infohash stats files, migrated into the store on startup
 	Path statsDir = storageDir.resolve("stats");
+	Path statsStoreDir = storageDir.resolve("stats-log");
 	Path torrentDir = storageDir.resolve("torrents");
+	Path packDir = storageDir.resolve("packs");
+	Path downloadedFilterFile = storageDir.resolve("downloaded.filter");
 	
 	private static final int MAX_STAT_FILE_SIZE = 8*1024;
 	private static final int QUOTA = 100_000;
 	
+	FetchStatsStore statsStore;
+	
 	ScheduledThreadPoolExecutor scheduler;
+	// pool threads unless virtual threads are enabled
+	Executor filesystemWork;
+	// at most one filesystem walk at a time, also lets stop() wait for them since they may not run on the scheduler
+	final AtomicBoolean filesystemBusy = new AtomicBoolean();
 	
-	ConcurrentSkipListMap<Key, FetchStats> fromMessages;
+	CompactKeyMap<FetchStats> fromMessages;
 	AtomicInteger quota = new AtomicInteger(QUOTA);
 
 	ConcurrentMap<InetAddress, Long> blocklist = new ConcurrentHashMap<>();
 	
 	TorrentFetcher fetcher;
 	UselessPeerFilter pf;
-	RotatingBloomFilter downloadedFilter;
+	ConcurrentRotatingBloomFilter downloadedFilter;
+	// null unless the pack output mode is configured
+	TorrentPack packs;
+	
+	static private final Map<String,String> namespaces = tap(new HashMap<>(), m -> m.put("xsi","http://www.w3.org/2001/XMLSchema-instance"));
 	
 	static class FetchStats {
 		final Key k;
@@ -116,12 +127,6 @@ public class TorrentDumper implements Component {
 			INITIAL,
 			PRIORITY,
 			FAILED;
-			
-			public Path stateDir(Path statsdir) {
-				return statsdir.resolve(name().toLowerCase());
-			}
-			
-			
 		}
 
 		public FetchStats(Key k, Consumer<FetchStats> init) {
@@ -201,24 +206,24 @@ public class TorrentDumper implements Component {
 			return dir.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(hex+suffix);
 		}
 		
-		public Path statsName(Path statsDir, State st) {
-			if(st == null)
-				st = state;
-			return name(st.stateDir(statsDir), ".stats");
-			
-		}
-		
 		
 	}
 
 	@Override
 	public void start(Collection<DHT> dhts, ConfigReader config) {
 		this.dhts = dhts;
-		fromMessages = new ConcurrentSkipListMap<>();
-		downloadedFilter = new RotatingBloomFilter(512*1024, 0.001f);
+		fromMessages = new CompactKeyMap<>(QUOTA);
+		try {
+			// restore from the last snapshot instead of re-probing the torrent directory for everything seen
+			downloadedFilter = ConcurrentRotatingBloomFilter.load(downloadedFilterFile, 512*1024, 0.001f, 16);
+		} catch (IOException e) {
+			log(e);
+			downloadedFilter = new ConcurrentRotatingBloomFilter(512*1024, 0.001f, 16);
+		}
 		downloadedFilter.setAutoRotate(true);
 		// purge + dump + prefetch + short-running tasks -> 4
 		scheduler = new LoggingScheduledThreadPoolExecutor(4, new LoggingScheduledThreadPoolExecutor.NamedDaemonThreadFactory("torrent dumper"), this::log);
+		filesystemWork = BlockingThreads.executorOr("torrent dumper filesystem", scheduler);
 		
 		fetcher = new TorrentFetcher(dhts);
 		
@@ -229,13 +234,16 @@ public class TorrentDumper implements Component {
 		pf = new UselessPeerFilter();
 		try {
 			Files.createDirectories(torrentDir);
-			for(State st : FetchStats.State.values()) {
-				Files.createDirectories(st.stateDir(statsDir));
-			}
+			statsStore = new FetchStatsStore(statsStoreDir);
+			if(config.get(XMLUtils.buildXPath("//components/component[@xsi:type='mldht:torrentDumperType']/outputMode", namespaces)).filter("pack"::equals).isPresent())
+				packs = TorrentPack.openForWriting(packDir);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 		
+		if(Files.isDirectory(statsDir))
+			runFilesystemTask(this::migrateLegacyStats);
+		
 		// XXX: fetcher.setPeerFilter(pf); // filter seems overly aggressive. investigate if we still need it or can improve it
 		
 		scheduler.scheduleWithFixedDelay(singleThreadedDumpStats, 10, 10, TimeUnit.SECONDS);
@@ -245,27 +253,46 @@ public class TorrentDumper implements Component {
 		scheduler.scheduleWithFixedDelay(this::diagnostics, 30, 30, TimeUnit.SECONDS);
 		scheduler.scheduleWithFixedDelay(this::scrubActive, 10, 20, TimeUnit.SECONDS);
 		scheduler.scheduleWithFixedDelay(pf::clean, 10, 10, TimeUnit.MINUTES);
+		scheduler.scheduleWithFixedDelay(this::snapshotFilter, 10, 10, TimeUnit.MINUTES);
 		scheduler.schedule(this::sampling, 2, TimeUnit.MINUTES);
 		
 		scheduler.scheduleWithFixedDelay(() -> {
 			// long-running things working on the filesystem go here to avoid blocking all threads in the pool
-			try {
-				this.purgeStats();
-			} catch (Exception e) {
-				log(e);
-			}
-			
+			runFilesystemTask(this::purgeStats);
 		}, 5, 15, TimeUnit.MINUTES);
 	}
 	
+	void runFilesystemTask(Runnable r) {
+		if(!filesystemBusy.compareAndSet(false, true))
+			return;
+		try {
+			filesystemWork.execute(() -> {
+				try {
+					r.run();
+				} catch (Exception e) {
+					log(e);
+				} finally {
+					filesystemBusy.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			filesystemBusy.set(false);
+		}
+	}
+	
 	void log(Throwable t) {
 		DHT.log(t, LogLevel.Error);
 	}
 	
+	volatile SamplingEngine sampler;
+	
 	void sampling() {
-		TaskBuilder.fromInstances(dhts).sampleInfoHashes(16, "Torrent Dumper Sampling", (k, addr, srcid) -> {
+		SamplingEngine engine = TaskBuilder.fromInstances(dhts).samplingEngine(16, "Torrent Dumper Sampling", (k, addr, srcid) -> {
 			process(k, srcid, addr, null);
-		}).whenComplete((v, ex) -> {
+		});
+		engine.setCheckpoint(storageDir.resolve("sampling.checkpoint"));
+		sampler = engine;
+		engine.start().whenComplete((v, ex) -> {
 			if(ex != null) {
 				log(ex);
 			}
@@ -344,36 +371,28 @@ public class TorrentDumper implements Component {
 	void dumpStats() {
 		long now = System.currentTimeMillis();
 		
-		ByteBuffer buf = ByteBuffer.allocateDirect(MAX_STAT_FILE_SIZE);
-		
-		List<Entry<Key, FetchStats>> workSet = new ArrayList<>();
+		List<FetchStats> workSet = new ArrayList<>();
 		
-		for(Iterator<Entry<Key, FetchStats>> it = fromMessages.entrySet().iterator(); it.hasNext();){
-			Entry<Key, FetchStats> e = it.next();
-			
-			FetchStats toStore = e.getValue();
+		fromMessages.forEach((k, toStore) -> {
 			if(torrentExists(toStore)) {
-				synchronized (downloadedFilter) {
-					downloadedFilter.insert(e.getKey().asBuffer());
-				}
-				it.remove();
-				continue;
+				downloadedFilter.insert(k.asBuffer());
+				fromMessages.remove(k, toStore);
+				return;
 			}
 			
-			workSet.add(e);
-		}
+			workSet.add(toStore);
+		});
 		
-		workSet.forEach((entry) -> {
+		workSet.forEach((toStore) -> {
 			
-			Key k = entry.getKey();
-			FetchStats toStore = entry.getValue();
+			Key k = toStore.getK();
 			
 			if(!fromMessages.remove(k, toStore))
 				return;
 			
 			try {
 				
-				Optional<Path> existing = Stream.of(toStore.statsName(statsDir, FetchStats.State.INITIAL), toStore.statsName(statsDir, FetchStats.State.FAILED), toStore.statsName(statsDir, FetchStats.State.PRIORITY)).filter(Files::isRegularFile).findFirst();
+				Optional<FetchStats> existing = statsStore.get(k);
 
 				if(!existing.isPresent()) {
 					// only throttle IPs for new hashes we don't already know about and wouldn't try anyway
@@ -382,55 +401,25 @@ public class TorrentDumper implements Component {
 				}
 				
 				if(existing.isPresent()) {
-					Path p = existing.get();
-					try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
-						buf.clear();
-						while(ch.read(buf) != -1);
-						buf.flip();
-						FetchStats old = FetchStats.fromBencoded(new BDecoder().decode(buf));
-						
-						
-						Collection<InetAddress> oldAddrs = old.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
-						Collection<InetAddress> newAddrs = toStore.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
-						
-						// avoid double-taps promoting things to the priority list
-						if(oldAddrs.containsAll(newAddrs) && old.state == FetchStats.State.INITIAL)
-							return;
-						
-						toStore.merge(old);
-						
-						if(old.state != FetchStats.State.INITIAL)
-							toStore.state = old.state;
-						
-					} catch (IOException e) {
-						log(e);
-					}
+					FetchStats old = existing.get();
+					
+					Collection<InetAddress> oldAddrs = old.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
+					Collection<InetAddress> newAddrs = toStore.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
+					
+					// avoid double-taps promoting things to the priority list
+					if(oldAddrs.containsAll(newAddrs) && old.state == FetchStats.State.INITIAL)
+						return;
+					
+					toStore.merge(old);
+					
+					if(old.state != FetchStats.State.INITIAL)
+						toStore.state = old.state;
 				}
 				
-				if(toStore.state == State.INITIAL && toStore.insertCount > 1) {
+				if(toStore.state == State.INITIAL && toStore.insertCount > 1)
 					toStore.state = State.PRIORITY;
-					if(existing.isPresent())
-						Files.deleteIfExists(existing.get());
-				}
-					
-				
-				Path statsFile = toStore.statsName(statsDir, null);
 				
-				Path tempFile = Files.createTempFile(statsDir, statsFile.getFileName().toString(), ".stats");
-				
-				try(FileChannel ch = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
-					buf.clear();
-					new BEncoder().encodeInto(toStore.forBencoding(), buf);
-					while(buf.hasRemaining())
-						ch.write(buf);
-					ch.close();
-					Files.createDirectories(statsFile.getParent());
-					Files.move(tempFile, statsFile, StandardCopyOption.ATOMIC_MOVE);
-				} catch(Exception ex) {
-					Files.deleteIfExists(tempFile);
-					throw ex;
-				}
-
+				statsStore.put(toStore);
 				
 			} catch (Exception e) {
 				log(e);
@@ -444,18 +433,16 @@ public class TorrentDumper implements Component {
 	}
 	
 	boolean torrentExists(FetchStats st) {
+		// files written before switching to packs still count
+		if(packs != null && packs.contains(st.k))
+			return true;
 		return Files.exists(st.name(torrentDir, ".torrent"));
 	}
 	
 	void purgeStats() {
-		Path failedDir = FetchStats.State.FAILED.stateDir(statsDir);
-		Path initialDir = FetchStats.State.INITIAL.stateDir(statsDir);
-		
 		long now = System.currentTimeMillis();
 		
 		try {
-			Supplier<Stream<Path>> supplyInitial = () -> unchecked(() -> fetchStatsStream(Stream.of(initialDir)));
-			Supplier<Stream<Path>> supplyFailed = () -> unchecked(() -> fetchStatsStream(Stream.of(failedDir)));
 			Predicate<FetchStats> deleteInitial = stat -> now - stat.creationTime > TimeUnit.DAYS.toMillis(4);
 			Predicate<FetchStats> deleteFailed = stat -> {
 				long timeSinceFetch = now - stat.lastFetchTime;
@@ -471,135 +458,55 @@ public class TorrentDumper implements Component {
 				return timeSinceFetch > timeToFetch * 4 ;
 			};
 			
-			BiConsumer<Supplier<Stream<Path>>, Predicate<FetchStats>> doDeletes = (a, b) -> {
-				unchecked(() -> {
-					// probe first 100, only do a full pass if > N% are eligible for deletion
-					boolean doFullIteration = autoclose(a, (p) -> {
-						long cnt = filesToFetchers(p)
-							.filter(Objects::nonNull)
-							.limit(100)
-							.filter(b)
-							.count();
-						return cnt > 33;
-					});
-					
-					if(doFullIteration) {
-						autoclose(a, p -> {
-							filesToFetchers(p).filter(Objects::nonNull)
-								.filter(b)
-								.map(stat -> stat.statsName(statsDir, null))
-								.forEach(path -> unchecked(() -> Files.deleteIfExists(path)));
-							return null;
-						});
-					}
-					
-					return null;
-				});
-				
-			};
-			
-			doDeletes.accept(supplyInitial, deleteInitial);
-			doDeletes.accept(supplyFailed, deleteFailed);
-			
-
+			statsStore.purge(State.INITIAL, deleteInitial);
+			statsStore.purge(State.FAILED, deleteFailed);
+			statsStore.compact();
 		} catch (Exception e) {
 			log(e);
 		}
-
-		/*
-		// 0 -> stats, 1 -> {failed|initial|prio}, 2 -> 00, 3 -> 00/00
-		try (Stream<Path> st = Files.find(statsDir, 3, (p, attr) -> attr.isDirectory())) {
-			st.filter(d -> {
-				try (DirectoryStream<Path> dst = Files.newDirectoryStream(d)) {
-					return !dst.iterator().hasNext();
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				}
-			}).forEach(d -> {
+	}
+	
+	/**
+	 * imports stats files written by previous versions into the store and deletes them
+	 */
+	void migrateLegacyStats() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(MAX_STAT_FILE_SIZE);
+		int[] migrated = new int[1];
+		
+		try(Stream<Path> st = Files.walk(statsDir)) {
+			st.filter(p -> p.getFileName().toString().endsWith(".stats")).forEach(p -> {
 				try {
-					Files.deleteIfExists(d);
-				} catch(DirectoryNotEmptyException e) {
-					// someone on another thread wrote to it. do nothing
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
+					try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+						buf.clear();
+						while(ch.read(buf) > 0);
+						buf.flip();
+					}
+					FetchStats stats = FetchStats.fromBencoded(ThreadLocalUtils.getDecoder().decode(buf));
+					Optional<FetchStats> existing = statsStore.get(stats.k);
+					if(existing.isPresent()) {
+						State newest = existing.get().state;
+						stats.merge(existing.get());
+						stats.state = newest;
+					}
+					statsStore.put(stats);
+					Files.delete(p);
+					migrated[0]++;
+				} catch (IOException | RuntimeException e) {
+					log(e);
 				}
 			});
-		} catch (UncheckedIOException | IOException e) {
+		} catch (IOException | UncheckedIOException e) {
 			log(e);
-		}*/
-
-			
-		
-		
-	}
-	
-	
-	Stream<Path> dirShuffler(Path p) {
-		if(!Files.isDirectory(p))
-			return null;
-		List<Path> sub;
-		try(Stream<Path> st = Files.list(p)) {
-			sub = st.collect(Collectors.toList());
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
 		}
-		if(sub.isEmpty())
-			try {
-				Files.delete(p);
-			} catch (IOException e) {
-				// ignore, it's an opportunistic delete
-			}
-		Collections.shuffle(sub);
-		return sub.stream();
-	}
-	
-	
-	Stream<Path> fetchStatsStream(Stream<Path> rootDirs) throws IOException {
 		
+		// remove the now-empty directory tree, deepest entries first
+		try(Stream<Path> st = Files.walk(statsDir)) {
+			st.sorted(Comparator.reverseOrder()).forEach(p -> unchecked(() -> Files.deleteIfExists(p)));
+		} catch (IOException | RuntimeException e) {
+			log(e);
+		}
 		
-		
-
-
-		// this does not use a true shuffle, the stream will emit some clusters at the 8bit keyspace granularity
-		// it's closer to linear scan from a random starting point
-		// but polling in small batches should lead to reasonable task randomization without expensive full directory traversal
-		Stream<Path> leafs = shortCircuitingflatMap(rootDirs, (d -> {
-			Stream<Path> sublevel = Stream.of(d);
-			sublevel = shortCircuitingflatMap(sublevel, this::dirShuffler);
-			sublevel = shortCircuitingflatMap(sublevel, this::dirShuffler);
-			sublevel = shortCircuitingflatMap(sublevel, this::dirShuffler);
-			return sublevel;
-		}));
-
-		
-		return leafs;
-	}
-	
-	Stream<FetchStats> filesToFetchers(Stream<Path> st) {
-		Set<Key> skip = skipSet();
-		
-		ThreadLocal<ByteBuffer> bufProvider = new ThreadLocal<>();
-		bufProvider.set(ByteBuffer.allocateDirect(MAX_STAT_FILE_SIZE));
-		
-		return st.filter(p -> {
-			Key k = new Key(p.getFileName().toString().substring(0, 40));
-			return !skip.contains(k);
-		}).map(p -> {
-			try(FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
-				ByteBuffer buf = bufProvider.get();
-				buf.clear();
-				while(-1 != ch.read(buf))
-				buf.flip();
-				return FetchStats.fromBencoded(ThreadLocalUtils.getDecoder().decode(buf));
-			} catch(NoSuchFileException ex) {
-				// expect async deletes
-				return null;
-			} catch(IOException ex) {
-				log(ex);
-				return null;
-			}
-		}).filter(Objects::nonNull);
-		
+		DHT.log("migrated " + migrated[0] + " legacy fetch stats files to " + statsStoreDir, LogLevel.Info);
 	}
 	
 	// avoids that adjacent tasks are started at the same time. interleaving them with other tasks allows for better cache-priming
@@ -608,10 +515,10 @@ public class TorrentDumper implements Component {
 	Runnable singleThreadedPrefetch = SerializedTaskExecutor.onceMore(this::prefetch);
 	
 	
-	Set<Key> skipSet() {
-		Set<Key> dedup = new HashSet<>();
+	CompactKeySet skipSet() {
+		CompactKeySet dedup = new CompactKeySet(activeTasks.size() + maxFetches());
 		
-		dedup.addAll(activeTasks.keySet());
+		activeTasks.keySet().forEach(dedup::add);
 		synchronized (toFetchNext) {
 			toFetchNext.stream().map(FetchStats::getK).forEach(dedup::add);
 		}
@@ -626,20 +533,16 @@ public class TorrentDumper implements Component {
 		}
 
 		
-		Set<Key> dedup = skipSet();
+		CompactKeySet dedup = skipSet();
 		
 		
 		try {
-			Path prio = FetchStats.State.PRIORITY.stateDir(statsDir);
-			Path normal = FetchStats.State.INITIAL.stateDir(statsDir);
-			
-
 			// strides of 8 * maxtasks/4. should be >= low watermark
 			int strides = maxFetches() / 4;
 			int[] added = new int[1];
 			for(int i = 0;i< strides ;i++) {
-				Stream<FetchStats> pst = filesToFetchers(fetchStatsStream(Stream.of(prio))).limit(200);
-				Stream<FetchStats> nst = filesToFetchers(fetchStatsStream(Stream.of(normal))).limit(200);
+				Stream<FetchStats> pst = statsStore.sample(State.PRIORITY, dedup::contains).limit(200);
+				Stream<FetchStats> nst = statsStore.sample(State.INITIAL, dedup::contains).limit(200);
 				
 				try(Stream<FetchStats> st = Stream.concat(pst, nst)) {
 					st.filter(stats -> !dedup.contains(stats.k)).limit(8).forEach(e -> {
@@ -652,32 +555,30 @@ public class TorrentDumper implements Component {
 					
 				};
 			}
-			int remaining = strides * 8 - added[0];
+			int[] remaining = {strides * 8 - added[0]};
 			
 			// if we have not found enough stats on the filesystem steal directly from the unprocessed incoming messages
-			for(Iterator<Entry<Key, FetchStats>> it = fromMessages.subMap(Key.createRandomKey(), true, Key.MAX_KEY, true).entrySet().iterator();it.hasNext(); ) {
-				if(remaining <= 0)
-					break;
-				Map.Entry<Key, FetchStats> e = it.next();
-				if(dedup.contains(e.getKey()))
-					continue;
-				if(!fromMessages.remove(e.getKey(), e.getValue()))
-					continue;
+			fromMessages.forEachFrom(Key.createRandomKey(), (k, stats) -> {
+				if(remaining[0] <= 0)
+					return false;
+				if(dedup.contains(k))
+					return true;
+				if(!fromMessages.remove(k, stats))
+					return true;
 				
-				if(torrentExists(e.getValue())) {
-					synchronized (downloadedFilter) {
-						downloadedFilter.insert(e.getKey().asBuffer());
-					}
-					continue;
+				if(torrentExists(stats)) {
+					downloadedFilter.insert(k.asBuffer());
+					return true;
 				}
 					
 				
-				dedup.add(e.getKey());
+				dedup.add(k);
 				synchronized (toFetchNext) {
-					toFetchNext.add(e.getValue());
+					toFetchNext.add(stats);
 				}
-				remaining--;
-			}
+				remaining[0]--;
+				return true;
+			});
 		} catch (Exception e) {
 			log(e);
 		}
@@ -742,6 +643,7 @@ public class TorrentDumper implements Component {
 				lookup.setFastTerminate(true);
 				lookup.filterKnownUnreachableNodes(true);
 				lookup.setLowPriority(true);
+				lookup.setSchedulingClass(SchedulingClass.BULK);
 			});
 		});
 		
@@ -760,49 +662,67 @@ public class TorrentDumper implements Component {
 		});
 		activeTasks.remove(t.infohash());
 		try {
-			for(FetchStats.State st : FetchStats.State.values()) {
-				Files.deleteIfExists(stats.statsName(statsDir, st));
-			}
-			
 			Optional<ByteBuffer> result = t.getResult();
 			
 			if(!result.isPresent()) {
-				stats.setState(FetchStats.State.FAILED);
-				stats.fetchCount++;
-				stats.lastFetchTime = System.currentTimeMillis();
-				
-				Path failedStatsFile = stats.statsName(statsDir, null);
-				Files.createDirectories(failedStatsFile.getParent());
-				
-				try(FileChannel statsChan = FileChannel.open(failedStatsFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
-					statsChan.write(new BEncoder().encode(stats.forBencoding(), 4*1024));
-				}
+				fetchFailed(stats);
 				return;
 			}
 			ByteBuffer infoDict = result.get();
 			
-			Path torrentFile = stats.name(torrentDir, ".torrent");
-			Files.createDirectories(torrentFile.getParent());
-			
-			try(FileChannel chan = FileChannel.open(torrentFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
-				ByteBuffer torrent = TorrentUtils.wrapBareInfoDictionary(infoDict);
-				while(torrent.hasRemaining())
-					chan.write(torrent);
-			}
-			synchronized (downloadedFilter) {
-				downloadedFilter.insert(stats.k.asBuffer());
+			if(packs != null) {
+				// false also means it was already stored, which is fine
+				if(!packs.append(stats.k, infoDict) && !packs.contains(stats.k)) {
+					DHT.log("torrent dumper: pack rejected info dictionary for " + stats.k.toString(false), LogLevel.Error);
+					fetchFailed(stats);
+					return;
+				}
+			} else {
+				Path torrentFile = stats.name(torrentDir, ".torrent");
+				Files.createDirectories(torrentFile.getParent());
+				
+				try(FileChannel chan = FileChannel.open(torrentFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					ByteBuffer torrent = TorrentUtils.wrapBareInfoDictionary(infoDict);
+					while(torrent.hasRemaining())
+						chan.write(torrent);
+				}
 			}
+			downloadedFilter.insert(stats.k.asBuffer());
+			statsStore.remove(stats.k);
 		} catch (Exception e) {
 			log(e);
 		}
 		scheduler.execute(singleThreadedFetches);
 	}
 	
+	void fetchFailed(FetchStats stats) throws IOException {
+		stats.setState(FetchStats.State.FAILED);
+		stats.fetchCount++;
+		stats.lastFetchTime = System.currentTimeMillis();
+		
+		statsStore.put(stats);
+	}
+	
+	void snapshotFilter() {
+		try {
+			downloadedFilter.snapshot(downloadedFilterFile);
+		} catch (IOException e) {
+			log(e);
+		}
+	}
+	
 	void diagnostics() {
 		try {
 			FileIO.writeAndAtomicMove(storageDir.resolve("dumper.log"), (p) -> {
-				p.format("Fetcher:%n established: %d%n sockets: %d%n%n adaptive timeout:%n%s %n%n", fetcher.openConnections(), fetcher.socketcount(), fetcher.adaptiveConnectTimeoutHistogram());
+				p.format("Fetcher:%n established: %d%n sockets: %d%n lookups pending: %d active: %d%n%n adaptive timeout:%n%s %n%n completion latency:%n%s%n", fetcher.openConnections(), fetcher.socketcount(), fetcher.pendingLookups(), fetcher.activeLookups(), fetcher.adaptiveConnectTimeoutHistogram(), fetcher.completionLatencyHistogram());
 				
+				p.format("Stats store: %s%n%n", statsStore);
+				p.format("Downloaded filter: %s%n%n", downloadedFilter);
+				if(packs != null)
+					p.format("Torrent packs: %s%n%n", packs);
+				SamplingEngine engine = sampler;
+				if(engine != null)
+					p.format("Sampling: %s%n%n", engine);
 				p.format("FetchTasks: %d %n", activeCount.get());
 				activeTasks.values().forEach(ft -> {
 					p.println(ft.toString());
@@ -817,7 +737,21 @@ public class TorrentDumper implements Component {
 	@Override
 	public void stop() {
 		scheduler.shutdown();
+		if(sampler != null)
+			sampler.stop();
 		activeTasks.values().forEach(FetchTask::stop);
+		try {
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while(filesystemBusy.get() && System.nanoTime() < deadline)
+				Thread.sleep(50);
+			statsStore.close();
+			if(packs != null)
+				packs.close();
+			downloadedFilter.snapshot(downloadedFilterFile);
+		} catch (IOException | InterruptedException e) {
+			log(e);
+		}
 	}
 
 }
@@ -0,0 +1,523 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.indexing;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.utils.CompactKeyMap;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores bare info dictionaries in a few large append-only pack files instead of one file per torrent.
+ *
+ * <p>
+ * Record layout: <code>length:int crc32:int infohash:20 info-dictionary</code>, where the crc covers everything after the header.
+ * Once a pack reaches its size limit it is sealed by writing a sidecar index:
+ * <code>magic:int version:int packSize:long count:int bloomWords:int [bloom:long]* [infohash:20 offset:long length:int]*</code>
+ * with entries sorted by infohash. Lookups in sealed packs check the Bloom front and then binary-search the memory-mapped index.
+ * The pack currently being appended to, or any pack whose index is missing or stale, is indexed in memory by scanning it.
+ * </p>
+ *
+ * <p>
+ * Only a single writer may have a directory open, any number of read-only instances may be opened concurrently (e.g. by the CLI).
+ * </p>
+ */
+public class TorrentPack implements AutoCloseable {
+
+	static final int RECORD_HEADER_SIZE = 8;
+	static final int MAX_RECORD_SIZE = 32 * 1024 * 1024;
+	static final long DEFAULT_PACK_SIZE = 1024L * 1024 * 1024;
+
+	static final int INDEX_MAGIC = 0x54504958; // TPIX
+	static final int INDEX_VERSION = 1;
+	static final int INDEX_HEADER_SIZE = 24;
+	static final int INDEX_ENTRY_SIZE = Key.SHA1_HASH_LENGTH + 8 + 4;
+	static final int BLOOM_BITS_PER_ENTRY = 10;
+	static final int BLOOM_HASHES = 7;
+
+	static final Pattern PACK_NAME = Pattern.compile("pack-(\\d+)\\.dat");
+
+	static abstract class Pack {
+		final int id;
+		final Path file;
+		final FileChannel channel;
+
+		Pack(int id, Path file, FileChannel channel) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		/**
+		 * @return the offset of the record or -1
+		 */
+		abstract long find(Key k);
+
+		abstract int size();
+
+		abstract Stream<Key> keys();
+	}
+
+	/**
+	 * pack with a memory-mapped sidecar index, immutable
+	 */
+	static class SealedPack extends Pack {
+		final MappedByteBuffer index;
+		final int count;
+		final int bloomWords;
+		final int entriesOffset;
+
+		SealedPack(int id, Path file, FileChannel channel, MappedByteBuffer index) {
+			super(id, file, channel);
+			this.index = index;
+			this.count = index.getInt(16);
+			this.bloomWords = index.getInt(20);
+			this.entriesOffset = INDEX_HEADER_SIZE + bloomWords * 8;
+		}
+
+		@Override
+		long find(Key k) {
+			if(!bloomContains(index, INDEX_HEADER_SIZE, bloomWords, k))
+				return -1;
+
+			int low = 0;
+			int high = count - 1;
+			while(low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = compare(index, entriesOffset + mid * INDEX_ENTRY_SIZE, k);
+				if(cmp < 0)
+					low = mid + 1;
+				else if(cmp > 0)
+					high = mid - 1;
+				else
+					return index.getLong(entriesOffset + mid * INDEX_ENTRY_SIZE + Key.SHA1_HASH_LENGTH);
+			}
+			return -1;
+		}
+
+		@Override
+		int size() {
+			return count;
+		}
+
+		@Override
+		Stream<Key> keys() {
+			return IntStream.range(0, count).mapToObj(i -> {
+				byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+				ByteBuffer dup = index.duplicate();
+				dup.position(entriesOffset + i * INDEX_ENTRY_SIZE);
+				dup.get(raw);
+				return new Key(raw);
+			});
+		}
+	}
+
+	/**
+	 * pack indexed in memory, the active pack of a writer grows
+	 */
+	static class OpenPack extends Pack {
+		final CompactKeyMap<Long> offsets = new CompactKeyMap<>(1024);
+		volatile long size;
+
+		OpenPack(int id, Path file, FileChannel channel) throws IOException {
+			super(id, file, channel);
+			size = channel.size();
+		}
+
+		@Override
+		long find(Key k) {
+			Long offset = offsets.get(k);
+			return offset != null ? offset : -1;
+		}
+
+		@Override
+		int size() {
+			return offsets.size();
+		}
+
+		@Override
+		Stream<Key> keys() {
+			List<Key> keys = new ArrayList<>(offsets.size());
+			offsets.forEach((k, v) -> keys.add(k));
+			return keys.stream();
+		}
+	}
+
+	final Path dir;
+	final boolean writable;
+	final List<Pack> packs = new CopyOnWriteArrayList<>();
+	OpenPack active;
+	long packSize = DEFAULT_PACK_SIZE;
+
+	final CRC32 crc = new CRC32();
+	long appended;
+	long rejected;
+
+	TorrentPack(Path dir, boolean writable) {
+		this.dir = dir;
+		this.writable = writable;
+	}
+
+	/**
+	 * opens a pack directory for appending, packs without valid index except the last one get sealed
+	 */
+	static TorrentPack openForWriting(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		TorrentPack tp = new TorrentPack(dir, true);
+		tp.load();
+		return tp;
+	}
+
+	public static TorrentPack openReadOnly(Path dir) throws IOException {
+		TorrentPack tp = new TorrentPack(dir, false);
+		tp.load();
+		return tp;
+	}
+
+	void load() throws IOException {
+		TreeMap<Integer, Path> files = new TreeMap<>();
+		if(Files.isDirectory(dir)) {
+			try(Stream<Path> st = Files.list(dir)) {
+				st.forEach(p -> {
+					Matcher m = PACK_NAME.matcher(p.getFileName().toString());
+					if(m.matches())
+						files.put(Integer.parseInt(m.group(1)), p);
+				});
+			}
+		}
+
+		for(Map.Entry<Integer, Path> e : files.entrySet()) {
+			boolean last = e.getKey().equals(files.lastKey());
+			int id = e.getKey();
+			Path file = e.getValue();
+			FileChannel chan = writable && last ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(file, StandardOpenOption.READ);
+
+			Optional<MappedByteBuffer> idx = mapIndex(indexFile(file), chan.size());
+			if(idx.isPresent()) {
+				packs.add(new SealedPack(id, file, chan, idx.get()));
+				continue;
+			}
+
+			OpenPack p = new OpenPack(id, file, chan);
+			long valid = scan(p);
+			if(valid < p.size) {
+				DHT.log("torrent pack " + file + " has " + (p.size - valid) + " bytes of invalid data at its end" + (writable && last ? ", truncating" : ""), LogLevel.Error);
+				if(writable && last) {
+					chan.truncate(valid);
+					p.size = valid;
+				}
+			}
+
+			if(writable && !last) {
+				packs.add(seal(p));
+			} else {
+				packs.add(p);
+				if(writable)
+					active = p;
+			}
+		}
+
+		if(writable && active == null)
+			newPack();
+	}
+
+	static Path indexFile(Path pack) {
+		return pack.resolveSibling(pack.getFileName().toString().replace(".dat", ".idx"));
+	}
+
+	/**
+	 * @return the index if it exists and was written for a pack of the given size
+	 */
+	static Optional<MappedByteBuffer> mapIndex(Path idx, long packSize) throws IOException {
+		if(!Files.isRegularFile(idx))
+			return Optional.empty();
+		try(FileChannel chan = FileChannel.open(idx, StandardOpenOption.READ)) {
+			if(chan.size() < INDEX_HEADER_SIZE)
+				return Optional.empty();
+			MappedByteBuffer map = chan.map(MapMode.READ_ONLY, 0, chan.size());
+			if(map.getInt(0) != INDEX_MAGIC || map.getInt(4) != INDEX_VERSION || map.getLong(8) != packSize)
+				return Optional.empty();
+			long expectedSize = INDEX_HEADER_SIZE + map.getInt(20) * 8L + map.getInt(16) * (long) INDEX_ENTRY_SIZE;
+			if(expectedSize != chan.size())
+				return Optional.empty();
+			return Optional.of(map);
+		}
+	}
+
+	void newPack() throws IOException {
+		int id = packs.isEmpty() ? 0 : packs.get(packs.size() - 1).id + 1;
+		Path file = dir.resolve(String.format("pack-%06d.dat", id));
+		active = new OpenPack(id, file, FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		packs.add(active);
+	}
+
+	/**
+	 * @return the number of bytes of valid records
+	 */
+	long scan(OpenPack p) throws IOException {
+		if(p.size == 0)
+			return 0;
+
+		MappedByteBuffer map = p.channel.map(MapMode.READ_ONLY, 0, p.size);
+		CRC32 check = new CRC32();
+
+		while(map.remaining() >= RECORD_HEADER_SIZE) {
+			int offset = map.position();
+			int length = map.getInt();
+			int expectedCrc = map.getInt();
+
+			if(length <= Key.SHA1_HASH_LENGTH || length > MAX_RECORD_SIZE || length > map.remaining())
+				return offset;
+
+			ByteBuffer payload = map.slice();
+			payload.limit(length);
+			check.reset();
+			check.update(payload.duplicate());
+			if((int) check.getValue() != expectedCrc)
+				return offset;
+
+			map.position(map.position() + length);
+
+			byte[] rawKey = new byte[Key.SHA1_HASH_LENGTH];
+			payload.get(rawKey);
+			p.offsets.put(new Key(rawKey), (long) offset);
+		}
+
+		return map.position();
+	}
+
+	static void readFully(FileChannel chan, ByteBuffer buf, long position) throws IOException {
+		long pos = position;
+		while(buf.hasRemaining()) {
+			int read = chan.read(buf, pos);
+			if(read < 0)
+				throw new IOException("unexpected end of pack");
+			pos += read;
+		}
+	}
+
+	/**
+	 * writes the sorted index and bloom front of a pack that won't receive further appends
+	 */
+	SealedPack seal(OpenPack p) throws IOException {
+		List<Map.Entry<Key, Long>> entries = new ArrayList<>(p.offsets.size());
+		p.offsets.forEach((k, off) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(k, off)));
+		Collections.sort(entries, Map.Entry.comparingByKey());
+
+		int bloomWords = Math.max(1, Integer.highestOneBit(Math.max(1, entries.size() * BLOOM_BITS_PER_ENTRY / 64 - 1)) << 1);
+		ByteBuffer buf = ByteBuffer.allocate(INDEX_HEADER_SIZE + bloomWords * 8 + entries.size() * INDEX_ENTRY_SIZE);
+		buf.putInt(INDEX_MAGIC);
+		buf.putInt(INDEX_VERSION);
+		buf.putLong(p.size);
+		buf.putInt(entries.size());
+		buf.putInt(bloomWords);
+		for(Map.Entry<Key, Long> e : entries)
+			bloomInsert(buf, INDEX_HEADER_SIZE, bloomWords, e.getKey());
+		buf.position(INDEX_HEADER_SIZE + bloomWords * 8);
+
+		ByteBuffer header = ByteBuffer.allocate(4);
+		for(Map.Entry<Key, Long> e : entries) {
+			header.clear();
+			readFully(p.channel, header, e.getValue());
+			e.getKey().toBuffer(buf);
+			buf.putLong(e.getValue());
+			buf.putInt(RECORD_HEADER_SIZE + header.getInt(0));
+		}
+		buf.flip();
+
+		Path idx = indexFile(p.file);
+		Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+		try(FileChannel chan = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(buf.hasRemaining())
+				chan.write(buf);
+			chan.force(true);
+		}
+		Files.move(tmp, idx, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		return new SealedPack(p.id, p.file, p.channel, mapIndex(idx, p.size).orElseThrow(() -> new IOException("failed to write index " + idx)));
+	}
+
+	/*
+	 * infohashes are uniformly distributed, so two words of the key itself serve as the base hashes for double hashing
+	 */
+
+	static void bloomInsert(ByteBuffer buf, int offset, int words, Key k) {
+		long h1 = k0(k);
+		long h2 = k1(k) | 1;
+		long mask = words * 64L - 1;
+		for(int i=0;i<BLOOM_HASHES;i++) {
+			long bit = (h1 + i * h2) & mask;
+			int pos = offset + (int) (bit >>> 6) * 8;
+			buf.putLong(pos, buf.getLong(pos) | (1L << bit));
+		}
+	}
+
+	static boolean bloomContains(ByteBuffer buf, int offset, int words, Key k) {
+		long h1 = k0(k);
+		long h2 = k1(k) | 1;
+		long mask = words * 64L - 1;
+		for(int i=0;i<BLOOM_HASHES;i++) {
+			long bit = (h1 + i * h2) & mask;
+			if((buf.getLong(offset + (int) (bit >>> 6) * 8) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	static long k0(Key k) {
+		return ((long) k.getInt(0) << 32) | (k.getInt(4) & 0xFFFF_FFFFL);
+	}
+
+	static long k1(Key k) {
+		return ((long) k.getInt(8) << 32) | (k.getInt(12) & 0xFFFF_FFFFL);
+	}
+
+	static int compare(ByteBuffer index, int offset, Key k) {
+		for(int i=0;i<Key.SHA1_HASH_LENGTH;i++) {
+			int cmp = Integer.compare(index.get(offset + i) & 0xFF, k.getByte(i) & 0xFF);
+			if(cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	public boolean contains(Key k) {
+		// newest first, recent additions are the most likely to be queried
+		for(int i=packs.size() - 1;i>=0;i--) {
+			if(packs.get(i).find(k) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bare info dictionary
+	 */
+	public Optional<ByteBuffer> get(Key k) throws IOException {
+		for(int i=packs.size() - 1;i>=0;i--) {
+			Pack p = packs.get(i);
+			long offset = p.find(k);
+			if(offset < 0)
+				continue;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			readFully(p.channel, header, offset);
+			int length = header.getInt(0);
+			if(length <= Key.SHA1_HASH_LENGTH || length > MAX_RECORD_SIZE)
+				throw new IOException("corrupt record at " + offset + " in " + p.file);
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(p.channel, payload, offset + RECORD_HEADER_SIZE);
+			payload.flip();
+			CRC32 check = new CRC32();
+			check.update(payload.duplicate());
+			if((int) check.getValue() != header.getInt(4))
+				throw new IOException("checksum mismatch for record at " + offset + " in " + p.file);
+			payload.position(Key.SHA1_HASH_LENGTH);
+			return Optional.of(payload.slice());
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * keys in pack order, sorted within each sealed pack
+	 */
+	public Stream<Key> keys() {
+		return packs.stream().flatMap(Pack::keys);
+	}
+
+	public int size() {
+		return packs.stream().mapToInt(Pack::size).sum();
+	}
+
+	/**
+	 * Appends an info dictionary after checking that it decodes and matches the infohash. Already stored torrents are skipped.
+	 *
+	 * @return false if the data was rejected or already present
+	 */
+	synchronized boolean append(Key k, ByteBuffer infoDict) throws IOException {
+		if(!writable)
+			throw new IllegalStateException("read-only");
+		if(contains(k))
+			return false;
+
+		MessageDigest dig = ThreadLocalUtils.getThreadLocalSHA1();
+		dig.reset();
+		dig.update(infoDict.duplicate());
+		if(!k.equals(new Key(dig.digest())) || infoDict.remaining() + Key.SHA1_HASH_LENGTH > MAX_RECORD_SIZE) {
+			rejected++;
+			return false;
+		}
+		try {
+			ThreadLocalUtils.getDecoder().decode(infoDict.duplicate());
+		} catch (RuntimeException e) {
+			rejected++;
+			return false;
+		}
+
+		int length = Key.SHA1_HASH_LENGTH + infoDict.remaining();
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		buf.position(RECORD_HEADER_SIZE);
+		k.toBuffer(buf);
+		buf.put(infoDict.duplicate());
+		buf.flip();
+		buf.position(RECORD_HEADER_SIZE);
+		crc.reset();
+		crc.update(buf);
+		buf.putInt(0, length);
+		buf.putInt(4, (int) crc.getValue());
+		buf.position(0);
+
+		if(active.size > 0 && active.size + buf.limit() > packSize) {
+			OpenPack full = active;
+			newPack();
+			packs.set(packs.indexOf(full), seal(full));
+		}
+
+		long offset = active.size;
+		while(buf.hasRemaining())
+			active.channel.write(buf, offset + buf.position());
+		active.size += buf.limit();
+		active.offsets.put(k, offset);
+		appended++;
+		return true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for(Pack p : packs)
+			p.channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "packs:" + packs.size() + " torrents:" + size() + " appended:" + appended + " rejected:" + rejected;
+	}
+
+}
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils;
+
+import static java.lang.invoke.MethodType.methodType;
+import static the8472.utils.Functional.throwAsUnchecked;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom Java Flight Recorder events, defined at runtime through {@code jdk.jfr.EventFactory} since we still compile against java 8.
+ *
+ * <p>
+ * Emission is off unless {@link #setEnabled(boolean)} or {@link #startRecording(String, Duration)} turned it on, in which case every event costs
+ * one allocation and a few method handle calls. While off, {@link Type#begin()} is a single volatile read and returns null.
+ * Hot paths are expected to use the following pattern so that no arguments are boxed when disabled:
+ * </p>
+ * <pre>
+ * Object ev = TYPE.begin();
+ * ... work ...
+ * if(ev != null)
+ *   TYPE.commit(ev, field1, field2);
+ * </pre>
+ * <p>
+ * Field values have to be passed in declaration order and as the boxed type of their declared class.
+ * On JVMs without the jdk.jfr API everything is a no-op.
+ * </p>
+ */
+public final class FlightEvents {
+
+	private static final MethodHandle createFactory;
+	private static final MethodHandle registerFactory;
+	private static final MethodHandle newEvent;
+	private static final MethodHandle beginEvent;
+	private static final MethodHandle setField;
+	private static final MethodHandle commitEvent;
+	private static final MethodHandle annotation;
+	private static final MethodHandle valueDescriptor;
+	private static final Class<?> nameAnnotation;
+	private static final Class<?> labelAnnotation;
+	private static final Class<?> categoryAnnotation;
+	private static final Class<?> descriptionAnnotation;
+	private static final Class<?> stackTraceAnnotation;
+	private static final Class<?> recordingClass;
+	private static final Class<?> configurationClass;
+
+	static {
+		MethodHandle create = null, register = null, newEv = null, begin = null, set = null, commit = null, ann = null, desc = null;
+		Class<?> annElem = null, name = null, label = null, category = null, description = null, stackTrace = null, recording = null, configuration = null;
+		try {
+			MethodHandles.Lookup l = MethodHandles.publicLookup();
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			annElem = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDesc = Class.forName("jdk.jfr.ValueDescriptor");
+
+			create = l.findStatic(factory, "create", methodType(factory, List.class, List.class));
+			register = l.findVirtual(factory, "register", methodType(void.class));
+			newEv = l.findVirtual(factory, "newEvent", methodType(event));
+			begin = l.findVirtual(event, "begin", methodType(void.class));
+			set = l.findVirtual(event, "set", methodType(void.class, int.class, Object.class));
+			commit = l.findVirtual(event, "commit", methodType(void.class));
+			ann = l.findConstructor(annElem, methodType(void.class, Class.class, Object.class));
+			desc = l.findConstructor(valueDesc, methodType(void.class, Class.class, String.class));
+
+			name = Class.forName("jdk.jfr.Name");
+			label = Class.forName("jdk.jfr.Label");
+			category = Class.forName("jdk.jfr.Category");
+			description = Class.forName("jdk.jfr.Description");
+			stackTrace = Class.forName("jdk.jfr.StackTrace");
+			recording = Class.forName("jdk.jfr.Recording");
+			configuration = Class.forName("jdk.jfr.Configuration");
+		} catch (ReflectiveOperationException | LinkageError e) {
+			create = null;
+		}
+		createFactory = create;
+		registerFactory = register;
+		newEvent = newEv;
+		beginEvent = begin;
+		setField = set;
+		commitEvent = commit;
+		annotation = ann;
+		valueDescriptor = desc;
+		nameAnnotation = name;
+		labelAnnotation = label;
+		categoryAnnotation = category;
+		descriptionAnnotation = description;
+		stackTraceAnnotation = stackTrace;
+		recordingClass = recording;
+		configurationClass = configuration;
+	}
+
+	private static volatile boolean enabled;
+
+	// guarded by FlightEvents.class
+	private static Object recording;
+	// guarded by FlightEvents.class, what setEnabled asked for, restored once our own recording stops
+	private static boolean configured;
+
+	private FlightEvents() {}
+
+	public static boolean isSupported() {
+		return createFactory != null;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * only needed for recordings that were not started through {@link #startRecording(String, Duration)}, e.g. via <code>-XX:StartFlightRecording</code>.
+	 * A running recording of our own keeps events enabled regardless, this setting applies again once it stops.
+	 */
+	public static synchronized void setEnabled(boolean enable) {
+		configured = enable;
+		enabled = isSupported() && (configured || recording != null);
+	}
+
+	public static final class Type {
+
+		final Object factory;
+		final int fieldCount;
+
+		Type(Object factory, int fieldCount) {
+			this.factory = factory;
+			this.fieldCount = fieldCount;
+		}
+
+		/**
+		 * @return an event whose duration starts now, null if events are disabled
+		 */
+		public Object begin() {
+			if(!enabled || factory == null)
+				return null;
+			try {
+				Object ev = newEvent.invoke(factory);
+				beginEvent.invoke(ev);
+				return ev;
+			} catch (Throwable t) {
+				throwAsUnchecked(t);
+				return null;
+			}
+		}
+
+		/**
+		 * @param ev the result of {@link #begin()}, may be null
+		 */
+		public void commit(Object ev, Object... values) {
+			if(ev == null)
+				return;
+			if(values.length != fieldCount)
+				throw new IllegalArgumentException("expected " + fieldCount + " values, got " + values.length);
+			try {
+				for(int i=0;i<values.length;i++)
+					setField.invoke(ev, i, values[i]);
+				commitEvent.invoke(ev);
+			} catch (Throwable t) {
+				throwAsUnchecked(t);
+			}
+		}
+
+		/**
+		 * records an instant event without duration
+		 */
+		public void emit(Object... values) {
+			commit(begin(), values);
+		}
+	}
+
+	/**
+	 * @param category slash-separated category path
+	 * @param fields alternating field names and their types, i.e. String, boolean or a primitive numeric class
+	 */
+	public static Type define(String name, String label, String category, String description, Object... fields) {
+		if(fields.length % 2 != 0)
+			throw new IllegalArgumentException("fields must be name/type pairs");
+		if(!isSupported())
+			return new Type(null, fields.length / 2);
+		try {
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(annotation.invoke(nameAnnotation, name));
+			annotations.add(annotation.invoke(labelAnnotation, label));
+			annotations.add(annotation.invoke(categoryAnnotation, category.split("/")));
+			annotations.add(annotation.invoke(descriptionAnnotation, description));
+			// stack traces would dominate the cost of the event
+			annotations.add(annotation.invoke(stackTraceAnnotation, false));
+
+			List<Object> values = new ArrayList<>();
+			for(int i=0;i<fields.length;i+=2)
+				values.add(valueDescriptor.invoke((Class<?>) fields[i+1], (String) fields[i]));
+
+			Object factory = createFactory.invoke(annotations, values);
+			registerFactory.invoke(factory);
+			return new Type(factory, fields.length / 2);
+		} catch (Throwable t) {
+			throwAsUnchecked(t);
+			return null;
+		}
+	}
+
+	/**
+	 * starts a continuous in-memory/disk recording with the given JDK settings and enables our events
+	 *
+	 * @param settings name of a JDK configuration, "default" or "profile"
+	 * @throws IllegalStateException if JFR is not available or a recording is already running
+	 */
+	public static synchronized void startRecording(String settings, Duration maxAge) throws Exception {
+		if(!isSupported())
+			throw new IllegalStateException("JFR not available in this JVM");
+		if(recording != null)
+			throw new IllegalStateException("recording already running");
+		Object config = configurationClass.getMethod("getConfiguration", String.class).invoke(null, settings);
+		Object rec = recordingClass.getConstructor(configurationClass).newInstance(config);
+		recordingClass.getMethod("setName", String.class).invoke(rec, "mldht");
+		recordingClass.getMethod("setToDisk", boolean.class).invoke(rec, true);
+		recordingClass.getMethod("setMaxAge", Duration.class).invoke(rec, maxAge);
+		recordingClass.getMethod("start").invoke(rec);
+		recording = rec;
+		enabled = true;
+	}
+
+	/**
+	 * writes the data recorded so far, the recording keeps running
+	 */
+	public static synchronized void dumpRecording(Path destination) throws Exception {
+		if(recording == null)
+			throw new IllegalStateException("no recording running");
+		recordingClass.getMethod("dump", Path.class).invoke(recording, destination);
+	}
+
+	/**
+	 * @param destination dump target before the recording is discarded, may be null
+	 */
+	public static synchronized void stopRecording(Path destination) throws Exception {
+		if(recording == null)
+			throw new IllegalStateException("no recording running");
+		enabled = configured;
+		try {
+			if(destination != null)
+				dumpRecording(destination);
+			recordingClass.getMethod("stop").invoke(recording);
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+			recording = null;
+		}
+	}
+
+	public static synchronized String status() {
+		if(!isSupported())
+			return "JFR not available";
+		if(recording == null)
+			return "no recording, events " + (enabled ? "enabled" : "disabled");
+		try {
+			Object state = recordingClass.getMethod("getState").invoke(recording);
+			Object size = recordingClass.getMethod("getSize").invoke(recording);
+			return "recording " + state + " size:" + size + " bytes, events " + (enabled ? "enabled" : "disabled");
+		} catch (ReflectiveOperationException e) {
+			return "recording state unknown: " + e;
+		}
+	}
+
+}
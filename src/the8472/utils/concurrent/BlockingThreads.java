@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates threads for work that blocks on I/O or runs for a long time, i.e. everything that should stay off the packet-processing scheduler.
+ *
+ * <p>
+ * When enabled and the running JDK provides them (19+) those threads are virtual threads, otherwise plain daemon platform threads.
+ * Virtual threads are looked up via reflection since we still compile against java 8.
+ * </p>
+ */
+public final class BlockingThreads {
+
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+
+	static {
+		Method of = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			of = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			// preview builds throw here unless --enable-preview is set
+			of.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			of = null;
+		}
+		ofVirtual = of;
+		builderName = name;
+		builderUnstarted = unstarted;
+	}
+
+	private static volatile boolean useVirtual = false;
+
+	private static final LongAdder startedVirtual = new LongAdder();
+	private static final LongAdder startedPlatform = new LongAdder();
+	private static final AtomicInteger live = new AtomicInteger();
+	private static final AtomicInteger peakLive = new AtomicInteger();
+	private static final LongAdder runs = new LongAdder();
+	private static final LongAdder startLatencyNanos = new LongAdder();
+
+	private BlockingThreads() {}
+
+	public static boolean virtualThreadsSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * only affects threads created after the call
+	 */
+	public static void setUseVirtualThreads(boolean enabled) {
+		useVirtual = enabled;
+	}
+
+	public static boolean usesVirtualThreads() {
+		return useVirtual && ofVirtual != null;
+	}
+
+	/**
+	 * @return an unstarted daemon thread
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		long created = System.nanoTime();
+		Runnable tracked = () -> {
+			startLatencyNanos.add(System.nanoTime() - created);
+			runs.increment();
+			peakLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+			try {
+				task.run();
+			} finally {
+				live.decrementAndGet();
+			}
+		};
+
+		if(usesVirtualThreads()) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				Thread t = (Thread) builderUnstarted.invoke(builder, tracked);
+				startedVirtual.increment();
+				return t;
+			} catch (ReflectiveOperationException e) {
+				throw new Error("virtual thread creation failed after successful probe", e);
+			}
+		}
+
+		Thread t = new Thread(tracked, name);
+		t.setDaemon(true);
+		startedPlatform.increment();
+		return t;
+	}
+
+	/**
+	 * @return an executor that runs each task on a new virtual thread if they are enabled, the fallback otherwise
+	 */
+	public static Executor executorOr(String name, Executor fallback) {
+		return task -> {
+			if(usesVirtualThreads())
+				newThread(name, task).start();
+			else
+				fallback.execute(task);
+		};
+	}
+
+	public static int liveThreads() {
+		return live.get();
+	}
+
+	public static String stats() {
+		long ran = runs.sum();
+		double avgStartMicros = ran == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(startLatencyNanos.sum()) / (double) ran;
+		return String.format("blocking threads: mode:%s (supported:%b) started virtual:%d platform:%d live:%d peak:%d avg start latency:%.1fus",
+				usesVirtualThreads() ? "virtual" : "platform", virtualThreadsSupported(), startedVirtual.sum(), startedPlatform.sum(), live.get(), peakLive.get(), avgStartMicros);
+	}
+
+}
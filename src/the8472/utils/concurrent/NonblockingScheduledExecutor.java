@@ -18,6 +18,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableScheduledFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -119,7 +120,12 @@ public class NonblockingScheduledExecutor implements ScheduledExecutorService {
 			RunnableScheduledFuture<?> toExecute;
 			while((toExecute = delayedTasks.peek()) != null && toExecute.getDelay(TimeUnit.NANOSECONDS) <= 0) {
 				delayedTasks.poll();
-				immediateExecutor.executeWithoutWakeup(toExecute);
+				try {
+					immediateExecutor.executeWithoutWakeup(toExecute);
+				} catch (RejectedExecutionException e) {
+					// shut down concurrently, remaining delayed tasks are dropped as they would be on the next iteration
+					return;
+				}
 			}
 			
 			RunnableScheduledFuture<?> nextTask = delayedTasks.peek();
@@ -157,6 +163,18 @@ public class NonblockingScheduledExecutor implements ScheduledExecutorService {
 		}
 	}
 
+	/**
+	 * number of queued immediate tasks
+	 */
+	public long queueDepth() {
+		return executorQueue.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("shared queue: threads:%d active:%d queued:%d pending scheduled:%d", immediateExecutor.getPoolSize(), immediateExecutor.getActiveCount(), executorQueue.size(), submittedScheduledTasks.size());
+	}
+
 	@Override
 	public void shutdown() {
 		immediateExecutor.shutdown();
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer single-consumer queue of fixed-size records, backed by a single preallocated array.
+ *
+ * <p>
+ * Producers claim a slot with a CAS on the tail counter and publish it through a per-slot sequence number, there is no allocation
+ * per record. When the ring is full {@link #offer(ByteBuffer)} fails instead of blocking, callers are expected to count and drop.
+ * Only one thread may call {@link #poll(ByteBuffer)} at any time.
+ * </p>
+ */
+public class RecordRing {
+
+	final int recordSize;
+	final int mask;
+	final byte[] data;
+	final AtomicLongArray sequences;
+	final AtomicLong tail = new AtomicLong();
+	volatile long head;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	public RecordRing(int recordSize, int capacity) {
+		int cap = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.recordSize = recordSize;
+		this.mask = cap - 1;
+		this.data = new byte[cap * recordSize];
+		this.sequences = new AtomicLongArray(cap);
+		for(int i=0;i<cap;i++)
+			sequences.set(i, i);
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public int recordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * copies exactly {@link #recordSize()} bytes from the buffer's position, the position is not modified.
+	 *
+	 * @return false if the ring is full
+	 */
+	public boolean offer(ByteBuffer record) {
+		long pos;
+		int slot;
+		while(true) {
+			pos = tail.get();
+			slot = (int) pos & mask;
+			long seq = sequences.get(slot);
+			if(seq < pos)
+				return false;
+			if(seq == pos && tail.compareAndSet(pos, pos + 1))
+				break;
+		}
+
+		record.duplicate().get(data, slot * recordSize, recordSize);
+		sequences.lazySet(slot, pos + 1);
+		return true;
+	}
+
+	/**
+	 * appends the next record to the target buffer. Consumer thread only.
+	 *
+	 * @return false if the ring is empty
+	 */
+	public boolean poll(ByteBuffer target) {
+		long pos = head;
+		int slot = (int) pos & mask;
+		if(sequences.get(slot) != pos + 1)
+			return false;
+		target.put(data, slot * recordSize, recordSize);
+		sequences.lazySet(slot, pos + mask + 1);
+		head = pos + 1;
+		return true;
+	}
+
+	/**
+	 * approximate number of queued records
+	 */
+	public int size() {
+		return (int) Math.max(0, Math.min(capacity(), tail.get() - head));
+	}
+
+}
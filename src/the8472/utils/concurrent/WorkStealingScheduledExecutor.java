@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Alternative to {@link NonblockingScheduledExecutor} for hosts with many cores.
+ *
+ * immediate tasks go to a FIFO-mode {@link ForkJoinPool}
+ * - tasks submitted from worker threads (e.g. packet handlers spawning follow-up work) land in that worker's own deque
+ * - external submissions are spread over several submission queues instead of a single shared one
+ * - idle workers steal from the others
+ *
+ * delayed tasks are kept in a hierarchical timing wheel owned by a dedicated timer thread
+ * - submissions are handed over through a lock-free queue, only the timer thread touches the wheel
+ * - insertion and expiry are O(1) instead of O(log n) for a heap
+ * - the timer parks until the next occupied slot, a new submission only unparks it if it is due earlier
+ *
+ */
+public class WorkStealingScheduledExecutor implements ScheduledExecutorService {
+
+	static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	static final int WHEEL_BITS = 6;
+	static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	// 64^4 ticks ~ 4.6 hours, anything beyond goes to the overflow list
+	static final int LEVELS = 4;
+
+	final ForkJoinPool pool;
+	final Thread timer;
+	final Thread.UncaughtExceptionHandler exceptionHandler;
+	final long origin = System.nanoTime();
+
+	final Queue<SchedF<?>> submitted = new ConcurrentLinkedQueue<>();
+	final AtomicBoolean shutdown = new AtomicBoolean();
+
+	// timer thread only
+	final Slot[][] wheel = new Slot[LEVELS][WHEEL_SIZE];
+	final long[] occupied = new long[LEVELS];
+	final List<SchedF<?>> overflow = new ArrayList<>();
+	long currentTick;
+	int wheelSize;
+
+	// tick at which the timer intends to wake up, read by submitters to decide whether an unpark is needed
+	volatile long wakeupTick = Long.MAX_VALUE;
+
+	final LongAdder timerParks = new LongAdder();
+	final LongAdder timerUnparks = new LongAdder();
+	final LongAdder expired = new LongAdder();
+	volatile int delayedCount;
+
+	// arrays of generic lists can't be created without an unchecked cast
+	final class Slot {
+		final ArrayList<SchedF<?>> tasks = new ArrayList<>();
+	}
+
+	public WorkStealingScheduledExecutor(String name, int threadCount, UncaughtExceptionHandler handler) {
+		this(name, threadCount, handler, true);
+	}
+
+	/**
+	 * @param startTimer false lets tests drive the wheel through {@link #insertSubmitted()} and {@link #advance(long)} instead
+	 */
+	WorkStealingScheduledExecutor(String name, int threadCount, UncaughtExceptionHandler handler, boolean startTimer) {
+		this.exceptionHandler = handler;
+
+		ForkJoinPool.ForkJoinWorkerThreadFactory f = p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setDaemon(true);
+			t.setName(name + " worker " + t.getPoolIndex());
+			return t;
+		};
+
+		// async mode = FIFO for tasks that are never joined
+		pool = new ForkJoinPool(threadCount, f, handler, true);
+
+		for(int i=0;i<LEVELS;i++)
+			for(int j=0;j<WHEEL_SIZE;j++)
+				wheel[i][j] = new Slot();
+
+		timer = new Thread(this::runTimer, name + " timer");
+		timer.setDaemon(true);
+		if(handler != null)
+			timer.setUncaughtExceptionHandler(handler);
+		if(startTimer)
+			timer.start();
+	}
+
+	long tickOf(long nanos) {
+		// round up so that tasks never fire early
+		return (nanos - origin + TICK_NANOS - 1) / TICK_NANOS;
+	}
+
+	void runTimer() {
+		while(!shutdown.get()) {
+			long now = tickOf(System.nanoTime()) - 1;
+
+			insertSubmitted();
+
+			while(currentTick < now)
+				advance(currentTick + 1);
+
+			long next = nextOccupiedTick();
+			wakeupTick = next;
+
+			// re-check after publishing the wakeup tick, submitters might have seen the old one
+			if(!submitted.isEmpty())
+				continue;
+
+			timerParks.increment();
+			if(next == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, (next - currentTick) * TICK_NANOS);
+			wakeupTick = Long.MAX_VALUE;
+		}
+	}
+
+	void insertSubmitted() {
+		SchedF<?> f;
+		while((f = submitted.poll()) != null)
+			insert(f);
+	}
+
+	void insert(SchedF<?> f) {
+		if(f.isCancelled())
+			return;
+
+		long due = tickOf(f.nanos);
+		long delta = due - currentTick;
+
+		if(delta <= 0) {
+			dispatch(f);
+			return;
+		}
+
+		for(int level = 0;level<LEVELS;level++) {
+			if(delta < 1L << (WHEEL_BITS * (level + 1))) {
+				int slot = (int) (due >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+				wheel[level][slot].tasks.add(f);
+				occupied[level] |= 1L << slot;
+				delayedCount = ++wheelSize;
+				return;
+			}
+		}
+
+		overflow.add(f);
+		delayedCount = ++wheelSize;
+	}
+
+	/**
+	 * processes a single tick: cascades higher levels whose slot boundary was reached, then expires the level 0 slot
+	 */
+	void advance(long tick) {
+		if((tick & ((1L << (WHEEL_BITS * (LEVELS - 1))) - 1)) == 0 && !overflow.isEmpty()) {
+			List<SchedF<?>> toReinsert = new ArrayList<>(overflow);
+			overflow.clear();
+			wheelSize -= toReinsert.size();
+			toReinsert.forEach(this::insert);
+			// cancelled tasks are dropped on reinsertion
+			delayedCount = wheelSize;
+		}
+
+		for(int level = LEVELS - 1;level > 0;level--) {
+			if((tick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+				continue;
+			int slot = (int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+			cascade(level, slot);
+		}
+
+		ArrayList<SchedF<?>> due = wheel[0][(int) tick & WHEEL_MASK].tasks;
+		if(!due.isEmpty()) {
+			wheelSize -= due.size();
+			delayedCount = wheelSize;
+			due.forEach(this::dispatch);
+			due.clear();
+			occupied[0] &= ~(1L << (tick & WHEEL_MASK));
+		}
+
+		currentTick = tick;
+	}
+
+	void cascade(int level, int slot) {
+		ArrayList<SchedF<?>> bucket = wheel[level][slot].tasks;
+		if(bucket.isEmpty())
+			return;
+		// re-insert relative to the tick before the one being processed, tasks due in this tick end up in the level 0 slot that is expired next
+		List<SchedF<?>> toReinsert = new ArrayList<>(bucket);
+		bucket.clear();
+		occupied[level] &= ~(1L << slot);
+		wheelSize -= toReinsert.size();
+		toReinsert.forEach(this::insert);
+		delayedCount = wheelSize;
+	}
+
+	/**
+	 * @return conservative estimate of the next tick that needs processing
+	 */
+	long nextOccupiedTick() {
+		long next = Long.MAX_VALUE;
+		if(occupied[0] != 0) {
+			int start = (int) (currentTick + 1) & WHEEL_MASK;
+			next = currentTick + 1 + Long.numberOfTrailingZeros(Long.rotateRight(occupied[0], start));
+		}
+		for(int level = 1;level<LEVELS;level++) {
+			if(occupied[level] == 0)
+				continue;
+			// wake up at the next boundary of this level to cascade
+			long span = 1L << (WHEEL_BITS * level);
+			next = Math.min(next, (currentTick / span + 1) * span);
+			break;
+		}
+		if(!overflow.isEmpty())
+			next = Math.min(next, (currentTick / (1L << (WHEEL_BITS * (LEVELS - 1))) + 1) * (1L << (WHEEL_BITS * (LEVELS - 1))));
+		return next;
+	}
+
+	void dispatch(SchedF<?> f) {
+		if(f.isCancelled())
+			return;
+		expired.increment();
+		try {
+			pool.execute(f);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	void submitDelayed(SchedF<?> f) {
+		if(shutdown.get())
+			throw new RejectedExecutionException("executor shut down");
+		submitted.add(f);
+		if(tickOf(f.nanos) < wakeupTick) {
+			timerUnparks.increment();
+			LockSupport.unpark(timer);
+		}
+	}
+
+	void afterExecute(FutureTask<?> ft) {
+		if(exceptionHandler != null && ft.isDone() && !ft.isCancelled()) {
+			try {
+				ft.get();
+			} catch (InterruptedException | ExecutionException e) {
+				exceptionHandler.uncaughtException(null, e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * number of queued immediate tasks, including external submission queues
+	 */
+	public long queueDepth() {
+		return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+	}
+
+	public long steals() {
+		return pool.getStealCount();
+	}
+
+	public long timerParks() {
+		return timerParks.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("work-stealing: threads:%d active:%d queued:%d submissions:%d steals:%d delayed:%d expired:%d timer parks:%d unparks:%d",
+				pool.getPoolSize(),
+				pool.getActiveThreadCount(),
+				pool.getQueuedTaskCount(),
+				pool.getQueuedSubmissionCount(),
+				pool.getStealCount(),
+				delayedCount,
+				expired.sum(),
+				timerParks.sum(),
+				timerUnparks.sum());
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown.set(true);
+		LockSupport.unpark(timer);
+		pool.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown.set(true);
+		LockSupport.unpark(timer);
+		List<Runnable> l = pool.shutdownNow();
+		return l;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return pool.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return pool.isTerminated() && !timer.isAlive();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if(!pool.awaitTermination(timeout, unit))
+			return false;
+		timer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		return !timer.isAlive();
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> ft = new ReportingFuture<>(task);
+		pool.execute(ft);
+		return ft;
+	}
+
+	@Override
+	public <T> Future<T> submit(Runnable task, T result) {
+		FutureTask<T> ft = new ReportingFuture<>(task, result);
+		pool.execute(ft);
+		return ft;
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		return submit(task, null);
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		return pool.invokeAll(tasks);
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+		return pool.invokeAll(tasks, timeout, unit);
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		return pool.invokeAny(tasks);
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		return pool.invokeAny(tasks, timeout, unit);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		pool.execute(command);
+	}
+
+	private class ReportingFuture<T> extends FutureTask<T> {
+
+		ReportingFuture(Callable<T> callable) {
+			super(callable);
+		}
+
+		ReportingFuture(Runnable r, T result) {
+			super(r, result);
+		}
+
+		@Override
+		public void run() {
+			super.run();
+			afterExecute(this);
+		}
+	}
+
+	private class SchedF<T> extends FutureTask<T> implements RunnableScheduledFuture<T> {
+
+		volatile long nanos;
+		final long period;
+
+		SchedF(Runnable r, long delay, TimeUnit u) {
+			super(r,null);
+			this.nanos =  System.nanoTime() + TimeUnit.NANOSECONDS.convert(delay, u);
+			this.period = 0;
+		}
+
+		SchedF(Callable<T> callable, long delay, TimeUnit u) {
+			super(callable);
+			this.nanos =  System.nanoTime() + TimeUnit.NANOSECONDS.convert(delay, u);
+			period = 0;
+		}
+
+		SchedF(Runnable command, long initialDelay, long period, TimeUnit unit) {
+			super(command, null);
+			this.nanos =  System.nanoTime() + TimeUnit.NANOSECONDS.convert(initialDelay, unit);
+			this.period = TimeUnit.NANOSECONDS.convert(period, unit);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+			return (diff == 0) ? 0 : (diff < 0) ? -1 : 1;
+		}
+
+		@Override
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+
+		@Override
+		public void run() {
+			if(isPeriodic()) {
+				if(runAndReset()) {
+					nanos = period < 0 ? System.nanoTime() - period : nanos + period;
+					if(!shutdown.get())
+						submitDelayed(this);
+				} else {
+					afterExecute(this);
+				}
+			} else {
+				super.run();
+				afterExecute(this);
+			}
+		}
+
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		SchedF<?> future = new SchedF<Void>(command, delay, unit);
+		submitDelayed(future);
+		return future;
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		SchedF<V> future = new SchedF<>(callable, delay, unit);
+		submitDelayed(future);
+		return future;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		if(period <= 0)
+			throw new IllegalArgumentException("period must be positive");
+		SchedF<?> future = new SchedF<Void>(command, initialDelay, period, unit);
+		submitDelayed(future);
+		return future;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		if(delay <= 0)
+			throw new IllegalArgumentException("delay must be positive");
+		SchedF<?> future = new SchedF<Void>(command, initialDelay, -delay, unit);
+		submitDelayed(future);
+		return future;
+	}
+
+}
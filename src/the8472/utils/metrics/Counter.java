@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, striped so that hot paths on many threads don't contend on a single cache line.
+ */
+public final class Counter {
+
+	private final LongAdder value = new LongAdder();
+
+	public void inc() {
+		value.increment();
+	}
+
+	public void add(long delta) {
+		value.add(delta);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed, inclusive upper bucket bounds plus an implicit +Inf bucket.
+ *
+ * Buckets are counted individually and only made cumulative on export, so an observation touches exactly one striped counter besides sum and count.
+ */
+public final class Histogram {
+
+	private final double[] bounds;
+	private final LongAdder[] buckets;
+	private final LongAdder count = new LongAdder();
+	private final DoubleAdder sum = new DoubleAdder();
+
+	public Histogram(double... bounds) {
+		if(bounds.length == 0)
+			throw new IllegalArgumentException("need at least one bucket");
+		for(int i=1;i<bounds.length;i++)
+			if(!(bounds[i] > bounds[i-1]))
+				throw new IllegalArgumentException("bucket bounds must be strictly increasing");
+		this.bounds = bounds.clone();
+		buckets = new LongAdder[bounds.length + 1];
+		for(int i=0;i<buckets.length;i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * @return {@code count} bounds starting at {@code start}, each {@code factor} times the previous one
+	 */
+	public static double[] exponentialBounds(double start, double factor, int count) {
+		double[] b = new double[count];
+		for(int i=0;i<count;i++)
+			b[i] = start * Math.pow(factor, i);
+		return b;
+	}
+
+	public void observe(double value) {
+		if(Double.isNaN(value))
+			return;
+		int idx = Arrays.binarySearch(bounds, value);
+		if(idx < 0)
+			idx = -(idx + 1);
+		buckets[idx].increment();
+		count.increment();
+		sum.add(value);
+	}
+
+	double[] bounds() {
+		return bounds;
+	}
+
+	/**
+	 * @return cumulative bucket counts, the last element being the +Inf bucket
+	 */
+	long[] cumulativeCounts() {
+		long[] out = new long[buckets.length];
+		long running = 0;
+		for(int i=0;i<buckets.length;i++) {
+			running += buckets[i].sum();
+			out[i] = running;
+		}
+		return out;
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public double sum() {
+		return sum.sum();
+	}
+
+}
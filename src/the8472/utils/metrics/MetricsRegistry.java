@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Named, labeled metrics rendered in the prometheus text exposition format (version 0.0.4).
+ *
+ * <p>
+ * There are two ways to feed it. Metrics that are updated on hot paths are owned by the registry, or registered with it,
+ * as {@link Counter} or {@link Histogram} instances whose updates are striped and never take a lock.
+ * Values that already exist elsewhere are read when scraped, either as individual gauge/counter callbacks
+ * or through a {@link Collector} that emits a whole set of series whose labels aren't known in advance, e.g. one per RPC server.
+ * </p>
+ * <p>
+ * Scraping allocates, updating registered metrics does not.
+ * </p>
+ */
+public class MetricsRegistry {
+
+	public enum Type {
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		HISTOGRAM("histogram");
+
+		final String id;
+
+		Type(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Invoked once per scrape, on the scraping thread.
+	 */
+	@FunctionalInterface
+	public interface Collector {
+		void collect(Sink sink);
+	}
+
+	public interface Sink {
+		void counter(String name, String help, double value, String... labels);
+
+		void gauge(String name, String help, double value, String... labels);
+
+		void histogram(String name, String help, Histogram h, String... labels);
+	}
+
+	static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+	static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+	static final class Family {
+		final String name;
+		final String help;
+		final Type type;
+		// rendered labels -> Counter, Histogram or DoubleSupplier
+		final ConcurrentMap<String, Object> series = new ConcurrentHashMap<>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+	private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @return the existing counter for that name and label set or a new one
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(renderLabels(labels), k -> new Counter());
+	}
+
+	/**
+	 * @return the existing histogram for that name and label set or a new one with the given bounds
+	 */
+	public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+		return (Histogram) family(name, help, Type.HISTOGRAM).series.computeIfAbsent(renderLabels(labels), k -> new Histogram(bounds));
+	}
+
+	/**
+	 * registers a histogram owned by someone else, replacing any previous one with the same name and labels
+	 */
+	public void register(String name, String help, Histogram h, String... labels) {
+		family(name, help, Type.HISTOGRAM).series.put(renderLabels(labels), h);
+	}
+
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, Type.GAUGE).series.put(renderLabels(labels), value);
+	}
+
+	/**
+	 * for monotonic values maintained elsewhere
+	 */
+	public void counterFunction(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, Type.COUNTER).series.put(renderLabels(labels), value);
+	}
+
+	public void register(Collector c) {
+		collectors.add(c);
+	}
+
+	public void unregister(Collector c) {
+		collectors.remove(c);
+	}
+
+	Family family(String name, String help, Type type) {
+		if(!NAME.matcher(name).matches())
+			throw new IllegalArgumentException("invalid metric name " + name);
+		Family f = families.computeIfAbsent(name, k -> new Family(name, help, type));
+		if(f.type != type)
+			throw new IllegalArgumentException(name + " already registered as " + f.type);
+		return f;
+	}
+
+	static final class Scraped {
+		final String help;
+		final Type type;
+		final TreeMap<String, Object> series = new TreeMap<>();
+
+		Scraped(String help, Type type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	class ScrapeSink implements Sink {
+		final Map<String, Scraped> out = new TreeMap<>();
+
+		void add(String name, String help, Type type, String labels, Object value) {
+			if(!NAME.matcher(name).matches())
+				throw new IllegalArgumentException("invalid metric name " + name);
+			Scraped s = out.computeIfAbsent(name, k -> new Scraped(help, type));
+			if(s.type != type)
+				throw new IllegalArgumentException(name + " emitted as " + type + " and " + s.type);
+			s.series.put(labels, value);
+		}
+
+		@Override
+		public void counter(String name, String help, double value, String... labels) {
+			add(name, help, Type.COUNTER, renderLabels(labels), value);
+		}
+
+		@Override
+		public void gauge(String name, String help, double value, String... labels) {
+			add(name, help, Type.GAUGE, renderLabels(labels), value);
+		}
+
+		@Override
+		public void histogram(String name, String help, Histogram h, String... labels) {
+			add(name, help, Type.HISTOGRAM, renderLabels(labels), h);
+		}
+	}
+
+	public void writeTo(StringBuilder b) {
+		ScrapeSink sink = new ScrapeSink();
+		families.values().forEach(f -> f.series.forEach((labels, v) -> sink.add(f.name, f.help, f.type, labels, v)));
+		for(Collector c : collectors)
+			c.collect(sink);
+
+		sink.out.forEach((name, s) -> {
+			b.append("# HELP ").append(name).append(' ');
+			escape(b, s.help, false);
+			b.append('\n');
+			b.append("# TYPE ").append(name).append(' ').append(s.type.id).append('\n');
+			s.series.forEach((labels, v) -> {
+				if(v instanceof Histogram)
+					writeHistogram(b, name, labels, (Histogram) v);
+				else
+					writeSample(b, name, labels, value(v));
+			});
+		});
+	}
+
+	public String scrape() {
+		StringBuilder b = new StringBuilder(4096);
+		writeTo(b);
+		return b.toString();
+	}
+
+	static double value(Object v) {
+		if(v instanceof Counter)
+			return ((Counter) v).get();
+		if(v instanceof DoubleSupplier)
+			return ((DoubleSupplier) v).getAsDouble();
+		return (Double) v;
+	}
+
+	static void writeHistogram(StringBuilder b, String name, String labels, Histogram h) {
+		double[] bounds = h.bounds();
+		long[] counts = h.cumulativeCounts();
+		String sep = labels.isEmpty() ? "" : labels + ",";
+		for(int i=0;i<bounds.length;i++)
+			writeSample(b, name + "_bucket", sep + "le=\"" + format(bounds[i]) + "\"", counts[i]);
+		long total = counts[counts.length - 1];
+		writeSample(b, name + "_bucket", sep + "le=\"+Inf\"", total);
+		writeSample(b, name + "_sum", labels, h.sum());
+		// use the +Inf bucket instead of the separate count so that they agree even if we raced with an observation
+		writeSample(b, name + "_count", labels, total);
+	}
+
+	static void writeSample(StringBuilder b, String name, String labels, double value) {
+		b.append(name);
+		if(!labels.isEmpty())
+			b.append('{').append(labels).append('}');
+		b.append(' ').append(format(value)).append('\n');
+	}
+
+	static String format(double v) {
+		if(Double.isNaN(v))
+			return "NaN";
+		if(Double.isInfinite(v))
+			return v > 0 ? "+Inf" : "-Inf";
+		if(v == Math.rint(v) && Math.abs(v) < 1e15)
+			return Long.toString((long) v);
+		return Double.toString(v);
+	}
+
+	/**
+	 * @param labels alternating label names and values
+	 */
+	static String renderLabels(String... labels) {
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("labels must be name/value pairs");
+		if(labels.length == 0)
+			return "";
+		List<String> pairs = new ArrayList<>(labels.length / 2);
+		for(int i=0;i<labels.length;i+=2) {
+			if(!LABEL_NAME.matcher(labels[i]).matches())
+				throw new IllegalArgumentException("invalid label name " + labels[i]);
+			StringBuilder p = new StringBuilder(labels[i]).append("=\"");
+			escape(p, labels[i+1], true);
+			pairs.add(p.append('"').toString());
+		}
+		return String.join(",", pairs);
+	}
+
+	static void escape(StringBuilder b, String str, boolean quotes) {
+		for(int i=0;i<str.length();i++) {
+			char c = str.charAt(i);
+			switch(c) {
+				case '\\':
+					b.append("\\\\");
+					break;
+				case '\n':
+					b.append("\\n");
+					break;
+				case '"':
+					b.append(quotes ? "\\\"" : "\"");
+					break;
+				default:
+					b.append(c);
+			}
+		}
+	}
+
+}
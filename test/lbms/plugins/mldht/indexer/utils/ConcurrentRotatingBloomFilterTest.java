@@ -0,0 +1,94 @@
+package lbms.plugins.mldht.indexer.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class ConcurrentRotatingBloomFilterTest {
+
+	static ByteBuffer item(long i) {
+		ByteBuffer b = ByteBuffer.allocate(20);
+		b.putLong(0, i);
+		b.putLong(8, i * 31);
+		return b;
+	}
+
+	@Test
+	public void concurrentInserts() throws InterruptedException {
+		ConcurrentRotatingBloomFilter filter = new ConcurrentRotatingBloomFilter(64 * 1024, 0.001f, 16);
+		int threads = 4;
+		int perThread = 10_000;
+
+		List<Thread> workers = new ArrayList<>();
+		for(int t=0;t<threads;t++) {
+			long base = t * (long) perThread;
+			Thread th = new Thread(() -> {
+				for(int i=0;i<perThread;i++)
+					filter.insert(item(base + i));
+			});
+			workers.add(th);
+			th.start();
+		}
+		for(Thread t : workers)
+			t.join();
+
+		for(long i=0;i<threads * perThread;i++)
+			assertTrue(filter.contains(item(i)));
+
+		int falsePositives = 0;
+		for(long i=0;i<10_000;i++)
+			if(filter.contains(item(ThreadLocalRandom.current().nextLong(1L << 40, Long.MAX_VALUE))))
+				falsePositives++;
+		assertTrue(falsePositives < 30);
+	}
+
+	@Test
+	public void shardsRotateIndependently() {
+		ConcurrentRotatingBloomFilter filter = new ConcurrentRotatingBloomFilter(16 * 1024, 0.001f, 16);
+		filter.setAutoRotate(true);
+
+		for(long i=0;i<20 * 1024;i++)
+			filter.insert(item(i));
+
+		assertTrue(filter.rotations() > 0);
+		assertTrue(filter.rotations() <= 16);
+		// the most recent inserts are still in the current generations
+		for(long i=19 * 1024;i<20 * 1024;i++)
+			assertTrue(filter.contains(item(i)));
+	}
+
+	@Test
+	public void snapshotRoundTrip() throws IOException {
+		Path dir = Files.createTempDirectory("bloom");
+		Path file = dir.resolve("filter");
+		try {
+			ConcurrentRotatingBloomFilter filter = new ConcurrentRotatingBloomFilter(8 * 1024, 0.001f, 4);
+			for(long i=0;i<1000;i++)
+				filter.insert(item(i));
+			filter.snapshot(file);
+
+			ConcurrentRotatingBloomFilter restored = ConcurrentRotatingBloomFilter.load(file, 8 * 1024, 0.001f, 4);
+			for(long i=0;i<1000;i++)
+				assertTrue(restored.contains(item(i)));
+			assertEquals(filter.toString(), restored.toString());
+
+			// incompatible parameters start out empty
+			ConcurrentRotatingBloomFilter other = ConcurrentRotatingBloomFilter.load(file, 16 * 1024, 0.001f, 4);
+			assertFalse(other.contains(item(1)) && other.contains(item(2)) && other.contains(item(3)));
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(dir);
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class AnnounceNodeCacheTest {
+
+	int addressCounter;
+
+	KBucketEntry entry(Key id, int rtt) throws UnknownHostException {
+		int a = ++addressCounter;
+		InetAddress addr = InetAddress.getByAddress(new byte[] {10, (byte) (a >> 16), (byte) (a >> 8), (byte) a});
+		KBucketEntry e = new KBucketEntry(new InetSocketAddress(addr, 1234), id);
+		e.signalResponse(rtt);
+		return e;
+	}
+
+	static int bucketCount(AnnounceNodeCache cache) {
+		return cache.cache.size();
+	}
+
+	@Test
+	public void returnsExactlyTheClosest() throws UnknownHostException {
+		AnnounceNodeCache cache = new AnnounceNodeCache();
+		Key target = Key.createRandomKey();
+		cache.register(target, false);
+
+		List<KBucketEntry> all = new ArrayList<>();
+		for(int i=0;i<2000;i++) {
+			KBucketEntry e = entry(Key.createRandomKey(), 100);
+			all.add(e);
+			cache.add(e);
+		}
+
+		assertTrue(bucketCount(cache) > 1);
+
+		int targetSize = DHTConstants.MAX_CONCURRENT_REQUESTS * 2;
+		List<KBucketEntry> result = cache.get(target, targetSize);
+		assertEquals(targetSize, result.size());
+
+		// every cached entry is a candidate, so the result has to match the closest cached ones
+		List<Key> cached = new ArrayList<>();
+		cache.cache.values().forEach(b -> {
+			for(KBucketEntry e : b.entries)
+				cached.add(e.getID());
+		});
+		List<Key> reference = cached.stream().sorted(new Key.DistanceOrder(target)).limit(targetSize).collect(Collectors.toList());
+		assertEquals(reference, result.stream().map(KBucketEntry::getID).collect(Collectors.toList()));
+
+		// a target far away from any anchor still gets a full result
+		assertEquals(5, cache.get(Key.createRandomKey(), 5).size());
+	}
+
+	@Test
+	public void deduplicatesAndRespectsBudget() throws UnknownHostException {
+		AnnounceNodeCache cache = new AnnounceNodeCache(50, 10);
+		Key target = Key.createRandomKey();
+		cache.register(target, false);
+
+		KBucketEntry first = entry(target, 100);
+		cache.add(first);
+		cache.add(entry(target, 100));
+		assertEquals(1, cache.entryCount.get());
+		assertEquals(1, cache.refreshes.sum());
+
+		for(int i=0;i<1000;i++)
+			cache.add(entry(Key.createRandomKey(), 200));
+
+		int stored = cache.cache.values().stream().mapToInt(b -> b.entries.length).sum();
+		assertTrue(stored <= 50);
+		assertEquals(stored, cache.entryCount.get());
+		assertTrue(cache.rejections.sum() > 0);
+
+		for(int i=0;i<20;i++)
+			cache.register(Key.createRandomKey(), false);
+		assertEquals(10, cache.anchors.size());
+	}
+
+	@Test
+	public void concurrentSplitsAndMerges() throws Exception {
+		AnnounceNodeCache cache = new AnnounceNodeCache(2000, 100);
+		for(int i=0;i<50;i++)
+			cache.register(Key.createRandomKey(), i % 2 == 0);
+
+		List<KBucketEntry> entries = new ArrayList<>();
+		for(int i=0;i<20_000;i++)
+			entries.add(entry(Key.createRandomKey(), 50 + i % 100));
+
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0;t<4;t++) {
+			int offset = t;
+			threads.add(new Thread(() -> {
+				for(int i=offset;i<entries.size();i+=4) {
+					cache.add(entries.get(i));
+					if(i % 100 == 0)
+						cache.get(Key.createRandomKey(), 8);
+				}
+			}));
+		}
+		threads.add(new Thread(() -> {
+			for(int i=0;i<50;i++)
+				cache.cleanup(System.currentTimeMillis() + DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE + 1000);
+		}));
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+
+		// buckets still tile the keyspace and the budget accounting matches the contents
+		Key expectedStart = Key.MIN_KEY;
+		int stored = 0;
+		for(AnnounceNodeCache.CacheBucket b : cache.cache.values()) {
+			assertEquals(expectedStart, b.prefix.first());
+			expectedStart = b.prefix.last().add(new Key(new byte[] {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,1}));
+			stored += b.entries.length;
+		}
+		assertEquals(stored, cache.entryCount.get());
+	}
+
+	@Test
+	public void getDuringSplitsAndMergesReturnsNoDuplicates() throws Exception {
+		AnnounceNodeCache cache = new AnnounceNodeCache(4000, 200);
+
+		List<KBucketEntry> entries = new ArrayList<>();
+		for(int i=0;i<4000;i++)
+			entries.add(entry(Key.createRandomKey(), 50 + i % 100));
+
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicInteger duplicates = new AtomicInteger();
+		AtomicInteger reads = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0;t<2;t++) {
+			threads.add(new Thread(() -> {
+				while(!done.get()) {
+					// large enough to walk across all buckets
+					List<KBucketEntry> result = cache.get(Key.createRandomKey(), 10_000);
+					if(result.stream().map(KBucketEntry::getID).distinct().count() != result.size())
+						duplicates.incrementAndGet();
+					reads.incrementAndGet();
+				}
+			}));
+		}
+		for(Thread t : threads)
+			t.start();
+
+		// anchors force splits while the entries go in, expiring them merges everything back into a single bucket
+		for(int round=0;round<50;round++) {
+			for(int i=0;i<100;i++)
+				cache.register(Key.createRandomKey(), true);
+			entries.forEach(cache::add);
+			cache.cleanup(System.currentTimeMillis() + DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE + 1000);
+		}
+
+		done.set(true);
+		for(Thread t : threads)
+			t.join();
+
+		assertTrue(reads.get() > 0);
+		assertEquals(0, duplicates.get());
+	}
+
+	@Test
+	public void cleanupMergesExpiredAnchors() throws UnknownHostException {
+		AnnounceNodeCache cache = new AnnounceNodeCache();
+		cache.register(Key.createRandomKey(), true);
+
+		for(int i=0;i<500;i++)
+			cache.add(entry(Key.createRandomKey(), 100));
+		assertTrue(bucketCount(cache) > 1);
+
+		// anchor expired, entries still young enough to be kept
+		cache.cleanup(System.currentTimeMillis() + DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE + 1000);
+		assertEquals(1, bucketCount(cache));
+		assertEquals(DHTConstants.MAX_CONCURRENT_REQUESTS, cache.entryCount.get());
+		assertEquals(DHTConstants.MAX_CONCURRENT_REQUESTS, cache.get(Key.createRandomKey(), 100).size());
+
+		// expire everything
+		cache.cleanup(System.currentTimeMillis() + DHTConstants.ANNOUNCE_CACHE_MAX_AGE + 1000);
+		assertEquals(0, cache.entryCount.get());
+		assertTrue(cache.get(Key.createRandomKey(), 10).isEmpty());
+
+		StringWriter out = new StringWriter();
+		cache.printDiagnostics(new PrintWriter(out));
+		assertTrue(out.toString().contains("misses:1"));
+	}
+
+}
@@ -0,0 +1,179 @@
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.GenericStorage.UpdateResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class LogStorageBackendTest {
+
+	static StorageItem immutable(int size) {
+		byte[] value = new byte[size];
+		ThreadLocalRandom.current().nextBytes(value);
+		StorageItem item = new StorageItem(value);
+		item.expirationDate = System.currentTimeMillis() + GenericStorage.EXPIRATION_INTERVAL_SECONDS * 1000;
+		return item;
+	}
+
+	static StorageItem mutable(long seq) {
+		StorageItem item = new StorageItem("3:foo".getBytes(), new byte[32], new byte[64], "salt".getBytes(), seq);
+		item.expirationDate = System.currentTimeMillis() + GenericStorage.EXPIRATION_INTERVAL_SECONDS * 1000;
+		return item;
+	}
+
+	static Path tempLog() throws IOException {
+		Path p = Files.createTempFile("bep44-test", ".log");
+		Files.delete(p);
+		p.toFile().deleteOnExit();
+		return p;
+	}
+
+	@Test
+	public void restoresItems() throws IOException {
+		Path p = tempLog();
+
+		LogStorageBackend backend = new LogStorageBackend(p, 1024*1024);
+		GenericStorage storage = new GenericStorage(backend);
+
+		StorageItem imm = immutable(100);
+		Key immKey = Key.createRandomKey();
+		Key mutKey = Key.createRandomKey();
+
+		assertEquals(UpdateResult.SUCCESS, storage.putOrUpdate(immKey, imm, -1));
+		// bypass signature checks for the dummy keys
+		backend.compute(mutKey, unused -> mutable(1));
+		backend.compute(mutKey, old -> GenericStorage.checkUpdate(old, mutable(2), 1) == UpdateResult.SUCCESS ? mutable(2) : old);
+		assertEquals(UpdateResult.SEQ_FAIL, GenericStorage.checkUpdate(backend.get(mutKey).get(), mutable(1), -1));
+		assertEquals(UpdateResult.CAS_FAIL, GenericStorage.checkUpdate(backend.get(mutKey).get(), mutable(3), 1));
+		storage.close();
+
+		storage = new GenericStorage(new LogStorageBackend(p, 1024*1024));
+
+		assertEquals(2, storage.getItems().size());
+		assertArrayEquals(imm.value, storage.get(immKey).get().value);
+		StorageItem restored = storage.get(mutKey).get();
+		assertTrue(restored.mutable());
+		assertEquals(2, restored.seq());
+		assertArrayEquals("salt".getBytes(), restored.salt);
+		assertEquals(imm.expirationDate, storage.get(immKey).get().expirationDate);
+		storage.close();
+	}
+
+	@Test
+	public void expiresItems() throws IOException {
+		Path p = tempLog();
+
+		LogStorageBackend backend = new LogStorageBackend(p, 1024*1024);
+		Key k = Key.createRandomKey();
+		StorageItem item = immutable(100);
+		item.expirationDate = System.currentTimeMillis() - 1;
+		backend.compute(k, unused -> item);
+		backend.expire(System.currentTimeMillis());
+		assertFalse(backend.get(k).isPresent());
+		backend.close();
+
+		backend = new LogStorageBackend(p, 1024*1024);
+		assertEquals(0, backend.size());
+		backend.close();
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		Path p = tempLog();
+
+		LogStorageBackend backend = new LogStorageBackend(p, 100 * 1024);
+
+		Key first = Key.createRandomKey();
+		backend.compute(first, unused -> immutable(900));
+
+		for(int i=0;i<2000;i++) {
+			// keep the first one hot
+			backend.get(first);
+			backend.compute(Key.createRandomKey(), unused -> immutable(900));
+		}
+
+		assertTrue(backend.liveBytes <= 100 * 1024);
+		assertTrue(backend.evictions > 0);
+		assertTrue(backend.compactions > 0);
+		assertTrue(backend.get(first).isPresent());
+
+		int size = backend.size();
+		backend.close();
+
+		backend = new LogStorageBackend(p, 100 * 1024);
+		assertEquals(size, backend.size());
+		assertTrue(backend.get(first).isPresent());
+		backend.close();
+	}
+
+	@Test
+	public void truncatesTornRecord() throws IOException {
+		Path p = tempLog();
+
+		LogStorageBackend backend = new LogStorageBackend(p, 1024*1024);
+		Key k1 = Key.createRandomKey();
+		Key k2 = Key.createRandomKey();
+		backend.compute(k1, unused -> immutable(100));
+		backend.compute(k2, unused -> immutable(100));
+		int secondRecord = backend.index.get(k2).offset;
+		backend.close();
+
+		// corrupt the body of the last record
+		try(FileChannel chan = FileChannel.open(p, StandardOpenOption.WRITE)) {
+			chan.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), secondRecord + LogStorageBackend.RECORD_HEADER_SIZE + 20);
+		}
+
+		backend = new LogStorageBackend(p, 1024*1024);
+		assertTrue(backend.get(k1).isPresent());
+		assertFalse(backend.get(k2).isPresent());
+
+		// new writes must be readable after the next restart
+		Key k3 = Key.createRandomKey();
+		backend.compute(k3, unused -> immutable(100));
+		backend.close();
+
+		backend = new LogStorageBackend(p, 1024*1024);
+		assertEquals(2, backend.size());
+		assertTrue(backend.get(k3).isPresent());
+		backend.close();
+	}
+
+	@Test
+	public void truncatesOverlongRecord() throws IOException {
+		Path p = tempLog();
+
+		LogStorageBackend backend = new LogStorageBackend(p, 1024*1024);
+		Key k1 = Key.createRandomKey();
+		Key k2 = Key.createRandomKey();
+		backend.compute(k1, unused -> immutable(100));
+		backend.compute(k2, unused -> immutable(100));
+		int secondRecord = backend.index.get(k2).offset;
+		backend.close();
+
+		// a length that overflows when added to the record offset
+		try(FileChannel chan = FileChannel.open(p, StandardOpenOption.WRITE)) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(0, Integer.MAX_VALUE - 10);
+			chan.write(length, secondRecord);
+		}
+
+		backend = new LogStorageBackend(p, 1024*1024);
+		assertTrue(backend.get(k1).isPresent());
+		assertFalse(backend.get(k2).isPresent());
+		backend.close();
+	}
+
+}
@@ -37,7 +37,7 @@ public class NodeFactory {
 		return unchecked(() -> InetAddress.getByAddress(addr));
 	}
 	
-	static DHT buildDHT(DHT.DHTtype type) {
+	public static DHT buildDHT(DHT.DHTtype type) {
 		DHT dht = new DHT(type);
 		dht.config = new DHTConfiguration() {
 			
@@ -81,6 +81,25 @@ public class NodeFactory {
 		return buildDHT(DHTtype.IPV6_DHT);
 	}
 
+	/**
+	 * a server that never gets started, enough to construct tasks
+	 */
+	public static RPCServer buildServer(DHT dht) {
+		dht.getNode().initKey(null);
+		return new RPCServer(dht.getServerManager(), generateIp(dht.getType(), (byte)0x00), dht.config.getListeningPort(), dht.serverStats);
+	}
+
+	/**
+	 * a started server that never opens a socket, outgoing packets are dropped
+	 */
+	public static RPCServer buildVirtualServer(DHT dht) {
+		RPCServer srv = buildServer(dht);
+		srv.virtual = true;
+		srv.divertOutgoing = (buf, to) -> {};
+		srv.start();
+		return srv;
+	}
+
 	static void fillTable(Node node) {
 		for(int i=0;i<1000;i++) {
 			KBucketEntry e = new KBucketEntry(new InetSocketAddress(generateIp(node.getDHT().getType(), (byte)0x00), 1024), Key.createRandomKey());
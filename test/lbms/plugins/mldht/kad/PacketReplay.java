@@ -0,0 +1,242 @@
+package lbms.plugins.mldht.kad;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.utils.PacketCapture;
+import lbms.plugins.mldht.utils.StreamingQuantileSketch;
+import the8472.utils.concurrent.NonblockingScheduledExecutor;
+
+/**
+ * Replays a capture made with the CAPTURE cli command into in-process DHT instances and reports how they coped.
+ *
+ * <p>
+ * Not a unit test, run manually: <code>java -cp ... lbms.plugins.mldht.kad.PacketReplay capture.mlpc [speed] [threads]</code>
+ * </p>
+ * <p>
+ * Speed is a multiple of the captured rate, 0 replays as fast as possible. Datagrams are injected behind the socket read, so spam throttling,
+ * decoding and message handling run as in production. Outgoing packets are diverted and counted instead of being sent.
+ * Latency is measured from injection until the next response or error to the same socket address is handed to the socket layer,
+ * which is approximate when a source has several requests in flight.
+ * </p>
+ */
+public class PacketReplay {
+
+	static final byte[] RESPONSE_MARKER = "1:y1:r".getBytes();
+	static final byte[] ERROR_MARKER = "1:y1:e".getBytes();
+
+	final Map<InetSocketAddress, Long> pending = new ConcurrentHashMap<>();
+	final StreamingQuantileSketch latencyMicros = new StreamingQuantileSketch(0, 10_000_000, 100_000, Long.MAX_VALUE);
+	final AtomicLong lastSendNanos = new AtomicLong();
+	final AtomicLong maxLatencyMicros = new AtomicLong();
+	final LongAdder sent = new LongAdder();
+	final LongAdder answered = new LongAdder();
+
+	public static void main(String[] args) throws Exception {
+		Path capture = Paths.get(args[0]);
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(Runtime.getRuntime().availableProcessors(), 4);
+
+		new PacketReplay().run(capture, speed, threads);
+	}
+
+	void run(Path capture, double speed, int threads) throws Exception {
+		DHT.setLogger(new DHTLogger() {
+			@Override
+			public void log(Throwable t, LogLevel l) {
+				if(l == LogLevel.Fatal || l == LogLevel.Error)
+					t.printStackTrace();
+			}
+
+			@Override
+			public void log(String message, LogLevel l) {
+				if(l == LogLevel.Fatal || l == LogLevel.Error)
+					System.err.println(message);
+			}
+		});
+
+		NonblockingScheduledExecutor scheduler = new NonblockingScheduledExecutor("replay", threads, (t, e) -> e.printStackTrace());
+		Path storage = Files.createTempDirectory("mldht-replay");
+		int port = ThreadLocalRandom.current().nextInt(20000, 60000);
+
+		Map<DHTtype, RPCServer> servers = new EnumMap<>(DHTtype.class);
+		Map<DHTtype, DHT> dhts = new EnumMap<>(DHTtype.class);
+		for(DHTtype type : DHTtype.values()) {
+			DHT dht = new DHT(type);
+			dht.setScheduler(scheduler);
+			dht.start(config(storage, port));
+			dhts.put(type, dht);
+
+			// binding happens in the background
+			long deadline = System.currentTimeMillis() + 2000;
+			RPCServer srv = null;
+			while(System.currentTimeMillis() < deadline && (srv == null || srv.getState() != RPCServer.State.RUNNING)) {
+				srv = dht.getServerManager().getRandomServer();
+				Thread.sleep(10);
+			}
+			if(srv == null || srv.getState() != RPCServer.State.RUNNING) {
+				System.out.println(type + ": no usable bind address, its packets will be skipped");
+				continue;
+			}
+			srv.divertOutgoing = this::outgoing;
+			servers.put(type, srv);
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long gcCountBefore = gcCount();
+		long gcTimeBefore = gcTime();
+		long allocatedBefore = allocatedBytes(threadBean);
+
+		long injected = 0;
+		long skipped = 0;
+		long start = System.nanoTime();
+
+		try(PacketCapture.Reader reader = new PacketCapture.Reader(capture)) {
+			PacketCapture.Record rec;
+			while((rec = reader.next()) != null) {
+				RPCServer srv = servers.get(rec.source.getAddress() instanceof Inet4Address ? DHTtype.IPV4_DHT : DHTtype.IPV6_DHT);
+				if(srv == null) {
+					skipped++;
+					continue;
+				}
+
+				if(speed > 0) {
+					long due = start + (long) (rec.offsetNanos / speed);
+					long wait;
+					while((wait = due - System.nanoTime()) > 0) {
+						if(wait > 100_000)
+							LockSupport.parkNanos(wait - 50_000);
+						else
+							Thread.yield();
+					}
+				}
+
+				pending.put(rec.source, System.nanoTime());
+				srv.inject(ByteBuffer.wrap(rec.data), rec.source);
+				injected++;
+			}
+		}
+
+		long injectDone = System.nanoTime();
+
+		// let the executors drain, stop once nothing has been sent for a while
+		long lastSent = -1;
+		while(sent.sum() != lastSent) {
+			lastSent = sent.sum();
+			Thread.sleep(500);
+		}
+		long elapsed = Math.max(lastSendNanos.get(), injectDone) - start;
+
+		long gcCount = gcCount() - gcCountBefore;
+		long gcMillis = gcTime() - gcTimeBefore;
+		long allocated = allocatedBytes(threadBean) - allocatedBefore;
+
+		double seconds = elapsed / 1e9;
+		System.out.format("replayed %d datagrams (%d skipped) at %s in %.2fs, injection took %.2fs%n", injected, skipped, speed > 0 ? speed + "x" : "max speed", seconds, (injectDone - start) / 1e9);
+		System.out.format("throughput: %.0f datagrams/s in, %.0f packets/s out (%d sent, %d answers matched)%n", injected / seconds, sent.sum() / seconds, sent.sum(), answered.sum());
+		System.out.format("latency us: p50 %.0f p90 %.0f p99 %.0f p99.9 %.0f max %d%n", latencyMicros.quantile(0.5), latencyMicros.quantile(0.9), latencyMicros.quantile(0.99), latencyMicros.quantile(0.999), maxLatencyMicros.get());
+		System.out.format("gc: %d collections, %dms; allocated: %.1fMB (%.0f bytes per datagram)%n", gcCount, gcMillis, allocated / 1024.0 / 1024.0, injected == 0 ? 0.0 : allocated * 1.0 / injected);
+		System.out.println("scheduler: " + scheduler);
+		dhts.forEach((type, dht) -> System.out.println(type + ":\n" + dht.getStats()));
+
+		dhts.values().forEach(DHT::stop);
+		scheduler.shutdown();
+		scheduler.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	void outgoing(ByteBuffer buf, InetSocketAddress destination) {
+		sent.increment();
+		lastSendNanos.set(System.nanoTime());
+		if(contains(buf, RESPONSE_MARKER) || contains(buf, ERROR_MARKER)) {
+			Long injectedAt = pending.remove(destination);
+			if(injectedAt != null) {
+				long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - injectedAt);
+				latencyMicros.add(micros);
+				maxLatencyMicros.accumulateAndGet(micros, Math::max);
+				answered.increment();
+			}
+		}
+		// consume it like a socket would
+		buf.position(buf.limit());
+	}
+
+	static boolean contains(ByteBuffer buf, byte[] needle) {
+		// the y key sorts last, search backwards
+		outer: for(int i=buf.limit() - needle.length;i>=buf.position();i--) {
+			for(int j=0;j<needle.length;j++)
+				if(buf.get(i + j) != needle[j])
+					continue outer;
+			return true;
+		}
+		return false;
+	}
+
+	static long gcCount() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+	}
+
+	static long gcTime() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+	}
+
+	/**
+	 * sum over live threads, threads that exited during the run are missed
+	 */
+	static long allocatedBytes(ThreadMXBean bean) {
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return 0;
+		long[] perThread = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds());
+		long sum = 0;
+		for(long l : perThread)
+			sum += Math.max(l, 0);
+		return sum;
+	}
+
+	static DHTConfiguration config(Path storage, int port) {
+		return new DHTConfiguration() {
+			@Override
+			public boolean noRouterBootstrap() {
+				return true;
+			}
+
+			@Override
+			public boolean isPersistingID() {
+				return false;
+			}
+
+			@Override
+			public Path getStoragePath() {
+				return storage;
+			}
+
+			@Override
+			public int getListeningPort() {
+				return port;
+			}
+
+			@Override
+			public boolean allowMultiHoming() {
+				return false;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,62 @@
+package lbms.plugins.mldht.kad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+/**
+ * Throughput of {@link SignatureVerifier}: cold (distinct items), cached (repeated items) and pooled verification.
+ *
+ * <p>
+ * Not a unit test, run manually: <code>java -cp ... lbms.plugins.mldht.kad.SignatureVerifierBenchmark [items]</code>
+ * </p>
+ */
+public class SignatureVerifierBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		List<StorageItem> items = new ArrayList<>(count);
+
+		for(int i=0;i<count;i++) {
+			byte[] seed = new byte[32];
+			ThreadLocalRandom.current().nextBytes(seed);
+			EdDSAPrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(seed, StorageItem.spec));
+			byte[] value = new byte[ThreadLocalRandom.current().nextInt(20, 900)];
+			ThreadLocalRandom.current().nextBytes(value);
+			items.add(GenericStorage.buildMutable(value, key, null, i));
+		}
+
+		for(int round = 0; round < 3; round++) {
+			SignatureVerifier uncached = new SignatureVerifier(threads);
+
+			long start = System.nanoTime();
+			for(StorageItem it : items)
+				uncached.verify(it);
+			report("cold, single thread", count, start);
+
+			start = System.nanoTime();
+			for(StorageItem it : items)
+				uncached.verify(it);
+			report("repeated items, single thread", count, start);
+
+			SignatureVerifier pooled = new SignatureVerifier(threads);
+			start = System.nanoTime();
+			pooled.verifyAll(items).get();
+			report("cold, " + threads + " workers", count, start);
+
+			System.out.println(uncached);
+		}
+	}
+
+	static void report(String name, int count, long startNanos) {
+		double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+		System.out.format("%-35s %10.0f items/s%n", name, count / seconds);
+	}
+
+}
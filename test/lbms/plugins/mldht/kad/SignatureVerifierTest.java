@@ -0,0 +1,127 @@
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import the8472.bencode.BEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+import org.junit.Test;
+
+public class SignatureVerifierTest {
+
+	static EdDSAPrivateKey randomKey() {
+		byte[] seed = new byte[32];
+		ThreadLocalRandom.current().nextBytes(seed);
+		return new EdDSAPrivateKey(new EdDSAPrivateKeySpec(seed, StorageItem.spec));
+	}
+
+	static StorageItem copy(StorageItem it, byte[] value, byte[] signature, byte[] salt, long seq) {
+		return new StorageItem(value, it.pubkey, signature, salt, seq);
+	}
+
+	static ByteBuffer bencoded(byte[] salt, long seq, byte[] value) {
+		Map<String, Object> p = new TreeMap<>();
+		if(salt != null)
+			p.put("salt", salt);
+		p.put("seq", seq);
+		p.put("v", new BEncoder.RawData(ByteBuffer.wrap(value)));
+
+		ByteBuffer buf = new BEncoder().encode(p, 1500);
+		buf.position(buf.position() + 1);
+		buf.limit(buf.limit() - 1);
+		return buf;
+	}
+
+	@Test
+	public void payloadMatchesBencoding() {
+		byte[] value = "12:Hello World!".getBytes();
+		byte[] salt = "foobar".getBytes();
+
+		assertEquals(bencoded(null, 1, value), SignatureVerifier.signedPayload(ByteBuffer.allocate(10), null, 1, value));
+		assertEquals(bencoded(salt, -5, value), SignatureVerifier.signedPayload(ByteBuffer.allocate(1500), salt, -5, value));
+
+		byte[] large = new byte[1000];
+		ThreadLocalRandom.current().nextBytes(large);
+		assertEquals(bencoded(salt, Long.MAX_VALUE, large), SignatureVerifier.signedPayload(ByteBuffer.allocate(1500), salt, Long.MAX_VALUE, large));
+	}
+
+	@Test
+	public void rejectsTampering() throws Exception {
+		SignatureVerifier verifier = new SignatureVerifier(1);
+		byte[] salt = "salt".getBytes();
+		StorageItem item = GenericStorage.buildMutable("Hello World!", randomKey(), salt, 4);
+
+		assertTrue(verifier.verify(item));
+		// second time around it comes from the cache
+		assertTrue(verifier.verify(item));
+		assertEquals(1, verifier.cacheHits.sum());
+
+		byte[] otherValue = item.value.clone();
+		otherValue[otherValue.length - 1] ^= 1;
+		assertFalse(verifier.verify(copy(item, otherValue, item.signature, item.salt, item.sequenceNumber)));
+		assertFalse(verifier.verify(copy(item, item.value, item.signature, item.salt, item.sequenceNumber + 1)));
+		assertFalse(verifier.verify(copy(item, item.value, item.signature, "tlas".getBytes(), item.sequenceNumber)));
+		assertFalse(verifier.verify(copy(item, item.value, item.signature, null, item.sequenceNumber)));
+
+		byte[] otherSignature = item.signature.clone();
+		otherSignature[0] ^= 1;
+		assertFalse(verifier.verify(copy(item, item.value, otherSignature, item.salt, item.sequenceNumber)));
+
+		// another key signing the same payload
+		StorageItem forged = GenericStorage.buildMutable("Hello World!", randomKey(), salt, 4);
+		assertFalse(verifier.verify(new StorageItem(forged.value, item.pubkey, forged.signature, salt, 4)));
+
+		assertEquals(6, verifier.failures.sum());
+		assertEquals(1, verifier.cacheHits.sum());
+	}
+
+	@Test
+	public void cacheDoesNotCoverOtherSignatures() throws Exception {
+		SignatureVerifier verifier = new SignatureVerifier(1);
+		StorageItem item = GenericStorage.buildMutable("Hello World!", randomKey(), null, 1);
+		assertTrue(verifier.verify(item));
+
+		// identical key and payload, only the signature differs. must not be answered from the cache entry of the valid one
+		for(int i=0;i<64;i++) {
+			byte[] sig = item.signature.clone();
+			sig[i] ^= 0x10;
+			assertFalse(verifier.verify(copy(item, item.value, sig, null, 1)));
+		}
+		assertEquals(0, verifier.cacheHits.sum());
+		assertTrue(verifier.verify(item));
+		assertEquals(1, verifier.cacheHits.sum());
+	}
+
+	@Test
+	public void verifyAllPreservesOrder() throws Exception {
+		SignatureVerifier verifier = new SignatureVerifier(3);
+		EdDSAPrivateKey key = randomKey();
+		List<StorageItem> items = new ArrayList<>();
+		boolean[] expected = new boolean[50];
+		for(int i=0;i<expected.length;i++) {
+			StorageItem it = GenericStorage.buildMutable("item " + i, key, null, i);
+			expected[i] = i % 3 != 0;
+			items.add(expected[i] ? it : copy(it, it.value, it.signature, null, i + 1));
+		}
+
+		boolean[] results = verifier.verifyAll(items).get(30, TimeUnit.SECONDS);
+		assertTrue(Arrays.toString(results), Arrays.equals(expected, results));
+
+		assertEquals(0, verifier.verifyAll(new ArrayList<>()).get(30, TimeUnit.SECONDS).length);
+	}
+
+}
@@ -0,0 +1,194 @@
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory datagram transport for simulated {@link RPCServer}s.
+ *
+ * <p>
+ * Links get a one-way latency of <code>baseLatency + [0, jitter)</code> that is derived from the seed and the address pair,
+ * so it stays stable for the lifetime of a link and is the same across runs with the same seed. Loss is applied per packet.
+ * </p>
+ * <p>
+ * NATed endpoints behave like a port-restricted cone NAT: they only receive packets from socket addresses they have sent to
+ * within the mapping timeout. Address translation itself is not modeled, a NATed node sends and receives on its own address.
+ * </p>
+ */
+public class SimulatedNetwork {
+
+	public static class Settings {
+		long seed = 0x8472;
+		long baseLatencyMicros = 5_000;
+		long jitterMicros = 45_000;
+		double loss = 0.0;
+		double natFraction = 0.0;
+		long natMappingTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+		public Settings seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public Settings latency(long base, long jitter, TimeUnit unit) {
+			baseLatencyMicros = unit.toMicros(base);
+			jitterMicros = unit.toMicros(jitter);
+			return this;
+		}
+
+		public Settings loss(double rate) {
+			loss = rate;
+			return this;
+		}
+
+		public Settings nat(double fraction, long mappingTimeout, TimeUnit unit) {
+			natFraction = fraction;
+			natMappingTimeoutMillis = unit.toMillis(mappingTimeout);
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("seed:%d latency:%d+%dus loss:%.1f%% nat:%.0f%% (%ds)", seed, baseLatencyMicros, jitterMicros, loss * 100, natFraction * 100, natMappingTimeoutMillis / 1000);
+		}
+	}
+
+	class Endpoint {
+		final InetSocketAddress address;
+		final boolean natted;
+		// remote -> expiry, only tracked for NATed endpoints
+		final Map<InetSocketAddress, Long> pinholes = new ConcurrentHashMap<>();
+		volatile RPCServer server;
+
+		Endpoint(InetSocketAddress address, boolean natted) {
+			this.address = address;
+			this.natted = natted;
+		}
+
+		boolean accepts(InetSocketAddress from, long now) {
+			if(!natted)
+				return true;
+			Long expiry = pinholes.get(from);
+			return expiry != null && expiry > now;
+		}
+	}
+
+	final Settings settings;
+	final ScheduledExecutorService scheduler;
+	final Random topology;
+	final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	final LongAdder sent = new LongAdder();
+	final LongAdder delivered = new LongAdder();
+	final LongAdder lost = new LongAdder();
+	final LongAdder unroutable = new LongAdder();
+	final LongAdder filtered = new LongAdder();
+
+	public SimulatedNetwork(Settings settings, ScheduledExecutorService scheduler) {
+		this.settings = settings;
+		this.scheduler = scheduler;
+		this.topology = new Random(settings.seed);
+	}
+
+	/**
+	 * allocates a public unicast address that is not yet in use, draws from the seeded generator
+	 */
+	synchronized Endpoint allocate(int port) {
+		while(true) {
+			byte[] raw = new byte[4];
+			topology.nextBytes(raw);
+			raw[0] = 74; // some public block, same as NodeFactory
+			InetSocketAddress addr;
+			try {
+				addr = new InetSocketAddress(InetAddress.getByAddress(raw), port);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			if(endpoints.containsKey(addr))
+				continue;
+			Endpoint ep = new Endpoint(addr, topology.nextDouble() < settings.natFraction);
+			endpoints.put(addr, ep);
+			return ep;
+		}
+	}
+
+	void remove(Endpoint ep) {
+		endpoints.remove(ep.address, ep);
+	}
+
+	/**
+	 * detaches every endpoint, packets still in flight are counted as unroutable on arrival
+	 */
+	void removeAll() {
+		endpoints.values().forEach(ep -> ep.server = null);
+		endpoints.clear();
+	}
+
+	long latencyMicros(InetSocketAddress a, InetSocketAddress b) {
+		if(settings.jitterMicros <= 0)
+			return settings.baseLatencyMicros;
+		// symmetric and stable per link
+		long h = settings.seed ^ (a.hashCode() * 31L + b.hashCode()) ^ (b.hashCode() * 31L + a.hashCode());
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return settings.baseLatencyMicros + Math.floorMod(h, settings.jitterMicros);
+	}
+
+	/**
+	 * transport for {@link RPCServerManager#newVirtualServer}, consumes the buffer
+	 */
+	void send(Endpoint from, ByteBuffer buf, InetSocketAddress to) {
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		sent.increment();
+
+		long now = System.currentTimeMillis();
+		if(from.natted)
+			from.pinholes.put(to, now + settings.natMappingTimeoutMillis);
+
+		if(settings.loss > 0 && ThreadLocalRandom.current().nextDouble() < settings.loss) {
+			lost.increment();
+			return;
+		}
+
+		Endpoint target = endpoints.get(to);
+		if(target == null || target.server == null) {
+			unroutable.increment();
+			return;
+		}
+
+		scheduler.schedule(() -> {
+			// filter on arrival, the pinhole may have been opened by a packet in the opposite direction that is still in flight
+			RPCServer srv = target.server;
+			if(srv == null || srv.getState() != RPCServer.State.RUNNING || endpoints.get(to) != target) {
+				unroutable.increment();
+				return;
+			}
+			if(!target.accepts(from.address, System.currentTimeMillis())) {
+				filtered.increment();
+				return;
+			}
+			delivered.increment();
+			srv.inject(ByteBuffer.wrap(data), from.address);
+		}, latencyMicros(from.address, to), TimeUnit.MICROSECONDS);
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "endpoints:" + endpoints.size() + " sent:" + sent.sum() + " delivered:" + delivered.sum() + " lost:" + lost.sum() + " unroutable:" + unroutable.sum() + " nat-filtered:" + filtered.sum();
+	}
+
+}
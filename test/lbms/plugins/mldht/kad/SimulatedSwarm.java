@@ -0,0 +1,294 @@
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.SimulatedNetwork.Endpoint;
+import lbms.plugins.mldht.kad.tasks.NodeLookup;
+import lbms.plugins.mldht.kad.tasks.TaskManager;
+import the8472.utils.concurrent.NonblockingScheduledExecutor;
+
+/**
+ * Runs many {@link DHT} instances in one JVM on top of a {@link SimulatedNetwork}.
+ *
+ * <p>
+ * All instances share one scheduler. The nodes themselves run on wall-clock time with their regular timers,
+ * only the network topology, link latencies, NAT assignment and the choice of bootstrap contacts are derived from the seed.
+ * </p>
+ */
+public class SimulatedSwarm implements AutoCloseable {
+
+	static final int PORT = 6881;
+	static final int BOOTSTRAP_CONTACTS = 8;
+
+	public class Member {
+		final DHT dht;
+		final Endpoint endpoint;
+		final RPCServer server;
+
+		Member(DHT dht, Endpoint endpoint, RPCServer server) {
+			this.dht = dht;
+			this.endpoint = endpoint;
+			this.server = server;
+		}
+
+		public DHT getDHT() {
+			return dht;
+		}
+
+		public Key getID() {
+			return server.getDerivedID();
+		}
+
+		public InetSocketAddress getAddress() {
+			return endpoint.address;
+		}
+
+		public boolean isNatted() {
+			return endpoint.natted;
+		}
+
+		public int routingTableSize() {
+			return dht.getNode().getNumEntriesInRoutingTable();
+		}
+
+		/**
+		 * bucket refresh pings come and go all the time, only lookups count as activity
+		 */
+		boolean isIdle() {
+			if(dht.bootstrapping.get() != DHT.BootstrapState.NONE)
+				return false;
+			TaskManager tman = dht.getTaskManager();
+			return Stream.concat(Arrays.stream(tman.getActiveTasks()), Arrays.stream(tman.getQueuedTasks())).noneMatch(NodeLookup.class::isInstance);
+		}
+	}
+
+	public static class LookupResult {
+		public final Key target;
+		/**
+		 * number of reachable members closer to the target than the closest node found, 0 is a perfect lookup. -1 if nothing was found
+		 */
+		public final int rank;
+		public final int hops;
+		public final int requests;
+		public final long durationMillis;
+
+		LookupResult(Key target, int rank, int hops, int requests, long durationMillis) {
+			this.target = target;
+			this.rank = rank;
+			this.hops = hops;
+			this.requests = requests;
+			this.durationMillis = durationMillis;
+		}
+	}
+
+	final SimulatedNetwork network;
+	final NonblockingScheduledExecutor scheduler;
+	final Random rnd;
+	final List<Member> members = new CopyOnWriteArrayList<>();
+	final Path storage = Paths.get(".", "does", "not", "exist");
+
+	public SimulatedSwarm(SimulatedNetwork.Settings settings, int threads) {
+		scheduler = new NonblockingScheduledExecutor("swarm", threads, (t, e) -> e.printStackTrace());
+		network = new SimulatedNetwork(settings, scheduler);
+		rnd = new Random(settings.seed);
+	}
+
+	/**
+	 * the logger is static, this silences everything except exceptions
+	 */
+	public static void quietLogging() {
+		DHT.setLogger(new DHTLogger() {
+			@Override
+			public void log(Throwable t, LogLevel l) {
+				if(l == LogLevel.Fatal || l == LogLevel.Error)
+					t.printStackTrace();
+			}
+
+			@Override
+			public void log(String message, LogLevel l) {}
+		});
+	}
+
+	DHTConfiguration config() {
+		return new DHTConfiguration() {
+			@Override
+			public boolean noRouterBootstrap() {
+				return true;
+			}
+
+			@Override
+			public boolean isPersistingID() {
+				return false;
+			}
+
+			@Override
+			public Path getStoragePath() {
+				return storage;
+			}
+
+			@Override
+			public int getListeningPort() {
+				return PORT;
+			}
+
+			@Override
+			public boolean allowMultiHoming() {
+				return false;
+			}
+
+			@Override
+			public Predicate<InetAddress> filterBindAddress() {
+				// virtual servers only
+				return addr -> false;
+			}
+		};
+	}
+
+	/**
+	 * adds nodes and starts their bootstrap from a few random reachable members, does not wait for it to finish
+	 */
+	public void grow(int count) throws SocketException, InterruptedException {
+		List<Member> added = new ArrayList<>();
+		for(int i=0;i<count;i++) {
+			Endpoint ep = network.allocate(PORT);
+			DHT dht = new DHT(DHTtype.IPV4_DHT);
+			dht.setScheduler(scheduler);
+			dht.start(config());
+			RPCServer srv = dht.getServerManager().newVirtualServer(ep.address.getAddress(), (buf, to) -> network.send(ep, buf, to));
+			ep.server = srv;
+			added.add(new Member(dht, ep, srv));
+		}
+
+		// servers start in the background, tasks on servers that aren't running yet get killed
+		for(Member m : added)
+			while(m.server.getState() != RPCServer.State.RUNNING)
+				Thread.sleep(1);
+
+		// like a router bootstrap, but the contacts are members that joined earlier
+		for(Member m : added) {
+			m.dht.fillHomeBuckets(contacts());
+			members.add(m);
+		}
+	}
+
+	/**
+	 * gives the member's DHT an additional server on a new address, e.g. for multi-homing. waits until the server is running
+	 */
+	public RPCServer addServer(Member m) throws InterruptedException {
+		Endpoint ep = network.allocate(PORT);
+		RPCServer srv = m.dht.getServerManager().newVirtualServer(ep.address.getAddress(), (buf, to) -> network.send(ep, buf, to));
+		ep.server = srv;
+		while(srv.getState() != RPCServer.State.RUNNING)
+			Thread.sleep(1);
+		return srv;
+	}
+
+	List<KBucketEntry> contacts() {
+		List<KBucketEntry> contacts = new ArrayList<>();
+		List<Member> reachable = new ArrayList<>(members);
+		reachable.removeIf(Member::isNatted);
+		for(int i=0;i<Math.min(BOOTSTRAP_CONTACTS, reachable.size());i++) {
+			Member contact = reachable.get(rnd.nextInt(reachable.size()));
+			contacts.add(new KBucketEntry(contact.getAddress(), contact.getID()));
+		}
+		return contacts;
+	}
+
+	/**
+	 * Runs a self-lookup and bucket fill on every member.
+	 *
+	 * Real nodes do that every {@link DHTConstants#SELF_LOOKUP_INTERVAL}, which is how early members learn about the ones that joined
+	 * after them. Unsolicited contacts only go into replacement buckets, so without this a grown swarm has lopsided routing tables.
+	 */
+	public void maintain() {
+		for(Member m : members)
+			m.dht.fillHomeBuckets(m.routingTableSize() > 0 ? Collections.emptyList() : contacts());
+	}
+
+	/**
+	 * waits until no member has bootstrap or lookup tasks left
+	 *
+	 * @return true if the swarm settled before the timeout
+	 */
+	public boolean settle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(System.nanoTime() < deadline) {
+			if(members.stream().allMatch(Member::isIdle))
+				return true;
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public List<Member> getMembers() {
+		return members;
+	}
+
+	public Member randomMember() {
+		return members.get(rnd.nextInt(members.size()));
+	}
+
+	/**
+	 * NATed members are not counted, lookups can't be expected to find them
+	 */
+	int rank(Member origin, Key target, Key found) {
+		Comparator<Key> order = new Key.DistanceOrder(target);
+		return (int) members.stream().filter(m -> m != origin && !m.isNatted() && order.compare(m.getID(), found) < 0).count();
+	}
+
+	public CompletableFuture<LookupResult> lookup(Member origin, Key target) {
+		CompletableFuture<LookupResult> result = new CompletableFuture<>();
+
+		NodeLookup task = new NodeLookup(target, origin.server, origin.dht.getNode(), false);
+		task.setInfo("simulated lookup");
+		task.addListener(t -> {
+			int rank = task.getClosestEntry().map(e -> rank(origin, target, e.getID())).orElse(-1);
+			result.complete(new LookupResult(target, rank, task.getClosestHops(), task.getSentReqs(), task.getFinishedTime() - task.getStartTime()));
+		});
+		origin.dht.getTaskManager().addTask(task);
+		return result;
+	}
+
+	public SimulatedNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * stops packet delivery and lets the scheduler drain before stopping the nodes, so no packet reaches a stopped DHT
+	 */
+	@Override
+	public void close() {
+		network.removeAll();
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		members.forEach(m -> m.dht.stop());
+		members.clear();
+	}
+
+}
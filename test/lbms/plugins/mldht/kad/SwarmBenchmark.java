@@ -0,0 +1,143 @@
+package lbms.plugins.mldht.kad;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import lbms.plugins.mldht.kad.SimulatedSwarm.LookupResult;
+import lbms.plugins.mldht.utils.StreamingQuantileSketch;
+
+/**
+ * Grows a {@link SimulatedSwarm} step by step and measures node lookups at each size.
+ *
+ * <p>
+ * Not a unit test, run manually:
+ * <code>java -cp ... lbms.plugins.mldht.kad.SwarmBenchmark [sizes=250,500,1000,2000] [lookups=200] [loss=0.0] [nat=0.0] [threads=cpus] [seed=...]</code>
+ * </p>
+ * <p>
+ * Per-node CPU is the process CPU time during the lookup phase divided by swarm size and wall time, so it includes the background maintenance
+ * of all nodes and the simulated network itself.
+ * </p>
+ */
+public class SwarmBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		List<Integer> sizes = Arrays.asList(250, 500, 1000, 2000);
+		int lookups = 200;
+		SimulatedNetwork.Settings settings = new SimulatedNetwork.Settings();
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		for(String arg : args) {
+			String[] kv = arg.split("=", 2);
+			switch(kv[0]) {
+				case "sizes":
+					sizes = Arrays.stream(kv[1].split(",")).map(Integer::valueOf).sorted().collect(Collectors.toList());
+					break;
+				case "lookups":
+					lookups = Integer.parseInt(kv[1]);
+					break;
+				case "loss":
+					settings.loss(Double.parseDouble(kv[1]));
+					break;
+				case "nat":
+					settings.nat(Double.parseDouble(kv[1]), 60, TimeUnit.SECONDS);
+					break;
+				case "threads":
+					threads = Integer.parseInt(kv[1]);
+					break;
+				case "seed":
+					settings.seed(Long.parseLong(kv[1]));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + arg);
+			}
+		}
+
+		SimulatedSwarm.quietLogging();
+
+		System.out.println(settings + " threads:" + threads);
+		System.out.println("  nodes  lookups  found%  rank p99  hops avg/p90  reqs avg  time ms p50/p90/p99  cpu us/node/s  settle s");
+
+		try(SimulatedSwarm swarm = new SimulatedSwarm(settings, threads)) {
+			for(int size : sizes) {
+				long settleStart = System.nanoTime();
+				swarm.grow(size - swarm.size());
+				boolean settled = swarm.settle(5, TimeUnit.MINUTES);
+				swarm.maintain();
+				settled &= swarm.settle(5, TimeUnit.MINUTES);
+				double settleSeconds = (System.nanoTime() - settleStart) / 1e9;
+
+				run(swarm, lookups, settled, settleSeconds);
+			}
+			System.out.println(swarm.getNetwork());
+		}
+	}
+
+	static void run(SimulatedSwarm swarm, int lookups, boolean settled, double settleSeconds) throws Exception {
+		StreamingQuantileSketch rank = new StreamingQuantileSketch(0, 64, 64, Long.MAX_VALUE);
+		StreamingQuantileSketch hops = new StreamingQuantileSketch(0, 32, 32, Long.MAX_VALUE);
+		StreamingQuantileSketch millis = new StreamingQuantileSketch(0, 30_000, 30_000, Long.MAX_VALUE);
+		// roughly what a busy client would have in flight, without swamping the shared scheduler
+		Semaphore concurrency = new Semaphore(16);
+		List<CompletableFuture<LookupResult>> results = new ArrayList<>();
+
+		long cpuBefore = processCpuNanos();
+		long start = System.nanoTime();
+
+		for(int i=0;i<lookups;i++) {
+			concurrency.acquire();
+			CompletableFuture<LookupResult> f = swarm.lookup(swarm.randomMember(), Key.createRandomKey());
+			f.whenComplete((r, ex) -> concurrency.release());
+			results.add(f);
+		}
+		CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.MINUTES);
+
+		long wall = System.nanoTime() - start;
+		long cpu = processCpuNanos() - cpuBefore;
+
+		int found = 0;
+		long requests = 0;
+		long hopSum = 0;
+		for(CompletableFuture<LookupResult> f : results) {
+			LookupResult r = f.get();
+			if(r.rank == 0)
+				found++;
+			rank.add(r.rank);
+			requests += r.requests;
+			hopSum += Math.max(r.hops, 0);
+			hops.add(r.hops);
+			millis.add(r.durationMillis);
+		}
+
+		double cpuPerNode = cpu / 1000.0 / swarm.size() / (wall / 1e9);
+
+		System.out.format("%7d  %7d  %5.1f%%  %8.0f  %4.1f/%-4.0f    %6.1f   %6.0f/%-6.0f/%-6.0f   %13.1f  %6.1f%s%n",
+				swarm.size(),
+				lookups,
+				found * 100.0 / lookups,
+				rank.quantile(0.99),
+				hopSum * 1.0 / lookups,
+				hops.quantile(0.9),
+				requests * 1.0 / lookups,
+				millis.quantile(0.5),
+				millis.quantile(0.9),
+				millis.quantile(0.99),
+				cpuPerNode,
+				settleSeconds,
+				settled ? "" : " (not settled)");
+	}
+
+	static long processCpuNanos() {
+		OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if(bean instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+		return 0;
+	}
+
+}
@@ -0,0 +1,84 @@
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class CrawlCheckpointTest {
+
+	static final byte OTHER_KIND = 1;
+
+	@Test
+	public void roundTrip() throws IOException {
+		Path file = Files.createTempFile("crawl", ".checkpoint");
+		try {
+			Prefix whole = new Prefix();
+			Prefix deep = new Prefix(Key.createRandomKey(), 37);
+			Prefix full = new Prefix(Key.createRandomKey(), Key.KEY_BITS - 1);
+			KBucketEntry v4 = new KBucketEntry(new InetSocketAddress(InetAddress.getByName("10.1.2.3"), 6881), Key.createRandomKey());
+			KBucketEntry v6 = new KBucketEntry(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 65535), Key.createRandomKey());
+
+			CrawlCheckpoint.write(file, OTHER_KIND, out -> {
+				CrawlCheckpoint.writeAll(out, Arrays.asList(whole, deep, full), p -> CrawlCheckpoint.writePrefix(out, p));
+				CrawlCheckpoint.writeAll(out, Arrays.asList(v4, v6), e -> CrawlCheckpoint.writeEntry(out, e));
+			});
+
+			assertFalse(CrawlCheckpoint.read(file, CrawlCheckpoint.KIND_SAMPLING).isPresent());
+
+			Optional<DataInput> body = CrawlCheckpoint.read(file, OTHER_KIND);
+			assertTrue(body.isPresent());
+			DataInput in = body.get();
+			List<Prefix> prefixes = new ArrayList<>();
+			List<KBucketEntry> entries = new ArrayList<>();
+			CrawlCheckpoint.readAll(in, in2 -> prefixes.add(CrawlCheckpoint.readPrefix(in2)));
+			CrawlCheckpoint.readAll(in, in2 -> entries.add(CrawlCheckpoint.readEntry(in2)));
+
+			assertEquals(Arrays.asList(whole, deep, full), prefixes);
+			for(int i=0;i<prefixes.size();i++)
+				assertEquals(Arrays.asList(whole, deep, full).get(i).getDepth(), prefixes.get(i).getDepth());
+			assertEquals(v4.getID(), entries.get(0).getID());
+			assertEquals(v4.getAddress(), entries.get(0).getAddress());
+			assertEquals(v6.getID(), entries.get(1).getID());
+			assertEquals(v6.getAddress(), entries.get(1).getAddress());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void rejectsCorruption() throws IOException {
+		Path file = Files.createTempFile("crawl", ".checkpoint");
+		try {
+			CrawlCheckpoint.write(file, CrawlCheckpoint.KIND_SAMPLING, out -> out.writeLong(42));
+			assertEquals(42, CrawlCheckpoint.read(file, CrawlCheckpoint.KIND_SAMPLING).get().readLong());
+
+			byte[] raw = Files.readAllBytes(file);
+			raw[10] ^= 1;
+			Files.write(file, raw);
+			assertFalse(CrawlCheckpoint.read(file, CrawlCheckpoint.KIND_SAMPLING).isPresent());
+
+			Files.delete(file);
+			assertFalse(CrawlCheckpoint.read(file, CrawlCheckpoint.KIND_SAMPLING).isPresent());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+}
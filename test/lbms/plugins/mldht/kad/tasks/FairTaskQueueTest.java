@@ -0,0 +1,168 @@
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.NodeFactory;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+
+public class FairTaskQueueTest {
+
+	DHT dht;
+	RPCServer srv;
+	ScheduledExecutorService scheduler;
+
+	@Before
+	public void setup() {
+		dht = NodeFactory.buildDHT(DHTtype.IPV4_DHT);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		dht.setScheduler(scheduler);
+		srv = NodeFactory.buildServer(dht);
+	}
+
+	@After
+	public void cleanup() {
+		scheduler.shutdownNow();
+	}
+
+	Task task(SchedulingClass c, long queuedNanos) {
+		Task t = new Task(srv, dht.getNode()) {
+			@Override
+			void update() {}
+
+			@Override
+			void callFinished(RPCCall call, MessageBase rsp) {}
+
+			@Override
+			void callTimeout(RPCCall call) {}
+
+			@Override
+			public int getTodoCount() {
+				return 0;
+			}
+
+			@Override
+			protected boolean isDone() {
+				return false;
+			}
+		};
+		t.setSchedulingClass(c);
+		t.queuedNanos = queuedNanos;
+		return t;
+	}
+
+	@Test
+	public void sharesByWeight() {
+		FairTaskQueue q = new FairTaskQueue();
+		long now = System.nanoTime();
+		for(int i=0;i<100;i++)
+			for(SchedulingClass c : SchedulingClass.values())
+				q.add(task(c, now), false);
+
+		// 13 = 8 + 4 + 1 slots make one full round
+		EnumMap<SchedulingClass, Integer> started = new EnumMap<>(SchedulingClass.class);
+		for(int i=0;i<13 * 5;i++) {
+			SchedulingClass c = q.next(now);
+			q.poll(c);
+			started.merge(c, 1, Integer::sum);
+		}
+
+		assertEquals(40, (int) started.get(SchedulingClass.INTERACTIVE));
+		assertEquals(20, (int) started.get(SchedulingClass.MAINTENANCE));
+		assertEquals(5, (int) started.get(SchedulingClass.BULK));
+	}
+
+	@Test
+	public void idleClassesDontBankCredit() {
+		FairTaskQueue q = new FairTaskQueue();
+		long now = System.nanoTime();
+		for(int i=0;i<100;i++)
+			q.add(task(SchedulingClass.BULK, now), false);
+		for(int i=0;i<50;i++)
+			q.poll(q.next(now));
+
+		// a newly active class gets its share from now on, but does not get to make up for the 50 bulk tasks
+		for(int i=0;i<20;i++)
+			q.add(task(SchedulingClass.MAINTENANCE, now), false);
+		for(int i=0;i<20;i++)
+			q.poll(q.next(now));
+		int bulk = 50 - q.size(SchedulingClass.BULK);
+		assertTrue("bulk " + bulk, bulk >= 3 && bulk <= 5);
+	}
+
+	@Test
+	public void overdueInteractivePreempts() {
+		FairTaskQueue q = new FairTaskQueue();
+		long now = System.nanoTime();
+		long deadline = TimeUnit.MILLISECONDS.toNanos(DHTConstants.INTERACTIVE_TASK_DEADLINE);
+
+		// drive the interactive pass ahead of the others
+		for(int i=0;i<10;i++)
+			q.add(task(SchedulingClass.INTERACTIVE, now), false);
+		for(int i=0;i<10;i++)
+			q.poll(SchedulingClass.INTERACTIVE);
+
+		q.add(task(SchedulingClass.BULK, now), false);
+		Task waiting = task(SchedulingClass.INTERACTIVE, now);
+		q.add(waiting, false);
+		q.add(task(SchedulingClass.INTERACTIVE, now + deadline), true);
+
+		assertEquals(SchedulingClass.BULK, q.next(now));
+		// the oldest task is behind a priority task, it still makes the class overdue
+		assertEquals(SchedulingClass.INTERACTIVE, q.next(now + deadline + 1));
+		q.poll(SchedulingClass.INTERACTIVE);
+		assertSame(waiting, q.peek(SchedulingClass.INTERACTIVE));
+		assertEquals(SchedulingClass.MAINTENANCE.hasDeadline(), q.overdue(SchedulingClass.MAINTENANCE, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void overdueFollowsOldestTask() {
+		FairTaskQueue q = new FairTaskQueue();
+		SchedulingClass c = SchedulingClass.INTERACTIVE;
+		long now = System.nanoTime();
+		long deadline = TimeUnit.MILLISECONDS.toNanos(DHTConstants.INTERACTIVE_TASK_DEADLINE);
+
+		// an old priority task ends up behind newer ones, both in front of the regular tasks
+		q.add(task(c, now), true);
+		q.add(task(c, now + deadline), false);
+		q.add(task(c, now + deadline), true);
+
+		assertTrue(q.overdue(c, now + deadline + 1));
+		q.poll(c);
+		assertTrue(q.overdue(c, now + deadline + 1));
+		q.poll(c);
+		assertFalse(q.overdue(c, now + deadline + 1));
+		assertTrue(q.overdue(c, now + 2 * deadline + 1));
+		q.poll(c);
+		assertFalse(q.overdue(c, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void drain() {
+		FairTaskQueue q = new FairTaskQueue();
+		q.add(task(SchedulingClass.BULK, 0), false);
+		q.add(task(SchedulingClass.MAINTENANCE, 0), false);
+		assertEquals(2, q.drain().size());
+		assertEquals(0, q.size());
+		assertNull(q.next(0));
+	}
+
+}
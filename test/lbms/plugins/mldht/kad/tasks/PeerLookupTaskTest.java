@@ -0,0 +1,98 @@
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.SimulatedNetwork;
+import lbms.plugins.mldht.kad.SimulatedSwarm;
+import lbms.plugins.mldht.kad.TaskBuilder;
+import lbms.plugins.mldht.kad.tasks.IterativeLookupCandidates.LookupGraphNode;
+
+public class PeerLookupTaskTest {
+
+	@Test
+	public void jointLookupMergesState() throws Exception {
+		SimulatedSwarm.quietLogging();
+
+		SimulatedNetwork.Settings settings = new SimulatedNetwork.Settings().latency(1, 4, TimeUnit.MILLISECONDS);
+
+		try(SimulatedSwarm swarm = new SimulatedSwarm(settings, 2)) {
+			swarm.grow(48);
+			assertTrue("swarm should settle", swarm.settle(60, TimeUnit.SECONDS));
+			swarm.maintain();
+			assertTrue("swarm should settle", swarm.settle(60, TimeUnit.SECONDS));
+
+			SimulatedSwarm.Member origin = swarm.randomMember();
+			DHT dht = origin.getDHT();
+			swarm.addServer(origin);
+
+			// a server only becomes active once it has seen responses
+			swarm.maintain();
+			long deadline = System.currentTimeMillis() + 30_000;
+			while(dht.getServerManager().getActiveServers().size() < 2 && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			assertEquals(2, dht.getServerManager().getActiveServers().size());
+
+			// every node knows the same peers, so every response overlaps with the others
+			Key target = Key.createRandomKey();
+			Set<PeerAddressDBItem> peers = new HashSet<>();
+			for(int i=1;i<=3;i++)
+				peers.add(PeerAddressDBItem.createFromAddress(InetAddress.getByAddress(new byte[] {8, 8, 8, (byte) i}), 1234, false));
+			for(SimulatedSwarm.Member m : swarm.getMembers())
+				if(m != origin)
+					peers.forEach(p -> m.getDHT().getDatabase().store(target, p));
+
+			List<PeerLookupTask> tasks = new ArrayList<>();
+			Set<PeerAddressDBItem> found = TaskBuilder.fromInstances(Collections.singleton(dht)).multiHomedPeerLookup(target, t -> {
+				tasks.add(t);
+				// a stalled node may legitimately be asked again, without retransmits every repeated call is a merging failure
+				t.todo.allowRetransmits(false);
+			}).toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+			assertEquals(2, tasks.size());
+			PeerLookupTask a = tasks.get(0);
+			PeerLookupTask b = tasks.get(1);
+			assertNotSame(a.getRPC(), b.getRPC());
+			assertSame(a.todo, b.todo);
+			assertSame(a.closest, b.closest);
+			assertTrue(a.isNoAnnounce() && b.isNoAnnounce());
+
+			assertEquals(peers, found);
+			assertEquals(peers, a.getReturnedItems());
+			assertEquals(peers, b.getReturnedItems());
+
+			// both servers contributed requests, but no node was asked twice
+			assertTrue(a.getSentReqs() > 0);
+			assertTrue(b.getSentReqs() > 0);
+			Set<RPCServer> senders = new HashSet<>();
+			for(LookupGraphNode n : a.todo.candidates.values()) {
+				assertTrue(n.toKbe() + " queried " + n.calls.size() + " times", n.calls.size() <= 1);
+				n.calls.forEach(c -> senders.add(c.getRequest().getServer()));
+			}
+			assertEquals(2, senders.size());
+			assertEquals(a.getSentReqs() + b.getSentReqs(), a.todo.candidates.values().stream().mapToInt(n -> n.calls.size()).sum());
+
+			List<Key> closest = a.closest.ids().collect(Collectors.toList());
+			assertEquals(closest.size(), new HashSet<>(closest).size());
+			assertTrue(a.closest.reachedTargetCapacity());
+		}
+	}
+
+}
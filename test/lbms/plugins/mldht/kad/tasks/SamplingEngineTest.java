@@ -0,0 +1,120 @@
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.SimulatedNetwork;
+import lbms.plugins.mldht.kad.SimulatedSwarm;
+import lbms.plugins.mldht.kad.tasks.SamplingEngine.Traversal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SamplingEngineTest {
+
+	@Test
+	public void partitionCoversKeyspace() {
+		List<Prefix> ranges = SamplingEngine.partition(24);
+		assertEquals(32, ranges.size());
+
+		double total = ranges.stream().mapToDouble(SamplingEngine::fraction).sum();
+		assertEquals(1.0, total, 1e-12);
+
+		// disjoint and complete: each random key falls into exactly one range
+		for(int i=0;i<1000;i++) {
+			Key k = Key.createRandomKey();
+			assertEquals(1, ranges.stream().filter(p -> p.isPrefixOf(k)).count());
+		}
+
+		assertEquals(1, SamplingEngine.partition(1).size());
+		assertEquals(1.0, SamplingEngine.fraction(new Prefix()), 0.0);
+	}
+
+	@Test
+	public void keyPositions() {
+		assertEquals(0.0, SamplingEngine.position(Key.MIN_KEY), 0.0);
+		assertEquals(1.0, SamplingEngine.position(Key.MAX_KEY), 1e-12);
+		Prefix upperHalf = new Prefix().splitPrefixBranch(true);
+		assertEquals(0.5, SamplingEngine.position(upperHalf.first()), 1e-12);
+	}
+
+	@Test
+	public void honorsSampleIntervals() throws Exception {
+		SamplingEngine.SampleIntervals intervals = new SamplingEngine.SampleIntervals();
+		InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(new byte[] {1, 2, 3, 4}), 1234);
+
+		assertTrue(intervals.maySample(addr, 0));
+		intervals.sampled(addr, 60, 1000);
+		assertFalse(intervals.maySample(addr, 1000));
+		assertFalse(intervals.maySample(addr, 60_999));
+		assertTrue(intervals.maySample(addr, 61_000));
+
+		// nodes not advertising an interval may be sampled at any time
+		InetSocketAddress other = new InetSocketAddress(InetAddress.getByAddress(new byte[] {1, 2, 3, 5}), 1234);
+		intervals.sampled(other, 0, 1000);
+		assertTrue(intervals.maySample(other, 1000));
+	}
+
+	@Test
+	public void stopCheckpointResume() throws Exception {
+		SimulatedSwarm.quietLogging();
+		Path file = Files.createTempFile("sampling", ".checkpoint");
+
+		try(SimulatedSwarm swarm = new SimulatedSwarm(new SimulatedNetwork.Settings().latency(1, 4, TimeUnit.MILLISECONDS), 2)) {
+			swarm.grow(32);
+			assertTrue(swarm.settle(60, TimeUnit.SECONDS));
+			swarm.maintain();
+			assertTrue(swarm.settle(60, TimeUnit.SECONDS));
+			SimulatedSwarm.Member origin = swarm.getMembers().get(0);
+			// reachability is only re-evaluated periodically
+			while(!origin.getDHT().getServerManager().getAllServers().get(0).isReachable())
+				Thread.sleep(100);
+
+			SamplingEngine engine = new SamplingEngine(Collections.singleton(origin.getDHT()), 2, "test", 1000, (k, addr, id) -> {});
+			engine.setCheckpoint(file);
+			engine.start();
+			Traversal t = engine.traversals.get(0);
+			while(t.active.isEmpty())
+				Thread.sleep(1);
+
+			engine.stop();
+			// a worker may be between two tasks on another thread, it drains once it notices the stop
+			engine.completion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+			assertEquals(0, t.workers.get());
+			assertTrue(t.active.isEmpty());
+			assertTrue(t.seeding.isEmpty());
+			assertFalse(t.resumeStates.isEmpty());
+			// no range got lost
+			assertEquals(t.ranges, t.pending.size() + t.rangesDone.get());
+			assertTrue(Files.exists(file));
+
+			// a second stop must not overwrite the checkpoint with a partial one
+			byte[] written = Files.readAllBytes(file);
+			engine.stop();
+			assertArrayEquals(written, Files.readAllBytes(file));
+
+			SamplingEngine resumed = new SamplingEngine(Collections.singleton(origin.getDHT()), 2, "test", 1000, (k, addr, id) -> {});
+			resumed.setCheckpoint(file);
+			resumed.start().toCompletableFuture().get(60, TimeUnit.SECONDS);
+			Traversal r = resumed.traversals.get(0);
+			assertEquals(t.ranges, r.ranges);
+			assertEquals(r.ranges, r.rangesDone.get());
+			assertTrue(r.resumeStates.isEmpty());
+			assertFalse("completed traversals delete their checkpoint", Files.exists(file));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+}
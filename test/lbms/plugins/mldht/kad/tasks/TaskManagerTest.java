@@ -0,0 +1,167 @@
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.NodeFactory;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.tasks.Task.SchedulingClass;
+
+public class TaskManagerTest {
+
+	DHT dht;
+	RPCServer srv;
+	TaskManager tman;
+	ScheduledExecutorService scheduler;
+
+	@Before
+	public void setup() {
+		dht = NodeFactory.buildDHT(DHTtype.IPV4_DHT);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		dht.setScheduler(scheduler);
+		srv = NodeFactory.buildVirtualServer(dht);
+		tman = new TaskManager(dht);
+	}
+
+	@After
+	public void cleanup() {
+		scheduler.shutdownNow();
+	}
+
+	// never sends anything and never finishes, so it holds on to its slot
+	Task idle(SchedulingClass c) {
+		Task t = new Task(srv, dht.getNode()) {
+			@Override
+			void update() {}
+
+			@Override
+			void callFinished(RPCCall call, MessageBase rsp) {}
+
+			@Override
+			void callTimeout(RPCCall call) {}
+
+			@Override
+			public int getTodoCount() {
+				return 0;
+			}
+
+			@Override
+			protected boolean isDone() {
+				return false;
+			}
+		};
+		t.setSchedulingClass(c);
+		return t;
+	}
+
+	void fillSlots() {
+		for(int i=0;i<DHTConstants.MAX_ACTIVE_TASKS;i++)
+			tman.addTask(idle(SchedulingClass.MAINTENANCE));
+		tman.dequeue();
+		assertEquals(DHTConstants.MAX_ACTIVE_TASKS, tman.getNumTasks());
+		assertEquals(0, tman.getNumQueuedTasks());
+		assertFalse(tman.canStartTask(srv));
+	}
+
+	// the scheduler is single-threaded, so this waits for everything submitted before
+	void flush() throws Exception {
+		scheduler.submit(() -> {}).get();
+	}
+
+	void age(Task t, long millis) {
+		t.queuedNanos -= TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Test
+	public void interactiveTasksDontWaitForPeriodicDequeue() throws Exception {
+		tman.addTask(idle(SchedulingClass.MAINTENANCE));
+		flush();
+		assertEquals(0, tman.getNumTasks());
+		assertEquals(1, tman.getNumQueuedTasks(SchedulingClass.MAINTENANCE));
+
+		// started on the scheduler, not the calling thread
+		CountDownLatch blocked = new CountDownLatch(1);
+		scheduler.execute(() -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		tman.addTask(idle(SchedulingClass.INTERACTIVE));
+		assertEquals(0, tman.getNumTasks());
+		blocked.countDown();
+		flush();
+		// the interactive one took the maintenance task along since both fit
+		assertEquals(2, tman.getNumTasks());
+		assertEquals(0, tman.getNumQueuedTasks());
+	}
+
+	@Test
+	public void overdueInteractiveBypassesTaskLimit() throws Exception {
+		fillSlots();
+
+		Task interactive = idle(SchedulingClass.INTERACTIVE);
+		Task maintenance = idle(SchedulingClass.MAINTENANCE);
+		tman.addTask(interactive);
+		tman.addTask(maintenance);
+		flush();
+		assertEquals(2, tman.getNumQueuedTasks());
+
+		age(interactive, DHTConstants.INTERACTIVE_TASK_DEADLINE + 1);
+		age(maintenance, DHTConstants.INTERACTIVE_TASK_DEADLINE + 1);
+		tman.dequeue();
+
+		assertEquals(DHTConstants.MAX_ACTIVE_TASKS + 1, tman.getNumTasks());
+		assertEquals(0, tman.getNumQueuedTasks(SchedulingClass.INTERACTIVE));
+		// classes without deadline still wait for a regular slot
+		assertEquals(1, tman.getNumQueuedTasks(SchedulingClass.MAINTENANCE));
+	}
+
+	@Test
+	public void dequeueRecordsQueueWait() {
+		Task t = idle(SchedulingClass.MAINTENANCE);
+		tman.addTask(t);
+		age(t, 2000);
+		tman.dequeue();
+
+		assertEquals(1, dht.getStats().getTaskQueueWait(SchedulingClass.MAINTENANCE).count());
+		assertTrue(dht.getStats().getTaskQueueWait(SchedulingClass.MAINTENANCE).sum() >= 2.0);
+		assertEquals(0, dht.getStats().getTaskQueueWait(SchedulingClass.BULK).count());
+	}
+
+	@Test
+	public void killedTasksDontNeedSlot() {
+		fillSlots();
+
+		Task killed = idle(SchedulingClass.MAINTENANCE);
+		Task waiting = idle(SchedulingClass.MAINTENANCE);
+		tman.addTask(killed);
+		tman.addTask(waiting);
+
+		// the finish listener dequeues, the killed head has to be dropped even though no slot is free
+		killed.kill();
+
+		assertEquals(1, tman.getNumQueuedTasks());
+		assertEquals(waiting, tman.getQueuedTasks()[0]);
+		assertEquals(DHTConstants.MAX_ACTIVE_TASKS, tman.getNumTasks());
+		// dropped tasks never started, so they don't count towards the wait time
+		assertEquals(DHTConstants.MAX_ACTIVE_TASKS, dht.getStats().getTaskQueueWait(SchedulingClass.MAINTENANCE).count());
+	}
+
+}
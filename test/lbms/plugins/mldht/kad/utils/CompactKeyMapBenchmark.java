@@ -0,0 +1,88 @@
+package lbms.plugins.mldht.kad.utils;
+
+import lbms.plugins.mldht.kad.Key;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Compares the memory footprint and throughput of {@link CompactKeySet} against the collections it replaces.
+ *
+ * <p>
+ * Not a unit test, run manually with a large heap, e.g. <code>java -Xmx6g -cp ... lbms.plugins.mldht.kad.utils.CompactKeyMapBenchmark 10000000</code>
+ * </p>
+ */
+public class CompactKeyMapBenchmark {
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+		// keys are regenerated from a fixed seed for each pass so that they are only retained by the collection under test
+		measure("CompactKeySet", entries, () -> new CompactKeySet(0), (s, k) -> s.add(k), CompactKeySet::contains, CompactKeySet::offHeapBytes);
+		measure("ConcurrentSkipListMap", entries, ConcurrentSkipListMap<Key, Boolean>::new, (m, k) -> m.put(k, Boolean.TRUE), ConcurrentSkipListMap::containsKey, m -> 0L);
+		measure("HashSet", entries, HashSet<Key>::new, HashSet::add, HashSet::contains, s -> 0L);
+	}
+
+	static Key key(Random rnd) {
+		byte[] raw = new byte[Key.SHA1_HASH_LENGTH];
+		rnd.nextBytes(raw);
+		return new Key(raw);
+	}
+
+	interface OffHeap<T> {
+		long bytes(T collection);
+	}
+
+	static <T> void measure(String name, int entries, Supplier<T> factory, BiConsumer<T, Key> insert, BiPredicate<T, Key> lookup, OffHeap<T> offHeap) {
+		long before = usedHeap();
+		T collection = factory.get();
+
+		Random rnd = new Random(42);
+		long start = System.nanoTime();
+		for(int i=0;i<entries;i++)
+			insert.accept(collection, key(rnd));
+		long insertNanos = System.nanoTime() - start;
+
+		rnd = new Random(42);
+		int found = 0;
+		start = System.nanoTime();
+		for(int i=0;i<entries;i++)
+			if(lookup.test(collection, key(rnd)))
+				found++;
+		long lookupNanos = System.nanoTime() - start;
+		if(found != entries)
+			throw new IllegalStateException(name + " lost entries");
+
+		long heap = usedHeap() - before;
+		long direct = offHeap.bytes(collection);
+
+		System.out.format("%-22s heap: %6.1f B/entry  off-heap: %6.1f B/entry  insert: %6.1f ns/op  lookup: %6.1f ns/op%n",
+				name,
+				heap * 1.0 / entries,
+				direct * 1.0 / entries,
+				insertNanos * 1.0 / entries,
+				lookupNanos * 1.0 / entries);
+
+		// keep the collection reachable until after the heap measurement
+		if(collection.hashCode() == 42)
+			System.out.println();
+	}
+
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0;i<3;i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,150 @@
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class CompactKeyMapTest {
+
+	@Test
+	public void behavesLikeMap() {
+		CompactKeyMap<Integer> map = new CompactKeyMap<>(0);
+		Map<Key, Integer> reference = new HashMap<>();
+		List<Key> keys = new ArrayList<>();
+		for(int i=0;i<5000;i++)
+			keys.add(Key.createRandomKey());
+
+		// random mix of operations, enough to trigger growth and tombstone purges
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for(int i=0;i<100_000;i++) {
+			Key k = keys.get(rnd.nextInt(keys.size()));
+			int v = rnd.nextInt(100);
+			switch(rnd.nextInt(4)) {
+				case 0:
+					assertEquals(reference.put(k, v), map.put(k, v));
+					break;
+				case 1:
+					assertEquals(reference.putIfAbsent(k, v), map.putIfAbsent(k, v));
+					break;
+				case 2:
+					assertEquals(reference.remove(k), map.remove(k));
+					break;
+				case 3:
+					assertEquals(reference.get(k), map.get(k));
+					break;
+			}
+		}
+
+		assertEquals(reference.size(), map.size());
+		Map<Key, Integer> iterated = new HashMap<>();
+		map.forEach(iterated::put);
+		assertEquals(reference, iterated);
+	}
+
+	@Test
+	public void conditionalRemove() {
+		CompactKeyMap<String> map = new CompactKeyMap<>(10);
+		Key k = Key.createRandomKey();
+		map.put(k, "a");
+		assertFalse(map.remove(k, "b"));
+		assertEquals("a", map.get(k));
+		assertTrue(map.remove(k, "a"));
+		assertNull(map.get(k));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void clusteredKeys() {
+		// keys sharing their first 8 bytes must not collapse onto a single probe chain
+		CompactKeySet set = new CompactKeySet(0);
+		byte[] raw = Key.createRandomKey().getHash();
+		List<Key> keys = new ArrayList<>();
+		for(int i=0;i<20_000;i++) {
+			raw[19] = (byte) i;
+			raw[18] = (byte) (i >> 8);
+			keys.add(new Key(raw));
+		}
+		keys.forEach(k -> assertTrue(set.add(k)));
+		keys.forEach(k -> assertFalse(set.add(k)));
+		assertEquals(keys.size(), set.size());
+		keys.forEach(k -> assertTrue(set.contains(k)));
+		assertFalse(set.contains(Key.createRandomKey()));
+	}
+
+	@Test
+	public void sharedPrefixKeepsProbesShort() {
+		// only the last 4 bytes differ, the first 128 bits are identical for all keys
+		CompactKeyMap<Integer> map = new CompactKeyMap<>(0);
+		byte[] raw = Key.createRandomKey().getHash();
+		List<Key> keys = new ArrayList<>();
+		for(int i=0;i<20_000;i++) {
+			raw[19] = (byte) i;
+			raw[18] = (byte) (i >> 8);
+			keys.add(new Key(raw));
+		}
+		for(int i=0;i<keys.size();i++)
+			map.put(keys.get(i), i);
+
+		long total = 0;
+		int max = 0;
+		for(Key k : keys) {
+			int probes = map.probeLength(k);
+			assertTrue(probes > 0);
+			total += probes;
+			max = Math.max(max, probes);
+		}
+		// a shared probe chain would average ~n/2
+		assertTrue("average " + total * 1.0 / keys.size(), total < keys.size() * 4L);
+		assertTrue("max " + max, max < 200);
+		assertEquals(-1, map.probeLength(Key.createRandomKey()));
+	}
+
+	@Test
+	public void iterationStopsAndAllowsModification() {
+		CompactKeyMap<Integer> map = new CompactKeyMap<>(1000);
+		for(int i=0;i<1000;i++)
+			map.put(Key.createRandomKey(), i);
+
+		int[] visited = {0};
+		map.forEachFrom(Key.createRandomKey(), (k, v) -> {
+			assertTrue(map.remove(k, v));
+			return ++visited[0] < 100;
+		});
+		assertEquals(100, visited[0]);
+		assertEquals(900, map.size());
+	}
+
+	@Test
+	public void concurrentAccess() {
+		CompactKeySet set = new CompactKeySet(0);
+		Set<Key> added = Collections.synchronizedSet(new HashSet<>());
+
+		IntStream.range(0, 8).parallel().forEach(t -> {
+			for(int i=0;i<20_000;i++) {
+				Key k = Key.createRandomKey();
+				assertTrue(set.add(k));
+				added.add(k);
+				assertTrue(set.contains(k));
+			}
+		});
+
+		assertEquals(added.size(), set.size());
+		added.forEach(k -> assertTrue(set.contains(k)));
+	}
+
+}
@@ -0,0 +1,113 @@
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.utils.StreamingQuantileSketch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class PopulationEstimatorTest {
+
+	static final int POPULATION = 1 << 17;
+
+	static Key[] population() {
+		Key[] keys = new Key[POPULATION];
+		Arrays.setAll(keys, i -> Key.createRandomKey());
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * the xor-closest keys lie in the smallest prefix subtree around the target, which is a contiguous range in sorted order
+	 */
+	static Set<Key> closest(Key[] sorted, Key target, int count) {
+		int idx = Arrays.binarySearch(sorted, target);
+		if(idx < 0)
+			idx = -(idx + 1);
+		List<Key> window = new ArrayList<>(Arrays.asList(sorted).subList(Math.max(0, idx - 256), Math.min(sorted.length, idx + 256)));
+		window.sort(new Key.DistanceOrder(target));
+		return new HashSet<>(window.subList(0, count));
+	}
+
+	@Test
+	public void convergesConcurrently() throws InterruptedException {
+		Key[] keys = population();
+		PopulationEstimator estimator = new PopulationEstimator();
+
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread(() -> {
+				for(int i=0;i<1500;i++)
+					estimator.update(closest(keys, Key.createRandomKey(), 8), Key.createRandomKey());
+			});
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+
+		long estimate = estimator.getEstimate();
+		assertTrue(estimator.toString(), estimate > POPULATION / 2 && estimate < POPULATION * 2);
+		long median = estimator.getQuantileEstimate(0.5);
+		assertTrue(estimator.toString(), median > POPULATION / 2 && median < POPULATION * 2);
+		assertTrue(estimator.getQuantileEstimate(0.1) <= median && median <= estimator.getQuantileEstimate(0.9));
+	}
+
+	@Test
+	public void ignoresRepeatedGroups() {
+		Key[] keys = population();
+		PopulationEstimator estimator = new PopulationEstimator();
+		estimator.setInitialRawDistanceEstimate(Math.log(POPULATION) / Math.log(2));
+
+		Key target = Key.createRandomKey();
+		Set<Key> group = closest(keys, target, 8);
+		estimator.update(group, target);
+		double raw = estimator.getRawDistanceEstimate();
+		for(int i=0;i<10;i++)
+			estimator.update(group, target);
+		assertEquals(raw, estimator.getRawDistanceEstimate(), 0.0);
+		assertTrue(estimator.toString(), estimator.toString().contains("updates:1 "));
+	}
+
+	@Test
+	public void followsShrinkingPopulation() {
+		// neighbor groups of a small population share fewer prefix bits than the current estimate predicts, they must still be counted
+		int population = 1 << 10;
+		Key[] keys = new Key[population];
+		Arrays.setAll(keys, i -> Key.createRandomKey());
+		Arrays.sort(keys);
+
+		PopulationEstimator estimator = new PopulationEstimator();
+		estimator.setInitialRawDistanceEstimate(24);
+
+		for(int i=0;i<3000;i++)
+			estimator.update(closest(keys, Key.createRandomKey(), 8), Key.createRandomKey());
+
+		long estimate = estimator.getEstimate();
+		assertTrue(estimator.toString(), estimate > population / 2 && estimate < population * 2);
+	}
+
+	@Test
+	public void sketchQuantiles() {
+		StreamingQuantileSketch sketch = new StreamingQuantileSketch(0, 100, 1000, 10_000);
+		assertTrue(Double.isNaN(sketch.quantile(0.5)));
+		for(int i=0;i<10_000;i++)
+			sketch.add(i % 100);
+		assertEquals(50, sketch.quantile(0.5), 1.0);
+		assertEquals(90, sketch.quantile(0.9), 1.0);
+
+		// after two rotations only the recent values are left
+		for(int i=0;i<20_000;i++)
+			sketch.add(75);
+		assertEquals(75, sketch.quantile(0.1), 0.2);
+	}
+
+}
@@ -6,13 +6,19 @@
 package lbms.plugins.mldht.kad.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
 
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.Snapshot;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter.TimeoutSource;
 
 public class TimeoutFilterStatsTest {
 
@@ -71,4 +77,47 @@ public class TimeoutFilterStatsTest {
 				
 	}
 
+	@Test
+	public void testSubnetModel() throws Exception {
+		ResponseTimeoutFilter f = new ResponseTimeoutFilter();
+		InetAddress near = InetAddress.getByName("10.1.2.3");
+		InetAddress sameSubnet = InetAddress.getByName("10.1.200.7");
+		InetAddress elsewhere = InetAddress.getByName("10.2.2.3");
+		
+		IntStream.range(0, 50).forEach(i -> f.updateSubnet(near, 40 + (i % 3) * 5));
+		
+		long packed = f.subnetEstimate(sameSubnet);
+		assertTrue(packed != 0);
+		assertEquals(45, ResponseTimeoutFilter.smoothedRTT(packed), 10);
+		assertTrue(ResponseTimeoutFilter.deviation(packed) < 20);
+		assertEquals(0, f.subnetEstimate(elsewhere));
+		assertEquals(1, f.getSubnetCount());
+		
+		// v6 subnets are /48
+		InetAddress v6 = InetAddress.getByName("2001:db8:1::1");
+		IntStream.range(0, 10).forEach(i -> f.updateSubnet(v6, 3000));
+		assertEquals(3000, ResponseTimeoutFilter.smoothedRTT(f.subnetEstimate(InetAddress.getByName("2001:db8:1:ffff::2"))));
+		assertEquals(0, f.subnetEstimate(InetAddress.getByName("2001:db8:2::1")));
+		
+		PingRequest req = new PingRequest();
+		req.setDestination(new InetSocketAddress(sameSubnet, 1234));
+		RPCCall call = new RPCCall(req);
+		long subnetTimeout = f.getStallTimeout(call);
+		assertEquals(TimeoutSource.SUBNET, call.getTimeoutSource());
+		assertTrue(subnetTimeout < f.getStallTimeout());
+		
+		// slow peers in an otherwise unknown subnet fall back to the global model
+		req = new PingRequest();
+		req.setDestination(new InetSocketAddress(elsewhere, 1234));
+		call = new RPCCall(req);
+		assertEquals(f.getStallTimeout(), f.getStallTimeout(call));
+		assertEquals(TimeoutSource.GLOBAL, call.getTimeoutSource());
+		
+		// distant v6 subnet gets more than the global baseline would give it
+		req = new PingRequest();
+		req.setDestination(new InetSocketAddress(v6, 1234));
+		call = new RPCCall(req);
+		assertTrue(f.getStallTimeout(call) >= 3000);
+	}
+
 }
@@ -0,0 +1,63 @@
+package the8472.bt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+public class MetadataPoolTest {
+
+	@Test
+	public void endgameDuplicatesOutstandingPieces() throws IOException {
+		MetadataPool pool = new MetadataPool(3 * MetadataPool.PIECE_SIZE);
+
+		try(SocketChannel slowChan = SocketChannel.open(); SocketChannel fastChan = SocketChannel.open()) {
+			PullMetaDataConnection slow = new PullMetaDataConnection(slowChan);
+			PullMetaDataConnection fast = new PullMetaDataConnection(fastChan);
+
+			assertEquals(0, pool.reservePiece(slow));
+			assertEquals(1, pool.reservePiece(fast));
+			assertEquals(2, pool.reservePiece(fast));
+
+			assertTrue(pool.addBuffer(1, ByteBuffer.allocate(MetadataPool.PIECE_SIZE)));
+			assertTrue(pool.addBuffer(2, ByteBuffer.allocate(MetadataPool.PIECE_SIZE)));
+
+			// all pieces in flight, the one held by the slow connection gets requested again
+			assertEquals(0, pool.reservePiece(fast));
+			assertEquals(1, pool.duplicateRequests());
+			// but not twice from the same connection
+			assertEquals(-1, pool.reservePiece(fast));
+			assertEquals(-1, pool.reservePiece(slow));
+
+			assertTrue(pool.addBuffer(0, ByteBuffer.allocate(MetadataPool.PIECE_SIZE)));
+			assertTrue(pool.addBuffer(0, ByteBuffer.allocate(MetadataPool.PIECE_SIZE)));
+			assertEquals(1, pool.redundantPieces());
+			assertEquals(3, pool.piecesReceived());
+
+			assertFalse(pool.addBuffer(3, ByteBuffer.allocate(1)));
+		}
+	}
+
+	@Test
+	public void releasedPiecesAreReassigned() throws IOException {
+		MetadataPool pool = new MetadataPool(2 * MetadataPool.PIECE_SIZE);
+
+		try(SocketChannel chanA = SocketChannel.open(); SocketChannel chanB = SocketChannel.open()) {
+			PullMetaDataConnection a = new PullMetaDataConnection(chanA);
+			PullMetaDataConnection b = new PullMetaDataConnection(chanB);
+
+			assertEquals(0, pool.reservePiece(a));
+			assertEquals(1, pool.reservePiece(a));
+			pool.deRegister(a);
+			assertEquals(0, pool.reservePiece(b));
+			pool.releasePiece(0, b);
+			assertEquals(0, pool.reservePiece(a));
+		}
+	}
+
+}
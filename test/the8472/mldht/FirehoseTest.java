@@ -0,0 +1,116 @@
+package the8472.mldht;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.messages.GetPeersRequest;
+import lbms.plugins.mldht.utils.NIOConnectionManager;
+import the8472.mldht.Firehose.Connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+public class FirehoseTest {
+
+	@Test
+	public void encodesFixedSizeRecords() throws IOException {
+		Key k = Key.createRandomKey();
+		GetPeersRequest req = new GetPeersRequest(k);
+		InetSocketAddress src = new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), 6881);
+
+		ByteBuffer record = ByteBuffer.allocate(Firehose.RECORD_SIZE);
+		Firehose.encode(record, 1234, Firehose.TYPE_GET_PEERS, src, req);
+
+		assertEquals(Firehose.RECORD_SIZE, record.remaining());
+		assertEquals(1234, record.getLong());
+		assertEquals(Firehose.TYPE_GET_PEERS, record.get());
+		assertEquals(4, record.get());
+		assertEquals(6881, Short.toUnsignedInt(record.getShort()));
+		byte[] addr = new byte[16];
+		record.get(addr);
+		assertArrayEquals(new byte[] {10, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, addr);
+		assertEquals(k, new Key(record));
+	}
+
+	@Test
+	public void countsDropsForSlowConsumers() throws IOException {
+		Firehose fh = new Firehose();
+		fh.selector = new NIOConnectionManager("firehose test");
+		fh.maxQueuedBatches = 1;
+
+		Connection c = fh.new Connection(SocketChannel.open());
+
+		ByteBuffer record = ByteBuffer.allocate(Firehose.RECORD_SIZE);
+		int perBatch = Firehose.BATCH_SIZE / Firehose.RECORD_SIZE;
+
+		// stream header occupies the only queue slot, so everything beyond one batch gets dropped
+		for(int i=0;i<perBatch + 10;i++)
+			c.add(record);
+
+		assertEquals(10, c.dropped);
+		assertEquals(10, c.droppedUnreported);
+
+		// drain the queue, the next record is preceded by a drop report
+		assertEquals(8, c.poll().remaining());
+		c.add(record);
+		assertEquals(0, c.droppedUnreported);
+		ByteBuffer batch = c.poll();
+		assertEquals(Firehose.BATCH_SIZE, batch.remaining());
+		c.seal();
+		ByteBuffer next = c.poll();
+		assertEquals(2 * Firehose.RECORD_SIZE, next.remaining());
+		assertEquals(Firehose.TYPE_DROPPED, next.get(8));
+		assertEquals(10, next.getLong(12));
+		assertTrue(c.toString().contains("dropped:10"));
+
+		c.close();
+	}
+
+	@Test
+	public void dropReportPaddingIsZeroed() throws IOException {
+		Firehose fh = new Firehose();
+		fh.selector = new NIOConnectionManager("firehose test");
+		fh.maxQueuedBatches = 1;
+
+		Connection c = fh.new Connection(SocketChannel.open());
+
+		ByteBuffer record = ByteBuffer.allocate(Firehose.RECORD_SIZE);
+		while(record.hasRemaining())
+			record.put((byte) 0xff);
+		record.flip();
+		int perBatch = Firehose.BATCH_SIZE / Firehose.RECORD_SIZE;
+
+		c.poll();
+		// fill two batches and recycle the first so that its stale records are up for reuse
+		for(int i=0;i<perBatch + 1;i++)
+			c.add(record);
+		c.recycle(c.poll());
+		for(int i=0;i<perBatch;i++)
+			c.add(record);
+		// both batches are full and one is queued, this one gets dropped
+		for(int i=0;i<perBatch;i++)
+			c.add(record);
+		assertEquals(1, c.droppedUnreported);
+
+		// the report goes into the recycled buffer
+		c.recycle(c.poll());
+		c.add(record);
+		c.seal();
+		assertEquals(Firehose.BATCH_SIZE, c.poll().remaining());
+		ByteBuffer report = c.poll();
+		assertEquals(Firehose.TYPE_DROPPED, report.get(8));
+		assertEquals(1, report.getLong(12));
+		for(int i=20;i<Firehose.RECORD_SIZE;i++)
+			assertEquals(0, report.get(i));
+
+		c.close();
+	}
+
+}
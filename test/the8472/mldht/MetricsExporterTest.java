@@ -0,0 +1,84 @@
+package the8472.mldht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsExporterTest {
+
+	MetricsExporter exporter = new MetricsExporter();
+
+	@After
+	public void stop() {
+		exporter.stop();
+	}
+
+	String request(String requestLine) throws IOException {
+		try(Socket s = new Socket(InetAddress.getLoopbackAddress(), exporter.server.getPort())) {
+			s.setSoTimeout(5000);
+			OutputStream out = s.getOutputStream();
+			// split the request to exercise partial reads
+			out.write((requestLine + "\r\nHost: localhost\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while((read = in.read(buf)) > 0)
+				response.write(buf, 0, read);
+			return new String(response.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void servesMetrics() throws IOException {
+		exporter.registry.counter("test_scrapes_total", "scrapes").add(42);
+		exporter.start(0, InetAddress.getLoopbackAddress().getHostAddress());
+
+		String rsp = request("GET /metrics HTTP/1.1");
+		assertTrue(rsp, rsp.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(rsp, rsp.contains("Content-Type: text/plain; version=0.0.4"));
+		assertTrue(rsp, rsp.endsWith("\r\n\r\n# HELP test_scrapes_total scrapes\n# TYPE test_scrapes_total counter\ntest_scrapes_total 42\n"));
+
+		rsp = request("GET /other HTTP/1.1");
+		assertTrue(rsp, rsp.startsWith("HTTP/1.1 404 Not Found\r\n"));
+
+		rsp = request("POST /metrics HTTP/1.1");
+		assertTrue(rsp, rsp.startsWith("HTTP/1.1 405"));
+	}
+
+	@Test
+	public void stopClosesOpenConnections() throws Exception {
+		exporter.start(0, InetAddress.getLoopbackAddress().getHostAddress());
+
+		try(Socket s = new Socket(InetAddress.getLoopbackAddress(), exporter.server.getPort())) {
+			s.setSoTimeout(5000);
+			// incomplete request, the connection stays open waiting for the rest of the header
+			s.getOutputStream().write("GET /metrics HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while(exporter.connections.isEmpty() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(1, exporter.connections.size());
+
+			exporter.stop();
+
+			assertEquals(0, exporter.connections.size());
+			assertEquals(-1, s.getInputStream().read());
+		}
+	}
+
+}
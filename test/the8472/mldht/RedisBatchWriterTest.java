@@ -0,0 +1,235 @@
+package the8472.mldht;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.utils.NIOConnectionManager;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RedisBatchWriterTest {
+
+	/**
+	 * minimal RESP server that parses command arrays and acknowledges each with an integer reply
+	 */
+	static class StubServer implements AutoCloseable {
+
+		final ServerSocket server;
+		final BlockingQueue<List<String>> commands = new LinkedBlockingQueue<>();
+		final Thread thread;
+
+		StubServer() throws IOException {
+			server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			thread = new Thread(this::serve);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		InetSocketAddress address() {
+			return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+		}
+
+		void serve() {
+			try(Socket s = server.accept()) {
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = s.getOutputStream();
+				while(true) {
+					String header = line(in);
+					if(header == null)
+						return;
+					assertEquals('*', header.charAt(0));
+					int elements = Integer.parseInt(header.substring(1));
+					List<String> cmd = new ArrayList<>();
+					for(int i=0;i<elements;i++) {
+						String len = line(in);
+						assertEquals('$', len.charAt(0));
+						byte[] data = new byte[Integer.parseInt(len.substring(1))];
+						for(int read = 0;read < data.length;)
+							read += in.read(data, read, data.length - read);
+						assertEquals("", line(in));
+						cmd.add(new String(data, StandardCharsets.ISO_8859_1));
+					}
+					commands.add(cmd);
+					out.write(":1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		static String line(InputStream in) throws IOException {
+			StringBuilder b = new StringBuilder();
+			int c;
+			while((c = in.read()) != '\n') {
+				if(c < 0)
+					return null;
+				if(c != '\r')
+					b.append((char) c);
+			}
+			return b.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
+
+	@Test
+	public void encodesResp() {
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		byte[] key = "k".getBytes(StandardCharsets.ISO_8859_1);
+		byte[][] names = {"1.2.3.4".getBytes(StandardCharsets.ISO_8859_1)};
+		long[] scores = {42};
+		RedisBatchWriter.putZadd(buf, key, names, scores, 1);
+		assertEquals(RedisBatchWriter.zaddSize(key, names, scores, 1), buf.position());
+		int zaddEnd = buf.position();
+		RedisBatchWriter.putExpire(buf, key, 172800);
+		assertEquals(RedisBatchWriter.expireSize(key, 172800), buf.position() - zaddEnd);
+		buf.flip();
+
+		byte[] expected = "*4\r\n$4\r\nZADD\r\n$1\r\nk\r\n$2\r\n42\r\n$7\r\n1.2.3.4\r\n*3\r\n$6\r\nEXPIRE\r\n$1\r\nk\r\n$6\r\n172800\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		byte[] actual = new byte[buf.remaining()];
+		buf.get(actual);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void encodesDecimalExtremes() {
+		for(long v : new long[] {0, 9, 10, -1, -10, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1}) {
+			String expected = Long.toString(v);
+			assertEquals(expected.length(), RedisBatchWriter.digits(v));
+			ByteBuffer buf = ByteBuffer.allocate(32);
+			RedisBatchWriter.putDecimal(buf, v);
+			assertEquals(expected, new String(buf.array(), 0, buf.position(), StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	public void aggregatesAndPipelines() throws Exception {
+		try(StubServer server = new StubServer()) {
+			RedisBatchWriter writer = new RedisBatchWriter(new NIOConnectionManager("redis test"), server.address(), 3600);
+			writer.ensureOpen(System.currentTimeMillis());
+
+			long deadline = System.currentTimeMillis() + 10_000;
+			while(!writer.ref.get().connected && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue(writer.ref.get().connected);
+
+			Key a = Key.createRandomKey();
+			Key b = Key.createRandomKey();
+
+			synchronized (writer) {
+				// hold off flushes until all updates are merged
+				writer.lastFlush = Long.MAX_VALUE / 2;
+				writer.add(a, "10.0.0.1", 100);
+				writer.add(a, "10.0.0.2", 100);
+				writer.add(a, "10.0.0.1", 200);
+				writer.add(a, "10.0.0.1", 150);
+				writer.add(b, "10.0.0.3", 300);
+				assertEquals(3, writer.pendingMembers);
+				assertTrue(writer.flush(System.currentTimeMillis()));
+			}
+			writer.notifyOutput();
+
+			Map<String, List<String>> zadds = new HashMap<>();
+			List<String> expires = new ArrayList<>();
+			for(int i=0;i<4;i++) {
+				List<String> cmd = server.commands.poll(10, TimeUnit.SECONDS);
+				if(cmd.get(0).equals("ZADD"))
+					zadds.put(cmd.get(1), cmd);
+				else
+					expires.add(cmd.get(1) + " " + cmd.get(2));
+			}
+
+			List<String> aCmd = zadds.get(a.toString(false));
+			assertEquals(6, aCmd.size());
+			Map<String, String> aMembers = new HashMap<>();
+			for(int i=2;i<aCmd.size();i+=2)
+				aMembers.put(aCmd.get(i + 1), aCmd.get(i));
+			assertEquals("200", aMembers.get("10.0.0.1"));
+			assertEquals("100", aMembers.get("10.0.0.2"));
+			assertEquals(Arrays.asList("ZADD", b.toString(false), "300", "10.0.0.3"), zadds.get(b.toString(false)));
+
+			Collections.sort(expires);
+			List<String> expectedExpires = new ArrayList<>(Arrays.asList(a.toString(false) + " 3600", b.toString(false) + " 3600"));
+			Collections.sort(expectedExpires);
+			assertEquals(expectedExpires, expires);
+
+			while(writer.unacknowledged > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			synchronized (writer) {
+				assertEquals(4, writer.commandsSent);
+				assertEquals(4, writer.repliesReceived);
+				assertEquals(0, writer.unacknowledged);
+			}
+
+			writer.ref.get().close();
+		}
+	}
+
+	@Test
+	public void capsPendingUpdates() {
+		RedisBatchWriter writer = new RedisBatchWriter(new NIOConnectionManager("redis test"), new InetSocketAddress(InetAddress.getLoopbackAddress(), 1), 3600);
+		writer.maxPendingMembers = 10;
+		// don't attempt to connect
+		writer.lastConnectAttempt = Long.MAX_VALUE / 2;
+
+		Key k = Key.createRandomKey();
+		for(int i=0;i<15;i++)
+			writer.add(k, "10.0.0." + i, i);
+		// updates of already pending members are still merged
+		writer.add(k, "10.0.0.0", 100);
+
+		assertEquals(10, writer.pendingMembers);
+		assertEquals(5, writer.dropped);
+		assertEquals(Long.valueOf(100), writer.pending.get(k).get("10.0.0.0"));
+	}
+
+	@Test
+	public void countsCommandsDiscardedOnDisconnect() {
+		RedisBatchWriter writer = new RedisBatchWriter(new NIOConnectionManager("redis test"), new InetSocketAddress(InetAddress.getLoopbackAddress(), 1), 3600);
+		// never actually opened
+		RedisBatchWriter.Connection c = writer.new Connection();
+		c.connected = true;
+		writer.ref.set(c);
+
+		synchronized (writer) {
+			writer.lastFlush = Long.MAX_VALUE / 2;
+			writer.add(Key.createRandomKey(), "10.0.0.1", 1);
+			writer.add(Key.createRandomKey(), "10.0.0.2", 1);
+			writer.add(Key.createRandomKey(), "10.0.0.3", 1);
+			writer.flush(System.currentTimeMillis());
+			assertTrue(writer.hasOutput());
+		}
+
+		writer.connectionLost(c);
+		assertEquals(3, writer.dropped);
+		assertEquals(0, writer.membersWritten);
+		assertTrue(!writer.hasOutput());
+	}
+
+}
@@ -0,0 +1,46 @@
+package the8472.mldht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import lbms.plugins.mldht.kad.Key;
+import the8472.mldht.TorrentFetcher.FetchTask;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TorrentFetcherTest {
+
+	static Key key(String leadingHex) {
+		StringBuilder sb = new StringBuilder(leadingHex);
+		while(sb.length() < 40)
+			sb.append('0');
+		return new Key(sb.toString());
+	}
+
+	@Test
+	public void picksTaskInLargestGap() {
+		TorrentFetcher fetcher = new TorrentFetcher(Collections.emptyList());
+
+		assertNull(fetcher.pickFarthestFromActive());
+
+		fetcher.activeLookups.put(key("20"), 1);
+		fetcher.activeLookups.put(key("40"), 2);
+
+		FetchTask near = fetcher.fetch(key("30"));
+		FetchTask adjacent = fetcher.fetch(key("41"));
+		FetchTask far = fetcher.fetch(key("90"));
+
+		assertEquals(far, fetcher.pickFarthestFromActive());
+		fetcher.removePending(far);
+		// upper gap is still the largest one
+		assertEquals(adjacent, fetcher.pickFarthestFromActive());
+		fetcher.removePending(adjacent);
+		assertEquals(near, fetcher.pickFarthestFromActive());
+		fetcher.removePending(near);
+		assertNull(fetcher.pickFarthestFromActive());
+		assertEquals(0, fetcher.pendingLookups());
+	}
+
+}
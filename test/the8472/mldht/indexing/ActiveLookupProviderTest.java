@@ -0,0 +1,230 @@
+package the8472.mldht.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static the8472.bencode.Utils.buf2str;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeFactory;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
+import lbms.plugins.mldht.utils.NIOConnectionManager;
+import the8472.mldht.indexing.ActiveLookupProvider.Connection;
+import the8472.mldht.indexing.ActiveLookupProvider.Lookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActiveLookupProviderTest {
+
+	List<Lookup> launched = new ArrayList<>();
+	boolean capacity = true;
+	ActiveLookupProvider provider;
+
+	@Before
+	public void setup() {
+		provider = new ActiveLookupProvider() {
+			@Override
+			boolean launch(Lookup l) {
+				if(!capacity)
+					return false;
+				launched.add(l);
+				return true;
+			}
+		};
+		provider.manager = new NIOConnectionManager("lookup test");
+	}
+
+	static List<String> output(Connection c) {
+		List<String> lines = new ArrayList<>();
+		ByteBuffer b;
+		while((b = c.toWrite.poll()) != null)
+			lines.add(buf2str(b).trim());
+		return lines;
+	}
+
+	static Key key(int i) {
+		byte[] h = new byte[20];
+		h[19] = (byte) i;
+		return new Key(h);
+	}
+
+	@Test
+	public void coalescesDuplicateRequests() throws IOException {
+		Connection a = provider.new Connection(SocketChannel.open());
+		Connection b = provider.new Connection(SocketChannel.open());
+		Key k = key(1);
+
+		a.line("r1\t" + k.toString(false));
+		assertEquals(1, launched.size());
+		Lookup l = launched.get(0);
+
+		l.peerFound(PeerAddressDBItem.createFromAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), 1234, true));
+
+		// the second request joins the running lookup and gets already discovered peers replayed
+		b.line("x\t" + k.toString(false));
+		assertEquals(1, launched.size());
+		assertEquals(1, provider.coalesced.get());
+
+		l.peerFound(PeerAddressDBItem.createFromAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 2}), 1234, false));
+		provider.lookupDone(l);
+
+		String hex = k.toString(false);
+		String done = hex + "\tscrapeSeeds:0\tscrapePeers:0\tdirect:0";
+		assertEquals(Arrays.asList("queued\tr1\t" + hex, "starting\tr1\t" + hex, "peer\tr1\t/10.0.0.1:1234\tseed", "peer\tr1\t/10.0.0.2:1234\tleech", "done\tr1\t" + done), output(a));
+		assertEquals(Arrays.asList("starting\tx\t" + hex, "peer\tx\t/10.0.0.1:1234\tseed", "peer\tx\t/10.0.0.2:1234\tleech", "done\tx\t" + done), output(b));
+		assertEquals(0, provider.lookups.size());
+	}
+
+	@Test
+	public void schedulesRoundRobin() throws IOException {
+		provider.maxActive = 1;
+		Connection a = provider.new Connection(SocketChannel.open());
+		Connection b = provider.new Connection(SocketChannel.open());
+
+		for(int i=1;i<=3;i++)
+			a.line("a" + i + "\t" + key(i).toString(false));
+		b.line("b1\t" + key(10).toString(false));
+
+		assertEquals(1, launched.size());
+		while(launched.size() < 4)
+			provider.lookupDone(launched.get(launched.size() - 1));
+
+		assertEquals(Arrays.asList(key(1), key(2), key(10), key(3)), Arrays.asList(launched.stream().map(l -> l.key).toArray()));
+	}
+
+	@Test
+	public void handsOverQueuedLookupsOnClose() throws IOException {
+		provider.maxActive = 1;
+		Connection a = provider.new Connection(SocketChannel.open());
+		Connection b = provider.new Connection(SocketChannel.open());
+
+		a.line("a1\t" + key(1).toString(false));
+		a.line("a2\t" + key(2).toString(false));
+		b.line("b2\t" + key(2).toString(false));
+		a.line("a3\t" + key(3).toString(false));
+
+		a.close();
+		assertEquals(1, provider.queued);
+		provider.lookupDone(launched.get(0));
+
+		assertEquals(2, launched.size());
+		assertEquals(key(2), launched.get(1).key);
+		assertEquals(1, launched.get(1).subscribers.size());
+		assertEquals(b, launched.get(1).subscribers.get(0).connection);
+	}
+
+	@Test
+	public void rejectsMalformedRequests() throws IOException {
+		Connection a = provider.new Connection(SocketChannel.open());
+		a.line("r1\tnothex");
+		a.line("nothex");
+		assertEquals(Arrays.asList("error\tr1\tmalformed infohash"), output(a));
+		assertEquals(0, launched.size());
+	}
+
+	@Test
+	public void requeuesFailedLaunchOntoOpenConnection() throws IOException {
+		capacity = false;
+		Connection a = provider.new Connection(SocketChannel.open());
+		Connection b = provider.new Connection(SocketChannel.open());
+		Key k = key(1);
+
+		a.line("a1\t" + k.toString(false));
+		b.line("b1\t" + k.toString(false));
+		assertEquals(1, a.queue.size());
+
+		// a is shutting down but its close has not been processed yet, the retry has to go to b
+		a.chan.close();
+		provider.dispatch();
+		assertEquals(0, a.queue.size());
+		assertEquals(1, b.queue.size());
+
+		a.close();
+		a.doStateChecks(0);
+		assertEquals(1, provider.queued);
+
+		capacity = true;
+		provider.dispatch();
+		assertEquals(1, launched.size());
+		assertEquals(1, launched.get(0).subscribers.size());
+		assertEquals(b, launched.get(0).subscribers.get(0).connection);
+	}
+
+	@Test
+	public void dropsFailedLaunchWithoutOpenConnections() throws IOException {
+		capacity = false;
+		Connection a = provider.new Connection(SocketChannel.open());
+		a.line("a1\t" + key(1).toString(false));
+		a.chan.close();
+		provider.dispatch();
+
+		assertEquals(0, provider.queued);
+		assertEquals(0, provider.active);
+		assertEquals(0, provider.lookups.size());
+	}
+
+	@Test
+	public void stopCancelsLookups() throws IOException {
+		DHT dht = NodeFactory.buildDHT(DHTtype.IPV4_DHT);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			dht.setScheduler(scheduler);
+			RPCServer srv = NodeFactory.buildServer(dht);
+
+			provider = new ActiveLookupProvider() {
+				@Override
+				boolean launch(Lookup l) {
+					PeerLookupTask t = new PeerLookupTask(srv, dht.getNode(), l.key);
+					t.addListener(x -> lookupDone(l));
+					l.tasks = Collections.singletonList(t);
+					launched.add(l);
+					return true;
+				}
+			};
+			provider.manager = new NIOConnectionManager("lookup test");
+			provider.maxActive = 1;
+
+			Connection a = provider.new Connection(SocketChannel.open());
+			provider.connections.add(a);
+			a.line("a1\t" + key(1).toString(false));
+			a.line("a2\t" + key(2).toString(false));
+			assertEquals(1, provider.queued);
+
+			provider.stop();
+
+			assertTrue(a.closed);
+			assertFalse(a.chan.isOpen());
+			assertTrue(launched.get(0).tasks.get(0).isFinished());
+			assertEquals(1, launched.size());
+			assertEquals(0, provider.queued);
+			assertEquals(0, provider.active);
+			assertEquals(0, provider.lookups.size());
+			assertEquals(0, provider.connections.size());
+
+			// late requests are ignored
+			Connection b = provider.new Connection(SocketChannel.open());
+			b.line("b1\t" + key(3).toString(false));
+			assertEquals(1, launched.size());
+			assertEquals(0, provider.lookups.size());
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+}
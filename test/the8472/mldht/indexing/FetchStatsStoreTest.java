@@ -0,0 +1,151 @@
+package the8472.mldht.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import the8472.mldht.indexing.TorrentDumper.FetchStats;
+import the8472.mldht.indexing.TorrentDumper.FetchStats.State;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class FetchStatsStoreTest {
+
+	static FetchStats stats(Key k, State st) {
+		return new FetchStats(k, fs -> {
+			fs.recentSources = new ArrayList<>();
+			fs.recentSources.add(new KBucketEntry(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234), Key.createRandomKey()));
+			fs.creationTime = System.currentTimeMillis();
+			fs.state = st;
+		});
+	}
+
+	static Path tempDir() throws IOException {
+		Path dir = Files.createTempDirectory("stats-store");
+		dir.toFile().deleteOnExit();
+		return dir;
+	}
+
+	static void deleteTree(Path dir) throws IOException {
+		try(Stream<Path> st = Files.walk(dir)) {
+			for(Path p : st.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList()))
+				Files.delete(p);
+		}
+	}
+
+	@Test
+	public void transitionsSurviveRestart() throws IOException {
+		Path dir = tempDir();
+
+		Key a = Key.createRandomKey();
+		Key b = Key.createRandomKey();
+		Key c = Key.createRandomKey();
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			store.put(stats(a, State.INITIAL));
+			store.put(stats(b, State.INITIAL));
+			store.put(stats(c, State.INITIAL));
+
+			FetchStats promoted = store.get(a).get();
+			promoted.state = State.PRIORITY;
+			promoted.insertCount = 2;
+			store.put(promoted);
+
+			store.put(stats(b, State.FAILED));
+			store.remove(c);
+
+			assertEquals(0, store.size(State.INITIAL));
+			assertEquals(1, store.size(State.PRIORITY));
+			assertEquals(1, store.size(State.FAILED));
+		}
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			assertEquals(State.PRIORITY, store.get(a).get().state);
+			assertEquals(2, store.get(a).get().insertCount);
+			assertEquals(1, store.get(a).get().recentSources.size());
+			assertEquals(State.FAILED, store.get(b).get().state);
+			assertFalse(store.get(c).isPresent());
+
+			List<FetchStats> sampled = store.sample(State.PRIORITY, k -> false).collect(Collectors.toList());
+			assertEquals(1, sampled.size());
+			assertEquals(a, sampled.get(0).getK());
+			assertEquals(0, store.sample(State.PRIORITY, a::equals).count());
+		}
+
+		deleteTree(dir);
+	}
+
+	@Test
+	public void compactionKeepsLiveRecordsAndTombstones() throws IOException {
+		Path dir = tempDir();
+
+		Key kept = Key.createRandomKey();
+		Key deleted = Key.createRandomKey();
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			store.put(stats(deleted, State.INITIAL));
+			store.put(stats(kept, State.INITIAL));
+			// seal the first segment and shadow the deleted key's record from the second one
+			store.newSegment();
+			for(int i=0;i<100;i++)
+				store.put(stats(Key.createRandomKey(), State.FAILED));
+			store.remove(deleted);
+			store.newSegment();
+			// make the second segment sparse
+			assertEquals(100, store.purge(State.FAILED, st -> true));
+
+			store.compact();
+			assertTrue(store.compactions > 0);
+			assertTrue(store.get(kept).isPresent());
+			assertFalse(store.get(deleted).isPresent());
+		}
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			assertTrue(store.get(kept).isPresent());
+			assertFalse(store.get(deleted).isPresent());
+			assertEquals(0, store.size(State.FAILED));
+		}
+
+		deleteTree(dir);
+	}
+
+	@Test
+	public void trimsOversizedSources() throws IOException {
+		Path dir = tempDir();
+		Key k = Key.createRandomKey();
+		long now = System.currentTimeMillis();
+
+		FetchStats big = stats(k, State.INITIAL);
+		big.recentSources.clear();
+		for(int i=0;i<1000;i++)
+			big.recentSources.add(new KBucketEntry(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000 + i), Key.createRandomKey(), now - i));
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			store.put(big);
+			assertEquals(1000, big.recentSources.size());
+		}
+
+		try(FetchStatsStore store = new FetchStatsStore(dir)) {
+			List<KBucketEntry> sources = store.get(k).get().recentSources;
+			assertTrue(sources.size() > 0 && sources.size() < 1000);
+			// the most recently seen source survives
+			assertTrue(sources.stream().anyMatch(e -> e.getLastSeen() == now));
+		}
+
+		deleteTree(dir);
+	}
+
+}
@@ -0,0 +1,135 @@
+package the8472.mldht.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import the8472.bencode.BEncoder;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class TorrentPackTest {
+
+	static ByteBuffer infoDict(int i) {
+		Map<String, Object> info = new HashMap<>();
+		info.put("name", ("torrent " + i).getBytes(StandardCharsets.UTF_8));
+		info.put("length", (long) i);
+		info.put("piece length", 16384L);
+		info.put("pieces", new byte[20]);
+		return new BEncoder().encode(info, 256);
+	}
+
+	static Key infohash(ByteBuffer dict) {
+		MessageDigest dig = ThreadLocalUtils.getThreadLocalSHA1();
+		dig.reset();
+		dig.update(dict.duplicate());
+		return new Key(dig.digest());
+	}
+
+	static Path tempDir() throws IOException {
+		Path dir = Files.createTempDirectory("torrent-pack");
+		dir.toFile().deleteOnExit();
+		return dir;
+	}
+
+	static void delete(Path dir) throws IOException {
+		try(Stream<Path> st = Files.list(dir)) {
+			for(Path p : st.collect(Collectors.toList()))
+				Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void appendSealAndReopen() throws IOException {
+		Path dir = tempDir();
+		try {
+			List<Key> keys = new ArrayList<>();
+			try(TorrentPack pack = TorrentPack.openForWriting(dir)) {
+				// small packs to force several seals
+				pack.packSize = 1024;
+				for(int i=0;i<100;i++) {
+					ByteBuffer dict = infoDict(i);
+					Key k = infohash(dict);
+					assertTrue(pack.append(k, dict));
+					assertFalse(pack.append(k, dict));
+					keys.add(k);
+				}
+
+				// wrong infohash
+				assertFalse(pack.append(Key.createRandomKey(), infoDict(1000)));
+				assertEquals(1, pack.rejected);
+
+				assertTrue(pack.packs.size() > 2);
+				assertTrue(pack.packs.get(0) instanceof TorrentPack.SealedPack);
+				assertEquals(100, pack.size());
+				for(int i=0;i<keys.size();i++)
+					assertEquals(infoDict(i), pack.get(keys.get(i)).get());
+			}
+
+			try(TorrentPack reader = TorrentPack.openReadOnly(dir)) {
+				assertEquals(100, reader.size());
+				for(int i=0;i<keys.size();i++) {
+					assertTrue(reader.contains(keys.get(i)));
+					assertEquals(infoDict(i), reader.get(keys.get(i)).get());
+				}
+				assertFalse(reader.contains(Key.createRandomKey()));
+				assertEquals(keys.stream().sorted().collect(Collectors.toList()), reader.keys().sorted().collect(Collectors.toList()));
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void recoversTornTail() throws IOException {
+		Path dir = tempDir();
+		try {
+			ByteBuffer first = infoDict(1);
+			ByteBuffer second = infoDict(2);
+			Path packFile;
+			try(TorrentPack pack = TorrentPack.openForWriting(dir)) {
+				pack.append(infohash(first), first);
+				pack.append(infohash(second), second);
+				packFile = pack.active.file;
+			}
+
+			// simulate a crash in the middle of the last record
+			try(FileChannel chan = FileChannel.open(packFile, StandardOpenOption.WRITE)) {
+				chan.truncate(chan.size() - 5);
+			}
+
+			try(TorrentPack pack = TorrentPack.openForWriting(dir)) {
+				assertTrue(pack.contains(infohash(first)));
+				assertFalse(pack.contains(infohash(second)));
+				assertTrue(pack.append(infohash(second), second));
+			}
+
+			try(TorrentPack reader = TorrentPack.openReadOnly(dir)) {
+				assertEquals(second, reader.get(infohash(second)).get());
+				assertEquals(2, reader.size());
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package the8472.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import the8472.utils.FlightEvents.Type;
+
+public class FlightEventsTest {
+
+	static final Type TEST_EVENT = FlightEvents.define("mldht.test.Sample", "Test Sample", "mldht/Test", "unit test event", "name", String.class, "value", int.class);
+
+	Path dump;
+
+	@After
+	public void cleanup() throws Exception {
+		FlightEvents.setEnabled(false);
+		if(dump != null)
+			Files.deleteIfExists(dump);
+	}
+
+	@Test
+	public void disabledIsNoop() {
+		FlightEvents.setEnabled(false);
+		assertNull(TEST_EVENT.begin());
+		// must not touch the values
+		TEST_EVENT.commit(null);
+	}
+
+	@Test
+	public void recordsCustomEvents() throws Exception {
+		if(!FlightEvents.isSupported())
+			return;
+
+		FlightEvents.startRecording("default", Duration.ofMinutes(1));
+		try {
+			Object ev = TEST_EVENT.begin();
+			assertTrue(ev != null);
+			TEST_EVENT.commit(ev, "answer", 42);
+			TEST_EVENT.emit("instant", 7);
+			assertTrue(FlightEvents.status().startsWith("recording RUNNING"));
+		} finally {
+			dump = Files.createTempFile("mldht-test", ".jfr");
+			FlightEvents.stopRecording(dump);
+		}
+
+		// the consumer API only exists on JFR-capable JVMs, go through reflection like the production code
+		Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+		List<?> events = (List<?>) recordingFile.getMethod("readAllEvents", Path.class).invoke(null, dump);
+		Class<?> recordedEvent = Class.forName("jdk.jfr.consumer.RecordedEvent");
+		Class<?> recordedObject = Class.forName("jdk.jfr.consumer.RecordedObject");
+
+		int found = 0;
+		for(Object e : events) {
+			Object type = recordedEvent.getMethod("getEventType").invoke(e);
+			if(!"mldht.test.Sample".equals(type.getClass().getMethod("getName").invoke(type)))
+				continue;
+			String name = (String) recordedObject.getMethod("getString", String.class).invoke(e, "name");
+			int value = (int) recordedObject.getMethod("getInt", String.class).invoke(e, "value");
+			assertTrue(name.equals("answer") && value == 42 || name.equals("instant") && value == 7);
+			found++;
+		}
+		assertEquals(2, found);
+		assertTrue(!FlightEvents.isEnabled());
+	}
+
+	@Test
+	public void stopRestoresConfiguredState() throws Exception {
+		if(!FlightEvents.isSupported())
+			return;
+
+		// e.g. enabled at startup for an external -XX:StartFlightRecording
+		FlightEvents.setEnabled(true);
+		FlightEvents.startRecording("default", Duration.ofMinutes(1));
+		FlightEvents.stopRecording(null);
+		assertTrue(FlightEvents.isEnabled());
+
+		// disabling during our own recording only takes effect once it stops
+		FlightEvents.startRecording("default", Duration.ofMinutes(1));
+		FlightEvents.setEnabled(false);
+		assertTrue(FlightEvents.isEnabled());
+		FlightEvents.stopRecording(null);
+		assertTrue(!FlightEvents.isEnabled());
+	}
+
+}
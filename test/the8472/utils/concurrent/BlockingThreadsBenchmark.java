@@ -0,0 +1,54 @@
+package the8472.utils.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares thread count and start latency of platform and virtual threads for tasks that mostly block, like the log writer or filesystem walks.
+ *
+ * <p>
+ * Not a unit test, run manually on a JDK with virtual threads: <code>java -cp ... the8472.utils.concurrent.BlockingThreadsBenchmark [tasks] [blockMillis]</code>
+ * </p>
+ */
+public class BlockingThreadsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+		long blockMillis = args.length > 1 ? Long.parseLong(args[1]) : 100;
+
+		for(int round=0;round<3;round++) {
+			run(false, tasks, blockMillis);
+			if(BlockingThreads.virtualThreadsSupported())
+				run(true, tasks, blockMillis);
+		}
+
+		if(!BlockingThreads.virtualThreadsSupported())
+			System.out.println("virtual threads not supported by this JVM, only measured platform threads");
+	}
+
+	static void run(boolean virtual, int tasks, long blockMillis) throws InterruptedException {
+		BlockingThreads.setUseVirtualThreads(virtual);
+		CountDownLatch done = new CountDownLatch(tasks);
+		int platformThreadsBefore = Thread.activeCount();
+		int[] peakPlatformThreads = {0};
+
+		long start = System.nanoTime();
+		for(int i=0;i<tasks;i++) {
+			BlockingThreads.newThread("bench", () -> {
+				try {
+					Thread.sleep(blockMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}).start();
+			// activeCount only sees platform threads
+			peakPlatformThreads[0] = Math.max(peakPlatformThreads[0], Thread.activeCount() - platformThreadsBefore);
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.format("%-8s tasks:%d block:%dms  wall:%dms  peak platform threads:%d  %s%n", virtual ? "virtual" : "platform", tasks, blockMillis, TimeUnit.NANOSECONDS.toMillis(elapsed), peakPlatformThreads[0], BlockingThreads.stats());
+	}
+
+}
@@ -0,0 +1,54 @@
+package the8472.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BlockingThreadsTest {
+
+	@After
+	public void reset() {
+		BlockingThreads.setUseVirtualThreads(false);
+	}
+
+	@Test
+	public void platformFallback() throws InterruptedException {
+		BlockingThreads.setUseVirtualThreads(false);
+		Thread t = BlockingThreads.newThread("blocking test", () -> {});
+		assertTrue(t.isDaemon());
+		assertEquals("blocking test", t.getName());
+
+		AtomicReference<Thread> ranOn = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(1);
+		BlockingThreads.executorOr("blocking test", r -> new Thread(r, "fallback").start()).execute(() -> {
+			ranOn.set(Thread.currentThread());
+			done.countDown();
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("fallback", ranOn.get().getName());
+	}
+
+	@Test
+	public void virtualIfSupported() throws InterruptedException {
+		BlockingThreads.setUseVirtualThreads(true);
+		assertEquals(BlockingThreads.virtualThreadsSupported(), BlockingThreads.usesVirtualThreads());
+
+		AtomicReference<Thread> ranOn = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(1);
+		// the fallback is only used on JVMs without virtual threads
+		BlockingThreads.executorOr("blocking test", r -> new Thread(r, "fallback").start()).execute(() -> {
+			ranOn.set(Thread.currentThread());
+			done.countDown();
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(BlockingThreads.virtualThreadsSupported() ? "blocking test" : "fallback", ranOn.get().getName());
+		assertTrue(BlockingThreads.stats().contains("supported:" + BlockingThreads.virtualThreadsSupported()));
+	}
+
+}
@@ -0,0 +1,76 @@
+package the8472.utils.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Floods the DHT executors with packet-sized tasks the way the selector thread does and compares throughput.
+ *
+ * <p>
+ * Not a unit test, run manually: <code>java -cp ... the8472.utils.concurrent.ExecutorBenchmark [threads] [producers] [tasks]</code>
+ * </p>
+ * <p>
+ * Each task checksums a 1.5KB buffer, roughly the work of decoding a packet. Every tenth task also schedules a short timeout
+ * like an RPC call would, to include the delayed-task path.
+ * </p>
+ */
+public class ExecutorBenchmark {
+
+	interface Factory {
+		ScheduledExecutorService create(int threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(Runtime.getRuntime().availableProcessors(), 4);
+		int producers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int tasks = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+
+		for(int round=0;round<3;round++) {
+			run("shared queue", t -> new NonblockingScheduledExecutor("bench", t, null), threads, producers, tasks);
+			run("work stealing", t -> new WorkStealingScheduledExecutor("bench", t, null), threads, producers, tasks);
+		}
+	}
+
+	static void run(String name, Factory factory, int threads, int producers, int tasks) throws InterruptedException {
+		ScheduledExecutorService exec = factory.create(threads);
+		int perProducer = tasks / producers;
+		CountDownLatch done = new CountDownLatch(perProducer * producers);
+
+		ThreadLocal<ByteBuffer> packets = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1500));
+		ThreadLocal<CRC32> crcs = ThreadLocal.withInitial(CRC32::new);
+
+		Runnable handlePacket = () -> {
+			ByteBuffer buf = packets.get();
+			buf.clear();
+			CRC32 crc = crcs.get();
+			crc.reset();
+			crc.update(buf);
+			done.countDown();
+		};
+
+		Thread[] senders = new Thread[producers];
+		long start = System.nanoTime();
+		for(int i=0;i<producers;i++) {
+			senders[i] = new Thread(() -> {
+				for(int j=0;j<perProducer;j++) {
+					exec.execute(handlePacket);
+					if(j % 10 == 0)
+						exec.schedule(() -> {}, 50, TimeUnit.MILLISECONDS);
+				}
+			});
+			senders[i].start();
+		}
+
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.format("%-14s threads:%d producers:%d  %6.2f Mtasks/s  %s%n", name, threads, producers, perProducer * producers * 1000.0 / elapsed, exec);
+
+		exec.shutdown();
+		exec.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,81 @@
+package the8472.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RecordRingTest {
+
+	@Test
+	public void rejectsWhenFull() {
+		RecordRing ring = new RecordRing(8, 3);
+		assertEquals(4, ring.capacity());
+
+		ByteBuffer rec = ByteBuffer.allocate(8);
+		for(int i=0;i<4;i++) {
+			rec.putLong(0, i);
+			assertTrue(ring.offer(rec));
+		}
+		assertFalse(ring.offer(rec));
+		assertEquals(4, ring.size());
+
+		ByteBuffer out = ByteBuffer.allocate(16);
+		assertTrue(ring.poll(out));
+		assertTrue(ring.offer(rec));
+		assertTrue(ring.poll(out));
+		out.flip();
+		assertEquals(0, out.getLong());
+		assertEquals(1, out.getLong());
+	}
+
+	@Test
+	public void concurrentProducers() throws InterruptedException {
+		RecordRing ring = new RecordRing(8, 1024);
+		int producers = 4;
+		int perProducer = 100_000;
+		AtomicInteger rejected = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<>();
+		for(int p=0;p<producers;p++) {
+			long base = (long) p << 32;
+			Thread t = new Thread(() -> {
+				ByteBuffer rec = ByteBuffer.allocate(8);
+				for(int i=0;i<perProducer;i++) {
+					rec.putLong(0, base | i);
+					while(!ring.offer(rec))
+						rejected.incrementAndGet();
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		// records of each producer must arrive in order and without loss
+		int[] next = new int[producers];
+		ByteBuffer out = ByteBuffer.allocate(8);
+		int received = 0;
+		while(received < producers * perProducer) {
+			out.clear();
+			if(!ring.poll(out)) {
+				Thread.yield();
+				continue;
+			}
+			long v = out.getLong(0);
+			int p = (int) (v >>> 32);
+			assertEquals(next[p]++, (int) v);
+			received++;
+		}
+
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, ring.size());
+	}
+
+}
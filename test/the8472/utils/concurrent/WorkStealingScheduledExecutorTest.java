@@ -0,0 +1,194 @@
+package the8472.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkStealingScheduledExecutorTest {
+
+	AtomicReference<Throwable> uncaught = new AtomicReference<>();
+	WorkStealingScheduledExecutor exec = new WorkStealingScheduledExecutor("test", 4, (t, ex) -> uncaught.set(ex));
+
+	@After
+	public void shutdown() {
+		exec.shutdownNow();
+	}
+
+	@Test
+	public void delayedTasksNeverFireEarly() throws InterruptedException {
+		// spans level 0 and 1 of the wheel
+		long[] delays = {0, 1, 3, 20, 63, 64, 65, 130, 250};
+		CountDownLatch latch = new CountDownLatch(delays.length);
+		List<String> early = new ArrayList<>();
+
+		for(long d : delays) {
+			long start = System.nanoTime();
+			exec.schedule(() -> {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				if(elapsed < d) {
+					synchronized (early) {
+						early.add(d + " fired after " + elapsed);
+					}
+				}
+				latch.countDown();
+			}, d, TimeUnit.MILLISECONDS);
+		}
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(early.toString(), early.isEmpty());
+	}
+
+	/**
+	 * drives the wheel by hand, waiting for the upper levels in real time would take hours
+	 */
+	@Test
+	public void cascadesFromUpperLevelsAndOverflow() {
+		WorkStealingScheduledExecutor manual = new WorkStealingScheduledExecutor("manual", 1, (t, ex) -> uncaught.set(ex), false);
+		try {
+			// level 2, level 3 and beyond the wheel span
+			long[] delays = {TimeUnit.SECONDS.toNanos(5), TimeUnit.MINUTES.toNanos(5), TimeUnit.HOURS.toNanos(5)};
+			long[] earliest = new long[delays.length];
+			long[] latest = new long[delays.length];
+
+			for(int i=0;i<delays.length;i++) {
+				long before = System.nanoTime();
+				manual.schedule(() -> {}, delays[i], TimeUnit.NANOSECONDS);
+				long after = System.nanoTime();
+				earliest[i] = manual.tickOf(before + delays[i]);
+				latest[i] = manual.tickOf(after + delays[i]);
+			}
+
+			manual.insertSubmitted();
+			assertEquals(0, manual.occupied[0] | manual.occupied[1]);
+			assertTrue(manual.occupied[2] != 0);
+			assertTrue(manual.occupied[3] != 0);
+			assertEquals(1, manual.overflow.size());
+			assertEquals(3, manual.delayedCount);
+
+			long tick = manual.currentTick;
+			for(int i=0;i<delays.length;i++) {
+				while(tick < earliest[i] - 1)
+					manual.advance(++tick);
+				assertEquals("expired early: " + i, i, manual.expired.sum());
+				while(tick < latest[i])
+					manual.advance(++tick);
+				assertEquals("not expired: " + i, i + 1, manual.expired.sum());
+			}
+
+			assertTrue(manual.overflow.isEmpty());
+			for(long o : manual.occupied)
+				assertEquals(0, o);
+			assertEquals(0, manual.delayedCount);
+			assertEquals(null, uncaught.get());
+		} finally {
+			manual.shutdownNow();
+		}
+	}
+
+	@Test
+	public void promotesOverflowIntoWheel() {
+		WorkStealingScheduledExecutor manual = new WorkStealingScheduledExecutor("manual", 1, (t, ex) -> uncaught.set(ex), false);
+		try {
+			long span = 1L << (WorkStealingScheduledExecutor.WHEEL_BITS * WorkStealingScheduledExecutor.LEVELS);
+			ScheduledFuture<?> f = manual.schedule(() -> {}, span + TimeUnit.MINUTES.toMillis(10), TimeUnit.MILLISECONDS);
+			manual.insertSubmitted();
+			assertEquals(1, manual.overflow.size());
+
+			// the overflow list is only re-examined at level 3 boundaries, at the first one that brings the task within the wheel span it moves to level 3
+			long boundary = 1L << (WorkStealingScheduledExecutor.WHEEL_BITS * (WorkStealingScheduledExecutor.LEVELS - 1));
+			long tick = manual.currentTick;
+			while(!manual.overflow.isEmpty())
+				manual.advance(++tick);
+			assertEquals(0, tick % boundary);
+			assertTrue(manual.occupied[3] != 0);
+			assertEquals(1, manual.delayedCount);
+			assertEquals(0, manual.expired.sum());
+			assertTrue(manual.nextOccupiedTick() > tick);
+
+			assertTrue(f.cancel(false));
+			long end = tick + span;
+			while(manual.delayedCount > 0 && tick < end)
+				manual.advance(++tick);
+			// cancelled tasks are dropped without running
+			assertEquals(0, manual.delayedCount);
+			assertEquals(0, manual.expired.sum());
+		} finally {
+			manual.shutdownNow();
+		}
+	}
+
+	@Test
+	public void periodicAndCancel() throws InterruptedException {
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(5);
+		ScheduledFuture<?> f = exec.scheduleWithFixedDelay(() -> {
+			runs.incrementAndGet();
+			latch.countDown();
+		}, 1, 5, TimeUnit.MILLISECONDS);
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		f.cancel(false);
+		Thread.sleep(50);
+		int after = runs.get();
+		Thread.sleep(50);
+		assertEquals(after, runs.get());
+
+		// far beyond the wheel span, goes to the overflow list
+		AtomicInteger never = new AtomicInteger();
+		ScheduledFuture<?> distant = exec.schedule(never::incrementAndGet, 10, TimeUnit.HOURS);
+		assertTrue(distant.getDelay(TimeUnit.HOURS) >= 9);
+		assertTrue(distant.cancel(false));
+		assertEquals(0, never.get());
+	}
+
+	@Test
+	public void reportsExceptions() throws InterruptedException {
+		exec.schedule(() -> {
+			throw new IllegalStateException("scheduled");
+		}, 1, TimeUnit.MILLISECONDS);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(uncaught.get() == null && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(uncaught.get() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void floodFromManyThreads() throws InterruptedException {
+		int producers = 4;
+		int perProducer = 50_000;
+		CountDownLatch done = new CountDownLatch(producers * perProducer);
+
+		List<Thread> threads = new ArrayList<>();
+		for(int i=0;i<producers;i++) {
+			Thread t = new Thread(() -> {
+				for(int j=0;j<perProducer;j++) {
+					// every other task spawns its follow-up from within a worker
+					if((j & 1) == 0)
+						exec.execute(done::countDown);
+					else
+						exec.execute(() -> exec.execute(done::countDown));
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		for(Thread t : threads)
+			t.join();
+		assertFalse(exec.toString().isEmpty());
+	}
+
+}
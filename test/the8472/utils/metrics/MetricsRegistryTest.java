@@ -0,0 +1,84 @@
+package the8472.utils.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+	MetricsRegistry reg = new MetricsRegistry();
+
+	@Test
+	public void countersAndGauges() {
+		Counter c = reg.counter("test_requests_total", "requests", "path", "/a");
+		c.inc();
+		c.add(2);
+		assertSame(c, reg.counter("test_requests_total", "requests", "path", "/a"));
+		reg.counter("test_requests_total", "requests", "path", "/b").inc();
+
+		AtomicLong depth = new AtomicLong(7);
+		reg.gauge("test_depth", "queue depth", depth::get);
+
+		String expected =
+				"# HELP test_depth queue depth\n" +
+				"# TYPE test_depth gauge\n" +
+				"test_depth 7\n" +
+				"# HELP test_requests_total requests\n" +
+				"# TYPE test_requests_total counter\n" +
+				"test_requests_total{path=\"/a\"} 3\n" +
+				"test_requests_total{path=\"/b\"} 1\n";
+		assertEquals(expected, reg.scrape());
+
+		depth.set(8);
+		assertTrue(reg.scrape().contains("test_depth 8\n"));
+	}
+
+	@Test
+	public void histogramIsCumulative() {
+		Histogram h = reg.histogram("test_latency_seconds", "latency", new double[] {0.1, 1, 10}, "dht", "IPv4");
+		h.observe(0.05);
+		h.observe(0.1);
+		h.observe(0.5);
+		h.observe(100);
+		h.observe(Double.NaN);
+
+		String out = reg.scrape();
+		assertTrue(out, out.contains("# TYPE test_latency_seconds histogram\n"));
+		assertTrue(out, out.contains("test_latency_seconds_bucket{dht=\"IPv4\",le=\"0.1\"} 2\n"));
+		assertTrue(out, out.contains("test_latency_seconds_bucket{dht=\"IPv4\",le=\"1\"} 3\n"));
+		assertTrue(out, out.contains("test_latency_seconds_bucket{dht=\"IPv4\",le=\"10\"} 3\n"));
+		assertTrue(out, out.contains("test_latency_seconds_bucket{dht=\"IPv4\",le=\"+Inf\"} 4\n"));
+		assertTrue(out, out.contains("test_latency_seconds_sum{dht=\"IPv4\"} 100.6"));
+		assertTrue(out, out.contains("test_latency_seconds_count{dht=\"IPv4\"} 4\n"));
+	}
+
+	@Test
+	public void collectorsMergeWithRegisteredFamilies() {
+		reg.counter("test_packets_total", "packets", "dir", "rx").add(5);
+		reg.register(sink -> {
+			sink.counter("test_packets_total", "packets", 9, "dir", "tx");
+			sink.gauge("test_label_escaping", "quote \" and \\ backslash\nnewline", Double.NaN, "v", "a\"b\\c\nd");
+		});
+
+		String out = reg.scrape();
+		assertTrue(out, out.contains("# TYPE test_packets_total counter\ntest_packets_total{dir=\"rx\"} 5\ntest_packets_total{dir=\"tx\"} 9\n"));
+		assertTrue(out, out.contains("# HELP test_label_escaping quote \" and \\\\ backslash\\nnewline\n"));
+		assertTrue(out, out.contains("test_label_escaping{v=\"a\\\"b\\\\c\\nd\"} NaN\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTypeConflicts() {
+		reg.counter("test_conflict", "x");
+		reg.gauge("test_conflict", "x", () -> 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidNames() {
+		reg.counter("test-dash", "x");
+	}
+
+}